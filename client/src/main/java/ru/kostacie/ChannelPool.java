@@ -0,0 +1,212 @@
+package ru.kostacie;
+
+import io.grpc.ConnectivityState;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.Status;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+
+/**
+ * Общие для всех потоков каналы к DataNode.
+ * <p>
+ * Передача берёт канал к DataNode на время одного вызова и возвращает его, поэтому TCP-соединение
+ * и HTTP/2 handshake не повторяются для каждого файла. На канале одновременно идёт не больше
+ * maxStreamsPerChannel передач: следующая открывает к тому же DataNode ещё один канал, чтобы передачи
+ * не упирались в лимит потоков HTTP/2 одного соединения.
+ * <p>
+ * Канал, который не использовался idleTimeout, закрывается. Канал, соединение которого оборвалось
+ * (TRANSIENT_FAILURE) или передача по которому завершилась UNAVAILABLE, убирается из пула:
+ * начатые на нём передачи доходят до конца, а новые получают новый канал.
+ */
+@Slf4j
+class ChannelPool implements Closeable {
+    // Одновременных передач на канал: заметно меньше обычного лимита потоков HTTP/2 в 100
+    public static final int DEFAULT_MAX_STREAMS_PER_CHANNEL = 64;
+    public static final long DEFAULT_IDLE_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(60);
+
+    private final Function<String, ManagedChannel> channelFactory;
+    private final int maxStreamsPerChannel;
+    private final long idleTimeoutNanos;
+    // Каналы по адресам DataNode; список меняется под его блокировкой
+    private final Map<String, List<PooledChannel>> channels = new ConcurrentHashMap<>();
+    private final ScheduledFuture<?> evictionTask;
+
+    /**
+     * Пул каналов с обычными параметрами; каналы без TLS.
+     */
+    ChannelPool(ScheduledExecutorService scheduler) {
+        this(address -> ManagedChannelBuilder.forTarget(address)
+                        .keepAliveTime(60, TimeUnit.SECONDS)
+                        .usePlaintext()
+                        .build(),
+                DEFAULT_MAX_STREAMS_PER_CHANNEL, DEFAULT_IDLE_TIMEOUT_NANOS, scheduler);
+    }
+
+    /**
+     * @param channelFactory       создаёт канал по адресу DataNode.
+     * @param maxStreamsPerChannel наибольшее число одновременных передач на одном канале.
+     * @param idleTimeoutNanos     через сколько неиспользуемый канал закрывается.
+     * @param scheduler            планировщик закрытия неиспользуемых каналов.
+     */
+    ChannelPool(Function<String, ManagedChannel> channelFactory, int maxStreamsPerChannel, long idleTimeoutNanos,
+                ScheduledExecutorService scheduler) {
+        if (maxStreamsPerChannel <= 0 || idleTimeoutNanos <= 0) {
+            throw new IllegalArgumentException("Invalid channel pool: " + maxStreamsPerChannel + " streams, "
+                    + idleTimeoutNanos + " ns idle timeout");
+        }
+        this.channelFactory = channelFactory;
+        this.maxStreamsPerChannel = maxStreamsPerChannel;
+        this.idleTimeoutNanos = idleTimeoutNanos;
+        long period = Math.max(idleTimeoutNanos / 2, TimeUnit.MILLISECONDS.toNanos(1));
+        this.evictionTask = scheduler.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Берёт канал к DataNode для одной передачи. Канал нужно вернуть через {@link Lease#release}.
+     */
+    Lease acquire(String address) {
+        List<PooledChannel> pooled = channels.computeIfAbsent(address, key -> new ArrayList<>());
+        synchronized (pooled) {
+            PooledChannel chosen = null;
+            for (int i = pooled.size() - 1; i >= 0; i--) {
+                PooledChannel channel = pooled.get(i);
+                if (channel.channel.getState(false) == ConnectivityState.TRANSIENT_FAILURE) {
+                    log.info("Connection to DataNode {} failed, removing its channel from the pool", address);
+                    pooled.remove(i);
+                    channel.retire();
+                } else if (channel.activeStreams < maxStreamsPerChannel
+                        && (chosen == null || channel.activeStreams < chosen.activeStreams)) {
+                    chosen = channel;
+                }
+            }
+            if (chosen == null) {
+                chosen = new PooledChannel(address, channelFactory.apply(address));
+                pooled.add(chosen);
+            }
+            chosen.activeStreams++;
+            return new Lease(chosen);
+        }
+    }
+
+    /**
+     * Число открытых каналов ко всем DataNode.
+     */
+    int size() {
+        int size = 0;
+        for (List<PooledChannel> pooled : channels.values()) {
+            synchronized (pooled) {
+                size += pooled.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Закрывает каналы, которые не использовались дольше idleTimeout.
+     */
+    void evictIdle() {
+        long now = System.nanoTime();
+        for (Map.Entry<String, List<PooledChannel>> entry : channels.entrySet()) {
+            List<PooledChannel> pooled = entry.getValue();
+            synchronized (pooled) {
+                pooled.removeIf(channel -> {
+                    if (channel.activeStreams > 0 || now - channel.lastReleasedNanos < idleTimeoutNanos) {
+                        return false;
+                    }
+                    log.debug("Closing idle channel to DataNode {}", entry.getKey());
+                    channel.retire();
+                    return true;
+                });
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        evictionTask.cancel(false);
+        for (List<PooledChannel> pooled : channels.values()) {
+            synchronized (pooled) {
+                pooled.forEach(channel -> channel.channel.shutdown());
+                pooled.clear();
+            }
+        }
+    }
+
+    /**
+     * Канал к DataNode и число передач на нём. Поля меняются под блокировкой списка каналов DataNode.
+     */
+    private final class PooledChannel {
+        private final String address;
+        private final ManagedChannel channel;
+        private int activeStreams;
+        private long lastReleasedNanos = System.nanoTime();
+        // Канал убран из пула и закроется, когда закончатся начатые передачи
+        private boolean retired;
+
+        PooledChannel(String address, ManagedChannel channel) {
+            this.address = address;
+            this.channel = channel;
+        }
+
+        /**
+         * Убирает канал из пула. shutdown не прерывает начатые передачи.
+         */
+        void retire() {
+            retired = true;
+            channel.shutdown();
+        }
+    }
+
+    /**
+     * Канал, взятый для одной передачи.
+     */
+    final class Lease {
+        private final PooledChannel pooled;
+        private boolean released;
+
+        private Lease(PooledChannel pooled) {
+            this.pooled = pooled;
+        }
+
+        ManagedChannel channel() {
+            return pooled.channel;
+        }
+
+        /**
+         * Возвращает канал в пул. Повторный вызов ничего не делает.
+         *
+         * @param error ошибка передачи или null; после UNAVAILABLE канал убирается из пула.
+         */
+        void release(Throwable error) {
+            List<PooledChannel> pooledChannels = channels.get(pooled.address);
+            if (pooledChannels == null) {
+                return;
+            }
+            synchronized (pooledChannels) {
+                if (released) {
+                    return;
+                }
+                released = true;
+                pooled.activeStreams--;
+                pooled.lastReleasedNanos = System.nanoTime();
+                if (error != null && Status.fromThrowable(error).getCode() == Status.Code.UNAVAILABLE
+                        && !pooled.retired) {
+                    log.info("DataNode {} is unavailable, removing its channel from the pool", pooled.address);
+                    pooledChannels.remove(pooled);
+                    pooled.retire();
+                }
+            }
+        }
+    }
+}
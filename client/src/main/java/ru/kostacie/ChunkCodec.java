@@ -0,0 +1,150 @@
+package ru.kostacie;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+import datanode.DataNodeProto.Codec;
+import datanode.DataNodeProto.DownloadFileResponse;
+import datanode.DataNodeProto.UploadFileRequest;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Сжатие чанков при загрузке и распаковка при скачивании.
+ * Каждый чанк снабжается контрольной суммой CRC32C, а полученные чанки проверяются по ней.
+ * <p>
+ * Чанк отправляется сжатым, только если сжатие экономит заметную часть размера. Если несколько чанков
+ * подряд не сжимаются (архивы, изображения), следующие чанки отправляются без попытки сжатия,
+ * а затем сжатие пробуется снова. Экземпляр используется для одного файла и не потокобезопасен.
+ */
+class ChunkCodec {
+    // Чанк отправляется сжатым, только если сжатый размер не больше этой доли исходного
+    private static final double MAX_COMPRESSED_RATIO = 0.9;
+    private static final int INCOMPRESSIBLE_CHUNKS_LIMIT = 4;
+    private static final int SKIPPED_CHUNKS = 64;
+
+    private final Codec codec;
+    private int incompressibleChunks;
+    private int chunksToSkip;
+
+    /**
+     * @param codec кодек для загрузки; NONE - не сжимать.
+     */
+    ChunkCodec(Codec codec) {
+        if (codec != Codec.NONE && codec != Codec.DEFLATE) {
+            throw new IllegalArgumentException("Unsupported codec: " + codec);
+        }
+        this.codec = codec;
+    }
+
+    /**
+     * Создаёт сообщение загрузки с чанком, сжатым, если это выгодно, и его контрольной суммой.
+     *
+     * @param data   данные файла.
+     * @param offset начало чанка.
+     * @param length длина чанка.
+     */
+    UploadFileRequest.Builder encode(byte[] data, int offset, int length) {
+        UploadFileRequest.Builder request = compress(data, offset, length);
+        return request.setCrc32C(checksum(request.getContent()));
+    }
+
+    private UploadFileRequest.Builder compress(byte[] data, int offset, int length) {
+        UploadFileRequest.Builder request = UploadFileRequest.newBuilder();
+        if (codec != Codec.NONE && length > 0) {
+            if (chunksToSkip > 0) {
+                chunksToSkip--;
+            } else {
+                byte[] compressed = deflate(data, offset, length);
+                if (compressed != null) {
+                    incompressibleChunks = 0;
+                    return request.setCodec(codec)
+                            .setRawLength(length)
+                            .setContent(UnsafeByteOperations.unsafeWrap(compressed));
+                }
+                if (++incompressibleChunks >= INCOMPRESSIBLE_CHUNKS_LIMIT) {
+                    incompressibleChunks = 0;
+                    chunksToSkip = SKIPPED_CHUNKS;
+                }
+            }
+        }
+        return request.setContent(ByteString.copyFrom(data, offset, length));
+    }
+
+    /**
+     * Проверяет контрольную сумму чанка и возвращает его содержимое, распаковывая его при необходимости.
+     *
+     * @param response чанк, полученный от DataNode.
+     * @throws IOException если кодек не поддерживается или данные повреждены.
+     */
+    static ByteString decode(DownloadFileResponse response) throws IOException {
+        if (response.hasCrc32C() && response.getCrc32C() != checksum(response.getContent())) {
+            throw new IOException("Chunk checksum mismatch");
+        }
+        if (response.getCodec() == Codec.NONE) {
+            return response.getContent();
+        }
+        if (response.getCodec() != Codec.DEFLATE) {
+            throw new IOException("Unsupported codec: " + response.getCodec());
+        }
+        int rawLength = response.getRawLength();
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(response.getContent().asReadOnlyByteBuffer());
+            byte[] raw = new byte[rawLength];
+            int length = 0;
+            while (length < rawLength && !inflater.finished()) {
+                int inflated = inflater.inflate(raw, length, rawLength - length);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                length += inflated;
+            }
+            if (length != rawLength) {
+                throw new IOException("Corrupted compressed chunk: expected " + rawLength + " bytes, got " + length);
+            }
+            return UnsafeByteOperations.unsafeWrap(raw);
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupted compressed chunk: " + e.getMessage(), e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static int checksum(ByteString content) {
+        CRC32C crc = new CRC32C();
+        for (ByteBuffer buffer : content.asReadOnlyByteBufferList()) {
+            crc.update(buffer);
+        }
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Сжимает чанк. Возвращает null, если сжатие не экономит место.
+     */
+    private static byte[] deflate(byte[] data, int offset, int length) {
+        int maxCompressed = (int) (length * MAX_COMPRESSED_RATIO);
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(data, offset, length);
+            deflater.finish();
+            // Буфер на байт больше допустимого размера: если он заполнился, сжатие невыгодно
+            byte[] compressed = new byte[maxCompressed + 1];
+            int compressedLength = 0;
+            while (!deflater.finished() && compressedLength < compressed.length) {
+                compressedLength += deflater.deflate(compressed, compressedLength, compressed.length - compressedLength);
+            }
+            if (!deflater.finished() || compressedLength > maxCompressed) {
+                return null;
+            }
+            return Arrays.copyOf(compressed, compressedLength);
+        } finally {
+            deflater.end();
+        }
+    }
+}
@@ -1,7 +1,12 @@
 package ru.kostacie;
 
+import coordinator.CoordinatorProto.StoragePolicy;
+import datanode.DataNodeProto.Codec;
 
 import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Клиент для работы с операциями чтения и записи файлов.
@@ -13,25 +18,102 @@ public class Client
 
 
     public static void main(String[] args) throws IOException {
-        if (args.length < 2) {
-            System.out.println("For file writing: java Client write -file_path-");
-            System.out.println("For file reading: java Client read -file_path-");
+        if (args.length == 0 || args.length < 2 && !args[0].equals("migrations")) {
+            System.out.println("For file writing: java Client write -file_path-... [--codec=none|deflate]"
+                    + " [--policy=replicated|erasure_coded] [--chunk-size=65536] [--block-size=N]"
+                    + " [--parallelism=N] [--concurrency=N]");
+            System.out.println("For file reading: java Client read -file_path-... [--hedge-percentile=95]"
+                    + " [--parallelism=N] [--concurrency=N]");
+            System.out.println("For directory tree writing: java Client write-tree -directory-... [--concurrency=N]"
+                    + " and the write options");
+            System.out.println("For directory tree reading: java Client read-tree -directory-... [--concurrency=N]"
+                    + " and the read options");
+            System.out.println("For file listing: java Client list -prefix- [--recursive]");
+            System.out.println("For storage policy change: java Client convert -file_path- [--policy=erasure_coded]");
+            System.out.println("For ring migrations: java Client migrations");
+            System.out.println("Any operation accepts --coordinator=host:port (localhost:5051 by default)");
             System.exit(1);
         }
 
         String operation = args[0];
-        String filePath = args[1];
-        ClientService client = new ClientService(COORDINATOR_HOST, COORDINATOR_PORT);
-
-        switch (operation) {
-            case "write":
-                client.writeFile(filePath);
-                break;
-            case "read":
-                client.readFile(filePath);
-                break;
-            default:
-                System.out.println("Unknown operation. Use 'write' or 'read'.");
+        List<String> filePaths = new ArrayList<>();
+        Codec codec = Codec.NONE;
+        StoragePolicy policy = null;
+        double hedgePercentile = ClientService.DEFAULT_HEDGE_PERCENTILE;
+        int chunkSize = ClientService.DEFAULT_UPLOAD_CHUNK_SIZE;
+        // 0 - размер блока координатора
+        long blockSize = 0;
+        int parallelism = ClientService.DEFAULT_PARALLELISM;
+        // Сколько файлов передаётся одновременно при записи или чтении нескольких файлов
+        int concurrency = ClientService.DEFAULT_MAX_CONCURRENT_TRANSFERS;
+        boolean recursive = false;
+        // Координатор, у которого клиент узнаёт, какой координатор хранит какие пути
+        String coordinatorHost = COORDINATOR_HOST;
+        int coordinatorPort = COORDINATOR_PORT;
+        for (int i = 1; i < args.length; i++) {
+            if (!args[i].startsWith("--")) {
+                filePaths.add(args[i]);
+            } else if (args[i].startsWith("--codec=")) {
+                codec = Codec.valueOf(args[i].substring("--codec=".length()).toUpperCase());
+            } else if (args[i].startsWith("--policy=")) {
+                policy = StoragePolicy.valueOf(args[i].substring("--policy=".length()).toUpperCase());
+            } else if (args[i].equals("--recursive")) {
+                recursive = true;
+            } else if (args[i].startsWith("--coordinator=")) {
+                String[] address = args[i].substring("--coordinator=".length()).split(":");
+                coordinatorHost = address[0];
+                coordinatorPort = Integer.parseInt(address[1]);
+            } else if (args[i].startsWith("--hedge-percentile=")) {
+                hedgePercentile = Double.parseDouble(args[i].substring("--hedge-percentile=".length()));
+            } else if (args[i].startsWith("--chunk-size=")) {
+                chunkSize = Integer.parseInt(args[i].substring("--chunk-size=".length()));
+            } else if (args[i].startsWith("--block-size=")) {
+                blockSize = Long.parseLong(args[i].substring("--block-size=".length()));
+            } else if (args[i].startsWith("--parallelism=")) {
+                parallelism = Integer.parseInt(args[i].substring("--parallelism=".length()));
+            } else if (args[i].startsWith("--concurrency=")) {
+                concurrency = Integer.parseInt(args[i].substring("--concurrency=".length()));
+            } else {
+                throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+        try (ClientService client = new ClientService(coordinatorHost, coordinatorPort, codec, hedgePercentile,
+                chunkSize, blockSize, parallelism)) {
+            switch (operation) {
+                case "write":
+                    client.writeFiles(filePaths, policy != null ? policy : StoragePolicy.REPLICATED, concurrency);
+                    break;
+                case "read":
+                    client.readFiles(filePaths, concurrency);
+                    break;
+                case "write-tree":
+                    for (String directory : filePaths) {
+                        client.writeTree(Path.of(directory), policy != null ? policy : StoragePolicy.REPLICATED,
+                                concurrency);
+                    }
+                    break;
+                case "read-tree":
+                    for (String directory : filePaths) {
+                        client.readTree(directory, concurrency);
+                    }
+                    break;
+                case "list":
+                    for (String prefix : filePaths) {
+                        client.listFiles(prefix, recursive);
+                    }
+                    break;
+                case "convert":
+                    for (String filePath : filePaths) {
+                        client.setStoragePolicy(filePath, policy != null ? policy : StoragePolicy.ERASURE_CODED);
+                    }
+                    break;
+                case "migrations":
+                    client.listMigrations();
+                    break;
+                default:
+                    System.out.println("Unknown operation. Use 'write', 'read', 'write-tree', 'read-tree', 'list',"
+                            + " 'convert' or 'migrations'.");
+            }
         }
     }
 }
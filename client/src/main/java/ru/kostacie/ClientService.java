@@ -7,174 +7,926 @@ import coordinator.CoordinatorGrpc;
 import coordinator.CoordinatorProto.*;
 import datanode.DataNodeGrpc;
 import datanode.DataNodeProto.*;
+import io.grpc.Status;
 import io.grpc.StatusRuntimeException;
 import io.grpc.stub.StreamObserver;
-import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
+import java.io.InterruptedIOException;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.concurrent.CountDownLatch;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
 
 /**
  * Клиент для взаимодействия с CoordinatorService и DataNode.
+ * Клиент держит подключения к координаторам, поэтому его нужно закрыть после использования.
  */
 @Slf4j
-@RequiredArgsConstructor
-public class ClientService {
-    private final CoordinatorGrpc.CoordinatorBlockingStub coordinatorStub;
+public class ClientService implements AutoCloseable {
+    // Размер чанка, которым файл отправляется на DataNode
+    public static final int DEFAULT_UPLOAD_CHUNK_SIZE = 64 * 1024;
+    // Наибольший размер чанка: сообщение с чанком должно уместиться в ограничение gRPC по умолчанию в 4 МБ
+    public static final int MAX_UPLOAD_CHUNK_SIZE = 2 * 1024 * 1024;
+    // Сколько блоков или сегментов файла передаётся одновременно. Передача упирается в сеть и диски DataNode,
+    // а не только в процессор, поэтому передач не меньше четырёх
+    public static final int DEFAULT_PARALLELISM = Math.max(4, Runtime.getRuntime().availableProcessors());
+    // Размер диапазона, которыми скачивается файл: достаточно большой, чтобы запрос окупался,
+    // и достаточно малый, чтобы даже файл из одного блока скачивался с нескольких копий сразу
+    public static final long DOWNLOAD_SEGMENT_SIZE = 8L * 1024 * 1024;
+    // Сколько раз скачивается сегмент, прежде чем скачивание файла считается неудавшимся
+    private static final int DOWNLOAD_SEGMENT_ATTEMPTS = 3;
+    // Перцентиль времени до первого чанка, после которого чтение повторяется на другой копии
+    public static final double DEFAULT_HEDGE_PERCENTILE = 95;
+    // Наибольшее число файлов в пакетном запросе к координатору
+    public static final int DEFAULT_METADATA_BATCH_SIZE = 1000;
+    // Сколько запрос к координатору ждёт других запросов, чтобы уйти одним пакетом
+    private static final long METADATA_LINGER_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    // Сколько файлов массовая загрузка или скачивание передаёт одновременно
+    public static final int DEFAULT_MAX_CONCURRENT_TRANSFERS = 1000;
+    // Как долго копия кольца консистентного хеширования используется без повторного запроса к координатору
+    private static final long RING_REFRESH_NANOS = TimeUnit.SECONDS.toNanos(30);
+    // Планировщик повторных чтений и отправки пакетов; общий для всех клиентов, задачи в нём короткие
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "client-scheduler");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Каналы к DataNode; общие для всех клиентов, чтобы передачи небольших файлов не открывали соединение каждая
+    private static final ChannelPool DATA_NODE_CHANNELS = new ChannelPool(SCHEDULER);
+
+    // Координатор, у которого клиент узнаёт карту разделов и кольцо
+    private final String bootstrapAddress;
+    // Подключения к координаторам по адресам
+    private final Map<String, Coordinator> coordinators = new ConcurrentHashMap<>();
+    // Копия карты разделов, возможно ещё запрашиваемая; null - ещё не запрашивалась
+    private volatile CompletableFuture<PartitionMap> partitionMap;
+    // Кодек, которым сжимаются чанки при загрузке
+    private final Codec uploadCodec;
+    private final int uploadChunkSize;
+    // Размер блока, на которые делятся большие файлы; 0 - размер блока координатора
+    private final long blockSize;
+    private final int parallelism;
+    private final HedgeDelay hedgeDelay;
+    // Копия кольца координатора, возможно ещё запрашиваемая, и время запроса; null - ещё не запрашивалась
+    private volatile CompletableFuture<HashRing> ring;
+    private volatile long ringFetchedNanos;
 
     public ClientService(String coordinatorHost, int coordinatorPort) {
-        ManagedChannel channel = ManagedChannelBuilder.forAddress(coordinatorHost, coordinatorPort)
-                .keepAliveTime(60, TimeUnit.SECONDS)
-                .usePlaintext()
-                .build();
-        coordinatorStub = CoordinatorGrpc.newBlockingStub(channel);
+        this(coordinatorHost, coordinatorPort, Codec.NONE);
+    }
+
+    public ClientService(String coordinatorHost, int coordinatorPort, Codec uploadCodec) {
+        this(coordinatorHost, coordinatorPort, uploadCodec, DEFAULT_HEDGE_PERCENTILE);
+    }
+
+    /**
+     * @param hedgePercentile перцентиль времени до первого чанка: если копия не ответила за это время,
+     *                        чтение повторяется на следующей копии.
+     */
+    public ClientService(String coordinatorHost, int coordinatorPort, Codec uploadCodec, double hedgePercentile) {
+        this(coordinatorHost, coordinatorPort, uploadCodec, hedgePercentile, DEFAULT_UPLOAD_CHUNK_SIZE);
+    }
+
+    /**
+     * @param uploadChunkSize размер чанка, которым файл читается с диска и отправляется на DataNode.
+     */
+    public ClientService(String coordinatorHost, int coordinatorPort, Codec uploadCodec, double hedgePercentile,
+                         int uploadChunkSize) {
+        this(coordinatorHost, coordinatorPort, uploadCodec, hedgePercentile, uploadChunkSize, 0,
+                DEFAULT_PARALLELISM);
+    }
+
+    /**
+     * @param blockSize   размер блока, на которые делятся большие файлы; 0 - размер блока координатора.
+     * @param parallelism сколько блоков файла загружается или сегментов скачивается одновременно.
+     */
+    public ClientService(String coordinatorHost, int coordinatorPort, Codec uploadCodec, double hedgePercentile,
+                         int uploadChunkSize, long blockSize, int parallelism) {
+        if (blockSize < 0 || parallelism <= 0) {
+            throw new IllegalArgumentException("Invalid block size " + blockSize + " with parallelism "
+                    + parallelism);
+        }
+        if (uploadChunkSize <= 0 || uploadChunkSize > MAX_UPLOAD_CHUNK_SIZE) {
+            throw new IllegalArgumentException("Upload chunk size must be between 1 and " + MAX_UPLOAD_CHUNK_SIZE
+                    + " bytes: " + uploadChunkSize);
+        }
+        this.bootstrapAddress = coordinatorHost + ":" + coordinatorPort;
+        this.uploadCodec = uploadCodec;
+        this.uploadChunkSize = uploadChunkSize;
+        this.blockSize = blockSize;
+        this.parallelism = parallelism;
+        this.hedgeDelay = new HedgeDelay(hedgePercentile);
+    }
+
+    /**
+     * Подключение к одному координатору. Запросы WriteFile и ReadFile уходят ему пакетами.
+     *
+     * @param stub      блокирующий stub для синхронных операций: листинга и смены способа хранения.
+     * @param asyncStub асинхронный stub, через который асинхронные передачи узнают карту разделов и кольцо.
+     */
+    private record Coordinator(ManagedChannel channel, CoordinatorGrpc.CoordinatorBlockingStub stub,
+                               CoordinatorGrpc.CoordinatorStub asyncStub, MetadataBatcher batcher) {
+    }
+
+    private Coordinator coordinator(String address) {
+        return coordinators.computeIfAbsent(address, key -> {
+            ManagedChannel channel = ManagedChannelBuilder.forTarget(address)
+                    .keepAliveTime(60, TimeUnit.SECONDS)
+                    .usePlaintext()
+                    .build();
+            CoordinatorGrpc.CoordinatorStub asyncStub = CoordinatorGrpc.newStub(channel);
+            return new Coordinator(channel, CoordinatorGrpc.newBlockingStub(channel), asyncStub,
+                    new MetadataBatcher(asyncStub, DEFAULT_METADATA_BATCH_SIZE, METADATA_LINGER_NANOS, SCHEDULER));
+        });
+    }
+
+    /**
+     * Закрывает подключения к координаторам. Начатые запросы к ним завершаются.
+     * Каналы к DataNode общие для всех клиентов и остаются открытыми.
+     */
+    @Override
+    public void close() {
+        for (Coordinator coordinator : coordinators.values()) {
+            coordinator.batcher().flush();
+            coordinator.channel().shutdown();
+        }
+        coordinators.clear();
+    }
+
+    /**
+     * Выполняет унарный запрос через асинхронный stub; future завершается ответом или ошибкой запроса.
+     */
+    private static <T> CompletableFuture<T> call(Consumer<StreamObserver<T>> request) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        request.accept(new StreamObserver<>() {
+            @Override
+            public void onNext(T response) {
+                result.complete(response);
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                result.completeExceptionally(t);
+            }
+
+            @Override
+            public void onCompleted() {
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Возвращает копию карты разделов, запрашивая её у начального координатора при первом обращении.
+     * Поток не ждёт ответа: запросы к координаторам продолжаются, когда карта получена.
+     */
+    private CompletableFuture<PartitionMap> partitionMap() {
+        CompletableFuture<PartitionMap> current = partitionMap;
+        if (current != null) {
+            return current;
+        }
+        synchronized (this) {
+            return partitionMap != null ? partitionMap : refreshPartitionMap(bootstrapAddress);
+        }
+    }
+
+    /**
+     * Запрашивает карту разделов у координатора. Если он недоступен, используется прежняя копия,
+     * а без неё все запросы уходят начальному координатору. Future никогда не завершается ошибкой.
+     */
+    private synchronized CompletableFuture<PartitionMap> refreshPartitionMap(String address) {
+        CompletableFuture<PartitionMap> previous = partitionMap;
+        CompletableFuture<PartitionMap> current = ClientService.<GetPartitionMapResponse>call(observer ->
+                        coordinator(address).asyncStub().getPartitionMap(GetPartitionMapRequest.getDefaultInstance(),
+                                observer))
+                .thenApply(response -> new PartitionMap(response, bootstrapAddress))
+                .exceptionallyCompose(error -> {
+                    log.warn("Failed to get partition map from {}: {}", address, Status.fromThrowable(error));
+                    return previous != null
+                            ? previous
+                            : CompletableFuture.completedFuture(new PartitionMap(
+                            GetPartitionMapResponse.getDefaultInstance(), bootstrapAddress));
+                });
+        partitionMap = current;
+        return current;
+    }
+
+    /**
+     * Отправляет запрос о файле координатору, которому принадлежит путь. Если копия карты разделов устарела
+     * и координатор перенаправил запрос, карта обновляется, а запрос повторяется у владельца пути.
+     *
+     * @param filePath путь файла.
+     * @param request  отправка запроса через группировку запросов координатора.
+     */
+    private <R> CompletableFuture<R> route(String filePath, Function<MetadataBatcher, CompletableFuture<R>> request) {
+        return partitionMap()
+                .thenCompose(map -> request.apply(coordinator(map.addressOf(filePath)).batcher()))
+                .exceptionallyCompose(error -> {
+                    String redirect = PartitionMap.redirectAddress(error);
+                    if (redirect == null) {
+                        return CompletableFuture.failedFuture(error);
+                    }
+                    log.debug("Request for {} redirected to coordinator {}", filePath, redirect);
+                    // Запрос повторяется у владельца пути сразу, не дожидаясь новой карты разделов
+                    refreshPartitionMap(redirect);
+                    MetadataBatcher batcher = coordinator(redirect).batcher();
+                    CompletableFuture<R> retry = request.apply(batcher);
+                    batcher.flush();
+                    return retry;
+                });
     }
 
     /**
      * Загружает файл в хранилище.
+     * Файл отправляется первому DataNode цепочки, назначенной координатором; он пересылает файл остальным.
+     * Файл больше блока делится координатором на блоки со своими цепочками, и блоки загружаются параллельно.
      *
      * @param filePath Путь к файлу.
      */
     public void writeFile(String filePath) throws IOException {
-        WriteFileRequest request = WriteFileRequest.newBuilder().setFilePath(filePath).build();
-        WriteFileResponse response = coordinatorStub.writeFile(request);
+        writeFile(filePath, StoragePolicy.REPLICATED);
+    }
+
+    /**
+     * Загружает файл в хранилище с выбранным способом хранения.
+     * Для ERASURE_CODED файл отправляется одному DataNode, который кодирует его и рассылает полосы.
+     * Пустой файл всегда хранится копиями: для него полосы не нужны.
+     *
+     * @param filePath      Путь к файлу.
+     * @param storagePolicy Способ хранения.
+     */
+    public void writeFile(String filePath, StoragePolicy storagePolicy) throws IOException {
+        awaitTransfer(writeFileAsync(filePath, storagePolicy));
+    }
+
+    /**
+     * Загружает файл в хранилище, не занимая вызывающий поток на время загрузки: запрос к координатору уходит
+     * в пакете с запросами других файлов, а файл передаётся DataNode через асинхронный stub.
+     *
+     * @param filePath      Путь к файлу.
+     * @param storagePolicy Способ хранения.
+     * @return future, которое завершается, когда DataNode сохранили файл, или ошибкой загрузки.
+     */
+    public CompletableFuture<Void> writeFileAsync(String filePath, StoragePolicy storagePolicy) {
+        WriteFileRequest request;
+        try {
+            request = writeFileRequest(filePath, storagePolicy);
+        } catch (IOException e) {
+            log.error("Failed to write file {}: {}", filePath, e.getMessage());
+            return CompletableFuture.failedFuture(e);
+        }
+        return route(filePath, batcher -> batcher.writeFile(request))
+                .thenCompose(response -> upload(filePath, response))
+                .whenComplete((ignored, error) -> {
+                    if (error != null) {
+                        log.error("Failed to write file {}: {}", filePath, cause(error).getMessage());
+                    }
+                });
+    }
 
-        final CountDownLatch finishLatch = new CountDownLatch(1);
+    /**
+     * Загружает много файлов, не больше {@link #DEFAULT_MAX_CONCURRENT_TRANSFERS} одновременно.
+     *
+     * @param filePaths     Пути к файлам.
+     * @param storagePolicy Способ хранения.
+     * @throws IOException если какой-то файл не удалось загрузить.
+     */
+    public void writeFiles(List<String> filePaths, StoragePolicy storagePolicy) throws IOException {
+        writeFiles(filePaths, storagePolicy, DEFAULT_MAX_CONCURRENT_TRANSFERS);
+    }
 
+    /**
+     * Загружает много файлов одновременно. Запросы одновременных загрузок к координатору собираются в пакеты,
+     * а не уходят отдельным запросом на каждый файл; файлы разных разделов уходят своим координаторам параллельно.
+     * Ошибка одного файла не прерывает загрузку остальных.
+     *
+     * @param filePaths              Пути к файлам.
+     * @param storagePolicy          Способ хранения.
+     * @param maxConcurrentTransfers Сколько файлов загружается одновременно.
+     * @throws IOException если какой-то файл не удалось загрузить.
+     */
+    public void writeFiles(List<String> filePaths, StoragePolicy storagePolicy, int maxConcurrentTransfers)
+            throws IOException {
+        int failed = transferAll(filePaths, maxConcurrentTransfers,
+                filePath -> writeFileAsync(filePath, storagePolicy));
+        if (failed > 0) {
+            throw new IOException("Failed to write " + failed + " of " + filePaths.size() + " files");
+        }
+    }
 
-        String[] addressParts = response.getDataNodeAddress().split(":");
-        String host = addressParts[0];
-        int port = Integer.parseInt(addressParts[1]);
+    /**
+     * Загружает все файлы каталога и его подкаталогов под их локальными путями.
+     *
+     * @param directory              Каталог.
+     * @param storagePolicy          Способ хранения.
+     * @param maxConcurrentTransfers Сколько файлов загружается одновременно.
+     * @throws IOException если каталог не удалось обойти или какой-то файл не удалось загрузить.
+     */
+    public void writeTree(Path directory, StoragePolicy storagePolicy, int maxConcurrentTransfers)
+            throws IOException {
+        List<String> filePaths;
+        try (Stream<Path> files = Files.walk(directory)) {
+            filePaths = files.filter(Files::isRegularFile).map(Path::toString).toList();
+        }
+        log.info("Writing {} files from {}", filePaths.size(), directory);
+        writeFiles(filePaths, storagePolicy, maxConcurrentTransfers);
+    }
 
-        ManagedChannel dataNodeChannel = ManagedChannelBuilder.forAddress(host, port)
-                .keepAliveTime(60, TimeUnit.SECONDS)
-                .usePlaintext()
-                .build();
+    /**
+     * Передаёт файлы в виртуальных потоках, не больше maxConcurrentTransfers одновременно.
+     * Поток передачи только ждёт её асинхронный результат, поэтому тысячи одновременных передач
+     * не занимают тысячи потоков ОС. Ошибка одного файла не прерывает остальные.
+     *
+     * @return сколько файлов не удалось передать.
+     */
+    private static int transferAll(List<String> filePaths, int maxConcurrentTransfers,
+                                   Function<String, CompletableFuture<Void>> transfer) throws IOException {
+        if (maxConcurrentTransfers <= 0) {
+            throw new IllegalArgumentException("Invalid number of concurrent transfers: " + maxConcurrentTransfers);
+        }
+        Semaphore permits = new Semaphore(maxConcurrentTransfers);
+        AtomicInteger failed = new AtomicInteger();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (String filePath : filePaths) {
+                // Следующий файл начинается, только когда закончилась одна из начатых передач
+                permits.acquire();
+                executor.execute(() -> {
+                    try {
+                        transfer.apply(filePath).join();
+                    } catch (RuntimeException e) {
+                        failed.incrementAndGet();
+                    } finally {
+                        permits.release();
+                    }
+                });
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while transferring files");
+        }
+        return failed.get();
+    }
+
+    /**
+     * Ждёт окончания передачи файла; ошибка передачи выбрасывается как есть.
+     */
+    private static void awaitTransfer(CompletableFuture<Void> transfer) throws IOException {
         try {
-            DataNodeGrpc.DataNodeStub dataNodeStub = DataNodeGrpc.newStub(dataNodeChannel);
-
-            byte[] fileData = Files.readAllBytes(Paths.get(filePath));
-            ByteString content = ByteString.copyFrom(fileData);
-            String uploadId = response.getUploadId();
-            UploadFileRequest uploadRequest = UploadFileRequest.newBuilder()
-                    .setUploadId(uploadId)
-                    .setContent(content)
-                    .build();
+            transfer.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException cause) {
+                throw cause;
+            }
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw e;
+        }
+    }
 
-            StreamObserver<UploadFileRequest> requestObserver = dataNodeStub.uploadFile(new StreamObserver<>() {
-                @Override
-                public void onNext(UploadFileResponse uploadResponse) {
-                    log.info("File uploaded successfully");
-                }
+    private static Throwable cause(Throwable error) {
+        return error instanceof CompletionException ? error.getCause() : error;
+    }
 
-                @Override
-                public void onError(Throwable t) {
-                    log.error("Failed uploading: {}", t.getMessage());
-                }
+    private WriteFileRequest writeFileRequest(String filePath, StoragePolicy storagePolicy) throws IOException {
+        long fileSize = Files.size(Paths.get(filePath));
+        return WriteFileRequest.newBuilder()
+                .setFilePath(filePath)
+                .setFileSize(fileSize)
+                .setBlockSize(blockSize)
+                .setStoragePolicy(fileSize > 0 ? storagePolicy : StoragePolicy.REPLICATED)
+                .build();
+    }
 
-                @Override
-                public void onCompleted() {
-                    log.info("Upload completed.");
-                }
-            });
-            finishLatch.await(5, TimeUnit.SECONDS);
+    /**
+     * Отправляет файл DataNode, назначенным координатором. Результат завершается, когда DataNode его сохранили.
+     * Блоки файла загружаются параллельно, не больше parallelism одновременно.
+     */
+    private CompletableFuture<Void> upload(String filePath, WriteFileResponse response) {
+        if (response.getBlocksCount() > 0) {
+            return uploadBlocks(filePath, response.getBlocksList()).thenRun(() ->
+                    log.info("File {} uploaded successfully in {} blocks", filePath, response.getBlocksCount()));
+        }
+        return startUpload(filePath, 0, Long.MAX_VALUE, response).thenAccept(uploadResponse ->
+                log.info("File {} uploaded successfully, replicas: {}", filePath, uploadResponse.getReplicas()));
+    }
 
-            requestObserver.onNext(uploadRequest);
-            requestObserver.onCompleted();
-        } catch (InterruptedException e) {
-            log.error("Error file uploading: {}", e.getMessage(), e);
-            throw new RuntimeException("Error file uploading", e);
-        } finally {
-            dataNodeChannel.shutdown();
+    /**
+     * Загружает блоки файла: каждый из parallelism потоков загрузки берёт следующий блок, как только
+     * закончит предыдущий. После ошибки новые блоки не начинаются.
+     */
+    private CompletableFuture<Void> uploadBlocks(String filePath, List<FileBlock> blocks) {
+        AtomicInteger nextBlock = new AtomicInteger();
+        List<CompletableFuture<Void>> streams = new ArrayList<>();
+        for (int i = 0; i < Math.min(parallelism, blocks.size()); i++) {
+            streams.add(uploadNextBlock(filePath, blocks, nextBlock));
         }
+        return CompletableFuture.allOf(streams.toArray(CompletableFuture[]::new));
+    }
+
+    private CompletableFuture<Void> uploadNextBlock(String filePath, List<FileBlock> blocks, AtomicInteger nextBlock) {
+        int index = nextBlock.getAndIncrement();
+        if (index >= blocks.size()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        FileBlock block = blocks.get(index);
+        WriteFileResponse placement = WriteFileResponse.newBuilder()
+                .setDataNodeAddress(block.getDataNodeAddresses(0))
+                .setUploadId(block.getBlockId())
+                .addAllDataNodeAddresses(block.getDataNodeAddressesList())
+                .setMinReplicas(block.getMinReplicas())
+                .build();
+        return startUpload(filePath, block.getOffset(), block.getLength(), placement)
+                .whenComplete((uploadResponse, error) -> {
+                    if (error != null) {
+                        nextBlock.set(blocks.size());
+                    }
+                })
+                .thenCompose(uploadResponse -> uploadNextBlock(filePath, blocks, nextBlock));
+    }
+
+    /**
+     * Начинает загрузку части файла первому DataNode цепочки.
+     */
+    private CompletableFuture<UploadFileResponse> startUpload(String filePath, long offset, long length,
+                                                              WriteFileResponse placement) {
+        // Канал возвращается в пул, когда DataNode завершит передачу
+        ChannelPool.Lease lease = DATA_NODE_CHANNELS.acquire(placement.getDataNodeAddress());
+        return new StreamingUpload(Paths.get(filePath), offset, length, placement,
+                placement.hasErasureLayout() ? toStripeLayout(placement.getErasureLayout()) : null,
+                new ChunkCodec(uploadCodec), uploadChunkSize, lease).start();
     }
 
     /**
      * Скачивает файл из хранилища.
+     * Файл читается с наименее нагруженной копии; если она медленно отвечает, чтение повторяется на следующей.
+     * Если координатор размещает файлы по кольцу, копии сначала ищутся по кольцу без запроса к координатору.
      *
      * @param filePath Путь к файлу.
      */
-    public void readFile(String filePath) {
+    public void readFile(String filePath) throws IOException {
+        awaitTransfer(readFileAsync(filePath));
+    }
+
+    /**
+     * Скачивает файл, не занимая вызывающий поток на время скачивания: расположение файла запрашивается
+     * в пакете с запросами других файлов, а сегменты скачиваются через асинхронный stub.
+     * Карта разделов и кольцо координатора тоже запрашиваются через асинхронный stub.
+     *
+     * @param filePath Путь к файлу.
+     * @return future, которое завершается, когда файл сохранён, или ошибкой скачивания.
+     */
+    public CompletableFuture<Void> readFileAsync(String filePath) {
+        return downloadByRing(filePath)
+                .thenCompose(downloaded -> downloaded
+                        ? CompletableFuture.<Void>completedFuture(null)
+                        : readFileLocation(filePath).thenCompose(location -> download(filePath, location)))
+                .whenComplete((ignored, error) -> {
+                    if (error != null) {
+                        log.error("Failed to read file {}: {}", filePath, cause(error).getMessage());
+                    }
+                });
+    }
+
+    /**
+     * Скачивает много файлов, не больше {@link #DEFAULT_MAX_CONCURRENT_TRANSFERS} одновременно.
+     *
+     * @param filePaths Пути к файлам.
+     * @throws IOException если какой-то файл не удалось скачать.
+     */
+    public void readFiles(List<String> filePaths) throws IOException {
+        readFiles(filePaths, DEFAULT_MAX_CONCURRENT_TRANSFERS);
+    }
+
+    /**
+     * Скачивает много файлов одновременно. Расположения файлов запрашиваются у координатора пакетными запросами.
+     * Ошибка одного файла не прерывает скачивание остальных.
+     *
+     * @param filePaths              Пути к файлам.
+     * @param maxConcurrentTransfers Сколько файлов скачивается одновременно.
+     * @throws IOException если какой-то файл не удалось скачать.
+     */
+    public void readFiles(List<String> filePaths, int maxConcurrentTransfers) throws IOException {
+        int failed = transferAll(filePaths, maxConcurrentTransfers, this::readFileAsync);
+        if (failed > 0) {
+            throw new IOException("Failed to read " + failed + " of " + filePaths.size() + " files");
+        }
+    }
+
+    /**
+     * Скачивает все файлы каталога хранилища и его подкаталогов под их путями, создавая недостающие каталоги.
+     *
+     * @param directory              Каталог в хранилище.
+     * @param maxConcurrentTransfers Сколько файлов скачивается одновременно.
+     * @throws IOException если какой-то файл не удалось скачать.
+     */
+    public void readTree(String directory, int maxConcurrentTransfers) throws IOException {
+        List<String> filePaths = new ArrayList<>();
+        listPaths(directory.endsWith("/") ? directory : directory + "/", true, filePaths::add);
+        log.info("Reading {} files from {}", filePaths.size(), directory);
+        readFiles(filePaths, maxConcurrentTransfers);
+    }
+
+    /**
+     * Скачивает файл с DataNode, которые назначает ему кольцо консистентного хеширования.
+     * Результат false, если координатор размещает файлы не по кольцу или файла нет на этих DataNode:
+     * например, он записан до включения кольца, перекодирован в полосы или ещё не перенесён после
+     * изменения состава DataNode.
+     */
+    private CompletableFuture<Boolean> downloadByRing(String filePath) {
+        return ring().thenCompose(ring -> {
+            if (ring.isEmpty()) {
+                return CompletableFuture.completedFuture(false);
+            }
+            return download(filePath, ring.locate(filePath)).handle((ignored, error) -> {
+                if (error != null) {
+                    log.info("File '{}' is not found by ring version {}, asking the coordinator", filePath,
+                            ring.getVersion());
+                }
+                return error == null;
+            });
+        });
+    }
+
+    /**
+     * Возвращает копию кольца координатора, запрашивая её заново, если она старше {@link #RING_REFRESH_NANOS}.
+     * Пока новая копия запрашивается, используется прежняя; future никогда не завершается ошибкой.
+     */
+    private CompletableFuture<HashRing> ring() {
+        CompletableFuture<HashRing> current = ring;
+        if (current != null && System.nanoTime() - ringFetchedNanos <= RING_REFRESH_NANOS) {
+            return current;
+        }
+        synchronized (this) {
+            CompletableFuture<HashRing> previous = ring;
+            if (previous != null && System.nanoTime() - ringFetchedNanos <= RING_REFRESH_NANOS) {
+                return previous;
+            }
+            ringFetchedNanos = System.nanoTime();
+            CompletableFuture<HashRing> refreshed = ClientService.<GetRingResponse>call(observer ->
+                            coordinator(bootstrapAddress).asyncStub().getRing(GetRingRequest.getDefaultInstance(),
+                                    observer))
+                    .thenApply(HashRing::new)
+                    .exceptionallyCompose(error -> {
+                        log.warn("Failed to get placement ring: {}", Status.fromThrowable(error));
+                        return previous != null
+                                ? previous
+                                : CompletableFuture.completedFuture(new HashRing(GetRingResponse.getDefaultInstance()));
+                    });
+            if (previous == null) {
+                ring = refreshed;
+                return refreshed;
+            }
+            refreshed.thenRun(() -> ring = refreshed);
+            return previous;
+        }
+    }
+
+    private CompletableFuture<ReadFileResponse> readFileLocation(String filePath) {
         ReadFileRequest request = ReadFileRequest.newBuilder().setFilePath(filePath).build();
-        final CountDownLatch finishLatch = new CountDownLatch(1);
+        return route(filePath, batcher -> batcher.readFile(request));
+    }
 
+    /**
+     * Скачивает файл и сохраняет его под тем же путём, создавая недостающие каталоги.
+     * Сегменты файла скачиваются параллельно и пишутся сразу на свои места в файле.
+     */
+    private CompletableFuture<Void> download(String filePath, ReadFileResponse response) {
+        Path target = Paths.get(filePath).toAbsolutePath();
         try {
-            ReadFileResponse response;
-            try {
-                response = coordinatorStub.readFile(request);
-            } catch (StatusRuntimeException e) {
-                log.error("gRPC error during file request: {}", e.getStatus(), e);
-                throw new RuntimeException("Failed to download file: " + e.getStatus().getDescription(), e);
-            }
+            Files.createDirectories(target.getParent());
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return new SegmentedDownload(target, response.getFileSize(), segments(response), parallelism,
+                DOWNLOAD_SEGMENT_ATTEMPTS, hedgeDelay, DATA_NODE_CHANNELS, SCHEDULER).start()
+                .thenRun(() -> log.info("File downloaded successfully: {}", filePath));
+    }
 
-            String[] addressParts = response.getDataNodeAddress().split(":");
-            String host = addressParts[0];
-            int port = Integer.parseInt(addressParts[1]);
+    /**
+     * Делит файл на сегменты: блоки файла или сам файл делятся на диапазоны по {@link #DOWNLOAD_SEGMENT_SIZE}.
+     * Файл неизвестного размера скачивается одним сегментом.
+     */
+    private static List<SegmentedDownload.Segment> segments(ReadFileResponse response) {
+        List<SegmentedDownload.Segment> segments = new ArrayList<>();
+        if (response.getBlocksCount() == 0) {
+            addSegments(segments, response, 0, response.getFileSize());
+        }
+        for (FileBlock block : response.getBlocksList()) {
+            addSegments(segments, blockLocation(block), block.getOffset(), block.getLength());
+        }
+        return segments;
+    }
 
-            ManagedChannel dataNodeChannel = ManagedChannelBuilder.forAddress(host, port)
-                    .usePlaintext()
-                    .build();
+    private static void addSegments(List<SegmentedDownload.Segment> segments, ReadFileResponse location,
+                                    long position, long length) {
+        List<String> addresses = replicaAddresses(location);
+        DownloadFileRequest.Builder request = downloadRequest(location);
+        if (length <= 0) {
+            segments.add(new SegmentedDownload.Segment(addresses, request.build(), position));
+            return;
+        }
+        for (long offset = 0; offset < length; offset += DOWNLOAD_SEGMENT_SIZE) {
+            request.setOffset(offset).setLength(Math.min(DOWNLOAD_SEGMENT_SIZE, length - offset));
+            segments.add(new SegmentedDownload.Segment(addresses, request.build(), position + offset));
+        }
+    }
 
-            try {
-                ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-                DataNodeGrpc.DataNodeStub dataNodeStub = DataNodeGrpc.newStub(dataNodeChannel);
-
-                DownloadFileRequest downloadRequest = DownloadFileRequest.newBuilder()
-                        .setFileId(response.getFileId())
-                        .build();
-
-                StreamObserver<DownloadFileResponse> responseObserver = new StreamObserver<>() {
-                    @Override
-                    public void onNext(DownloadFileResponse responseChunk) {
-                        try {
-                            byte[] chunkData = responseChunk.getContent().toByteArray();
-                            outputStream.write(chunkData);
-                            String chunkText = new String(chunkData, StandardCharsets.UTF_8);
-                            System.out.println(chunkText);
-                            System.out.flush();
-                        } catch (IOException e) {
-                            log.error("Error reading file: {}", e.getMessage(), e);
-                        }
-                    }
+    /**
+     * Расположение блока в том же виде, что и расположение файла из одного блока.
+     */
+    private static ReadFileResponse blockLocation(FileBlock block) {
+        return ReadFileResponse.newBuilder()
+                .setDataNodeAddress(block.getDataNodeAddresses(0))
+                .addAllDataNodeAddresses(block.getDataNodeAddressesList())
+                .setFileId(block.getBlockId())
+                .build();
+    }
 
-                    @Override
-                    public void onError(Throwable t) {
-                        log.error("Error during file uploading: {}", t.getMessage(), t);
-                    }
+    /**
+     * Читает диапазон байт файла из хранилища, не скачивая файл целиком.
+     * Для файла из блоков читаются только блоки, с которыми пересекается диапазон.
+     *
+     * @param filePath Путь к файлу.
+     * @param offset   Позиция начала диапазона.
+     * @param length   Длина диапазона.
+     * @return Прочитанные байты; меньше length, если файл заканчивается раньше.
+     */
+    public byte[] readRange(String filePath, long offset, int length) {
+        ReadFileResponse response;
+        try {
+            response = await(readFileLocation(filePath));
+        } catch (StatusRuntimeException e) {
+            log.error("gRPC error during file request: {}", e.getStatus(), e);
+            throw new RuntimeException("Failed to read file range: " + e.getStatus().getDescription(), e);
+        }
 
-                    @Override
-                    public void onCompleted() {
-                        try {
-                            byte[] fileData = outputStream.toByteArray();
-                            Files.write(Paths.get(filePath), fileData);
-                            log.info("File downloaded successfully: {}", filePath);
-                        } catch (IOException e) {
-                            log.error("Error during saving file: {}", e.getMessage(), e);
-                        }
-                    }
-                };
-                dataNodeStub.downloadFile(downloadRequest, responseObserver);
-                finishLatch.await(5, TimeUnit.MINUTES);
+        byte[] data = new byte[length];
+        int position = 0;
+        if (response.getBlocksCount() == 0) {
+            position = readRange(response, offset, length, data, 0);
+        } else {
+            for (FileBlock block : response.getBlocksList()) {
+                long from = offset + position;
+                long blockEnd = block.getOffset() + block.getLength();
+                if (position == length || from < block.getOffset()) {
+                    break;
+                }
+                if (from >= blockEnd) {
+                    continue;
+                }
+                int part = (int) Math.min(length - position, blockEnd - from);
+                int read = readRange(blockLocation(block), from - block.getOffset(), part, data, position);
+                position += read;
+                if (read < part) {
+                    break;
+                }
+            }
+        }
+        return position == length ? data : Arrays.copyOf(data, position);
+    }
 
-            } finally {
-                dataNodeChannel.shutdown();
+    /**
+     * Читает диапазон файла или блока в массив и возвращает число прочитанных байт.
+     */
+    private int readRange(ReadFileResponse response, long offset, int length, byte[] data, int dataOffset) {
+        CompletableFuture<Integer> result = new CompletableFuture<>();
+        download(response, downloadRequest(response).setOffset(offset).setLength(length), new StreamObserver<>() {
+            private int position = dataOffset;
+
+            @Override
+            public void onNext(DownloadFileResponse chunk) {
                 try {
-                    if (!dataNodeChannel.awaitTermination(5, java.util.concurrent.TimeUnit.SECONDS)) {
-                        dataNodeChannel.shutdownNow();
-                    }
-                } catch (InterruptedException e) {
-                    dataNodeChannel.shutdownNow();
+                    ByteString content = ChunkCodec.decode(chunk);
+                    content.copyTo(data, position);
+                    position += content.size();
+                } catch (IOException e) {
+                    result.completeExceptionally(e);
+                }
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                result.completeExceptionally(t);
+            }
+
+            @Override
+            public void onCompleted() {
+                result.complete(position - dataOffset);
+            }
+        });
+        try {
+            return result.get(5, TimeUnit.MINUTES);
+        } catch (ExecutionException e) {
+            log.error("Error reading file range: {}", e.getCause().getMessage(), e.getCause());
+            throw new RuntimeException("Failed to read file range: " + e.getCause().getMessage(), e.getCause());
+        } catch (InterruptedException | TimeoutException e) {
+            throw new RuntimeException("Failed to read file range: " + e.getMessage(), e);
+        }
+    }
+
+    private static DownloadFileRequest.Builder downloadRequest(ReadFileResponse response) {
+        DownloadFileRequest.Builder downloadRequest = DownloadFileRequest.newBuilder()
+                .setFileId(response.getFileId())
+                .addAcceptedCodecs(Codec.DEFLATE);
+        if (response.hasErasureLayout()) {
+            downloadRequest.setStripeLayout(toStripeLayout(response.getErasureLayout()));
+        }
+        return downloadRequest;
+    }
+
+    /**
+     * Скачивает файл с копий в порядке, предложенном координатором, повторяя медленные чтения на следующей копии.
+     */
+    private void download(ReadFileResponse response, DownloadFileRequest.Builder downloadRequest,
+                          StreamObserver<DownloadFileResponse> responseObserver) {
+        new HedgedDownload(replicaAddresses(response), downloadRequest.build(), hedgeDelay, DATA_NODE_CHANNELS,
+                SCHEDULER, responseObserver).start();
+    }
+
+    /**
+     * DataNode с копиями файла в порядке, предложенном координатором.
+     */
+    private static List<String> replicaAddresses(ReadFileResponse response) {
+        return response.getDataNodeAddressesCount() > 0
+                ? response.getDataNodeAddressesList()
+                : List.of(response.getDataNodeAddress());
+    }
+
+    /**
+     * Выводит пути файлов с префиксом. Координатор отправляет листинг страницами по мере чтения.
+     * Если пути разделены между координаторами, их листинги сливаются в один упорядоченный.
+     *
+     * @param prefix    Префикс путей, например каталог с "/" на конце.
+     * @param recursive Выводить ли файлы вложенных каталогов; иначе каталог выводится одной строкой.
+     */
+    public void listFiles(String prefix, boolean recursive) {
+        listPaths(prefix, recursive, System.out::println);
+    }
+
+    /**
+     * Передаёт пути под префиксом в порядке сортировки, объединяя листинги всех координаторов.
+     */
+    private void listPaths(String prefix, boolean recursive, Consumer<String> paths) {
+        ListFilesRequest request = ListFilesRequest.newBuilder()
+                .setPrefix(prefix)
+                .setDelimiter(recursive ? "" : "/")
+                .build();
+        try {
+            // Голова листинга каждого координатора; каталог может встретиться у нескольких координаторов
+            PriorityQueue<Listing> listings = new PriorityQueue<>(Comparator.comparing(Listing::path));
+            for (String address : await(partitionMap()).addresses()) {
+                Listing listing = new Listing(coordinator(address).stub().listFiles(request));
+                if (listing.advance()) {
+                    listings.add(listing);
+                }
+            }
+            String last = null;
+            while (!listings.isEmpty()) {
+                Listing listing = listings.poll();
+                if (!listing.path().equals(last)) {
+                    last = listing.path();
+                    paths.accept(last);
+                }
+                if (listing.advance()) {
+                    listings.add(listing);
                 }
             }
-        } catch (Exception e) {
-            log.error("Error file downloading: {}", e.getMessage(), e);
-            throw new RuntimeException("Error file downloading", e);
+        } catch (StatusRuntimeException e) {
+            log.error("Failed to list files: {}", e.getStatus(), e);
+            throw new RuntimeException("Failed to list files: " + e.getStatus().getDescription(), e);
         }
     }
+
+    /**
+     * Листинг одного координатора, читаемый по одному элементу.
+     */
+    private static final class Listing {
+        private final Iterator<ListFilesResponse> pages;
+        private Iterator<FileEntry> entries = Collections.emptyIterator();
+        private String path;
+
+        Listing(Iterator<ListFilesResponse> pages) {
+            this.pages = pages;
+        }
+
+        String path() {
+            return path;
+        }
+
+        /**
+         * Переходит к следующему элементу. Возвращает false, если листинг закончился.
+         */
+        boolean advance() {
+            while (!entries.hasNext()) {
+                if (!pages.hasNext()) {
+                    return false;
+                }
+                entries = pages.next().getEntriesList().iterator();
+            }
+            path = entries.next().getPath();
+            return true;
+        }
+    }
+
+    /**
+     * Меняет способ хранения файла. Перекодирование в полосы выполняется в фоне.
+     *
+     * @param filePath      Путь к файлу.
+     * @param storagePolicy Новый способ хранения.
+     */
+    public void setStoragePolicy(String filePath, StoragePolicy storagePolicy) {
+        SetStoragePolicyRequest request = SetStoragePolicyRequest.newBuilder()
+                .setFilePath(filePath)
+                .setStoragePolicy(storagePolicy)
+                .build();
+        try {
+            try {
+                coordinator(await(partitionMap()).addressOf(filePath)).stub().setStoragePolicy(request);
+            } catch (StatusRuntimeException e) {
+                String redirect = PartitionMap.redirectAddress(e);
+                if (redirect == null) {
+                    throw e;
+                }
+                refreshPartitionMap(redirect);
+                coordinator(redirect).stub().setStoragePolicy(request);
+            }
+            log.info("Storage policy of '{}' set to {}", filePath, storagePolicy);
+        } catch (StatusRuntimeException e) {
+            log.error("Failed to set storage policy: {}", e.getStatus(), e);
+            throw new RuntimeException("Failed to set storage policy: " + e.getStatus().getDescription(), e);
+        }
+    }
+
+    /**
+     * Выводит файлы, размещённые по кольцу, которые нужно перенести на другие DataNode после изменения их состава.
+     * Каждый координатор перечисляет файлы своего раздела.
+     */
+    public void listMigrations() {
+        try {
+            for (String address : await(partitionMap()).addresses()) {
+                ListMigrationsRequest.Builder request = ListMigrationsRequest.newBuilder();
+                ListMigrationsResponse response;
+                do {
+                    response = coordinator(address).stub().listMigrations(request.build());
+                    for (FileMigration migration : response.getMigrationsList()) {
+                        System.out.println(migration.getFilePath() + " " + migration.getSourceAddressesList()
+                                + " -> " + migration.getTargetAddressesList());
+                    }
+                    request.setPageToken(response.getNextPageToken());
+                } while (!response.getNextPageToken().isEmpty());
+            }
+        } catch (StatusRuntimeException e) {
+            log.error("Failed to list migrations: {}", e.getStatus(), e);
+            throw new RuntimeException("Failed to list migrations: " + e.getStatus().getDescription(), e);
+        }
+    }
+
+    /**
+     * Ждёт результат запроса к координатору; ошибка запроса выбрасывается как есть.
+     */
+    private static <T> T await(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw e;
+        }
+    }
+
+    private static StripeLayout toStripeLayout(ErasureLayout layout) {
+        return StripeLayout.newBuilder()
+                .setDataStripes(layout.getDataStripes())
+                .setParityStripes(layout.getParityStripes())
+                .setCellSize(layout.getCellSize())
+                .addAllStripeAddresses(layout.getStripeAddressesList())
+                .setFileSize(layout.getFileSize())
+                .build();
+    }
 }
@@ -0,0 +1,105 @@
+package ru.kostacie;
+
+import coordinator.CoordinatorProto.GetRingResponse;
+import coordinator.CoordinatorProto.ReadFileResponse;
+import coordinator.CoordinatorProto.RingMember;
+import lombok.Getter;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+
+/**
+ * Копия кольца консистентного хеширования координатора, по которой клиент сам находит DataNode файлов,
+ * размещённых по кольцу, без запроса ReadFile.
+ * <p>
+ * Кольцо строится так, как описано в {@code GetRingResponse}, и должно совпадать с кольцом координатора
+ * той же версии. Если копия устарела, файл не найдётся на DataNode, и клиент спросит координатор.
+ */
+class HashRing {
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    @Getter
+    private final long version;
+    private final int replicationFactor;
+    private final int memberCount;
+    // Точки кольца по возрастанию и DataNode каждой точки
+    private final long[] points;
+    private final String[] owners;
+
+    /**
+     * @param ring кольцо из ответа координатора; без DataNode - координатор размещает файлы не по кольцу.
+     */
+    HashRing(GetRingResponse ring) {
+        this.version = ring.getVersion();
+        this.replicationFactor = ring.getReplicationFactor();
+        this.memberCount = ring.getMembersCount();
+        List<Point> sorted = new ArrayList<>();
+        for (RingMember member : ring.getMembersList()) {
+            for (int i = 0; i < member.getWeight() * ring.getVirtualNodes(); i++) {
+                sorted.add(new Point(hash(member.getAddress() + "#" + i), member.getAddress()));
+            }
+        }
+        sorted.sort((a, b) -> a.hash != b.hash ? Long.compare(a.hash, b.hash) : a.owner.compareTo(b.owner));
+        this.points = new long[sorted.size()];
+        this.owners = new String[sorted.size()];
+        for (int i = 0; i < sorted.size(); i++) {
+            points[i] = sorted.get(i).hash;
+            owners[i] = sorted.get(i).owner;
+        }
+    }
+
+    boolean isEmpty() {
+        return points.length == 0;
+    }
+
+    /**
+     * Находит DataNode с копиями файла в том виде, в каком их вернул бы ReadFile.
+     */
+    ReadFileResponse locate(String filePath) {
+        List<String> chosen = new ArrayList<>(Math.min(replicationFactor, memberCount));
+        int start = Arrays.binarySearch(points, hash(filePath));
+        if (start < 0) {
+            start = -start - 1;
+        }
+        for (int i = 0; i < points.length && chosen.size() < replicationFactor; i++) {
+            String owner = owners[(start + i) % points.length];
+            if (!chosen.contains(owner)) {
+                chosen.add(owner);
+            }
+        }
+        return ReadFileResponse.newBuilder()
+                .setDataNodeAddress(chosen.get(0))
+                .addAllDataNodeAddresses(chosen)
+                .setFileId(fileId(filePath))
+                .build();
+    }
+
+    /**
+     * Хеш строки: FNV-1a 64 от байт UTF-8 с перемешиванием fmix64 из MurmurHash3, как на координаторе.
+     */
+    static long hash(String key) {
+        long hash = FNV_OFFSET_BASIS;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= FNV_PRIME;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    static String fileId(String filePath) {
+        return UUID.nameUUIDFromBytes(("ring:" + filePath).getBytes(StandardCharsets.UTF_8)).toString();
+    }
+
+    private record Point(long hash, String owner) {
+    }
+}
@@ -0,0 +1,70 @@
+package ru.kostacie;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Задержка перед повторным чтением с другой копии файла.
+ * <p>
+ * Задержка - заданный перцентиль времени до первого чанка по последним чтениям. Так повторяются только
+ * самые медленные чтения (при перцентиле 95 - около 5%), а нагрузка на DataNode растёт незначительно.
+ * Пока чтений мало, используется начальная задержка.
+ */
+class HedgeDelay {
+    // Сколько последних чтений учитывается
+    private static final int WINDOW = 256;
+    // Сколько чтений нужно, чтобы перцентиль имел смысл
+    private static final int MIN_SAMPLES = 20;
+
+    private final double percentile;
+    private final long initialDelayNanos;
+    private final long[] samples = new long[WINDOW];
+    private int count;
+    private int next;
+    // Задержка по текущим замерам; пересчитывается лениво после новых замеров
+    private long delayNanos;
+    private boolean stale = true;
+
+    /**
+     * @param percentile        перцентиль времени до первого чанка, от 0 до 100.
+     * @param initialDelayNanos задержка, пока замеров мало.
+     */
+    HedgeDelay(double percentile, long initialDelayNanos) {
+        if (percentile <= 0 || percentile > 100) {
+            throw new IllegalArgumentException("Invalid hedge percentile: " + percentile);
+        }
+        this.percentile = percentile;
+        this.initialDelayNanos = initialDelayNanos;
+    }
+
+    HedgeDelay(double percentile) {
+        this(percentile, TimeUnit.MILLISECONDS.toNanos(50));
+    }
+
+    /**
+     * Учитывает время до первого чанка завершившегося чтения.
+     */
+    synchronized void record(long firstByteNanos) {
+        samples[next] = firstByteNanos;
+        next = (next + 1) % WINDOW;
+        count = Math.min(count + 1, WINDOW);
+        stale = true;
+    }
+
+    /**
+     * Задержка перед повторным чтением, нс.
+     */
+    synchronized long delayNanos() {
+        if (count < MIN_SAMPLES) {
+            return initialDelayNanos;
+        }
+        if (stale) {
+            long[] sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+            delayNanos = sorted[(int) Math.ceil(percentile / 100 * count) - 1];
+            stale = false;
+        }
+        return delayNanos;
+    }
+}
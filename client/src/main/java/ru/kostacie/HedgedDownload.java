@@ -0,0 +1,211 @@
+package ru.kostacie;
+
+import datanode.DataNodeGrpc;
+import datanode.DataNodeProto.DownloadFileRequest;
+import datanode.DataNodeProto.DownloadFileResponse;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import io.grpc.stub.StreamObserver;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Скачивание с повторным запросом (hedged request) к другой копии файла.
+ * <p>
+ * Запрос отправляется первому DataNode из списка. Если за {@link HedgeDelay} от него не пришёл первый чанк,
+ * тот же запрос отправляется следующему DataNode. Файл передаёт тот, кто первым прислал чанк, второй запрос
+ * отменяется. Если DataNode ответил ошибкой до первого чанка, запрос сразу отправляется следующему.
+ */
+@Slf4j
+class HedgedDownload {
+    private final List<String> addresses;
+    private final DownloadFileRequest request;
+    private final HedgeDelay hedgeDelay;
+    private final ChannelPool channelPool;
+    private final ScheduledExecutorService scheduler;
+    private final StreamObserver<DownloadFileResponse> responseObserver;
+    // Запросы, которые ещё не завершились
+    private final List<Attempt> pending = new ArrayList<>();
+    private int nextAddress;
+    private Attempt winner;
+    private ScheduledFuture<?> hedgeTimer;
+    private boolean cancelled;
+
+    /**
+     * @param addresses        DataNode с копиями файла в порядке предпочтения.
+     * @param request          запрос на скачивание.
+     * @param hedgeDelay       задержка перед повторным запросом; обновляется по времени до первого чанка.
+     * @param channelPool      каналы к DataNode.
+     * @param scheduler        планировщик повторного запроса.
+     * @param responseObserver получает чанки от DataNode, выигравшего гонку.
+     */
+    HedgedDownload(List<String> addresses, DownloadFileRequest request, HedgeDelay hedgeDelay,
+                   ChannelPool channelPool, ScheduledExecutorService scheduler, StreamObserver<DownloadFileResponse> responseObserver) {
+        if (addresses.isEmpty()) {
+            throw new IllegalArgumentException("No DataNode to download from");
+        }
+        this.addresses = addresses;
+        this.request = request;
+        this.hedgeDelay = hedgeDelay;
+        this.channelPool = channelPool;
+        this.scheduler = scheduler;
+        this.responseObserver = responseObserver;
+    }
+
+    void start() {
+        synchronized (this) {
+            startNext();
+            if (nextAddress < addresses.size()) {
+                hedgeTimer = scheduler.schedule(this::hedge, hedgeDelay.delayNanos(), TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+
+    /**
+     * Отменяет скачивание, например когда получатель не смог принять чанк. Запросы к DataNode отменяются,
+     * чтобы они не передавали ненужные данные и вернули каналы в пул, а новые запросы не отправляются.
+     *
+     * @param message причина отмены.
+     */
+    void cancel(String message) {
+        List<Attempt> attempts;
+        synchronized (this) {
+            if (cancelled) {
+                return;
+            }
+            cancelled = true;
+            if (hedgeTimer != null) {
+                hedgeTimer.cancel(false);
+            }
+            attempts = new ArrayList<>(pending);
+        }
+        for (Attempt attempt : attempts) {
+            attempt.cancel(message);
+        }
+    }
+
+    private synchronized void hedge() {
+        if (!cancelled && winner == null && nextAddress < addresses.size()) {
+            log.info("No response from DataNode {} within {} ms, reading from {} as well",
+                    addresses.get(nextAddress - 1), TimeUnit.NANOSECONDS.toMillis(hedgeDelay.delayNanos()),
+                    addresses.get(nextAddress));
+            startNext();
+        }
+    }
+
+    private void startNext() {
+        Attempt attempt = new Attempt(addresses.get(nextAddress++));
+        pending.add(attempt);
+        attempt.start();
+    }
+
+    /**
+     * Отдаёт скачивание запросу, первым получившему ответ, и отменяет остальные.
+     * Время до первого чанка учитывается у победителя и у проигравших запросов, начатых раньше него.
+     * Возвращает false, если скачивание уже отдано другому запросу.
+     */
+    private boolean claim(Attempt attempt) {
+        List<Attempt> losers;
+        synchronized (this) {
+            if (winner != null) {
+                return winner == attempt;
+            }
+            winner = attempt;
+            if (hedgeTimer != null) {
+                hedgeTimer.cancel(false);
+            }
+            long now = System.nanoTime();
+            hedgeDelay.record(now - attempt.startNanos);
+            losers = new ArrayList<>(pending);
+            losers.remove(attempt);
+            for (Attempt loser : losers) {
+                // Запрос, начатый раньше победителя, ответил бы не быстрее, чем ждал до отмены. Без этого замера
+                // медленные DataNode, проигравшие повторному запросу, не попадают в перцентиль, и задержка
+                // со временем уменьшается. Запросы, начатые позже, о скорости ответа ничего не говорят
+                if (loser.startNanos < attempt.startNanos) {
+                    hedgeDelay.record(now - loser.startNanos);
+                }
+            }
+        }
+        for (Attempt loser : losers) {
+            loser.cancel("Another replica responded first");
+        }
+        return true;
+    }
+
+    /**
+     * Запрос к одному DataNode.
+     */
+    private class Attempt implements ClientResponseObserver<DownloadFileRequest, DownloadFileResponse> {
+        private final String address;
+        private final ChannelPool.Lease lease;
+        private final long startNanos = System.nanoTime();
+        private ClientCallStreamObserver<DownloadFileRequest> requestStream;
+
+        Attempt(String address) {
+            this.address = address;
+            this.lease = channelPool.acquire(address);
+        }
+
+        void start() {
+            DataNodeGrpc.newStub(lease.channel()).downloadFile(request, this);
+        }
+
+        void cancel(String message) {
+            requestStream.cancel(message, null);
+        }
+
+        @Override
+        public void beforeStart(ClientCallStreamObserver<DownloadFileRequest> requestStream) {
+            this.requestStream = requestStream;
+        }
+
+        @Override
+        public void onNext(DownloadFileResponse chunk) {
+            if (claim(this)) {
+                responseObserver.onNext(chunk);
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            synchronized (HedgedDownload.this) {
+                pending.remove(this);
+                // Отменённый проигравший запрос - не признак недоступности DataNode
+                lease.release(winner != null && winner != this ? null : t);
+                if (winner != null && winner != this) {
+                    return;
+                }
+                if (winner == null) {
+                    log.warn("Download from DataNode {} failed: {}", address, t.getMessage());
+                    if (!cancelled && nextAddress < addresses.size()) {
+                        startNext();
+                        return;
+                    }
+                    if (!pending.isEmpty()) {
+                        return;
+                    }
+                }
+            }
+            responseObserver.onError(t);
+        }
+
+        @Override
+        public void onCompleted() {
+            lease.release(null);
+            synchronized (HedgedDownload.this) {
+                pending.remove(this);
+            }
+            // Пустой файл завершается без чанков
+            if (claim(this)) {
+                responseObserver.onCompleted();
+            }
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package ru.kostacie;
+
+import coordinator.CoordinatorGrpc;
+import coordinator.CoordinatorProto.*;
+import io.grpc.Metadata;
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Группировка запросов WriteFile и ReadFile к координатору в пакетные WriteFiles и ReadFiles.
+ * <p>
+ * Запрос ждёт в очереди не дольше lingerNanos: за это время к нему присоединяются запросы из других потоков
+ * или следующие файлы той же массовой загрузки. Пакет отправляется сразу, как только набралось maxBatchSize
+ * запросов. Ошибка одного файла завершает только его future.
+ */
+class MetadataBatcher {
+    private final CoordinatorGrpc.CoordinatorStub coordinatorStub;
+    private final int maxBatchSize;
+    private final long lingerNanos;
+    private final ScheduledExecutorService scheduler;
+    private final PendingBatch<WriteFileRequest, WriteFileResponse> writes = new PendingBatch<>() {
+        @Override
+        void send(List<WriteFileRequest> requests, List<CompletableFuture<WriteFileResponse>> futures) {
+            coordinatorStub.writeFiles(WriteFilesRequest.newBuilder().addAllFiles(requests).build(),
+                    new ResultObserver<>(futures) {
+                        @Override
+                        public void onNext(WriteFilesResponse response) {
+                            if (!matches(response.getResultsCount())) {
+                                return;
+                            }
+                            for (int i = 0; i < futures.size(); i++) {
+                                WriteFileResult result = response.getResults(i);
+                                complete(futures.get(i), result.hasResponse() ? result.getResponse() : null,
+                                        result.getStatus());
+                            }
+                        }
+                    });
+        }
+    };
+    private final PendingBatch<ReadFileRequest, ReadFileResponse> reads = new PendingBatch<>() {
+        @Override
+        void send(List<ReadFileRequest> requests, List<CompletableFuture<ReadFileResponse>> futures) {
+            coordinatorStub.readFiles(ReadFilesRequest.newBuilder().addAllFiles(requests).build(),
+                    new ResultObserver<>(futures) {
+                        @Override
+                        public void onNext(ReadFilesResponse response) {
+                            if (!matches(response.getResultsCount())) {
+                                return;
+                            }
+                            for (int i = 0; i < futures.size(); i++) {
+                                ReadFileResult result = response.getResults(i);
+                                complete(futures.get(i), result.hasResponse() ? result.getResponse() : null,
+                                        result.getStatus());
+                            }
+                        }
+                    });
+        }
+    };
+
+    /**
+     * @param coordinatorStub stub координатора.
+     * @param maxBatchSize    наибольшее число файлов в пакете.
+     * @param lingerNanos     сколько запрос ждёт других запросов; 0 - пакет отправляется сразу.
+     * @param scheduler       планировщик отправки пакетов по истечении lingerNanos.
+     */
+    MetadataBatcher(CoordinatorGrpc.CoordinatorStub coordinatorStub, int maxBatchSize, long lingerNanos,
+                    ScheduledExecutorService scheduler) {
+        if (maxBatchSize <= 0 || lingerNanos < 0) {
+            throw new IllegalArgumentException("Invalid batching: " + maxBatchSize + " files, " + lingerNanos + " ns");
+        }
+        this.coordinatorStub = coordinatorStub;
+        this.maxBatchSize = maxBatchSize;
+        this.lingerNanos = lingerNanos;
+        this.scheduler = scheduler;
+    }
+
+    CompletableFuture<WriteFileResponse> writeFile(WriteFileRequest request) {
+        return writes.add(request);
+    }
+
+    CompletableFuture<ReadFileResponse> readFile(ReadFileRequest request) {
+        return reads.add(request);
+    }
+
+    /**
+     * Отправляет накопленные запросы, не дожидаясь lingerNanos.
+     */
+    void flush() {
+        writes.flush();
+        reads.flush();
+    }
+
+    private static <R> void complete(CompletableFuture<R> future, R response, EntryStatus status) {
+        if (response != null) {
+            future.complete(response);
+        } else {
+            Metadata trailers = new Metadata();
+            if (!status.getRedirectAddress().isEmpty()) {
+                trailers.put(PartitionMap.REDIRECT_ADDRESS, status.getRedirectAddress());
+            }
+            future.completeExceptionally(Status.fromCodeValue(status.getCode())
+                    .withDescription(status.getMessage())
+                    .asRuntimeException(trailers));
+        }
+    }
+
+    /**
+     * Очередь запросов одного вида.
+     */
+    private abstract class PendingBatch<Q, R> {
+        private List<Q> requests = new ArrayList<>();
+        private List<CompletableFuture<R>> futures = new ArrayList<>();
+        private ScheduledFuture<?> lingerTimer;
+
+        synchronized CompletableFuture<R> add(Q request) {
+            CompletableFuture<R> future = new CompletableFuture<>();
+            requests.add(request);
+            futures.add(future);
+            if (requests.size() >= maxBatchSize || lingerNanos == 0) {
+                sendPending();
+            } else if (requests.size() == 1) {
+                lingerTimer = scheduler.schedule(this::flush, lingerNanos, TimeUnit.NANOSECONDS);
+            }
+            return future;
+        }
+
+        synchronized void flush() {
+            if (!requests.isEmpty()) {
+                sendPending();
+            }
+        }
+
+        private void sendPending() {
+            if (lingerTimer != null) {
+                lingerTimer.cancel(false);
+                lingerTimer = null;
+            }
+            List<Q> batch = requests;
+            List<CompletableFuture<R>> batchFutures = futures;
+            requests = new ArrayList<>();
+            futures = new ArrayList<>();
+            send(batch, batchFutures);
+        }
+
+        abstract void send(List<Q> requests, List<CompletableFuture<R>> futures);
+    }
+
+    /**
+     * Ответ на пакетный запрос; ошибка вызова или ответ не того размера завершает future всех файлов пакета.
+     */
+    private abstract static class ResultObserver<T, R> implements StreamObserver<T> {
+        private final List<CompletableFuture<R>> futures;
+
+        ResultObserver(List<CompletableFuture<R>> futures) {
+            this.futures = futures;
+        }
+
+        /**
+         * Проверяет, что координатор вернул по результату на каждый файл пакета.
+         * Иначе результаты нельзя сопоставить файлам, и пакет завершается ошибкой.
+         */
+        boolean matches(int resultsCount) {
+            if (resultsCount == futures.size()) {
+                return true;
+            }
+            onError(Status.INTERNAL
+                    .withDescription("Coordinator returned " + resultsCount + " results for " + futures.size()
+                            + " files")
+                    .asRuntimeException());
+            return false;
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            for (CompletableFuture<R> future : futures) {
+                future.completeExceptionally(t);
+            }
+        }
+
+        @Override
+        public void onCompleted() {
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package ru.kostacie;
+
+import coordinator.CoordinatorProto.GetPartitionMapResponse;
+import coordinator.CoordinatorProto.Partition;
+import io.grpc.Metadata;
+import io.grpc.Status;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+
+/**
+ * Копия карты разделов: какой координатор хранит метаданные пути.
+ * <p>
+ * Путь принадлежит координатору, в диапазон которого попадает хеш пути, как описано в
+ * {@code GetPartitionMapResponse}. Если копия устарела, координатор перенаправляет запрос владельцу пути.
+ */
+class PartitionMap {
+    // Адрес координатора, которому принадлежит путь, в метаданных ошибки FAILED_PRECONDITION
+    static final Metadata.Key<String> REDIRECT_ADDRESS =
+            Metadata.Key.of("redirect-address", Metadata.ASCII_STRING_MARSHALLER);
+
+    // Начала диапазонов хешей по возрастанию и координаторы диапазонов
+    private final long[] starts;
+    private final String[] addresses;
+
+    /**
+     * @param response       карта из ответа координатора.
+     * @param defaultAddress координатор, который хранит все пути, если карта пуста.
+     */
+    PartitionMap(GetPartitionMapResponse response, String defaultAddress) {
+        if (response.getPartitionsCount() == 0) {
+            this.starts = new long[]{0};
+            this.addresses = new String[]{defaultAddress};
+            return;
+        }
+        this.starts = new long[response.getPartitionsCount()];
+        this.addresses = new String[response.getPartitionsCount()];
+        for (int i = 0; i < starts.length; i++) {
+            Partition partition = response.getPartitions(i);
+            starts[i] = partition.getStartHash();
+            addresses[i] = partition.getAddress();
+        }
+    }
+
+    /**
+     * Координатор, которому принадлежит путь.
+     */
+    String addressOf(String filePath) {
+        int index = Arrays.binarySearch(starts, HashRing.hash(filePath) >>> 1);
+        return addresses[index >= 0 ? index : -index - 2];
+    }
+
+    /**
+     * Все координаторы без повторов в порядке диапазонов.
+     */
+    List<String> addresses() {
+        return List.copyOf(new LinkedHashSet<>(Arrays.asList(addresses)));
+    }
+
+    /**
+     * Адрес координатора, на который перенаправлен запрос, или null, если ошибка - не перенаправление.
+     */
+    static String redirectAddress(Throwable error) {
+        Metadata trailers = Status.trailersFromThrowable(error);
+        return trailers != null ? trailers.get(REDIRECT_ADDRESS) : null;
+    }
+}
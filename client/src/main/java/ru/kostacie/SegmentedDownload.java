@@ -0,0 +1,279 @@
+package ru.kostacie;
+
+import com.google.protobuf.ByteString;
+import datanode.DataNodeProto.DownloadFileRequest;
+import datanode.DataNodeProto.DownloadFileResponse;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.StreamObserver;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Скачивание файла независимыми сегментами прямо в файл на диске.
+ * <p>
+ * Файл делится на сегменты - блоки или диапазоны байт, - и не больше parallelism сегментов скачиваются
+ * одновременно, каждый со своих копий. Чанк пишется по своему смещению ({@link FileChannel#write(ByteBuffer, long)})
+ * во временный файл рядом с целевым, поэтому сегменты не ждут друг друга, а в памяти находятся только чанки в пути.
+ * Временный файл сразу получает итоговый размер и заменяет целевой, когда скачаны все сегменты.
+ * <p>
+ * Если скачивание сегмента оборвалось, сегмент скачивается заново с места обрыва, не больше maxAttempts раз;
+ * остальные сегменты тем временем продолжают скачиваться.
+ */
+@Slf4j
+class SegmentedDownload {
+    // Ошибки, которые повторный запрос не исправит
+    private static final Set<Status.Code> PERMANENT_ERRORS = EnumSet.of(Status.Code.NOT_FOUND,
+            Status.Code.INVALID_ARGUMENT, Status.Code.OUT_OF_RANGE, Status.Code.PERMISSION_DENIED,
+            Status.Code.FAILED_PRECONDITION, Status.Code.UNIMPLEMENTED);
+    // Пауза перед повтором сегмента; растёт с каждой попыткой
+    private static final long RETRY_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final Path target;
+    private final Path temporary;
+    private final long fileSize;
+    private final List<Segment> segments;
+    private final int parallelism;
+    private final int maxAttempts;
+    private final HedgeDelay hedgeDelay;
+    private final ChannelPool channelPool;
+    private final ScheduledExecutorService scheduler;
+    private final AtomicInteger nextSegment = new AtomicInteger();
+    private final CompletableFuture<Void> result = new CompletableFuture<>();
+    private FileChannel file;
+
+    /**
+     * Сегмент файла: диапазон файла или блока на DataNode и его место в скачиваемом файле.
+     *
+     * @param addresses DataNode с копиями сегмента в порядке предпочтения.
+     * @param request   запрос диапазона; length = 0 - до конца файла или блока.
+     * @param position  смещение сегмента в скачиваемом файле.
+     */
+    record Segment(List<String> addresses, DownloadFileRequest request, long position) {
+    }
+
+    /**
+     * @param target      куда сохранить файл; существующий файл заменяется.
+     * @param fileSize    размер файла; 0 - неизвестен.
+     * @param segments    сегменты, из которых состоит файл.
+     * @param parallelism сколько сегментов скачивается одновременно.
+     * @param maxAttempts сколько раз скачивается сегмент, прежде чем скачивание файла считается неудавшимся.
+     * @param hedgeDelay  задержка перед повторным запросом к другой копии сегмента.
+     * @param channelPool каналы к DataNode.
+     * @param scheduler   планировщик повторных запросов.
+     */
+    SegmentedDownload(Path target, long fileSize, List<Segment> segments, int parallelism, int maxAttempts,
+                      HedgeDelay hedgeDelay, ChannelPool channelPool, ScheduledExecutorService scheduler) {
+        if (segments.isEmpty() || parallelism <= 0 || maxAttempts <= 0) {
+            throw new IllegalArgumentException("Invalid download of " + segments.size() + " segments with parallelism "
+                    + parallelism + " and " + maxAttempts + " attempts");
+        }
+        this.target = target;
+        this.temporary = target.resolveSibling(target.getFileName() + ".part");
+        this.fileSize = fileSize;
+        this.segments = segments;
+        this.parallelism = parallelism;
+        this.maxAttempts = maxAttempts;
+        this.hedgeDelay = hedgeDelay;
+        this.channelPool = channelPool;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Начинает скачивание. Результат завершается, когда файл сохранён, или ошибкой сегмента либо записи на диск;
+     * при ошибке целевой файл не меняется.
+     */
+    CompletableFuture<Void> start() {
+        try {
+            file = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            if (fileSize > 0) {
+                // Итоговый размер сразу: сегменты пишутся в пределах файла, и их запись не меняет его длину
+                file.write(ByteBuffer.allocate(1), fileSize - 1);
+            }
+        } catch (IOException e) {
+            if (file != null) {
+                finish(e);
+                return result;
+            }
+            return CompletableFuture.failedFuture(e);
+        }
+        List<CompletableFuture<Void>> workers = new ArrayList<>();
+        for (int i = 0; i < Math.min(parallelism, segments.size()); i++) {
+            workers.add(downloadNextSegment());
+        }
+        CompletableFuture.allOf(workers.toArray(CompletableFuture[]::new))
+                .whenComplete((ignored, error) -> finish(error));
+        return result;
+    }
+
+    /**
+     * Скачивает следующий сегмент, а после него - следующий, пока сегменты не закончатся.
+     * После ошибки новые сегменты не начинаются.
+     */
+    private CompletableFuture<Void> downloadNextSegment() {
+        int index = nextSegment.getAndIncrement();
+        if (index >= segments.size()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        Segment segment = segments.get(index);
+        return download(segment, segment.request(), 1)
+                .whenComplete((ignored, error) -> {
+                    if (error != null) {
+                        nextSegment.set(segments.size());
+                    }
+                })
+                .thenCompose(ignored -> downloadNextSegment());
+    }
+
+    /**
+     * Скачивает сегмент или его недостающий конец и повторяет с места обрыва, пока не кончатся попытки.
+     */
+    private CompletableFuture<Void> download(Segment segment, DownloadFileRequest request, int attempt) {
+        long position = segment.position() + request.getOffset() - segment.request().getOffset();
+        SegmentWriter writer = new SegmentWriter(position, request.getLength());
+        writer.download = new HedgedDownload(segment.addresses(), request, hedgeDelay, channelPool, scheduler, writer);
+        writer.download.start();
+        return writer.done.exceptionallyCompose(error -> {
+            if (request.getLength() > 0 && writer.written == request.getLength()) {
+                // Все байты сегмента уже записаны, оборвалось только завершение ответа
+                return CompletableFuture.completedFuture(null);
+            }
+            if (writer.writeFailed || attempt >= maxAttempts || !retryable(error)) {
+                return CompletableFuture.failedFuture(error);
+            }
+            log.warn("Download of segment at {} failed after {} bytes, retrying: {}", segment.position(),
+                    writer.written, error.getMessage());
+            DownloadFileRequest.Builder retry = request.toBuilder().setOffset(request.getOffset() + writer.written);
+            if (request.getLength() > 0) {
+                retry.setLength(request.getLength() - writer.written);
+            }
+            Executor delayed = CompletableFuture.delayedExecutor(RETRY_DELAY_NANOS * attempt, TimeUnit.NANOSECONDS,
+                    scheduler);
+            return CompletableFuture.runAsync(() -> {
+            }, delayed).thenCompose(ignored -> download(segment, retry.build(), attempt + 1));
+        });
+    }
+
+    private static boolean retryable(Throwable error) {
+        return !(error instanceof StatusRuntimeException e) || !PERMANENT_ERRORS.contains(e.getStatus().getCode());
+    }
+
+    /**
+     * Закрывает файл и заменяет им целевой или удаляет его после ошибки.
+     */
+    private void finish(Throwable error) {
+        try {
+            file.close();
+        } catch (IOException e) {
+            error = error != null ? error : e;
+        }
+        if (error == null) {
+            try {
+                Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                result.complete(null);
+                return;
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+        deleteTemporary();
+        result.completeExceptionally(error instanceof CompletionException ? error.getCause() : error);
+    }
+
+    private void deleteTemporary() {
+        try {
+            Files.deleteIfExists(temporary);
+        } catch (IOException e) {
+            log.warn("Failed to delete {}: {}", temporary, e.getMessage());
+        }
+    }
+
+    /**
+     * Пишет чанки одного запроса сегмента по их смещениям в файле.
+     * Чанки приходят по одному, поэтому записанная длина не требует синхронизации.
+     * Если чанк не удалось принять, запрос отменяется: иначе DataNode передал бы остаток сегмента впустую,
+     * пока повтор скачивает те же байты, а канал оставался бы занят.
+     */
+    private class SegmentWriter implements StreamObserver<DownloadFileResponse> {
+        private final long position;
+        // Ожидаемая длина; 0 - до конца файла или блока
+        private final long length;
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+        private HedgedDownload download;
+        private long written;
+        // Ошибка записи на диск, а не скачивания: повтор её не исправит
+        private boolean writeFailed;
+
+        SegmentWriter(long position, long length) {
+            this.position = position;
+            this.length = length;
+        }
+
+        @Override
+        public void onNext(DownloadFileResponse chunk) {
+            // После ошибки остаток ответа отбрасывается: сегмент скачивается заново с места обрыва
+            if (done.isDone()) {
+                return;
+            }
+            ByteString content;
+            try {
+                content = ChunkCodec.decode(chunk);
+            } catch (IOException e) {
+                fail(e);
+                return;
+            }
+            try {
+                long offset = position + written;
+                for (ByteBuffer buffer : content.asReadOnlyByteBufferList()) {
+                    while (buffer.hasRemaining()) {
+                        offset += file.write(buffer, offset);
+                    }
+                }
+                written += content.size();
+            } catch (IOException e) {
+                log.error("Failed to write {}: {}", temporary, e.getMessage());
+                writeFailed = true;
+                fail(e);
+            }
+        }
+
+        private void fail(IOException error) {
+            done.completeExceptionally(error);
+            download.cancel("Failed to accept chunk: " + error.getMessage());
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            done.completeExceptionally(t);
+        }
+
+        @Override
+        public void onCompleted() {
+            if (length > 0 && written != length) {
+                done.completeExceptionally(new IOException("Segment ended after " + written + " of " + length
+                        + " bytes"));
+            } else {
+                done.complete(null);
+            }
+        }
+    }
+}
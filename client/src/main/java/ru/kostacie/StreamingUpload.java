@@ -0,0 +1,183 @@
+package ru.kostacie;
+
+import coordinator.CoordinatorProto.WriteFileResponse;
+import datanode.DataNodeGrpc;
+import datanode.DataNodeProto.StripeLayout;
+import datanode.DataNodeProto.UploadFileRequest;
+import datanode.DataNodeProto.UploadFileResponse;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+
+/**
+ * Загрузка файла или его блока на DataNode чанками, которые читаются с диска по мере готовности потока.
+ * <p>
+ * Следующий чанк читается из файла, только когда gRPC готов его отправить ({@link ClientCallStreamObserver#isReady}),
+ * поэтому в памяти одновременно находится один буфер чанка и ограниченная очередь отправки, каким бы большим
+ * ни был файл. Медленный DataNode притормаживает чтение с диска, а не накапливает файл в памяти клиента.
+ */
+@Slf4j
+class StreamingUpload implements ClientResponseObserver<UploadFileRequest, UploadFileResponse> {
+    private final Path path;
+    // Часть файла, которая загружается: весь файл или один его блок
+    private final long offset;
+    private final WriteFileResponse placement;
+    private final StripeLayout stripeLayout;
+    private final ChunkCodec chunkCodec;
+    private final ChannelPool.Lease lease;
+    // Буфер чанка; переиспользуется, потому что кодек копирует данные в сообщение
+    private final byte[] buffer;
+    // Сколько байт части осталось прочитать
+    private long remaining;
+    private final CompletableFuture<UploadFileResponse> result = new CompletableFuture<>();
+    private FileChannel file;
+    private ClientCallStreamObserver<UploadFileRequest> requestStream;
+    private UploadFileResponse response;
+    private boolean firstChunk = true;
+    private boolean done;
+
+    /**
+     * @param path         загружаемый файл.
+     * @param offset       начало загружаемой части файла.
+     * @param length       длина загружаемой части; {@link Long#MAX_VALUE} - до конца файла.
+     * @param placement    DataNode и идентификатор загрузки, назначенные координатором.
+     * @param stripeLayout раскладка полос для файла с кодированием стирания или null.
+     * @param chunkCodec   кодек, которым сжимаются чанки.
+     * @param chunkSize    размер чанка.
+     * @param lease        канал к первому DataNode; возвращается в пул по окончании загрузки.
+     */
+    StreamingUpload(Path path, long offset, long length, WriteFileResponse placement, StripeLayout stripeLayout,
+                    ChunkCodec chunkCodec, int chunkSize, ChannelPool.Lease lease) {
+        this.path = path;
+        this.offset = offset;
+        this.remaining = length;
+        this.placement = placement;
+        this.stripeLayout = stripeLayout;
+        this.chunkCodec = chunkCodec;
+        this.lease = lease;
+        this.buffer = new byte[chunkSize];
+    }
+
+    /**
+     * Начинает загрузку. Результат завершается ответом DataNode или ошибкой чтения файла либо передачи.
+     */
+    CompletableFuture<UploadFileResponse> start() {
+        try {
+            file = FileChannel.open(path, StandardOpenOption.READ);
+            file.position(offset);
+        } catch (IOException e) {
+            lease.release(null);
+            if (file != null) {
+                closeFile();
+            }
+            return CompletableFuture.failedFuture(e);
+        }
+        DataNodeGrpc.newStub(lease.channel()).uploadFile(this);
+        return result;
+    }
+
+    @Override
+    public void beforeStart(ClientCallStreamObserver<UploadFileRequest> requestStream) {
+        this.requestStream = requestStream;
+        // gRPC вызывает обработчик, когда поток готов принять первый чанк и каждый раз, когда очередь отправки освобождается
+        requestStream.setOnReadyHandler(this::sendChunks);
+    }
+
+    /**
+     * Читает и отправляет чанки, пока поток готов их принять.
+     */
+    private synchronized void sendChunks() {
+        try {
+            while (!done && requestStream.isReady()) {
+                int length = read();
+                // Первый чанк отправляется и для пустого файла: он несёт идентификатор загрузки
+                if (length > 0 || firstChunk) {
+                    requestStream.onNext(chunk(length));
+                }
+                if (length < buffer.length || remaining == 0) {
+                    done = true;
+                    closeFile();
+                    requestStream.onCompleted();
+                }
+            }
+        } catch (IOException e) {
+            log.error("Failed to read file {}: {}", path, e.getMessage());
+            done = true;
+            closeFile();
+            result.completeExceptionally(e);
+            requestStream.cancel("Failed to read file", e);
+        }
+    }
+
+    /**
+     * Заполняет буфер данными файла и возвращает их длину; меньше размера буфера - часть прочитана до конца.
+     */
+    private int read() throws IOException {
+        ByteBuffer target = ByteBuffer.wrap(buffer, 0, (int) Math.min(buffer.length, remaining));
+        while (target.hasRemaining() && file.read(target) >= 0) {
+            // Читаем, пока буфер не заполнится или файл не закончится
+        }
+        remaining -= target.position();
+        return target.position();
+    }
+
+    private UploadFileRequest chunk(int length) {
+        // Сжимаемые чанки сжимаются выбранным кодеком
+        UploadFileRequest.Builder chunk = chunkCodec.encode(buffer, 0, length)
+                .setUploadId(placement.getUploadId());
+        List<String> chain = placement.getDataNodeAddressesList();
+        if (firstChunk && stripeLayout != null) {
+            chunk.setStripeLayout(stripeLayout);
+        } else if (firstChunk && chain.size() > 1) {
+            // Остальные DataNode цепочки получают файл от первого
+            chunk.addAllDownstreamAddresses(chain.subList(1, chain.size()))
+                    .setMinReplicas(placement.getMinReplicas());
+        }
+        firstChunk = false;
+        return chunk.build();
+    }
+
+    private void closeFile() {
+        try {
+            file.close();
+        } catch (IOException e) {
+            log.warn("Failed to close file {}: {}", path, e.getMessage());
+        }
+    }
+
+    @Override
+    public void onNext(UploadFileResponse response) {
+        this.response = response;
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        lease.release(t);
+        synchronized (this) {
+            if (!done) {
+                done = true;
+                closeFile();
+            }
+        }
+        result.completeExceptionally(t);
+    }
+
+    @Override
+    public void onCompleted() {
+        lease.release(null);
+        if (response == null) {
+            result.completeExceptionally(new IOException("DataNode completed upload without response"));
+        } else {
+            result.complete(response);
+        }
+    }
+}
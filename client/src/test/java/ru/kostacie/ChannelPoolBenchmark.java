@@ -0,0 +1,181 @@
+package ru.kostacie;
+
+import com.google.protobuf.ByteString;
+import datanode.DataNodeGrpc;
+import datanode.DataNodeProto.*;
+import io.grpc.Grpc;
+import io.grpc.InsecureChannelCredentials;
+import io.grpc.InsecureServerCredentials;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.stub.StreamObserver;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Число операций в секунду с небольшими файлами: новый канал к DataNode на каждую передачу против {@link ChannelPool}.
+ * <p>
+ * DataNode - gRPC-сервер на localhost, который хранит файлы в памяти, чтобы замер не упирался в диск.
+ * Одна операция - загрузка файла в 4 КБ и его скачивание, как при работе клиента с множеством мелких файлов.
+ * Новый канал каждый раз устанавливает TCP-соединение и проходит HTTP/2 handshake.
+ * <p>
+ * Запуск: {@code mvn -pl client test-compile}, затем {@link #main(String[])} с test-classpath модуля.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Threads(8)
+@Fork(1)
+public class ChannelPoolBenchmark {
+    private static final ByteString CONTENT = ByteString.copyFrom(new byte[4096]);
+
+    @Param({"false", "true"})
+    private boolean pooled;
+
+    private final AtomicLong counter = new AtomicLong();
+    private final Map<String, ByteString> files = new ConcurrentHashMap<>();
+    private Server server;
+    private String address;
+    private ScheduledExecutorService scheduler;
+    private ChannelPool channelPool;
+
+    @Setup
+    public void setUp() throws IOException {
+        server = Grpc.newServerBuilderForPort(0, InsecureServerCredentials.create())
+                .addService(new InMemoryDataNode())
+                .build()
+                .start();
+        address = "localhost:" + server.getPort();
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        channelPool = new ChannelPool(scheduler);
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        channelPool.close();
+        scheduler.shutdownNow();
+        server.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+    @Benchmark
+    public ByteString uploadAndDownload() {
+        String fileId = "file" + counter.incrementAndGet();
+        upload(fileId);
+        return download(fileId);
+    }
+
+    private void upload(String fileId) {
+        CompletableFuture<UploadFileResponse> result = new CompletableFuture<>();
+        call(channel -> {
+            StreamObserver<UploadFileRequest> requestObserver = DataNodeGrpc.newStub(channel)
+                    .uploadFile(new StreamObserver<>() {
+                        @Override
+                        public void onNext(UploadFileResponse response) {
+                            result.complete(response);
+                        }
+
+                        @Override
+                        public void onError(Throwable t) {
+                            result.completeExceptionally(t);
+                        }
+
+                        @Override
+                        public void onCompleted() {
+                        }
+                    });
+            requestObserver.onNext(UploadFileRequest.newBuilder().setUploadId(fileId).setContent(CONTENT).build());
+            requestObserver.onCompleted();
+            return result.join();
+        });
+    }
+
+    private ByteString download(String fileId) {
+        return call(channel -> {
+            Iterator<DownloadFileResponse> chunks = DataNodeGrpc.newBlockingStub(channel)
+                    .downloadFile(DownloadFileRequest.newBuilder().setFileId(fileId).build());
+            ByteString content = ByteString.EMPTY;
+            while (chunks.hasNext()) {
+                content = content.concat(chunks.next().getContent());
+            }
+            return content;
+        });
+    }
+
+    private <T> T call(Function<ManagedChannel, T> call) {
+        if (pooled) {
+            ChannelPool.Lease lease = channelPool.acquire(address);
+            try {
+                T result = call.apply(lease.channel());
+                lease.release(null);
+                return result;
+            } catch (RuntimeException e) {
+                lease.release(e);
+                throw e;
+            }
+        }
+        ManagedChannel channel = Grpc.newChannelBuilder(address, InsecureChannelCredentials.create()).build();
+        try {
+            return call.apply(channel);
+        } finally {
+            channel.shutdown();
+        }
+    }
+
+    /**
+     * DataNode, который хранит файлы в памяти.
+     */
+    private class InMemoryDataNode extends DataNodeGrpc.DataNodeImplBase {
+        @Override
+        public StreamObserver<UploadFileRequest> uploadFile(StreamObserver<UploadFileResponse> responseObserver) {
+            return new StreamObserver<>() {
+                private String uploadId;
+                private ByteString content = ByteString.EMPTY;
+
+                @Override
+                public void onNext(UploadFileRequest chunk) {
+                    uploadId = chunk.getUploadId();
+                    content = content.concat(chunk.getContent());
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                }
+
+                @Override
+                public void onCompleted() {
+                    files.put(uploadId, content);
+                    responseObserver.onNext(UploadFileResponse.newBuilder().setSuccess(true).setReplicas(1).build());
+                    responseObserver.onCompleted();
+                }
+            };
+        }
+
+        @Override
+        public void downloadFile(DownloadFileRequest request, StreamObserver<DownloadFileResponse> responseObserver) {
+            responseObserver.onNext(DownloadFileResponse.newBuilder().setContent(files.remove(request.getFileId()))
+                    .build());
+            responseObserver.onCompleted();
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(ChannelPoolBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
@@ -0,0 +1,108 @@
+package ru.kostacie;
+
+import io.grpc.ConnectivityState;
+import io.grpc.ManagedChannel;
+import io.grpc.Status;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Тесты для ChannelPool.
+ */
+class ChannelPoolTest {
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final List<ManagedChannel> created = new ArrayList<>();
+
+    @AfterEach
+    void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    private ChannelPool channelPool(int maxStreamsPerChannel, long idleTimeoutNanos) {
+        return new ChannelPool(address -> {
+            ManagedChannel channel = mock(ManagedChannel.class);
+            when(channel.getState(false)).thenReturn(ConnectivityState.READY);
+            created.add(channel);
+            return channel;
+        }, maxStreamsPerChannel, idleTimeoutNanos, scheduler);
+    }
+
+    /**
+     * Тест повторного использования: канал переиспользуется, пока на нём меньше maxStreamsPerChannel передач.
+     */
+    @Test
+    void acquire_reuseChannelUpToStreamLimit() {
+        ChannelPool channelPool = channelPool(2, TimeUnit.MINUTES.toNanos(1));
+
+        ChannelPool.Lease first = channelPool.acquire("localhost:5001");
+        ChannelPool.Lease second = channelPool.acquire("localhost:5001");
+        ChannelPool.Lease third = channelPool.acquire("localhost:5001");
+        ChannelPool.Lease otherNode = channelPool.acquire("localhost:5002");
+
+        assertSame(first.channel(), second.channel());
+        assertNotSame(first.channel(), third.channel());
+        assertNotSame(first.channel(), otherNode.channel());
+        assertEquals(3, channelPool.size());
+
+        // Следующая передача идёт по наименее занятому каналу; повторный release не освобождает лишнего места
+        third.release(null);
+        third.release(null);
+        assertSame(third.channel(), channelPool.acquire("localhost:5001").channel());
+        assertSame(third.channel(), channelPool.acquire("localhost:5001").channel());
+        first.release(null);
+        assertSame(first.channel(), channelPool.acquire("localhost:5001").channel());
+        assertNotSame(first.channel(), channelPool.acquire("localhost:5001").channel());
+        assertEquals(4, created.size());
+    }
+
+    /**
+     * Тест удаления канала: после UNAVAILABLE и обрыва соединения передачи получают новый канал.
+     */
+    @Test
+    void acquire_replaceUnhealthyChannel() {
+        ChannelPool channelPool = channelPool(10, TimeUnit.MINUTES.toNanos(1));
+
+        ChannelPool.Lease failed = channelPool.acquire("localhost:5001");
+        failed.release(Status.UNAVAILABLE.asRuntimeException());
+        verify(failed.channel()).shutdown();
+
+        ChannelPool.Lease next = channelPool.acquire("localhost:5001");
+        assertNotSame(failed.channel(), next.channel());
+        next.release(Status.NOT_FOUND.asRuntimeException());
+        assertSame(next.channel(), channelPool.acquire("localhost:5001").channel());
+
+        when(next.channel().getState(false)).thenReturn(ConnectivityState.TRANSIENT_FAILURE);
+        assertNotSame(next.channel(), channelPool.acquire("localhost:5001").channel());
+        verify(next.channel()).shutdown();
+        assertEquals(1, channelPool.size());
+    }
+
+    /**
+     * Тест закрытия каналов, которые не использовались дольше idleTimeout.
+     */
+    @Test
+    void evictIdle_closeOnlyIdleChannels() throws InterruptedException {
+        ChannelPool channelPool = channelPool(1, TimeUnit.MILLISECONDS.toNanos(1));
+
+        ChannelPool.Lease busy = channelPool.acquire("localhost:5001");
+        ChannelPool.Lease idle = channelPool.acquire("localhost:5001");
+        idle.release(null);
+        Thread.sleep(5);
+        channelPool.evictIdle();
+
+        assertEquals(1, channelPool.size());
+        verify(idle.channel()).shutdown();
+        verify(busy.channel(), never()).shutdown();
+        channelPool.close();
+        verify(busy.channel()).shutdown();
+    }
+}
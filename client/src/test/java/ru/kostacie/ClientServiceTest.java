@@ -0,0 +1,278 @@
+package ru.kostacie;
+
+import com.google.protobuf.ByteString;
+import coordinator.CoordinatorGrpc;
+import coordinator.CoordinatorProto.*;
+import datanode.DataNodeGrpc;
+import datanode.DataNodeProto.DownloadFileRequest;
+import datanode.DataNodeProto.DownloadFileResponse;
+import datanode.DataNodeProto.UploadFileRequest;
+import datanode.DataNodeProto.UploadFileResponse;
+import io.grpc.Grpc;
+import io.grpc.InsecureServerCredentials;
+import io.grpc.Server;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.StreamObserver;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Тесты для массовой передачи файлов ClientService.
+ * Координатор и DataNode заменены простыми сервисами на локальных портах.
+ */
+class ClientServiceTest {
+    // Сколько DataNode держит каждую загрузку перед ответом
+    private static final long UPLOAD_DELAY_MILLIS = 50;
+
+    // Файлы в хранилище: путь - содержимое; ID файла совпадает с путём
+    private final Map<String, ByteString> stored = new ConcurrentSkipListMap<>();
+    private final Map<String, Boolean> uploaded = new ConcurrentHashMap<>();
+    private final AtomicInteger activeUploads = new AtomicInteger();
+    private final AtomicInteger maxActiveUploads = new AtomicInteger();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final List<Server> servers = new ArrayList<>();
+    // Координатор отвечает на запросы карты разделов и кольца, когда future завершено
+    private volatile CompletableFuture<Void> metadataReleased = CompletableFuture.completedFuture(null);
+    private ClientService client;
+    private String dataNodeAddress;
+    @TempDir
+    private Path tempDir;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        dataNodeAddress = "localhost:" + start(new DataNodeGrpc.DataNodeImplBase() {
+            @Override
+            public void downloadFile(DownloadFileRequest request,
+                                     StreamObserver<DownloadFileResponse> responseObserver) {
+                ByteString content = stored.get(request.getFileId());
+                if (content == null) {
+                    responseObserver.onError(Status.NOT_FOUND.asRuntimeException());
+                    return;
+                }
+                long end = request.getLength() == 0 ? content.size() : request.getOffset() + request.getLength();
+                responseObserver.onNext(DownloadFileResponse.newBuilder()
+                        .setContent(content.substring((int) request.getOffset(), (int) end))
+                        .build());
+                responseObserver.onCompleted();
+            }
+
+            @Override
+            public StreamObserver<UploadFileRequest> uploadFile(StreamObserver<UploadFileResponse> responseObserver) {
+                maxActiveUploads.accumulateAndGet(activeUploads.incrementAndGet(), Math::max);
+                return new StreamObserver<>() {
+                    @Override
+                    public void onNext(UploadFileRequest chunk) {
+                        uploaded.put(chunk.getUploadId(), true);
+                    }
+
+                    @Override
+                    public void onError(Throwable t) {
+                        activeUploads.decrementAndGet();
+                    }
+
+                    @Override
+                    public void onCompleted() {
+                        scheduler.schedule(() -> {
+                            activeUploads.decrementAndGet();
+                            responseObserver.onNext(UploadFileResponse.newBuilder()
+                                    .setSuccess(true)
+                                    .setReplicas(1)
+                                    .build());
+                            responseObserver.onCompleted();
+                        }, UPLOAD_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+                    }
+                };
+            }
+        });
+        int coordinatorPort = start(new CoordinatorGrpc.CoordinatorImplBase() {
+            @Override
+            public void getPartitionMap(GetPartitionMapRequest request,
+                                        StreamObserver<GetPartitionMapResponse> responseObserver) {
+                metadataReleased.thenRun(() -> {
+                    responseObserver.onNext(GetPartitionMapResponse.getDefaultInstance());
+                    responseObserver.onCompleted();
+                });
+            }
+
+            @Override
+            public void getRing(GetRingRequest request, StreamObserver<GetRingResponse> responseObserver) {
+                metadataReleased.thenRun(() -> {
+                    responseObserver.onNext(GetRingResponse.getDefaultInstance());
+                    responseObserver.onCompleted();
+                });
+            }
+
+            @Override
+            public void writeFiles(WriteFilesRequest request, StreamObserver<WriteFilesResponse> responseObserver) {
+                WriteFilesResponse.Builder response = WriteFilesResponse.newBuilder();
+                for (WriteFileRequest file : request.getFilesList()) {
+                    response.addResultsBuilder().setResponse(WriteFileResponse.newBuilder()
+                            .setUploadId("upload-" + file.getFilePath())
+                            .setDataNodeAddress(dataNodeAddress)
+                            .addDataNodeAddresses(dataNodeAddress)
+                            .setMinReplicas(1));
+                }
+                responseObserver.onNext(response.build());
+                responseObserver.onCompleted();
+            }
+
+            @Override
+            public void readFiles(ReadFilesRequest request, StreamObserver<ReadFilesResponse> responseObserver) {
+                ReadFilesResponse.Builder response = ReadFilesResponse.newBuilder();
+                for (ReadFileRequest file : request.getFilesList()) {
+                    ByteString content = stored.get(file.getFilePath());
+                    if (content == null) {
+                        response.addResultsBuilder().setStatus(EntryStatus.newBuilder()
+                                .setCode(Status.Code.NOT_FOUND.value())
+                                .setMessage("File not found: " + file.getFilePath()));
+                    } else {
+                        response.addResultsBuilder().setResponse(ReadFileResponse.newBuilder()
+                                .setFileId(file.getFilePath())
+                                .setDataNodeAddress(dataNodeAddress)
+                                .addDataNodeAddresses(dataNodeAddress)
+                                .setFileSize(content.size()));
+                    }
+                }
+                responseObserver.onNext(response.build());
+                responseObserver.onCompleted();
+            }
+
+            @Override
+            public void listFiles(ListFilesRequest request, StreamObserver<ListFilesResponse> responseObserver) {
+                ListFilesResponse.Builder page = ListFilesResponse.newBuilder();
+                for (String path : stored.keySet()) {
+                    if (path.startsWith(request.getPrefix())) {
+                        page.addEntriesBuilder().setPath(path);
+                    }
+                }
+                responseObserver.onNext(page.build());
+                responseObserver.onCompleted();
+            }
+        });
+        client = new ClientService("localhost", coordinatorPort);
+    }
+
+    @AfterEach
+    void tearDown() throws InterruptedException {
+        client.close();
+        scheduler.shutdownNow();
+        for (Server server : servers) {
+            server.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        }
+    }
+
+    private int start(io.grpc.BindableService service) throws IOException {
+        Server server = Grpc.newServerBuilderForPort(0, InsecureServerCredentials.create())
+                .addService(service)
+                .build()
+                .start();
+        servers.add(server);
+        return server.getPort();
+    }
+
+    private String store(Path path) {
+        stored.put(path.toString(), ByteString.copyFromUtf8("content of " + path.getFileName()));
+        return path.toString();
+    }
+
+    /**
+     * Тест скачивания каталога: файлы вложенных каталогов сохраняются под своими путями, недостающие
+     * локальные каталоги создаются, а файлы вне каталога не скачиваются.
+     */
+    @Test
+    void readTree_createNestedLocalDirectories() throws IOException {
+        Path tree = tempDir.resolve("tree");
+        store(tree.resolve("a/b/first.txt"));
+        store(tree.resolve("c/second.txt"));
+        store(tempDir.resolve("tree-other/third.txt"));
+
+        client.readTree(tree.toString(), 10);
+
+        assertEquals("content of first.txt", Files.readString(tree.resolve("a/b/first.txt")));
+        assertEquals("content of second.txt", Files.readString(tree.resolve("c/second.txt")));
+        assertFalse(Files.exists(tempDir.resolve("tree-other")));
+    }
+
+    /**
+     * Тест ошибки одного файла: остальные файлы скачиваются, а ошибка учитывается в итоге.
+     */
+    @Test
+    void readFiles_countFailedFileWithoutAbortingOthers() throws IOException {
+        String first = store(tempDir.resolve("first.txt"));
+        String missing = tempDir.resolve("missing.txt").toString();
+        String second = store(tempDir.resolve("second.txt"));
+
+        IOException e = assertThrows(IOException.class, () -> client.readFiles(List.of(first, missing, second), 2));
+
+        assertEquals("Failed to read 1 of 3 files", e.getMessage());
+        assertEquals("content of first.txt", Files.readString(Path.of(first)));
+        assertEquals("content of second.txt", Files.readString(Path.of(second)));
+        assertFalse(Files.exists(Path.of(missing)));
+    }
+
+    /**
+     * Тест ограничения одновременных передач: DataNode никогда не получает больше загрузок, чем разрешено.
+     */
+    @Test
+    void writeFiles_respectConcurrencyLimit() throws IOException {
+        List<String> paths = new ArrayList<>();
+        for (int i = 0; i < 12; i++) {
+            paths.add(Files.writeString(tempDir.resolve("file" + i + ".txt"), "data " + i).toString());
+        }
+
+        client.writeFiles(paths, StoragePolicy.REPLICATED, 3);
+
+        assertEquals(12, uploaded.size());
+        assertTrue(maxActiveUploads.get() <= 3, "Concurrent uploads: " + maxActiveUploads.get());
+        assertTrue(maxActiveUploads.get() > 1, "Uploads did not overlap");
+    }
+
+    /**
+     * Тест синхронных вызовов: ошибка передачи выбрасывается как есть, без обёртки CompletionException.
+     */
+    @Test
+    void writeFileAndReadFile_throwUnwrappedCause() {
+        StatusRuntimeException notFound = assertThrows(StatusRuntimeException.class,
+                () -> client.readFile(tempDir.resolve("missing.txt").toString()));
+        assertEquals(Status.Code.NOT_FOUND, notFound.getStatus().getCode());
+
+        assertThrows(NoSuchFileException.class, () -> client.writeFile(tempDir.resolve("missing.txt").toString()));
+    }
+
+    /**
+     * Тест асинхронного чтения: вызов не ждёт ответа координатора о карте разделов и кольце,
+     * а скачивание продолжается, когда координатор ответил.
+     */
+    @Test
+    void readFileAsync_notWaitForCoordinatorMetadata() throws Exception {
+        String path = store(tempDir.resolve("file.txt"));
+        metadataReleased = new CompletableFuture<>();
+
+        CompletableFuture<Void> download = client.readFileAsync(path);
+        assertFalse(download.isDone());
+
+        metadataReleased.complete(null);
+        download.get(5, TimeUnit.SECONDS);
+        assertEquals("content of file.txt", Files.readString(Path.of(path)));
+    }
+}
@@ -0,0 +1,40 @@
+package ru.kostacie;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Тесты для HedgeDelay.
+ */
+class HedgeDelayTest {
+
+    /**
+     * Тест начальной задержки, пока замеров мало.
+     */
+    @Test
+    void delayNanos_useInitialDelayWithoutSamples() {
+        HedgeDelay delay = new HedgeDelay(95, 1000);
+        delay.record(5);
+
+        assertEquals(1000, delay.delayNanos());
+    }
+
+    /**
+     * Тест задержки по перцентилю последних замеров.
+     */
+    @Test
+    void delayNanos_returnPercentileOfRecentSamples() {
+        HedgeDelay delay = new HedgeDelay(95, 1000);
+        for (int i = 1; i <= 100; i++) {
+            delay.record(i);
+        }
+        assertEquals(95, delay.delayNanos());
+
+        // Старые замеры вытесняются новыми
+        for (int i = 0; i < 256; i++) {
+            delay.record(10);
+        }
+        assertEquals(10, delay.delayNanos());
+    }
+}
@@ -0,0 +1,181 @@
+package ru.kostacie;
+
+import com.google.protobuf.ByteString;
+import datanode.DataNodeGrpc;
+import datanode.DataNodeProto.DownloadFileRequest;
+import datanode.DataNodeProto.DownloadFileResponse;
+import io.grpc.Grpc;
+import io.grpc.InsecureServerCredentials;
+import io.grpc.Server;
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Тесты для HedgedDownload.
+ */
+class HedgedDownloadTest {
+    private static final ByteString CONTENT = ByteString.copyFromUtf8("file content");
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final ChannelPool channelPool = new ChannelPool(scheduler);
+    private final List<Server> servers = new ArrayList<>();
+    // Адреса DataNode, у которых клиент отменил запрос
+    private final List<String> cancelled = Collections.synchronizedList(new ArrayList<>());
+    private final CompletableFuture<Void> cancellation = new CompletableFuture<>();
+
+    /**
+     * Поведение DataNode на запрос скачивания.
+     */
+    private enum Behavior {
+        // Сразу отправляет файл
+        RESPOND,
+        // Отправляет файл через 200 мс
+        RESPOND_LATE,
+        // Не отвечает, пока запрос не отменят
+        HANG,
+        // Сразу отвечает ошибкой
+        FAIL
+    }
+
+    @AfterEach
+    void tearDown() throws InterruptedException {
+        channelPool.close();
+        scheduler.shutdownNow();
+        for (Server server : servers) {
+            server.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        }
+    }
+
+    private String dataNode(Behavior behavior, AtomicInteger requests) throws IOException {
+        Server[] server = new Server[1];
+        server[0] = Grpc.newServerBuilderForPort(0, InsecureServerCredentials.create())
+                .addService(new DataNodeGrpc.DataNodeImplBase() {
+                    @Override
+                    public void downloadFile(DownloadFileRequest request,
+                                             StreamObserver<DownloadFileResponse> responseObserver) {
+                        requests.incrementAndGet();
+                        ((ServerCallStreamObserver<DownloadFileResponse>) responseObserver).setOnCancelHandler(() -> {
+                            cancelled.add("localhost:" + server[0].getPort());
+                            cancellation.complete(null);
+                        });
+                        switch (behavior) {
+                            case RESPOND -> respond(responseObserver);
+                            case RESPOND_LATE -> scheduler.schedule(() -> respond(responseObserver), 200,
+                                    TimeUnit.MILLISECONDS);
+                            case HANG -> {
+                            }
+                            case FAIL -> responseObserver.onError(Status.UNAVAILABLE.asRuntimeException());
+                        }
+                    }
+                })
+                .build()
+                .start();
+        servers.add(server[0]);
+        return "localhost:" + server[0].getPort();
+    }
+
+    private static void respond(StreamObserver<DownloadFileResponse> responseObserver) {
+        responseObserver.onNext(DownloadFileResponse.newBuilder().setContent(CONTENT).build());
+        responseObserver.onCompleted();
+    }
+
+    private CompletableFuture<ByteString> download(List<String> addresses, HedgeDelay hedgeDelay) {
+        CompletableFuture<ByteString> result = new CompletableFuture<>();
+        new HedgedDownload(addresses, DownloadFileRequest.newBuilder().setFileId("file-1").build(), hedgeDelay,
+                channelPool, scheduler, new StreamObserver<>() {
+            private ByteString content = ByteString.EMPTY;
+
+            @Override
+            public void onNext(DownloadFileResponse chunk) {
+                content = content.concat(chunk.getContent());
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                result.completeExceptionally(t);
+            }
+
+            @Override
+            public void onCompleted() {
+                result.complete(content);
+            }
+        }).start();
+        return result;
+    }
+
+    /**
+     * Тест повторного запроса: молчащий DataNode отменяется, а время его ожидания учитывается в задержке.
+     */
+    @Test
+    void start_hedgeAfterDelayAndRecordSlowPrimary() throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        String primary = dataNode(Behavior.HANG, requests);
+        String secondary = dataNode(Behavior.RESPOND, requests);
+        HedgeDelay hedgeDelay = spy(new HedgeDelay(95, TimeUnit.MILLISECONDS.toNanos(50)));
+
+        assertEquals(CONTENT, download(List.of(primary, secondary), hedgeDelay).get(5, TimeUnit.SECONDS));
+
+        cancellation.get(5, TimeUnit.SECONDS);
+        assertEquals(List.of(primary), cancelled);
+        assertEquals(2, requests.get());
+        ArgumentCaptor<Long> samples = ArgumentCaptor.forClass(Long.class);
+        verify(hedgeDelay, times(2)).record(samples.capture());
+        // Основной запрос ждал не меньше задержки, повторный - меньше основного
+        long primaryWait = samples.getAllValues().get(1);
+        assertTrue(primaryWait >= TimeUnit.MILLISECONDS.toNanos(50));
+        assertTrue(samples.getAllValues().get(0) < primaryWait);
+    }
+
+    /**
+     * Тест ответа основного DataNode после повторного запроса: отменяется повторный запрос,
+     * а его время не учитывается, потому что он начат позже.
+     */
+    @Test
+    void start_cancelLaterHedgeWhenPrimaryWins() throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        String primary = dataNode(Behavior.RESPOND_LATE, requests);
+        String secondary = dataNode(Behavior.HANG, requests);
+        HedgeDelay hedgeDelay = spy(new HedgeDelay(95, TimeUnit.MILLISECONDS.toNanos(20)));
+
+        assertEquals(CONTENT, download(List.of(primary, secondary), hedgeDelay).get(5, TimeUnit.SECONDS));
+
+        cancellation.get(5, TimeUnit.SECONDS);
+        assertEquals(List.of(secondary), cancelled);
+        verify(hedgeDelay, times(1)).record(anyLong());
+    }
+
+    /**
+     * Тест ошибки до первого чанка: запрос сразу уходит следующему DataNode, не дожидаясь задержки.
+     */
+    @Test
+    void start_failOverOnErrorBeforeFirstChunk() throws Exception {
+        AtomicInteger failedRequests = new AtomicInteger();
+        AtomicInteger requests = new AtomicInteger();
+        String failing = dataNode(Behavior.FAIL, failedRequests);
+        String healthy = dataNode(Behavior.RESPOND, requests);
+        HedgeDelay hedgeDelay = new HedgeDelay(95, TimeUnit.SECONDS.toNanos(30));
+
+        assertEquals(CONTENT, download(List.of(failing, healthy), hedgeDelay).get(5, TimeUnit.SECONDS));
+
+        assertEquals(1, failedRequests.get());
+        assertEquals(1, requests.get());
+        assertTrue(cancelled.isEmpty());
+    }
+}
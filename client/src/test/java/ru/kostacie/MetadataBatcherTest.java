@@ -0,0 +1,185 @@
+package ru.kostacie;
+
+import coordinator.CoordinatorGrpc;
+import coordinator.CoordinatorProto.*;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Тесты для MetadataBatcher.
+ */
+class MetadataBatcherTest {
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    // Размеры пакетов, полученных координатором
+    private final List<Integer> batches = new CopyOnWriteArrayList<>();
+    // Сколько результатов координатор отбрасывает из ответа
+    private volatile int droppedResults;
+    private Server server;
+    private ManagedChannel channel;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        String name = InProcessServerBuilder.generateName();
+        server = InProcessServerBuilder.forName(name)
+                .directExecutor()
+                .addService(new CoordinatorGrpc.CoordinatorImplBase() {
+                    @Override
+                    public void writeFiles(WriteFilesRequest request,
+                                           StreamObserver<WriteFilesResponse> responseObserver) {
+                        batches.add(request.getFilesCount());
+                        WriteFilesResponse.Builder response = WriteFilesResponse.newBuilder();
+                        for (WriteFileRequest file : request.getFilesList().subList(droppedResults,
+                                request.getFilesCount())) {
+                            response.addResultsBuilder().setResponse(WriteFileResponse.newBuilder()
+                                    .setUploadId("upload-" + file.getFilePath()));
+                        }
+                        responseObserver.onNext(response.build());
+                        responseObserver.onCompleted();
+                    }
+
+                    @Override
+                    public void readFiles(ReadFilesRequest request,
+                                          StreamObserver<ReadFilesResponse> responseObserver) {
+                        batches.add(request.getFilesCount());
+                        ReadFilesResponse.Builder response = ReadFilesResponse.newBuilder();
+                        for (ReadFileRequest file : request.getFilesList()) {
+                            if (file.getFilePath().startsWith("remote/")) {
+                                response.addResultsBuilder().setStatus(EntryStatus.newBuilder()
+                                        .setCode(Status.Code.FAILED_PRECONDITION.value())
+                                        .setMessage("Path is owned by another coordinator")
+                                        .setRedirectAddress("localhost:5052"));
+                            } else if (file.getFilePath().startsWith("missing/")) {
+                                response.addResultsBuilder().setStatus(EntryStatus.newBuilder()
+                                        .setCode(Status.Code.NOT_FOUND.value())
+                                        .setMessage("File not found"));
+                            } else {
+                                response.addResultsBuilder().setResponse(ReadFileResponse.newBuilder()
+                                        .setFileId("id-" + file.getFilePath()));
+                            }
+                        }
+                        responseObserver.onNext(response.build());
+                        responseObserver.onCompleted();
+                    }
+                })
+                .build()
+                .start();
+        channel = InProcessChannelBuilder.forName(name).directExecutor().build();
+    }
+
+    @AfterEach
+    void tearDown() throws InterruptedException {
+        channel.shutdownNow();
+        server.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        scheduler.shutdownNow();
+    }
+
+    private MetadataBatcher batcher(int maxBatchSize, long lingerNanos) {
+        return new MetadataBatcher(CoordinatorGrpc.newStub(channel), maxBatchSize, lingerNanos, scheduler);
+    }
+
+    private static WriteFileRequest write(String filePath) {
+        return WriteFileRequest.newBuilder().setFilePath(filePath).build();
+    }
+
+    private static ReadFileRequest read(String filePath) {
+        return ReadFileRequest.newBuilder().setFilePath(filePath).build();
+    }
+
+    /**
+     * Тест ожидания: запросы, пришедшие за lingerNanos, уходят одним пакетом после его истечения.
+     */
+    @Test
+    void writeFile_sendRequestsWithinLingerInOneBatch() throws Exception {
+        MetadataBatcher batcher = batcher(100, TimeUnit.MILLISECONDS.toNanos(100));
+
+        List<CompletableFuture<WriteFileResponse>> futures = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            futures.add(batcher.writeFile(write("file" + i)));
+        }
+        assertTrue(batches.isEmpty());
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals("upload-file" + i, futures.get(i).get(5, TimeUnit.SECONDS).getUploadId());
+        }
+        assertEquals(List.of(3), batches);
+    }
+
+    /**
+     * Тест размера пакета: полный пакет уходит сразу, остаток - по flush.
+     */
+    @Test
+    void writeFile_sendFullBatchWithoutWaiting() throws Exception {
+        MetadataBatcher batcher = batcher(2, TimeUnit.HOURS.toNanos(1));
+
+        List<CompletableFuture<WriteFileResponse>> futures = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            futures.add(batcher.writeFile(write("file" + i)));
+        }
+        assertEquals(List.of(2, 2), batches);
+        assertTrue(futures.get(3).isDone());
+        assertFalse(futures.get(4).isDone());
+
+        batcher.flush();
+        assertEquals("upload-file4", futures.get(4).get(5, TimeUnit.SECONDS).getUploadId());
+        assertEquals(List.of(2, 2, 1), batches);
+    }
+
+    /**
+     * Тест результатов пакета: ошибка файла завершает только его future, а перенаправление
+     * передаёт адрес координатора-владельца.
+     */
+    @Test
+    void readFile_mapEntryStatusesToErrorsAndRedirects() throws Exception {
+        MetadataBatcher batcher = batcher(3, TimeUnit.HOURS.toNanos(1));
+
+        CompletableFuture<ReadFileResponse> local = batcher.readFile(read("local/file"));
+        CompletableFuture<ReadFileResponse> remote = batcher.readFile(read("remote/file"));
+        CompletableFuture<ReadFileResponse> missing = batcher.readFile(read("missing/file"));
+
+        assertEquals("id-local/file", local.get(5, TimeUnit.SECONDS).getFileId());
+        ExecutionException redirect = assertThrows(ExecutionException.class, () -> remote.get(5, TimeUnit.SECONDS));
+        assertEquals(Status.Code.FAILED_PRECONDITION,
+                ((StatusRuntimeException) redirect.getCause()).getStatus().getCode());
+        assertEquals("localhost:5052", PartitionMap.redirectAddress(redirect.getCause()));
+        ExecutionException notFound = assertThrows(ExecutionException.class, () -> missing.get(5, TimeUnit.SECONDS));
+        assertEquals(Status.Code.NOT_FOUND, ((StatusRuntimeException) notFound.getCause()).getStatus().getCode());
+        assertNull(PartitionMap.redirectAddress(notFound.getCause()));
+    }
+
+    /**
+     * Тест ответа с недостающими результатами: future всех файлов пакета завершаются ошибкой, а не зависают.
+     */
+    @Test
+    void writeFile_failWholeBatchOnResultCountMismatch() {
+        droppedResults = 1;
+        MetadataBatcher batcher = batcher(2, TimeUnit.HOURS.toNanos(1));
+
+        CompletableFuture<WriteFileResponse> first = batcher.writeFile(write("file0"));
+        CompletableFuture<WriteFileResponse> second = batcher.writeFile(write("file1"));
+
+        for (CompletableFuture<WriteFileResponse> future : List.of(first, second)) {
+            ExecutionException e = assertThrows(ExecutionException.class, () -> future.get(5, TimeUnit.SECONDS));
+            assertEquals(Status.Code.INTERNAL, ((StatusRuntimeException) e.getCause()).getStatus().getCode());
+        }
+    }
+}
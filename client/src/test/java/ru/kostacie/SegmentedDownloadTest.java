@@ -0,0 +1,183 @@
+package ru.kostacie;
+
+import com.google.protobuf.ByteString;
+import datanode.DataNodeGrpc;
+import datanode.DataNodeProto.DownloadFileRequest;
+import datanode.DataNodeProto.DownloadFileResponse;
+import io.grpc.Grpc;
+import io.grpc.InsecureServerCredentials;
+import io.grpc.Server;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32C;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Тесты для SegmentedDownload.
+ */
+class SegmentedDownloadTest {
+    private static final int SEGMENT_SIZE = 10_000;
+
+    private final byte[] data = new byte[95_000];
+    private final List<DownloadFileRequest> requests = new CopyOnWriteArrayList<>();
+    // Ответ на первый запрос с этого смещения обрывается после одного чанка
+    private final AtomicBoolean failOnce = new AtomicBoolean();
+    // Первый чанк первого ответа с этого смещения приходит с неверной контрольной суммой
+    private final AtomicBoolean corruptOnce = new AtomicBoolean();
+    // Отменил ли клиент запрос, в ответе на который пришёл испорченный чанк
+    private final CompletableFuture<Boolean> corruptRequestCancelled = new CompletableFuture<>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private ChannelPool channelPool;
+    private Server server;
+    private String address;
+    @TempDir
+    private Path tempDir;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        new Random(1).nextBytes(data);
+        server = Grpc.newServerBuilderForPort(0, InsecureServerCredentials.create())
+                .addService(new DataNodeGrpc.DataNodeImplBase() {
+                    @Override
+                    public void downloadFile(DownloadFileRequest request,
+                                             StreamObserver<DownloadFileResponse> responseObserver) {
+                        requests.add(request);
+                        if (!request.getFileId().equals("file-1")) {
+                            responseObserver.onError(Status.NOT_FOUND.asRuntimeException());
+                            return;
+                        }
+                        int end = request.getLength() == 0 ? data.length
+                                : (int) (request.getOffset() + request.getLength());
+                        if (request.getOffset() == 5 * SEGMENT_SIZE && corruptOnce.compareAndSet(true, false)) {
+                            sendCorruptChunk(request, (ServerCallStreamObserver<DownloadFileResponse>) responseObserver);
+                            return;
+                        }
+                        for (int offset = (int) request.getOffset(); offset < end; offset += 4096) {
+                            responseObserver.onNext(DownloadFileResponse.newBuilder()
+                                    .setContent(ByteString.copyFrom(data, offset, Math.min(4096, end - offset)))
+                                    .build());
+                            if (request.getOffset() == 3 * SEGMENT_SIZE && failOnce.compareAndSet(true, false)) {
+                                responseObserver.onError(Status.UNAVAILABLE.asRuntimeException());
+                                return;
+                            }
+                        }
+                        responseObserver.onCompleted();
+                    }
+                })
+                .build()
+                .start();
+        address = "localhost:" + server.getPort();
+        channelPool = new ChannelPool(scheduler);
+    }
+
+    /**
+     * Отправляет чанк с неверной контрольной суммой и ждёт, пока клиент отменит запрос.
+     */
+    private void sendCorruptChunk(DownloadFileRequest request, ServerCallStreamObserver<DownloadFileResponse> responseObserver) {
+        ByteString content = ByteString.copyFrom(data, (int) request.getOffset(), 4096);
+        CRC32C crc = new CRC32C();
+        crc.update(content.asReadOnlyByteBuffer());
+        responseObserver.onNext(DownloadFileResponse.newBuilder()
+                .setContent(content)
+                .setCrc32C((int) crc.getValue() + 1)
+                .build());
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!responseObserver.isCancelled() && System.nanoTime() < deadline) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+        }
+        corruptRequestCancelled.complete(responseObserver.isCancelled());
+    }
+
+    @AfterEach
+    void tearDown() throws InterruptedException {
+        channelPool.close();
+        scheduler.shutdownNow();
+        server.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+    private SegmentedDownload download(Path target, String fileId) {
+        List<SegmentedDownload.Segment> segments = new ArrayList<>();
+        for (int offset = 0; offset < data.length; offset += SEGMENT_SIZE) {
+            segments.add(new SegmentedDownload.Segment(List.of(address), DownloadFileRequest.newBuilder()
+                    .setFileId(fileId)
+                    .setOffset(offset)
+                    .setLength(Math.min(SEGMENT_SIZE, data.length - offset))
+                    .build(), offset));
+        }
+        return new SegmentedDownload(target, data.length, segments, 4, 3, new HedgeDelay(95), channelPool,
+                scheduler);
+    }
+
+    /**
+     * Тест скачивания сегментами: оборванный сегмент повторяется с места обрыва, остальные скачиваются один раз.
+     */
+    @Test
+    void start_retryFailedSegmentFromBreakPoint() throws IOException {
+        failOnce.set(true);
+        Path target = tempDir.resolve("file.bin");
+
+        download(target, "file-1").start().join();
+
+        assertArrayEquals(data, Files.readAllBytes(target));
+        assertFalse(Files.exists(tempDir.resolve("file.bin.part")));
+        assertEquals(11, requests.size());
+        DownloadFileRequest retry = requests.stream()
+                .filter(request -> request.getOffset() == 3 * SEGMENT_SIZE + 4096)
+                .findFirst()
+                .orElseThrow();
+        assertEquals(SEGMENT_SIZE - 4096, retry.getLength());
+    }
+
+    /**
+     * Тест испорченного чанка: запрос отменяется, а не передаёт остаток сегмента впустую, и сегмент скачивается заново.
+     */
+    @Test
+    void start_cancelRequestOnCorruptChunkAndRetry() throws Exception {
+        corruptOnce.set(true);
+        Path target = tempDir.resolve("file.bin");
+
+        download(target, "file-1").start().join();
+
+        assertArrayEquals(data, Files.readAllBytes(target));
+        assertTrue(corruptRequestCancelled.get(5, TimeUnit.SECONDS));
+        assertEquals(2, requests.stream().filter(request -> request.getOffset() == 5 * SEGMENT_SIZE).count());
+    }
+
+    /**
+     * Тест ошибки, которую повтор не исправит: сегмент не повторяется, прежний файл остаётся на месте.
+     */
+    @Test
+    void start_failWithoutRetryAndKeepTarget() throws IOException {
+        Path target = Files.writeString(tempDir.resolve("file.bin"), "old content");
+
+        CompletionException e = assertThrows(CompletionException.class,
+                () -> download(target, "missing").start().join());
+
+        assertEquals(Status.Code.NOT_FOUND, ((StatusRuntimeException) e.getCause()).getStatus().getCode());
+        assertTrue(requests.size() <= 4);
+        assertEquals("old content", Files.readString(target));
+        assertFalse(Files.exists(tempDir.resolve("file.bin.part")));
+    }
+}
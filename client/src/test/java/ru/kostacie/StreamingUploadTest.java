@@ -0,0 +1,155 @@
+package ru.kostacie;
+
+import com.google.protobuf.ByteString;
+import coordinator.CoordinatorProto.WriteFileResponse;
+import datanode.DataNodeGrpc;
+import datanode.DataNodeProto.Codec;
+import datanode.DataNodeProto.UploadFileRequest;
+import datanode.DataNodeProto.UploadFileResponse;
+import io.grpc.Grpc;
+import io.grpc.InsecureServerCredentials;
+import io.grpc.Server;
+import io.grpc.stub.StreamObserver;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Тесты для StreamingUpload.
+ */
+class StreamingUploadTest {
+    private final List<UploadFileRequest> received = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private ChannelPool channelPool;
+    private Server server;
+    private String address;
+    @TempDir
+    private Path tempDir;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = Grpc.newServerBuilderForPort(0, InsecureServerCredentials.create())
+                .addService(new DataNodeGrpc.DataNodeImplBase() {
+                    @Override
+                    public StreamObserver<UploadFileRequest> uploadFile(
+                            StreamObserver<UploadFileResponse> responseObserver) {
+                        return new StreamObserver<>() {
+                            @Override
+                            public void onNext(UploadFileRequest chunk) {
+                                received.add(chunk);
+                            }
+
+                            @Override
+                            public void onError(Throwable t) {
+                            }
+
+                            @Override
+                            public void onCompleted() {
+                                responseObserver.onNext(UploadFileResponse.newBuilder()
+                                        .setSuccess(true)
+                                        .setReplicas(1 + received.get(0).getDownstreamAddressesCount())
+                                        .build());
+                                responseObserver.onCompleted();
+                            }
+                        };
+                    }
+                })
+                .build()
+                .start();
+        address = "localhost:" + server.getPort();
+        channelPool = new ChannelPool(scheduler);
+    }
+
+    @AfterEach
+    void tearDown() throws InterruptedException {
+        channelPool.close();
+        scheduler.shutdownNow();
+        server.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+    private StreamingUpload upload(Path file, long offset, long length, int chunkSize) {
+        WriteFileResponse placement = WriteFileResponse.newBuilder()
+                .setUploadId("upload-1")
+                .setDataNodeAddress(address)
+                .addDataNodeAddresses(address)
+                .addDataNodeAddresses("localhost:5002")
+                .setMinReplicas(2)
+                .build();
+        return new StreamingUpload(file, offset, length, placement, null, new ChunkCodec(Codec.NONE), chunkSize,
+                channelPool.acquire(address));
+    }
+
+    /**
+     * Тест загрузки файла чанками: файл передаётся целиком, цепочка указана только в первом чанке.
+     */
+    @Test
+    void start_streamFileInChunks() throws IOException {
+        byte[] data = new byte[100_000];
+        new Random(1).nextBytes(data);
+        Path file = Files.write(tempDir.resolve("file.bin"), data);
+
+        UploadFileResponse response = upload(file, 0, Long.MAX_VALUE, 4096).start().join();
+
+        assertEquals(2, response.getReplicas());
+        assertEquals(25, received.size());
+        assertEquals(List.of("localhost:5002"), received.get(0).getDownstreamAddressesList());
+        assertEquals(0, received.get(1).getDownstreamAddressesCount());
+        ByteString content = ByteString.EMPTY;
+        for (UploadFileRequest chunk : received) {
+            assertEquals("upload-1", chunk.getUploadId());
+            assertTrue(chunk.getContent().size() <= 4096);
+            content = content.concat(chunk.getContent());
+        }
+        assertArrayEquals(data, content.toByteArray());
+    }
+
+    /**
+     * Тест загрузки блока: передаётся только его часть файла.
+     */
+    @Test
+    void start_streamOnlyBlockRange() throws IOException {
+        byte[] data = new byte[100_000];
+        new Random(2).nextBytes(data);
+        Path file = Files.write(tempDir.resolve("file.bin"), data);
+
+        upload(file, 10_000, 20_000, 4096).start().join();
+
+        assertEquals(5, received.size());
+        ByteString content = ByteString.EMPTY;
+        for (UploadFileRequest chunk : received) {
+            content = content.concat(chunk.getContent());
+        }
+        assertArrayEquals(Arrays.copyOfRange(data, 10_000, 30_000), content.toByteArray());
+    }
+
+    /**
+     * Тест пустого файла и отсутствующего файла.
+     */
+    @Test
+    void start_sendEmptyFileAndFailOnMissingFile() throws IOException {
+        Path empty = Files.createFile(tempDir.resolve("empty.bin"));
+
+        upload(empty, 0, Long.MAX_VALUE, 4096).start().join();
+        assertEquals(1, received.size());
+        assertTrue(received.get(0).getContent().isEmpty());
+
+        CompletionException e = assertThrows(CompletionException.class,
+                () -> upload(tempDir.resolve("missing.bin"), 0, Long.MAX_VALUE, 4096).start().join());
+        assertInstanceOf(IOException.class, e.getCause());
+    }
+}
@@ -0,0 +1,126 @@
+package ru.kostacie;
+
+import coordinator.CoordinatorProto.DataNodeLoad;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+
+/**
+ * Размещение файлов по кольцу консистентного хеширования ({@link HashRing}) активных DataNode.
+ * <p>
+ * DataNode файла определяются его путём и составом кольца, поэтому клиент, знающий кольцо, находит файл
+ * без запроса к координатору. DataNode, на которых не хватает места, пропускаются: их место занимают
+ * следующие по кольцу.
+ * <p>
+ * Кольцо пересоздаётся, только когда меняется состав DataNode или их веса; каждое новое кольцо получает
+ * следующую версию.
+ */
+public class ConsistentHashPolicy implements PlacementPolicy {
+    // 128 точек на DataNode держат его долю файлов в пределах примерно 10% от средней
+    public static final int DEFAULT_VIRTUAL_NODES = 128;
+
+    private final int virtualNodes;
+    private final long reservedBytes;
+    private volatile Ring ring = new Ring(List.of(), new int[0], new HashRing(0, Map.of(), 1));
+
+    public ConsistentHashPolicy() {
+        this(DEFAULT_VIRTUAL_NODES, PowerOfTwoChoicesPolicy.DEFAULT_RESERVED_BYTES);
+    }
+
+    /**
+     * @param virtualNodes  число точек кольца на единицу веса DataNode.
+     * @param reservedBytes место, которое должно остаться на DataNode после записи файла.
+     */
+    public ConsistentHashPolicy(int virtualNodes, long reservedBytes) {
+        if (virtualNodes <= 0) {
+            throw new IllegalArgumentException("Invalid number of virtual nodes: " + virtualNodes);
+        }
+        this.virtualNodes = virtualNodes;
+        this.reservedBytes = reservedBytes;
+    }
+
+    /**
+     * Файлы без пути (например, полосы при перекодировании) размещаются по случайному ключу.
+     */
+    @Override
+    public List<DataNodeState> choose(List<DataNodeState> nodes, long fileSize, int count) {
+        return choose(UUID.randomUUID().toString(), nodes, fileSize, count);
+    }
+
+    @Override
+    public List<DataNodeState> choose(String filePath, List<DataNodeState> nodes, long fileSize, int count) {
+        Map<String, DataNodeState> byAddress = new HashMap<>();
+        for (DataNodeState node : nodes) {
+            byAddress.put(node.getAddress(), node);
+        }
+        List<String> addresses = ring(nodes).locate(filePath, count, address -> {
+            DataNodeState node = byAddress.get(address);
+            return node != null && fits(node, fileSize);
+        });
+        List<DataNodeState> chosen = new ArrayList<>(addresses.size());
+        for (String address : addresses) {
+            chosen.add(byAddress.get(address));
+        }
+        return chosen;
+    }
+
+    /**
+     * Возвращает кольцо активных DataNode, пересоздавая его, если состав или веса изменились.
+     *
+     * @param nodes неизменяемый список активных DataNode.
+     */
+    public HashRing ring(List<DataNodeState> nodes) {
+        Ring current = ring;
+        if (current.matches(nodes)) {
+            return current.hashRing;
+        }
+        synchronized (this) {
+            current = ring;
+            if (current.matches(nodes)) {
+                return current.hashRing;
+            }
+            int[] weights = new int[nodes.size()];
+            Map<String, Integer> members = new HashMap<>();
+            for (int i = 0; i < nodes.size(); i++) {
+                weights[i] = nodes.get(i).getRingWeight();
+                members.put(nodes.get(i).getAddress(), weights[i]);
+            }
+            // Список мог пересоздаться без изменения состава, например при повторной регистрации DataNode
+            HashRing hashRing = members.equals(current.hashRing.getWeights())
+                    ? current.hashRing
+                    : new HashRing(current.hashRing.getVersion() + 1, members, virtualNodes);
+            ring = new Ring(nodes, weights, hashRing);
+            return hashRing;
+        }
+    }
+
+    private boolean fits(DataNodeState node, long fileSize) {
+        DataNodeLoad load = node.getLoad();
+        return load == null || load.getFreeBytes() - fileSize >= reservedBytes;
+    }
+
+    /**
+     * Кольцо и список DataNode с весами, по которому оно построено.
+     */
+    private record Ring(List<DataNodeState> nodes, int[] weights, HashRing hashRing) {
+        /**
+         * Построено ли кольцо по тому же списку DataNode с теми же весами.
+         * Список пересоздаётся при каждом изменении состава, поэтому достаточно сравнить ссылки.
+         */
+        boolean matches(List<DataNodeState> nodes) {
+            if (this.nodes != nodes) {
+                return false;
+            }
+            for (int i = 0; i < weights.length; i++) {
+                if (nodes.get(i).getRingWeight() != weights[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -1,11 +1,19 @@
 package ru.kostacie;
 
 
+import coordinator.CoordinatorProto.ErasureLayout;
 import io.grpc.Server;
 import io.grpc.ServerBuilder;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 
 /**
@@ -14,31 +22,176 @@ import java.io.IOException;
 @Slf4j
 public class CoordinatorServer
 {
-    private static final int PORT = 5051;
+    private static final int DEFAULT_PORT = 5051;
+    private static final String METADATA_DIR = "metadata/";
+    private static final long SNAPSHOT_CHECK_INTERVAL_SECONDS = 60;
+    // Как часто проверяются перекодирования, DataNode которых отказал или не ответил
+    private static final long ENCODE_CHECK_INTERVAL_SECONDS = 10;
+
+    private final int port;
+    private final MetadataStore metadataStore;
+    private final PlacementPolicy placementPolicy;
+    private final long heartbeatTimeoutMillis;
+    private final int replicationFactor;
+    private final int writeQuorum;
+    private final ErasureLayout erasureCode;
+    // Разбиение путей между координаторами и номер этого координатора; null - один координатор
+    private final PartitionMap partitionMap;
+    private final int partition;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "coordinator-scheduler");
+        thread.setDaemon(true);
+        return thread;
+    });
     private Server server;
 
+    /**
+     * @param metadataStore          хранилище метаданных на диске.
+     * @param placementPolicy        политика выбора DataNode для новых файлов.
+     * @param heartbeatTimeoutMillis время без heartbeat, после которого DataNode считается отказавшим.
+     * @param replicationFactor      количество копий нового файла.
+     * @param writeQuorum            сколько копий должно быть сохранено для успешной загрузки; 0 - все.
+     * @param erasureCode            параметры кода Рида-Соломона для файлов, хранящихся полосами.
+     */
+    public CoordinatorServer(MetadataStore metadataStore, PlacementPolicy placementPolicy, long heartbeatTimeoutMillis,
+                             int replicationFactor, int writeQuorum, ErasureLayout erasureCode) {
+        this(DEFAULT_PORT, metadataStore, placementPolicy, heartbeatTimeoutMillis, replicationFactor, writeQuorum,
+                erasureCode, null, 0);
+    }
+
+    /**
+     * @param port                   порт сервера.
+     * @param metadataStore          хранилище метаданных на диске.
+     * @param placementPolicy        политика выбора DataNode для новых файлов.
+     * @param heartbeatTimeoutMillis время без heartbeat, после которого DataNode считается отказавшим.
+     * @param replicationFactor      количество копий нового файла.
+     * @param writeQuorum            сколько копий должно быть сохранено для успешной загрузки; 0 - все.
+     * @param erasureCode            параметры кода Рида-Соломона для файлов, хранящихся полосами.
+     * @param partitionMap           разбиение путей между координаторами; null - один координатор.
+     * @param partition              номер этого координатора в partitionMap.
+     */
+    public CoordinatorServer(int port, MetadataStore metadataStore, PlacementPolicy placementPolicy,
+                             long heartbeatTimeoutMillis, int replicationFactor, int writeQuorum,
+                             ErasureLayout erasureCode, PartitionMap partitionMap, int partition) {
+        this.port = port;
+        this.metadataStore = metadataStore;
+        this.placementPolicy = placementPolicy;
+        this.heartbeatTimeoutMillis = heartbeatTimeoutMillis;
+        this.replicationFactor = replicationFactor;
+        this.writeQuorum = writeQuorum;
+        this.erasureCode = erasureCode;
+        this.partitionMap = partitionMap;
+        this.partition = partition;
+    }
+
     public static void main( String[] args ) throws IOException, InterruptedException {
-        CoordinatorServer coordinator = new CoordinatorServer();
+        Map<String, String> options = parseOptions(args);
+        int port = Integer.parseInt(options.getOrDefault("port", String.valueOf(DEFAULT_PORT)));
+
+        // Все координаторы в порядке разделов, например localhost:5051,localhost:5052
+        PartitionMap partitionMap = null;
+        int partition = Integer.parseInt(options.getOrDefault("partition", "0"));
+        String metadataDirName = METADATA_DIR;
+        if (options.containsKey("coordinators")) {
+            partitionMap = PartitionMap.uniform(List.of(options.get("coordinators").split(",")));
+            metadataDirName = METADATA_DIR + "partition-" + partition;
+        }
+        Path metadataDir = Path.of(options.getOrDefault("metadata-dir", metadataDirName));
+        long snapshotThreshold = Long.parseLong(options.getOrDefault("snapshot-records",
+                String.valueOf(MetadataStore.DEFAULT_SNAPSHOT_THRESHOLD)));
+
+        PlacementPolicy placementPolicy = switch (options.getOrDefault("placement", "p2c")) {
+            case "p2c" -> new PowerOfTwoChoicesPolicy();
+            case "random" -> new RandomPlacementPolicy();
+            case "ring" -> new ConsistentHashPolicy(Integer.parseInt(options.getOrDefault("virtual-nodes",
+                    String.valueOf(ConsistentHashPolicy.DEFAULT_VIRTUAL_NODES))),
+                    PowerOfTwoChoicesPolicy.DEFAULT_RESERVED_BYTES);
+            default -> throw new IllegalArgumentException("Unknown placement policy: " + options.get("placement"));
+        };
+
+        long heartbeatTimeoutMillis = Long.parseLong(options.getOrDefault("heartbeat-timeout-ms",
+                String.valueOf(FailureDetector.DEFAULT_TIMEOUT_MILLIS)));
+
+        int replicationFactor = Integer.parseInt(options.getOrDefault("replication-factor",
+                String.valueOf(CoordinatorService.DEFAULT_REPLICATION_FACTOR)));
+        int writeQuorum = Integer.parseInt(options.getOrDefault("write-quorum",
+                String.valueOf(CoordinatorService.DEFAULT_WRITE_QUORUM)));
+
+        ErasureLayout erasureCode = CoordinatorService.DEFAULT_ERASURE_CODE;
+        if (options.containsKey("erasure-code")) {
+            // Формат: data+parity, например 6+3
+            String[] stripes = options.get("erasure-code").split("\\+");
+            erasureCode = erasureCode.toBuilder()
+                    .setDataStripes(Integer.parseInt(stripes[0]))
+                    .setParityStripes(Integer.parseInt(stripes[1]))
+                    .build();
+        }
+
+        CoordinatorServer coordinator = new CoordinatorServer(port, new MetadataStore(metadataDir, snapshotThreshold),
+                placementPolicy, heartbeatTimeoutMillis, replicationFactor, writeQuorum, erasureCode, partitionMap,
+                partition);
         coordinator.startCoordinator();
         coordinator.awaitTermination();
     }
 
     /**
-     * Запускает CoordinatorService.
+     * Разбирает необязательные параметры вида --name=value.
+     */
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (!arg.startsWith("--") || separator < 0) {
+                throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+            options.put(arg.substring(2, separator), arg.substring(separator + 1));
+        }
+        return options;
+    }
+
+    /**
+     * Восстанавливает метаданные и запускает CoordinatorService.
      *
-     * @throws IOException если не удается запустить сервер.
+     * @throws IOException если не удается прочитать метаданные или запустить сервер.
      */
     private void startCoordinator() throws IOException {
-        CoordinatorService coordinatorService = new CoordinatorService();
-        server = ServerBuilder.forPort(PORT)
+        CoordinatorService coordinatorService = new CoordinatorService(metadataStore, placementPolicy,
+                replicationFactor, writeQuorum, erasureCode, partitionMap, partition);
+        coordinatorService.recoverMetadata();
+        server = ServerBuilder.forPort(port)
                 .addService(coordinatorService)
                 .build()
                 .start();
 
-        log.info("Coordinator started on port {}", PORT);
+        if (partitionMap != null) {
+            log.info("Coordinator started on port {}, partition {} of {}", port, partition, partitionMap.size());
+        } else {
+            log.info("Coordinator started on port {}", port);
+        }
+
+        FailureDetector failureDetector = new FailureDetector(coordinatorService.getDataNodes(), heartbeatTimeoutMillis);
+        failureDetector.start();
+
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                coordinatorService.snapshotMetadataIfNeeded();
+            } catch (IOException e) {
+                log.error("Failed to write metadata snapshot: {}", e.getMessage(), e);
+            }
+            log.info("Coordinator metadata metrics: {}", metadataStore.getMetrics());
+        }, SNAPSHOT_CHECK_INTERVAL_SECONDS, SNAPSHOT_CHECK_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        scheduler.scheduleWithFixedDelay(() -> coordinatorService.retryStalledEncodes(System.nanoTime()),
+                ENCODE_CHECK_INTERVAL_SECONDS, ENCODE_CHECK_INTERVAL_SECONDS, TimeUnit.SECONDS);
 
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             server.shutdown();
+            failureDetector.close();
+            scheduler.shutdownNow();
+            try {
+                metadataStore.close();
+            } catch (IOException e) {
+                log.error("Failed to close metadata store: {}", e.getMessage());
+            }
             log.info("Coordinator stopped");
         }));
     }
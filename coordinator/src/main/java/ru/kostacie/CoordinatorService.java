@@ -1,13 +1,20 @@
 package ru.kostacie;
 
 import coordinator.CoordinatorProto.*;
+import coordinator.MetadataProto.FileRecord;
 import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
 import io.grpc.stub.StreamObserver;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Координатор управляет хранением файлов и переправкой запросов.
@@ -15,16 +22,257 @@ import java.util.concurrent.ConcurrentHashMap;
 @Slf4j
 @Getter
 public class CoordinatorService extends coordinator.CoordinatorGrpc.CoordinatorImplBase {
+    public static final int DEFAULT_REPLICATION_FACTOR = 3;
+    // 0 - загрузка успешна, только если сохранены все копии цепочки
+    public static final int DEFAULT_WRITE_QUORUM = 0;
+    // Код Рида-Соломона 6+3 с ячейками по 64 КБ: файл переживает потерю трёх DataNode при избыточности 1.5
+    public static final ErasureLayout DEFAULT_ERASURE_CODE = ErasureLayout.newBuilder()
+            .setDataStripes(6)
+            .setParityStripes(3)
+            .setCellSize(64 * 1024)
+            .build();
+    // Наибольшее число элементов на странице листинга
+    public static final int LIST_PAGE_SIZE = 1000;
+    // Сколько путей проверяет один запрос ListMigrations
+    public static final int MIGRATION_SCAN_SIZE = 10_000;
+    // Размер блока, если клиент его не указал: файл больше блока делится на блоки на разных DataNode
+    public static final long DEFAULT_BLOCK_SIZE = 128L * 1024 * 1024;
+    // Наименьший размер блока, который может указать клиент: мелкие блоки раздувают метаданные файла
+    public static final long MIN_BLOCK_SIZE = 1024L * 1024;
+    // Сколько DataNode может перекодировать файл, прежде чем задание поручается заново
+    public static final long ENCODE_TIMEOUT_NANOS = TimeUnit.MINUTES.toNanos(10);
 
-    // Активные DataNode
-    private final Set<String> dataNodes = ConcurrentHashMap.newKeySet();
+    // Активные DataNode и их нагрузка
+    private final DataNodeRegistry dataNodes = new DataNodeRegistry();
 
-    // Пути к файлам и DataNode
-    private final Map<String, String> fileLocations = new ConcurrentHashMap<>();
+    // Пути к файлам и DataNode с их копиями
+    private final Map<String, List<String>> fileLocations = new ConcurrentHashMap<>();
+
+    // Те же пути в префиксном дереве для листинга каталогов
+    private final PathTree namespace = new PathTree();
 
     // Файлы и upload_id
     private final Map<String, String> fileUploadIds = new ConcurrentHashMap<>();
 
+    // Размеры файлов из копий; по ним клиент делит чтение на диапазоны
+    private final Map<String, Long> fileSizes = new ConcurrentHashMap<>();
+
+    // Файлы, хранящиеся полосами. Запись с upload_id и размещением заменяется целиком,
+    // поэтому чтение во время перекодирования видит либо копии, либо полосы
+    private final Map<String, FileRecord> erasureCodedFiles = new ConcurrentHashMap<>();
+
+    // Файлы из нескольких блоков с копиями каждого блока. Как и для полос, запись заменяется целиком
+    private final Map<String, FileRecord> blockFiles = new ConcurrentHashMap<>();
+
+    // Перекодирования в полосы, которые сейчас выполняют DataNode
+    private final Map<String, PendingEncode> pendingEncodes = new ConcurrentHashMap<>();
+
+    // Задания для DataNode, отправляемые в ответ на heartbeat
+    private final DataNodeTasks dataNodeTasks = new DataNodeTasks();
+
+    // Журнал и снимки метаданных; null - метаданные хранятся только в памяти
+    private final MetadataStore metadataStore;
+
+    // Выбор DataNode для новых файлов
+    private final PlacementPolicy placementPolicy;
+
+    // Количество копий нового файла и сколько из них должно быть сохранено для успешной загрузки
+    private final int replicationFactor;
+    private final int writeQuorum;
+
+    // Параметры кода Рида-Соломона для файлов ERASURE_CODED: data_stripes, parity_stripes и cell_size
+    private final ErasureLayout erasureCode;
+
+    // Разбиение путей между координаторами и номер этого координатора; null - все пути хранит этот координатор
+    private final PartitionMap partitionMap;
+    private final int partition;
+
+    public CoordinatorService() {
+        this(null);
+    }
+
+    /**
+     * @param metadataStore хранилище метаданных на диске; null - хранить только в памяти.
+     */
+    public CoordinatorService(MetadataStore metadataStore) {
+        this(metadataStore, new PowerOfTwoChoicesPolicy());
+    }
+
+    /**
+     * @param metadataStore   хранилище метаданных на диске; null - хранить только в памяти.
+     * @param placementPolicy политика выбора DataNode для новых файлов.
+     */
+    public CoordinatorService(MetadataStore metadataStore, PlacementPolicy placementPolicy) {
+        this(metadataStore, placementPolicy, DEFAULT_REPLICATION_FACTOR, DEFAULT_WRITE_QUORUM);
+    }
+
+    /**
+     * @param metadataStore     хранилище метаданных на диске; null - хранить только в памяти.
+     * @param placementPolicy   политика выбора DataNode для новых файлов.
+     * @param replicationFactor количество копий нового файла.
+     * @param writeQuorum       сколько копий должно быть сохранено для успешной загрузки; 0 - все.
+     */
+    public CoordinatorService(MetadataStore metadataStore, PlacementPolicy placementPolicy,
+                              int replicationFactor, int writeQuorum) {
+        this(metadataStore, placementPolicy, replicationFactor, writeQuorum, DEFAULT_ERASURE_CODE);
+    }
+
+    /**
+     * @param metadataStore     хранилище метаданных на диске; null - хранить только в памяти.
+     * @param placementPolicy   политика выбора DataNode для новых файлов.
+     * @param replicationFactor количество копий нового файла.
+     * @param writeQuorum       сколько копий должно быть сохранено для успешной загрузки; 0 - все.
+     * @param erasureCode       параметры кода Рида-Соломона; адреса полос не указываются.
+     */
+    public CoordinatorService(MetadataStore metadataStore, PlacementPolicy placementPolicy,
+                              int replicationFactor, int writeQuorum, ErasureLayout erasureCode) {
+        this(metadataStore, placementPolicy, replicationFactor, writeQuorum, erasureCode, null, 0);
+    }
+
+    /**
+     * @param metadataStore     хранилище метаданных на диске; null - хранить только в памяти.
+     * @param placementPolicy   политика выбора DataNode для новых файлов.
+     * @param replicationFactor количество копий нового файла.
+     * @param writeQuorum       сколько копий должно быть сохранено для успешной загрузки; 0 - все.
+     * @param erasureCode       параметры кода Рида-Соломона; адреса полос не указываются.
+     * @param partitionMap      разбиение путей между координаторами; null - все пути хранит этот координатор.
+     * @param partition         номер этого координатора в partitionMap.
+     */
+    public CoordinatorService(MetadataStore metadataStore, PlacementPolicy placementPolicy,
+                              int replicationFactor, int writeQuorum, ErasureLayout erasureCode,
+                              PartitionMap partitionMap, int partition) {
+        if (partitionMap != null && (partition < 0 || partition >= partitionMap.size())) {
+            throw new IllegalArgumentException("Invalid partition " + partition + " of " + partitionMap.size());
+        }
+        if (replicationFactor <= 0 || writeQuorum < 0 || writeQuorum > replicationFactor) {
+            throw new IllegalArgumentException("Invalid replication factor " + replicationFactor
+                    + " with write quorum " + writeQuorum);
+        }
+        if (erasureCode.getDataStripes() <= 0 || erasureCode.getCellSize() <= 0
+                || erasureCode.getDataStripes() + erasureCode.getParityStripes() > 256) {
+            throw new IllegalArgumentException("Invalid erasure code " + erasureCode.getDataStripes() + "+"
+                    + erasureCode.getParityStripes() + " with cell size " + erasureCode.getCellSize());
+        }
+        this.metadataStore = metadataStore;
+        this.placementPolicy = placementPolicy;
+        this.replicationFactor = replicationFactor;
+        this.writeQuorum = writeQuorum;
+        this.erasureCode = erasureCode;
+        this.partitionMap = partitionMap;
+        this.partition = partition;
+    }
+
+    /**
+     * Восстанавливает пути к файлам и upload_id из хранилища метаданных.
+     *
+     * @throws IOException если метаданные повреждены или не удалось их прочитать.
+     */
+    public void recoverMetadata() throws IOException {
+        if (metadataStore != null) {
+            metadataStore.recover(record -> {
+                if (record.hasErasureLayout()) {
+                    erasureCodedFiles.put(record.getFilePath(), record);
+                    fileLocations.put(record.getFilePath(),
+                            List.copyOf(record.getErasureLayout().getStripeAddressesList()));
+                } else if (record.getBlocksCount() > 0) {
+                    blockFiles.put(record.getFilePath(), record);
+                    fileLocations.put(record.getFilePath(), blockAddresses(record.getBlocksList()));
+                } else {
+                    // В записях до появления репликации есть только один DataNode
+                    fileLocations.put(record.getFilePath(), record.getReplicaAddressesCount() > 0
+                            ? List.copyOf(record.getReplicaAddressesList())
+                            : List.of(record.getDataNodeAddress()));
+                    if (record.getFileSize() > 0) {
+                        fileSizes.put(record.getFilePath(), record.getFileSize());
+                    }
+                }
+                fileUploadIds.put(record.getFilePath(), record.getUploadId());
+                namespace.add(record.getFilePath());
+            });
+        }
+    }
+
+    /**
+     * Поручает заново перекодирования, которые не завершатся: DataNode-источник удалён как отказавший
+     * или не прислал отчёт за {@link #ENCODE_TIMEOUT_NANOS}, например потому что перезапустился.
+     * Отчёт по прежнему заданию, если он всё же придёт, будет отклонён, а его полосы удалены.
+     *
+     * @param nowNanos текущий момент по System.nanoTime().
+     */
+    public void retryStalledEncodes(long nowNanos) {
+        for (Map.Entry<String, PendingEncode> entry : pendingEncodes.entrySet()) {
+            String filePath = entry.getKey();
+            PendingEncode pending = entry.getValue();
+            if (!pending.stalled(dataNodes, nowNanos) || !pendingEncodes.remove(filePath, pending)) {
+                continue;
+            }
+            log.warn("Encoding of file '{}' by DataNode {} stalled, retrying", filePath, pending.source());
+            StatusRuntimeException error = startEncode(filePath, nowNanos);
+            if (error != null) {
+                log.error("Failed to retry encoding of file '{}': {}", filePath, error.getStatus().getDescription());
+            }
+        }
+    }
+
+    /**
+     * Записывает снимок метаданных, если журнал вырос с прошлого снимка.
+     *
+     * @throws IOException если не удалось записать снимок.
+     */
+    public void snapshotMetadataIfNeeded() throws IOException {
+        if (metadataStore != null && metadataStore.needsSnapshot()) {
+            metadataStore.snapshot(fileRecords());
+        }
+    }
+
+    /**
+     * Возвращает итератор по всем файлам без копирования.
+     * Файлы, для которых upload_id ещё не сохранён, пропускаются: запись о файле появляется в картах только
+     * после сброса её в журнал, а журнал завершает записи до перехода на новый сегмент. Поэтому снимок содержит
+     * все файлы из учтённых в нём сегментов и никогда не содержит файл, запись о котором не сохранилась.
+     */
+    private Iterator<FileRecord> fileRecords() {
+        Iterator<Map.Entry<String, List<String>>> locations = fileLocations.entrySet().iterator();
+        return new Iterator<>() {
+            private FileRecord next = advance();
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public FileRecord next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                FileRecord record = next;
+                next = advance();
+                return record;
+            }
+
+            private FileRecord advance() {
+                while (locations.hasNext()) {
+                    Map.Entry<String, List<String>> location = locations.next();
+                    FileRecord erasureCoded = erasureCodedFiles.get(location.getKey());
+                    if (erasureCoded != null) {
+                        return erasureCoded;
+                    }
+                    FileRecord blocks = blockFiles.get(location.getKey());
+                    if (blocks != null) {
+                        return blocks;
+                    }
+                    String uploadId = fileUploadIds.get(location.getKey());
+                    if (uploadId != null) {
+                        return fileRecord(location.getKey(), location.getValue(), uploadId,
+                                fileSizes.getOrDefault(location.getKey(), 0L));
+                    }
+                }
+                return null;
+            }
+        };
+    }
+
     /**
      * Добавляет DataNode в координатор.
      *
@@ -63,98 +311,857 @@ public class CoordinatorService extends coordinator.CoordinatorGrpc.CoordinatorI
         responseObserver.onCompleted();
     }
 
+    /**
+     * Принимает heartbeat DataNode с его нагрузкой.
+     * Неизвестный DataNode добавляется: координатор не хранит список DataNode на диске,
+     * и после перезапуска он восстанавливается по heartbeat'ам. DataNode без heartbeat'ов
+     * удаляет {@link FailureDetector}. В ответе - накопленные для DataNode задания;
+     * удаления, выполнение которых DataNode подтвердил в запросе, больше не отправляются.
+     *
+     * @param request          Запрос с адресом и нагрузкой DataNode.
+     * @param responseObserver Ответ DataNode.
+     */
+    @Override
+    public void heartbeat(HeartbeatRequest request, StreamObserver<HeartbeatResponse> responseObserver) {
+        String dataNodeAddress = request.getAddress();
+        if (dataNodes.heartbeat(dataNodeAddress, request.hasLoad() ? request.getLoad() : null, request.getRingWeight())) {
+            log.info("DataNode added by heartbeat: {}", dataNodeAddress);
+        }
+
+        dataNodeTasks.acknowledge(dataNodeAddress, request.getCompletedTaskIdsList());
+        HeartbeatResponse.Builder response = HeartbeatResponse.newBuilder().setSuccess(true);
+        dataNodeTasks.drainTo(dataNodeAddress, response);
+        responseObserver.onNext(response.build());
+        responseObserver.onCompleted();
+    }
+
     /**
      * Обрабатывает запрос на запись файла.
-     * Назначает DataNode для хранения файла.
+     * Назначает цепочку DataNode для копий файла: клиент отправляет файл первому, и каждый DataNode
+     * пересылает его следующему. Если доступных DataNode меньше числа копий, цепочка короче.
+     * Для файлов ERASURE_CODED назначаются различные DataNode для всех полос; клиент отправляет файл первому,
+     * и тот рассылает полосы.
+     * Файл REPLICATED больше размера блока делится на блоки: каждому блоку назначается своя цепочка,
+     * чтобы клиент загружал блоки на разные DataNode параллельно.
+     * При размещении по кольцу ({@link ConsistentHashPolicy}) копии получают ID, вычисляемый из пути,
+     * и клиент с кольцом читает их без запроса ReadFile.
+     * Ответ отправляется, когда назначение сохранено в журнале.
      *
      * @param request          Запрос с путем к файлу.
      * @param responseObserver Ответ клиенту.
      */
     @Override
     public void writeFile(WriteFileRequest request, StreamObserver<WriteFileResponse> responseObserver) {
+        placeFile(request, dataNodes.snapshot()).whenComplete((response, error) -> {
+            if (error != null) {
+                responseObserver.onError(toStatusException(error));
+                return;
+            }
+            responseObserver.onNext(response);
+            responseObserver.onCompleted();
+        });
+    }
+
+    /**
+     * Обрабатывает пакет запросов на запись файлов за один вызов.
+     * Каждый файл размещается так же, как в {@link #writeFile}, а записи журнала всего пакета сбрасываются
+     * на диск вместе. Ошибка одного файла не прерывает пакет: результат возвращается для каждого файла
+     * в порядке запроса.
+     *
+     * @param request          Запросы на запись файлов.
+     * @param responseObserver Ответ клиенту.
+     */
+    @Override
+    public void writeFiles(WriteFilesRequest request, StreamObserver<WriteFilesResponse> responseObserver) {
+        List<DataNodeState> nodes = dataNodes.snapshot();
+        List<CompletableFuture<WriteFileResponse>> placements = new ArrayList<>(request.getFilesCount());
+        for (WriteFileRequest file : request.getFilesList()) {
+            placements.add(placeFile(file, nodes));
+        }
+        CompletableFuture.allOf(placements.toArray(CompletableFuture[]::new)).whenComplete((ignored, error) -> {
+            WriteFilesResponse.Builder response = WriteFilesResponse.newBuilder();
+            for (CompletableFuture<WriteFileResponse> placement : placements) {
+                WriteFileResult.Builder result = response.addResultsBuilder();
+                placement.whenComplete((file, fileError) -> {
+                    if (fileError != null) {
+                        result.setStatus(toEntryStatus(fileError));
+                    } else {
+                        result.setResponse(file);
+                    }
+                });
+            }
+            log.info("Batch of {} files placed", request.getFilesCount());
+            responseObserver.onNext(response.build());
+            responseObserver.onCompleted();
+        });
+    }
+
+    /**
+     * Назначает DataNode для файла и сохраняет назначение в журнале.
+     * Future завершается ответом клиенту или {@link StatusRuntimeException} с причиной отказа.
+     *
+     * @param request Запрос на запись файла.
+     * @param nodes   Активные DataNode.
+     */
+    private CompletableFuture<WriteFileResponse> placeFile(WriteFileRequest request, List<DataNodeState> nodes) {
         try {
-            if (dataNodes.isEmpty()) {
-                responseObserver.onError(Status.UNAVAILABLE
+            String filePath = request.getFilePath();
+            if (!owns(filePath)) {
+                return CompletableFuture.failedFuture(partitionMap.redirect(filePath));
+            }
+            if (nodes.isEmpty()) {
+                return CompletableFuture.failedFuture(Status.UNAVAILABLE
                         .withDescription("No available DataNodes")
                         .asRuntimeException());
-                return;
             }
 
-            String filePath = request.getFilePath();
-            if (fileLocations.containsKey(filePath)) {
-                responseObserver.onError(Status.ALREADY_EXISTS
+            boolean erasureCoded = request.getStoragePolicy() == StoragePolicy.ERASURE_CODED;
+            if (erasureCoded && request.getFileSize() <= 0) {
+                return CompletableFuture.failedFuture(Status.INVALID_ARGUMENT
+                        .withDescription("File size is required for erasure-coded files")
+                        .asRuntimeException());
+            }
+
+            if (request.getBlockSize() != 0 && request.getBlockSize() < MIN_BLOCK_SIZE) {
+                return CompletableFuture.failedFuture(Status.INVALID_ARGUMENT
+                        .withDescription("Block size must be at least " + MIN_BLOCK_SIZE + " bytes")
+                        .asRuntimeException());
+            }
+            long blockSize = request.getBlockSize() > 0 ? request.getBlockSize() : DEFAULT_BLOCK_SIZE;
+            if (!erasureCoded && request.getFileSize() > blockSize) {
+                return placeBlocks(request, nodes, blockSize);
+            }
+
+            // Выбираем DataNode с учётом нагрузки и свободного места
+            int count = erasureCoded ? stripeCount() : replicationFactor;
+            long bytesPerNode = erasureCoded ? stripeSize(request.getFileSize()) : request.getFileSize();
+            List<DataNodeState> chain = placementPolicy.choose(filePath, nodes, bytesPerNode, count);
+            if (chain.isEmpty()) {
+                return CompletableFuture.failedFuture(Status.RESOURCE_EXHAUSTED
+                        .withDescription("No DataNode has enough free space for " + bytesPerNode + " bytes")
+                        .asRuntimeException());
+            }
+            // Полосы нельзя хранить на меньшем числе DataNode: потеря одного DataNode стоила бы нескольких полос
+            int minReplicas = erasureCoded ? count : writeQuorum == 0 ? chain.size() : writeQuorum;
+            if (chain.size() < minReplicas) {
+                return CompletableFuture.failedFuture(Status.UNAVAILABLE
+                        .withDescription("Only " + chain.size() + " DataNodes can store the file, " + minReplicas
+                                + " required")
+                        .asRuntimeException());
+            }
+            List<String> addresses = chain.stream().map(DataNodeState::getAddress).toList();
+
+            // Путь занимается атомарно, чтобы два одновременных запроса не получили один файл
+            if (fileLocations.putIfAbsent(filePath, addresses) != null) {
+                return CompletableFuture.failedFuture(Status.ALREADY_EXISTS
                         .withDescription("File already exists: " + filePath)
                         .asRuntimeException());
-                return;
+            }
+            namespace.add(filePath);
+            chain.forEach(DataNodeState::placementAssigned);
+            if (!erasureCoded && chain.size() < replicationFactor) {
+                log.warn("File '{}' gets {} of {} replicas: not enough DataNodes", filePath, chain.size(), replicationFactor);
             }
 
-            // Выбираем случайный DataNode
-            List<String> nodeList = new ArrayList<>(dataNodes);
-            String selectedDataNode = nodeList.get(new Random().nextInt(nodeList.size()));
+            // Генерируем уникальный upload_id; копии, размещённые по кольцу, клиент находит по ID из пути
+            String uploadId = !erasureCoded && placementPolicy instanceof ConsistentHashPolicy
+                    ? HashRing.fileId(filePath)
+                    : UUID.randomUUID().toString();
+            FileRecord record = erasureCoded
+                    ? erasureCodedRecord(filePath, erasureCode.toBuilder()
+                            .addAllStripeAddresses(addresses)
+                            .setFileSize(request.getFileSize())
+                            .build(), uploadId)
+                    : fileRecord(filePath, addresses, uploadId, request.getFileSize());
 
-            // Генерируем уникальный upload_id
-            String uploadId = UUID.randomUUID().toString();
-            fileLocations.put(filePath, selectedDataNode);
-            fileUploadIds.put(filePath, uploadId);
+            // Файл становится виден чтениям и снимкам только после сохранения записи в журнале
+            return persist(record).handle((ignored, error) -> {
+                if (error != null) {
+                    Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+                    namespace.remove(filePath);
+                    fileLocations.remove(filePath, addresses);
+                    chain.forEach(DataNodeState::placementCancelled);
+                    log.error("Failed to persist file '{}': {}", filePath, cause.getMessage());
+                    throw Status.INTERNAL
+                            .withDescription("Failed to persist file metadata: " + cause.getMessage())
+                            .asRuntimeException();
+                }
+                if (erasureCoded) {
+                    erasureCodedFiles.put(filePath, record);
+                } else {
+                    fileSizes.put(filePath, request.getFileSize());
+                }
+                fileUploadIds.put(filePath, uploadId);
 
-            log.info("File '{}' will be written to DataNode '{}' with upload_id '{}'", filePath, selectedDataNode, uploadId);
+                log.debug("File '{}' will be written to DataNodes {} with upload_id '{}'", filePath, addresses, uploadId);
 
-            WriteFileResponse response = WriteFileResponse.newBuilder()
-                    .setDataNodeAddress(selectedDataNode)
-                    .setUploadId(uploadId)
-                    .build();
-            responseObserver.onNext(response);
-            responseObserver.onCompleted();
+                WriteFileResponse.Builder response = WriteFileResponse.newBuilder()
+                        .setDataNodeAddress(addresses.get(0))
+                        .setUploadId(uploadId);
+                if (erasureCoded) {
+                    response.setErasureLayout(record.getErasureLayout());
+                } else {
+                    response.addAllDataNodeAddresses(addresses).setMinReplicas(minReplicas);
+                }
+                return response.build();
+            });
         } catch (Exception e) {
             log.error("Error processing writeFile request: {}", e.getMessage(), e);
-            responseObserver.onError(Status.INTERNAL
+            return CompletableFuture.failedFuture(Status.INTERNAL
                     .withDescription("Internal server error: " + e.getMessage())
                     .asRuntimeException());
         }
     }
 
+    /**
+     * Делит файл на блоки, назначает каждому блоку цепочку DataNode и сохраняет список блоков в журнале.
+     * Цепочки выбираются по очереди, и каждое назначение учитывается в нагрузке DataNode,
+     * поэтому соседние блоки попадают на разные DataNode. Если файл не размещён, назначения отменяются.
+     *
+     * @param request   Запрос на запись файла больше блока.
+     * @param nodes     Активные DataNode.
+     * @param blockSize Размер блока; последний блок может быть короче.
+     */
+    private CompletableFuture<WriteFileResponse> placeBlocks(WriteFileRequest request, List<DataNodeState> nodes,
+                                                             long blockSize) {
+        String filePath = request.getFilePath();
+        List<FileBlock> blocks = new ArrayList<>();
+        // Назначения блоков; отменяются, если файл не будет записан
+        List<DataNodeState> assigned = new ArrayList<>();
+        for (long offset = 0; offset < request.getFileSize(); offset += blockSize) {
+            long length = Math.min(blockSize, request.getFileSize() - offset);
+            // Ключ блока, а не файла: при размещении по кольцу блоки файла расходятся по кольцу
+            List<DataNodeState> chain = placementPolicy.choose(filePath + "#" + blocks.size(), nodes, length,
+                    replicationFactor);
+            if (chain.isEmpty()) {
+                assigned.forEach(DataNodeState::placementCancelled);
+                return CompletableFuture.failedFuture(Status.RESOURCE_EXHAUSTED
+                        .withDescription("No DataNode has enough free space for a block of " + length + " bytes")
+                        .asRuntimeException());
+            }
+            int minReplicas = writeQuorum == 0 ? chain.size() : writeQuorum;
+            if (chain.size() < minReplicas) {
+                assigned.forEach(DataNodeState::placementCancelled);
+                return CompletableFuture.failedFuture(Status.UNAVAILABLE
+                        .withDescription("Only " + chain.size() + " DataNodes can store a block, " + minReplicas
+                                + " required")
+                        .asRuntimeException());
+            }
+            chain.forEach(DataNodeState::placementAssigned);
+            assigned.addAll(chain);
+            blocks.add(FileBlock.newBuilder()
+                    .setBlockId(UUID.randomUUID().toString())
+                    .setOffset(offset)
+                    .setLength(length)
+                    .addAllDataNodeAddresses(chain.stream().map(DataNodeState::getAddress).toList())
+                    .setMinReplicas(minReplicas)
+                    .build());
+        }
+        if (blocks.get(0).getDataNodeAddressesCount() < replicationFactor) {
+            log.warn("Blocks of file '{}' get fewer than {} replicas: not enough DataNodes", filePath,
+                    replicationFactor);
+        }
+
+        List<String> addresses = blockAddresses(blocks);
+        if (fileLocations.putIfAbsent(filePath, addresses) != null) {
+            assigned.forEach(DataNodeState::placementCancelled);
+            return CompletableFuture.failedFuture(Status.ALREADY_EXISTS
+                    .withDescription("File already exists: " + filePath)
+                    .asRuntimeException());
+        }
+        namespace.add(filePath);
+        String uploadId = UUID.randomUUID().toString();
+        FileRecord record = FileRecord.newBuilder()
+                .setFilePath(filePath)
+                .setDataNodeAddress(addresses.get(0))
+                .setUploadId(uploadId)
+                .addAllBlocks(blocks)
+                .build();
+
+        return persist(record).handle((ignored, error) -> {
+            if (error != null) {
+                Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+                namespace.remove(filePath);
+                fileLocations.remove(filePath, addresses);
+                assigned.forEach(DataNodeState::placementCancelled);
+                log.error("Failed to persist file '{}': {}", filePath, cause.getMessage());
+                throw Status.INTERNAL
+                        .withDescription("Failed to persist file metadata: " + cause.getMessage())
+                        .asRuntimeException();
+            }
+            blockFiles.put(filePath, record);
+            fileUploadIds.put(filePath, uploadId);
+            log.debug("File '{}' will be written in {} blocks to DataNodes {}", filePath, blocks.size(), addresses);
+            return WriteFileResponse.newBuilder()
+                    .setUploadId(uploadId)
+                    .addAllBlocks(blocks)
+                    .build();
+        });
+    }
+
+    /**
+     * Все DataNode с копиями блоков без повторов в порядке блоков.
+     */
+    private static List<String> blockAddresses(List<FileBlock> blocks) {
+        Set<String> addresses = new LinkedHashSet<>();
+        for (FileBlock block : blocks) {
+            addresses.addAll(block.getDataNodeAddressesList());
+        }
+        return List.copyOf(addresses);
+    }
+
+    private static FileRecord fileRecord(String filePath, List<String> addresses, String uploadId, long fileSize) {
+        return FileRecord.newBuilder()
+                .setFilePath(filePath)
+                .setDataNodeAddress(addresses.get(0))
+                .addAllReplicaAddresses(addresses)
+                .setUploadId(uploadId)
+                .setFileSize(fileSize)
+                .build();
+    }
+
+    private static FileRecord erasureCodedRecord(String filePath, ErasureLayout layout, String uploadId) {
+        return FileRecord.newBuilder()
+                .setFilePath(filePath)
+                .setDataNodeAddress(layout.getStripeAddresses(0))
+                .setErasureLayout(layout)
+                .setUploadId(uploadId)
+                .build();
+    }
+
+    private int stripeCount() {
+        return erasureCode.getDataStripes() + erasureCode.getParityStripes();
+    }
+
+    /**
+     * Размер одной полосы файла: по ячейке на каждую строку, последняя строка дополняется.
+     */
+    private long stripeSize(long fileSize) {
+        long rowSize = (long) erasureCode.getDataStripes() * erasureCode.getCellSize();
+        return (fileSize + rowSize - 1) / rowSize * erasureCode.getCellSize();
+    }
+
+    /**
+     * Сохраняет запись о файле в журнале, если метаданные хранятся на диске.
+     */
+    private CompletableFuture<Void> persist(FileRecord record) {
+        return metadataStore != null ? metadataStore.putFile(record) : CompletableFuture.completedFuture(null);
+    }
+
     /**
      * Обрабатывает запрос на чтение файла.
+     * Возвращает доступные DataNode с копиями файла по возрастанию нагрузки.
      *
      * @param request          Запрос с путем к файлу.
      * @param responseObserver Ответ клиенту.
      */
     @Override
     public void readFile(ReadFileRequest request, StreamObserver<ReadFileResponse> responseObserver) {
+        ReadFileResponse response;
+        try {
+            response = locateFile(request);
+        } catch (StatusRuntimeException e) {
+            responseObserver.onError(e);
+            return;
+        }
+        responseObserver.onNext(response);
+        responseObserver.onCompleted();
+    }
+
+    /**
+     * Обрабатывает пакет запросов на чтение файлов за один вызов.
+     * Результат возвращается для каждого файла в порядке запроса; ненайденный файл не прерывает пакет.
+     *
+     * @param request          Запросы на чтение файлов.
+     * @param responseObserver Ответ клиенту.
+     */
+    @Override
+    public void readFiles(ReadFilesRequest request, StreamObserver<ReadFilesResponse> responseObserver) {
+        ReadFilesResponse.Builder response = ReadFilesResponse.newBuilder();
+        for (ReadFileRequest file : request.getFilesList()) {
+            ReadFileResult.Builder result = response.addResultsBuilder();
+            try {
+                result.setResponse(locateFile(file));
+            } catch (StatusRuntimeException e) {
+                result.setStatus(toEntryStatus(e));
+            }
+        }
+        responseObserver.onNext(response.build());
+        responseObserver.onCompleted();
+    }
+
+    /**
+     * Перечисляет пути файлов по префиксу в лексикографическом порядке.
+     * Страницы по {@link #LIST_PAGE_SIZE} элементов отправляются потоком, когда клиент готов их принять;
+     * каждая страница продолжает листинг с последнего пути, не перебирая предыдущие.
+     *
+     * @param request          Префикс, токен продолжения, ограничение и разделитель каталогов.
+     * @param responseObserver Поток страниц клиенту.
+     */
+    @Override
+    public void listFiles(ListFilesRequest request, StreamObserver<ListFilesResponse> responseObserver) {
+        if (request.getDelimiter().length() > 1) {
+            responseObserver.onError(Status.INVALID_ARGUMENT
+                    .withDescription("Delimiter must be a single character: " + request.getDelimiter())
+                    .asRuntimeException());
+            return;
+        }
+        new FileListing(namespace, request, LIST_PAGE_SIZE, responseObserver).start();
+    }
+
+    /**
+     * Возвращает кольцо консистентного хеширования активных DataNode, чтобы клиент мог сам находить
+     * DataNode файлов, размещённых по кольцу. Если координатор размещает файлы иначе, кольцо пустое.
+     *
+     * @param request          Пустой запрос.
+     * @param responseObserver Ответ клиенту.
+     */
+    @Override
+    public void getRing(GetRingRequest request, StreamObserver<GetRingResponse> responseObserver) {
+        GetRingResponse.Builder response = GetRingResponse.newBuilder().setReplicationFactor(replicationFactor);
+        if (placementPolicy instanceof ConsistentHashPolicy ringPolicy) {
+            HashRing ring = ringPolicy.ring(dataNodes.snapshot());
+            response.setVersion(ring.getVersion()).setVirtualNodes(ring.getVirtualNodes());
+            ring.getWeights().forEach((address, weight) -> response.addMembers(RingMember.newBuilder()
+                    .setAddress(address)
+                    .setWeight(weight)));
+        }
+        responseObserver.onNext(response.build());
+        responseObserver.onCompleted();
+    }
+
+    /**
+     * Перечисляет файлы, размещённые по кольцу, копии которых лежат не на тех DataNode, которые назначает им
+     * текущее кольцо: после добавления или удаления DataNode это примерно 1/N файлов.
+     * Один запрос проверяет до {@link #MIGRATION_SCAN_SIZE} путей по порядку; следующий продолжает с токена.
+     *
+     * @param request          Токен продолжения.
+     * @param responseObserver Ответ клиенту.
+     */
+    @Override
+    public void listMigrations(ListMigrationsRequest request, StreamObserver<ListMigrationsResponse> responseObserver) {
+        if (!(placementPolicy instanceof ConsistentHashPolicy ringPolicy)) {
+            responseObserver.onError(Status.FAILED_PRECONDITION
+                    .withDescription("Files are not placed by a consistent hash ring")
+                    .asRuntimeException());
+            return;
+        }
+        HashRing ring = ringPolicy.ring(dataNodes.snapshot());
+        List<String> paths = new ArrayList<>();
+        // Лишний путь показывает, есть ли следующая страница
+        int listed = namespace.list("", request.getPageToken(), (char) 0, MIGRATION_SCAN_SIZE + 1,
+                (path, directory) -> {
+                    if (paths.size() < MIGRATION_SCAN_SIZE) {
+                        paths.add(path);
+                    }
+                });
+
+        ListMigrationsResponse.Builder response = ListMigrationsResponse.newBuilder().setRingVersion(ring.getVersion());
+        for (String path : paths) {
+            List<String> replicas = fileLocations.get(path);
+            String uploadId = fileUploadIds.get(path);
+            // Файлы, размещённые иначе, и полосы хранятся под случайными ID
+            if (replicas == null || uploadId == null || !uploadId.equals(HashRing.fileId(path))) {
+                continue;
+            }
+            List<String> targets = ring.locate(path, replicationFactor);
+            if (!new HashSet<>(replicas).equals(new HashSet<>(targets))) {
+                response.addMigrations(FileMigration.newBuilder()
+                        .setFilePath(path)
+                        .setFileId(uploadId)
+                        .addAllSourceAddresses(replicas)
+                        .addAllTargetAddresses(targets));
+            }
+        }
+        if (listed > paths.size()) {
+            response.setNextPageToken(paths.get(paths.size() - 1));
+        }
+        log.info("{} of {} checked files need migration to ring version {}", response.getMigrationsCount(),
+                paths.size(), ring.getVersion());
+        responseObserver.onNext(response.build());
+        responseObserver.onCompleted();
+    }
+
+    /**
+     * Находит DataNode с копиями или полосами файла.
+     *
+     * @throws StatusRuntimeException если файл не найден или недоступен.
+     */
+    private ReadFileResponse locateFile(ReadFileRequest request) {
         try {
             String filePath = request.getFilePath();
-            String dataNodeAddress = fileLocations.get(filePath);
+            if (!owns(filePath)) {
+                throw partitionMap.redirect(filePath);
+            }
+            FileRecord erasureCoded = erasureCodedFiles.get(filePath);
+            if (erasureCoded != null) {
+                return locateErasureCoded(erasureCoded);
+            }
+            FileRecord blocks = blockFiles.get(filePath);
+            if (blocks != null) {
+                return locateBlocks(blocks);
+            }
+            List<String> replicas = fileLocations.get(filePath);
             String uploadId = fileUploadIds.get(filePath);
 
-            if (dataNodeAddress == null || uploadId == null) {
+            if (replicas == null || uploadId == null) {
                 log.error("File '{}' not found", filePath);
-                responseObserver.onError(Status.NOT_FOUND
+                throw Status.NOT_FOUND
                         .withDescription("File not found: " + filePath)
-                        .asRuntimeException());
-                return;
+                        .asRuntimeException();
             }
 
-            if (!dataNodes.contains(dataNodeAddress)) {
-                log.error("DataNode '{}' is unavailable", dataNodeAddress);
-                responseObserver.onError(Status.UNAVAILABLE
-                        .withDescription("DataNode is unavailable: " + dataNodeAddress)
-                        .asRuntimeException());
-                return;
+            List<String> available = new ArrayList<>(replicas.size());
+            for (String replica : replicas) {
+                if (dataNodes.contains(replica)) {
+                    available.add(replica);
+                }
+            }
+            if (available.isEmpty()) {
+                log.error("DataNodes {} are unavailable", replicas);
+                throw Status.UNAVAILABLE
+                        .withDescription("DataNode is unavailable: " + String.join(", ", replicas))
+                        .asRuntimeException();
             }
+            rankByLoad(available);
 
-            log.info("File '{}' found on DataNode '{}' with upload_id '{}'", filePath, dataNodeAddress, uploadId);
+            log.debug("File '{}' found on DataNodes {} with upload_id '{}'", filePath, available, uploadId);
 
-            ReadFileResponse response = ReadFileResponse.newBuilder()
-                    .setDataNodeAddress(dataNodeAddress)
+            return ReadFileResponse.newBuilder()
+                    .setDataNodeAddress(available.get(0))
+                    .addAllDataNodeAddresses(available)
                     .setFileId(uploadId)
+                    .setFileSize(fileSizes.getOrDefault(filePath, 0L))
                     .build();
-            responseObserver.onNext(response);
-            responseObserver.onCompleted();
+        } catch (StatusRuntimeException e) {
+            throw e;
         } catch (Exception e) {
             log.error("Error during readFile request: {}", e.getMessage(), e);
-            responseObserver.onError(Status.INTERNAL
+            throw Status.INTERNAL
                     .withDescription("Server error: " + e.getMessage())
+                    .asRuntimeException();
+        }
+    }
+
+    /**
+     * Находит полосы файла для чтения: адреса недоступных DataNode в размещении заменяются пустыми.
+     * Файл собирает наименее нагруженный доступный DataNode с полосой.
+     */
+    private ReadFileResponse locateErasureCoded(FileRecord record) {
+        ErasureLayout.Builder layout = record.getErasureLayout().toBuilder();
+        List<String> available = new ArrayList<>(layout.getStripeAddressesCount());
+        for (int i = 0; i < layout.getStripeAddressesCount(); i++) {
+            String address = layout.getStripeAddresses(i);
+            if (dataNodes.contains(address)) {
+                available.add(address);
+            } else {
+                layout.setStripeAddresses(i, "");
+            }
+        }
+        if (available.size() < layout.getDataStripes()) {
+            log.error("File '{}' has only {} of {} required stripes available", record.getFilePath(),
+                    available.size(), layout.getDataStripes());
+            throw Status.UNAVAILABLE
+                    .withDescription("Only " + available.size() + " of " + layout.getDataStripes()
+                            + " required stripes are available")
+                    .asRuntimeException();
+        }
+        rankByLoad(available);
+
+        log.debug("File '{}' found in stripes on DataNodes {} with upload_id '{}'", record.getFilePath(), available,
+                record.getUploadId());
+
+        return ReadFileResponse.newBuilder()
+                .setDataNodeAddress(available.get(0))
+                .addAllDataNodeAddresses(available)
+                .setFileId(record.getUploadId())
+                .setErasureLayout(layout)
+                .setFileSize(layout.getFileSize())
+                .build();
+    }
+
+    /**
+     * Находит доступные копии каждого блока файла, упорядоченные по возрастанию нагрузки.
+     * Файл недоступен, если недоступны все копии хотя бы одного блока.
+     */
+    private ReadFileResponse locateBlocks(FileRecord record) {
+        ReadFileResponse.Builder response = ReadFileResponse.newBuilder().setFileId(record.getUploadId());
+        for (FileBlock block : record.getBlocksList()) {
+            List<String> available = new ArrayList<>(block.getDataNodeAddressesCount());
+            for (String replica : block.getDataNodeAddressesList()) {
+                if (dataNodes.contains(replica)) {
+                    available.add(replica);
+                }
+            }
+            if (available.isEmpty()) {
+                log.error("Block at offset {} of file '{}' is unavailable on DataNodes {}", block.getOffset(),
+                        record.getFilePath(), block.getDataNodeAddressesList());
+                throw Status.UNAVAILABLE
+                        .withDescription("No replica of the block at offset " + block.getOffset() + " is available")
+                        .asRuntimeException();
+            }
+            rankByLoad(available);
+            response.addBlocks(block.toBuilder()
+                    .clearDataNodeAddresses()
+                    .addAllDataNodeAddresses(available)
+                    .clearMinReplicas());
+        }
+        FileBlock last = record.getBlocks(record.getBlocksCount() - 1);
+        log.debug("File '{}' found in {} blocks", record.getFilePath(), record.getBlocksCount());
+        return response.setFileSize(last.getOffset() + last.getLength()).build();
+    }
+
+    /**
+     * Принадлежит ли путь этому координатору.
+     */
+    private boolean owns(String filePath) {
+        return partitionMap == null || partitionMap.partitionOf(filePath) == partition;
+    }
+
+    /**
+     * Возвращает координаторы, между которыми разделены пути файлов.
+     * Клиент кеширует ответ и отправляет запросы о файле сразу его координатору.
+     *
+     * @param request          Пустой запрос.
+     * @param responseObserver Ответ клиенту.
+     */
+    @Override
+    public void getPartitionMap(GetPartitionMapRequest request,
+                                StreamObserver<GetPartitionMapResponse> responseObserver) {
+        responseObserver.onNext(partitionMap != null
+                ? partitionMap.toProto()
+                : GetPartitionMapResponse.getDefaultInstance());
+        responseObserver.onCompleted();
+    }
+
+    private static StatusRuntimeException toStatusException(Throwable error) {
+        Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+        return cause instanceof StatusRuntimeException statusException
+                ? statusException
+                : Status.INTERNAL.withDescription(cause.getMessage()).withCause(cause).asRuntimeException();
+    }
+
+    /**
+     * Статус отдельного файла в ответе на пакетный запрос.
+     */
+    private static EntryStatus toEntryStatus(Throwable error) {
+        StatusRuntimeException exception = toStatusException(error);
+        Status status = exception.getStatus();
+        EntryStatus.Builder entryStatus = EntryStatus.newBuilder()
+                .setCode(status.getCode().value())
+                .setMessage(status.getDescription() != null ? status.getDescription() : "");
+        String redirect = exception.getTrailers() != null
+                ? exception.getTrailers().get(PartitionMap.REDIRECT_ADDRESS)
+                : null;
+        if (redirect != null) {
+            entryStatus.setRedirectAddress(redirect);
+        }
+        return entryStatus.build();
+    }
+
+    /**
+     * Упорядочивает DataNode для чтения по возрастанию нагрузки; при равной нагрузке порядок случайный.
+     * Чтение учитывается в нагрузке первого DataNode, чтобы чтения между heartbeat'ами не уходили на один DataNode.
+     */
+    private void rankByLoad(List<String> addresses) {
+        Collections.shuffle(addresses, ThreadLocalRandom.current());
+        Map<String, Double> costs = new HashMap<>();
+        for (String address : addresses) {
+            DataNodeState node = dataNodes.get(address);
+            costs.put(address, node != null ? node.cost() : Double.MAX_VALUE);
+        }
+        addresses.sort(Comparator.comparingDouble(costs::get));
+        DataNodeState first = dataNodes.get(addresses.get(0));
+        if (first != null) {
+            first.placementAssigned();
+        }
+    }
+
+    /**
+     * Меняет способ хранения файла.
+     * Перекодирование в полосы выполняется в фоне: DataNode с копией файла получает задание с heartbeat'ом,
+     * рассылает полосы и сообщает результат через {@link #reportEncoded}. После этого копии удаляются.
+     *
+     * @param request          Запрос с путём к файлу и способом хранения.
+     * @param responseObserver Ответ клиенту.
+     */
+    @Override
+    public void setStoragePolicy(SetStoragePolicyRequest request,
+                                 StreamObserver<SetStoragePolicyResponse> responseObserver) {
+        String filePath = request.getFilePath();
+        if (!owns(filePath)) {
+            responseObserver.onError(partitionMap.redirect(filePath));
+            return;
+        }
+        List<String> replicas = fileLocations.get(filePath);
+        String uploadId = fileUploadIds.get(filePath);
+        if (replicas == null || uploadId == null) {
+            responseObserver.onError(Status.NOT_FOUND
+                    .withDescription("File not found: " + filePath)
                     .asRuntimeException());
+            return;
+        }
+        boolean erasureCoded = erasureCodedFiles.containsKey(filePath);
+        if (request.getStoragePolicy() == StoragePolicy.ERASURE_CODED && blockFiles.containsKey(filePath)) {
+            responseObserver.onError(Status.UNIMPLEMENTED
+                    .withDescription("Files of several blocks cannot be converted to stripes")
+                    .asRuntimeException());
+            return;
+        }
+        if (request.getStoragePolicy() == StoragePolicy.REPLICATED) {
+            if (erasureCoded) {
+                responseObserver.onError(Status.UNIMPLEMENTED
+                        .withDescription("Erasure-coded files cannot be converted back to replicas")
+                        .asRuntimeException());
+                return;
+            }
+            respond(responseObserver, true);
+            return;
+        }
+        if (erasureCoded) {
+            respond(responseObserver, true);
+            return;
+        }
+        long now = System.nanoTime();
+        PendingEncode pending = pendingEncodes.get(filePath);
+        if (pending != null && !pending.stalled(dataNodes, now)) {
+            respond(responseObserver, true);
+            return;
+        }
+        if (pending != null && pendingEncodes.remove(filePath, pending)) {
+            log.warn("Encoding of file '{}' by DataNode {} stalled, retrying", filePath, pending.source());
+        }
+        StatusRuntimeException error = startEncode(filePath, now);
+        if (error != null) {
+            responseObserver.onError(error);
+            return;
+        }
+        respond(responseObserver, true);
+    }
+
+    /**
+     * Поручает перекодирование файла в полосы DataNode с живой копией, если файл ещё не перекодируется.
+     * Возвращает ошибку, если копий или DataNode для полос не хватает, иначе null.
+     */
+    private StatusRuntimeException startEncode(String filePath, long nowNanos) {
+        List<String> replicas = fileLocations.get(filePath);
+        String uploadId = fileUploadIds.get(filePath);
+        if (replicas == null || uploadId == null || erasureCodedFiles.containsKey(filePath)) {
+            return null;
+        }
+        String source = replicas.stream().filter(dataNodes::contains).findFirst().orElse(null);
+        List<DataNodeState> nodes = dataNodes.snapshot();
+        List<DataNodeState> stripes = nodes.isEmpty() ? List.of() : placementPolicy.choose(nodes, 0, stripeCount());
+        if (source == null || stripes.size() < stripeCount()) {
+            return Status.UNAVAILABLE
+                    .withDescription(source == null
+                            ? "No replica of the file is available"
+                            : "Only " + stripes.size() + " DataNodes available, " + stripeCount() + " required")
+                    .asRuntimeException();
+        }
+        EncodeTask task = EncodeTask.newBuilder()
+                .setFilePath(filePath)
+                .setSourceFileId(uploadId)
+                .setFileId(UUID.randomUUID().toString())
+                .setLayout(erasureCode.toBuilder()
+                        .addAllStripeAddresses(stripes.stream().map(DataNodeState::getAddress).toList()))
+                .build();
+        if (pendingEncodes.putIfAbsent(filePath, new PendingEncode(task, source, nowNanos)) == null) {
+            dataNodeTasks.encode(source, task);
+            log.info("File '{}' will be encoded by DataNode {} into stripes on {}", filePath, source,
+                    task.getLayout().getStripeAddressesList());
+        }
+        return null;
+    }
+
+    /**
+     * Перекодирование файла, порученное DataNode.
+     *
+     * @param task         задание DataNode.
+     * @param source       DataNode с копией, который перекодирует файл.
+     * @param startedNanos когда задание поручено, по System.nanoTime().
+     */
+    record PendingEncode(EncodeTask task, String source, long startedNanos) {
+        /**
+         * Задание не завершится: DataNode-источник отказал или не ответил вовремя.
+         */
+        boolean stalled(DataNodeRegistry dataNodes, long nowNanos) {
+            return !dataNodes.contains(source) || nowNanos - startedNanos > ENCODE_TIMEOUT_NANOS;
+        }
+    }
+
+    private static void respond(StreamObserver<SetStoragePolicyResponse> responseObserver, boolean success) {
+        responseObserver.onNext(SetStoragePolicyResponse.newBuilder().setSuccess(success).build());
+        responseObserver.onCompleted();
+    }
+
+    /**
+     * Принимает результат перекодирования файла от DataNode.
+     * Если задание актуально и файл не менялся, файл переключается на полосы, а копии удаляются.
+     * Иначе разосланные полосы удаляются.
+     *
+     * @param request          Запрос с результатом и размещением полос.
+     * @param responseObserver Ответ DataNode.
+     */
+    @Override
+    public void reportEncoded(ReportEncodedRequest request, StreamObserver<ReportEncodedResponse> responseObserver) {
+        String filePath = request.getFilePath();
+        PendingEncode pending = pendingEncodes.get(filePath);
+        EncodeTask task = pending != null ? pending.task() : null;
+        boolean current = task != null && task.getFileId().equals(request.getFileId());
+        if (!current || !request.getSuccess() || !task.getSourceFileId().equals(fileUploadIds.get(filePath))) {
+            if (current) {
+                pendingEncodes.remove(filePath, pending);
+            }
+            if (request.getSuccess()) {
+                log.warn("Discarding stale stripes of file '{}'", filePath);
+            } else {
+                log.error("Encoding of file '{}' failed: {}", filePath, request.getError());
+            }
+            deleteStripes(request.getFileId(), request.getLayout());
+            responseObserver.onNext(ReportEncodedResponse.newBuilder().setAccepted(false).build());
+            responseObserver.onCompleted();
+            return;
+        }
+
+        // Адреса полос берутся из задания, от DataNode нужен только размер файла
+        ErasureLayout layout = task.getLayout().toBuilder().setFileSize(request.getLayout().getFileSize()).build();
+        FileRecord record = erasureCodedRecord(filePath, layout, request.getFileId());
+        List<String> replicas = fileLocations.get(filePath);
+        persist(record).whenComplete((ignored, error) -> {
+            pendingEncodes.remove(filePath, pending);
+            if (error != null) {
+                Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+                log.error("Failed to persist stripes of file '{}': {}", filePath, cause.getMessage());
+                deleteStripes(request.getFileId(), layout);
+                responseObserver.onError(Status.INTERNAL
+                        .withDescription("Failed to persist file metadata: " + cause.getMessage())
+                        .asRuntimeException());
+                return;
+            }
+            // Сначала публикуется запись с полосами: чтение по ней не зависит от остальных карт
+            erasureCodedFiles.put(filePath, record);
+            fileLocations.put(filePath, List.copyOf(layout.getStripeAddressesList()));
+            fileUploadIds.put(filePath, request.getFileId());
+            fileSizes.remove(filePath);
+            for (String replica : replicas) {
+                dataNodeTasks.delete(replica, task.getSourceFileId());
+            }
+            log.info("File '{}' is stored in stripes on DataNodes {}", filePath, layout.getStripeAddressesList());
+
+            responseObserver.onNext(ReportEncodedResponse.newBuilder().setAccepted(true).build());
+            responseObserver.onCompleted();
+        });
+    }
+
+    /**
+     * Поручает DataNode удалить полосы, которые не попали в метаданные.
+     */
+    private void deleteStripes(String fileId, ErasureLayout layout) {
+        for (int i = 0; i < layout.getStripeAddressesCount(); i++) {
+            if (!layout.getStripeAddresses(i).isEmpty()) {
+                dataNodeTasks.delete(layout.getStripeAddresses(i), fileId + "." + i);
+            }
         }
     }
 }
@@ -0,0 +1,118 @@
+package ru.kostacie;
+
+import coordinator.CoordinatorProto.DataNodeLoad;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * Активные DataNode и их нагрузка.
+ * <p>
+ * Для выбора DataNode хранится неизменяемый список, который пересоздаётся только при изменении состава.
+ * Heartbeat'ы меняют нагрузку внутри {@link DataNodeState}, не трогая список,
+ * поэтому запись файла не копирует список и не берёт блокировок.
+ */
+public class DataNodeRegistry {
+    private final Map<String, DataNodeState> nodes = new ConcurrentHashMap<>();
+    private volatile List<DataNodeState> snapshot = List.of();
+
+    /**
+     * Добавляет DataNode. Возвращает false, если он уже добавлен.
+     */
+    public synchronized boolean add(String address) {
+        if (nodes.putIfAbsent(address, new DataNodeState(address)) != null) {
+            return false;
+        }
+        snapshot = List.copyOf(nodes.values());
+        return true;
+    }
+
+    /**
+     * Удаляет DataNode. Возвращает false, если его не было.
+     */
+    public synchronized boolean remove(String address) {
+        if (nodes.remove(address) == null) {
+            return false;
+        }
+        snapshot = List.copyOf(nodes.values());
+        return true;
+    }
+
+    public boolean contains(String address) {
+        return nodes.containsKey(address);
+    }
+
+    public boolean isEmpty() {
+        return snapshot.isEmpty();
+    }
+
+    /**
+     * Возвращает состояние DataNode или null, если он не добавлен.
+     */
+    public DataNodeState get(String address) {
+        return nodes.get(address);
+    }
+
+    /**
+     * Возвращает неизменяемый список активных DataNode.
+     */
+    public List<DataNodeState> snapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Отмечает heartbeat DataNode и сохраняет его нагрузку.
+     * Неизвестный DataNode добавляется (например, после перезапуска координатора или ложного признания отказавшим).
+     * Возвращает true, если DataNode был добавлен.
+     *
+     * @param address адрес DataNode.
+     * @param load    нагрузка; null - DataNode не сообщил нагрузку.
+     */
+    public boolean heartbeat(String address, DataNodeLoad load) {
+        return heartbeat(address, load, 0);
+    }
+
+    /**
+     * Отмечает heartbeat DataNode и сохраняет его нагрузку и вес в кольце консистентного хеширования.
+     * Возвращает true, если DataNode был добавлен.
+     *
+     * @param address    адрес DataNode.
+     * @param load       нагрузка; null - DataNode не сообщил нагрузку.
+     * @param ringWeight вес в кольце; 0 - DataNode не сообщил вес.
+     */
+    public boolean heartbeat(String address, DataNodeLoad load, int ringWeight) {
+        DataNodeState node = nodes.get(address);
+        boolean added = false;
+        if (node == null) {
+            added = add(address);
+            node = nodes.get(address);
+        }
+        if (node != null) {
+            node.heartbeatReceived(load, ringWeight);
+        }
+        return added;
+    }
+
+    /**
+     * Удаляет DataNode, от которых не было heartbeat с момента deadlineNanos.
+     * Список для выбора DataNode пересоздаётся один раз, сколько бы DataNode ни было удалено.
+     * Возвращает адреса удалённых DataNode.
+     *
+     * @param deadlineNanos момент по System.nanoTime().
+     */
+    public synchronized List<String> removeExpired(long deadlineNanos) {
+        List<String> removed = new ArrayList<>();
+        for (DataNodeState node : snapshot) {
+            if (node.getLastHeartbeatNanos() - deadlineNanos < 0 && nodes.remove(node.getAddress(), node)) {
+                removed.add(node.getAddress());
+            }
+        }
+        if (!removed.isEmpty()) {
+            snapshot = List.copyOf(nodes.values());
+        }
+        return removed;
+    }
+}
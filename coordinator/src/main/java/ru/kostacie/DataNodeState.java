@@ -0,0 +1,79 @@
+package ru.kostacie;
+
+import coordinator.CoordinatorProto.DataNodeLoad;
+import lombok.Getter;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Состояние DataNode, известное координатору.
+ * Нагрузка и время последнего heartbeat обновляются без блокировок, поэтому выбор DataNode
+ * и проверка доступности читают их дёшево.
+ */
+@Getter
+public class DataNodeState {
+    // Время обработки чанка для DataNode, который ещё не сообщил его
+    private static final long DEFAULT_LATENCY_MICROS = 1000;
+
+    private final String address;
+
+    // Нагрузка из последнего heartbeat; null - DataNode ещё не сообщал о нагрузке
+    private volatile DataNodeLoad load;
+
+    // Записи и чтения, назначенные DataNode после последнего heartbeat: ещё не учтены в load
+    private final AtomicInteger pendingPlacements = new AtomicInteger();
+
+    // Время последнего heartbeat (или регистрации) по System.nanoTime()
+    private volatile long lastHeartbeatNanos = System.nanoTime();
+
+    // Вес в кольце консистентного хеширования из последнего heartbeat
+    private volatile int ringWeight = 1;
+
+    public DataNodeState(String address) {
+        this.address = address;
+    }
+
+    /**
+     * Отмечает heartbeat и сохраняет нагрузку и вес в кольце из него.
+     *
+     * @param load       нагрузка; null - DataNode не сообщил нагрузку.
+     * @param ringWeight вес в кольце; 0 - DataNode не сообщил вес.
+     */
+    void heartbeatReceived(DataNodeLoad load, int ringWeight) {
+        lastHeartbeatNanos = System.nanoTime();
+        if (ringWeight > 0) {
+            this.ringWeight = ringWeight;
+        }
+        if (load != null) {
+            this.load = load;
+            pendingPlacements.set(0);
+        }
+    }
+
+    /**
+     * Учитывает запись или чтение файла, назначенные DataNode.
+     */
+    void placementAssigned() {
+        pendingPlacements.incrementAndGet();
+    }
+
+    /**
+     * Отменяет назначение, по которому передачи не будет.
+     * Если heartbeat уже сбросил назначенные передачи, счётчик не уходит ниже нуля.
+     */
+    void placementCancelled() {
+        pendingPlacements.updateAndGet(placements -> Math.max(0, placements - 1));
+    }
+
+    /**
+     * Ожидаемое время обслуживания новой передачи: число передач (по последнему heartbeat и назначенных
+     * после него), умноженное на среднее время обработки чанка.
+     */
+    public double cost() {
+        DataNodeLoad load = this.load;
+        long transfers = pendingPlacements.get() + (load != null ? load.getActiveTransfers() : 0);
+        long latency = load != null && load.getLatencyMicros() > 0 ? load.getLatencyMicros() : DEFAULT_LATENCY_MICROS;
+        return (transfers + 1.0) * latency;
+    }
+}
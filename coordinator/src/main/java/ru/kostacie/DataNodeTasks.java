@@ -0,0 +1,74 @@
+package ru.kostacie;
+
+import coordinator.CoordinatorProto.DeleteTask;
+import coordinator.CoordinatorProto.EncodeTask;
+import coordinator.CoordinatorProto.HeartbeatResponse;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Задания для DataNode, которые отправляются в ответ на их heartbeat'ы.
+ * Координатор не обращается к DataNode сам: DataNode забирает накопленные задания при следующем heartbeat.
+ * Задания хранятся только в памяти и теряются при перезапуске координатора.
+ * <p>
+ * Задание на удаление остаётся в очереди, пока DataNode не подтвердит его в следующем heartbeat:
+ * если ответ с ним потерялся, задание уходит снова. Повторное удаление безопасно.
+ * Потерянное задание перекодирования повторяет {@link CoordinatorService#retryStalledEncodes(long)}.
+ */
+public class DataNodeTasks {
+    private final Map<String, Queue<EncodeTask>> encodeTasks = new ConcurrentHashMap<>();
+    // Неподтверждённые удаления DataNode: ID задания - ID файла
+    private final Map<String, Map<Long, String>> deletions = new ConcurrentHashMap<>();
+    // ID начинаются с текущего времени, чтобы подтверждение задания, выданного до перезапуска координатора,
+    // не сняло новое задание с тем же ID
+    private final AtomicLong nextTaskId = new AtomicLong(System.currentTimeMillis() * 1000);
+
+    /**
+     * Поручает DataNode перекодировать его копию файла в полосы.
+     */
+    public void encode(String address, EncodeTask task) {
+        encodeTasks.computeIfAbsent(address, key -> new ConcurrentLinkedQueue<>()).add(task);
+    }
+
+    /**
+     * Поручает DataNode удалить файл.
+     */
+    public void delete(String address, String fileId) {
+        deletions.computeIfAbsent(address, key -> new ConcurrentSkipListMap<>())
+                .put(nextTaskId.incrementAndGet(), fileId);
+    }
+
+    /**
+     * Снимает задания на удаление, выполнение которых DataNode подтвердил.
+     */
+    public void acknowledge(String address, List<Long> taskIds) {
+        Map<Long, String> deletes = deletions.get(address);
+        if (deletes != null) {
+            taskIds.forEach(deletes::remove);
+        }
+    }
+
+    /**
+     * Переносит накопленные задания перекодирования в ответ на heartbeat DataNode
+     * и добавляет все его неподтверждённые удаления.
+     */
+    public void drainTo(String address, HeartbeatResponse.Builder response) {
+        Queue<EncodeTask> encodes = encodeTasks.get(address);
+        for (EncodeTask task = encodes != null ? encodes.poll() : null; task != null; task = encodes.poll()) {
+            response.addEncodeTasks(task);
+        }
+        Map<Long, String> deletes = deletions.get(address);
+        if (deletes != null) {
+            deletes.forEach((taskId, fileId) -> response.addDeleteTasks(DeleteTask.newBuilder()
+                    .setTaskId(taskId)
+                    .setFileId(fileId)));
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package ru.kostacie;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Обнаружение отказавших DataNode по отсутствию heartbeat'ов.
+ * <p>
+ * Один поток периодически проходит по всем DataNode и удаляет те, от которых не было heartbeat дольше таймаута.
+ * Удалённый DataNode не получает новые файлы, а чтение его файлов сразу возвращает UNAVAILABLE.
+ * Если DataNode снова пришлёт heartbeat, он будет добавлен обратно.
+ * Таймеров на каждый DataNode нет, поэтому проверка тысяч DataNode стоит одного прохода по списку.
+ */
+@Slf4j
+public class FailureDetector implements Closeable {
+    public static final long DEFAULT_TIMEOUT_MILLIS = 5000;
+    // Проверок за время таймаута: DataNode удаляется не позже чем через timeout * (1 + 1/SWEEPS_PER_TIMEOUT)
+    private static final int SWEEPS_PER_TIMEOUT = 5;
+
+    private final DataNodeRegistry dataNodes;
+    private final long timeoutNanos;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "failure-detector");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @param dataNodes     проверяемые DataNode.
+     * @param timeoutMillis время без heartbeat, после которого DataNode считается отказавшим.
+     */
+    public FailureDetector(DataNodeRegistry dataNodes, long timeoutMillis) {
+        if (timeoutMillis <= 0) {
+            throw new IllegalArgumentException("Heartbeat timeout must be positive: " + timeoutMillis);
+        }
+        this.dataNodes = dataNodes;
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    }
+
+    /**
+     * Запускает периодическую проверку.
+     */
+    public void start() {
+        long periodNanos = Math.max(timeoutNanos / SWEEPS_PER_TIMEOUT, 1);
+        executor.scheduleWithFixedDelay(() -> sweep(System.nanoTime()), periodNanos, periodNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Удаляет DataNode, от которых не было heartbeat дольше таймаута на момент nowNanos.
+     * Возвращает адреса удалённых DataNode.
+     *
+     * @param nowNanos текущий момент по System.nanoTime().
+     */
+    List<String> sweep(long nowNanos) {
+        List<String> removed = dataNodes.removeExpired(nowNanos - timeoutNanos);
+        for (String address : removed) {
+            log.warn("DataNode {} removed: no heartbeat for {} ms", address, TimeUnit.NANOSECONDS.toMillis(timeoutNanos));
+        }
+        return removed;
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
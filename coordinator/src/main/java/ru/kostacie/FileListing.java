@@ -0,0 +1,98 @@
+package ru.kostacie;
+
+import coordinator.CoordinatorProto.FileEntry;
+import coordinator.CoordinatorProto.ListFilesRequest;
+import coordinator.CoordinatorProto.ListFilesResponse;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import lombok.extern.slf4j.Slf4j;
+
+
+/**
+ * Отправка листинга путей по страницам.
+ * <p>
+ * Страница читается из {@link PathTree} только тогда, когда клиент готов её принять, и продолжается с последнего
+ * отправленного пути. Поэтому листинг каталога любого размера держит в памяти не больше одной страницы,
+ * а медленный клиент не заставляет координатор накапливать страницы.
+ */
+@Slf4j
+class FileListing {
+    private final PathTree namespace;
+    private final String prefix;
+    private final char delimiter;
+    private final int pageSize;
+    private final StreamObserver<ListFilesResponse> responseObserver;
+    private String startAfter;
+    // Сколько элементов ещё можно отправить; Long.MAX_VALUE - без ограничения
+    private long remaining;
+    private volatile boolean finished;
+
+    /**
+     * @param namespace        дерево путей.
+     * @param request          запрос листинга; delimiter не длиннее одного символа.
+     * @param pageSize         наибольшее число элементов на странице.
+     * @param responseObserver поток страниц клиенту.
+     */
+    FileListing(PathTree namespace, ListFilesRequest request, int pageSize,
+                StreamObserver<ListFilesResponse> responseObserver) {
+        this.namespace = namespace;
+        this.prefix = request.getPrefix();
+        this.delimiter = request.getDelimiter().isEmpty() ? 0 : request.getDelimiter().charAt(0);
+        this.pageSize = pageSize;
+        this.responseObserver = responseObserver;
+        this.startAfter = request.getPageToken();
+        this.remaining = request.getLimit() > 0 ? request.getLimit() : Long.MAX_VALUE;
+    }
+
+    /**
+     * Начинает отправку страниц.
+     */
+    void start() {
+        if (responseObserver instanceof ServerCallStreamObserver<ListFilesResponse> serverObserver) {
+            serverObserver.setOnCancelHandler(() -> {
+                log.debug("Listing of '{}' cancelled by client", prefix);
+                finished = true;
+            });
+            serverObserver.setOnReadyHandler(() -> drain(serverObserver));
+            drain(serverObserver);
+        } else {
+            while (!finished) {
+                sendNextPage();
+            }
+        }
+    }
+
+    /**
+     * Отправляет страницы, пока транспорт готов их принимать.
+     * Обработчики gRPC вызываются последовательно, поэтому синхронизация не нужна.
+     */
+    private void drain(ServerCallStreamObserver<ListFilesResponse> serverObserver) {
+        while (!finished && serverObserver.isReady()) {
+            sendNextPage();
+        }
+    }
+
+    private void sendNextPage() {
+        int size = (int) Math.min(pageSize, remaining);
+        ListFilesResponse.Builder page = ListFilesResponse.newBuilder();
+        // Лишний элемент показывает, есть ли следующая страница
+        int listed = namespace.list(prefix, startAfter, delimiter, size + 1, (path, directory) -> {
+            if (page.getEntriesCount() < size) {
+                page.addEntries(FileEntry.newBuilder().setPath(path).setDirectory(directory));
+            }
+        });
+        if (page.getEntriesCount() > 0) {
+            startAfter = page.getEntries(page.getEntriesCount() - 1).getPath();
+        }
+        remaining -= page.getEntriesCount();
+        boolean more = listed > size;
+        if (more) {
+            page.setNextPageToken(startAfter);
+        }
+        finished = !more || remaining == 0;
+        responseObserver.onNext(page.build());
+        if (finished) {
+            responseObserver.onCompleted();
+        }
+    }
+}
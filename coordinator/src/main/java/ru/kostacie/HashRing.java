@@ -0,0 +1,144 @@
+package ru.kostacie;
+
+import lombok.Getter;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.function.Predicate;
+
+
+/**
+ * Неизменяемое кольцо консистентного хеширования с виртуальными узлами.
+ * <p>
+ * Каждый DataNode занимает weight * virtualNodes точек кольца. Копии файла хранятся на первых различных
+ * DataNode по часовой стрелке от хеша пути. Когда DataNode добавляется или удаляется, меняются только отрезки
+ * кольца рядом с его точками, поэтому переезжает примерно 1/N файлов. Виртуальные узлы выравнивают доли
+ * DataNode: без них доля одного DataNode может отличаться от средней в разы.
+ * <p>
+ * Хеш, имена точек и ID файлов описаны в {@code GetRingResponse}: клиент строит по ним то же кольцо.
+ */
+public class HashRing {
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    @Getter
+    private final long version;
+    @Getter
+    private final int virtualNodes;
+    // Неизменяемые веса DataNode по адресам в порядке адресов
+    @Getter
+    private final Map<String, Integer> weights;
+    // Точки кольца по возрастанию и DataNode каждой точки
+    private final long[] points;
+    private final String[] owners;
+
+    /**
+     * @param version      версия кольца.
+     * @param weights      веса DataNode по адресам; вес не меньше 1.
+     * @param virtualNodes число точек кольца на единицу веса.
+     */
+    public HashRing(long version, Map<String, Integer> weights, int virtualNodes) {
+        if (virtualNodes <= 0) {
+            throw new IllegalArgumentException("Invalid number of virtual nodes: " + virtualNodes);
+        }
+        this.version = version;
+        this.virtualNodes = virtualNodes;
+        this.weights = Collections.unmodifiableMap(new TreeMap<>(weights));
+
+        int size = 0;
+        for (int weight : this.weights.values()) {
+            if (weight <= 0) {
+                throw new IllegalArgumentException("Invalid ring weight: " + weight);
+            }
+            size += weight * virtualNodes;
+        }
+        Point[] sorted = new Point[size];
+        int index = 0;
+        for (Map.Entry<String, Integer> member : this.weights.entrySet()) {
+            for (int i = 0; i < member.getValue() * virtualNodes; i++) {
+                sorted[index++] = new Point(hash(member.getKey() + "#" + i), member.getKey());
+            }
+        }
+        // При совпадении хешей порядок определяется адресом, чтобы кольцо не зависело от порядка построения
+        Arrays.sort(sorted, (a, b) -> a.hash != b.hash ? Long.compare(a.hash, b.hash) : a.owner.compareTo(b.owner));
+        this.points = new long[size];
+        this.owners = new String[size];
+        for (int i = 0; i < size; i++) {
+            points[i] = sorted[i].hash;
+            owners[i] = sorted[i].owner;
+        }
+    }
+
+    public boolean isEmpty() {
+        return points.length == 0;
+    }
+
+    /**
+     * Находит DataNode для копий файла: первые count различных DataNode по часовой стрелке от хеша ключа.
+     * Если DataNode в кольце меньше count, возвращаются все.
+     */
+    public List<String> locate(String key, int count) {
+        return locate(key, count, address -> true);
+    }
+
+    /**
+     * Находит DataNode для копий файла, пропуская неподходящие: следующие по кольцу занимают их место.
+     *
+     * @param key      ключ, например путь файла.
+     * @param count    нужное количество DataNode.
+     * @param eligible подходит ли DataNode с адресом.
+     */
+    public List<String> locate(String key, int count, Predicate<String> eligible) {
+        List<String> chosen = new ArrayList<>(Math.min(count, weights.size()));
+        if (points.length == 0) {
+            return chosen;
+        }
+        int start = Arrays.binarySearch(points, hash(key));
+        if (start < 0) {
+            start = -start - 1;
+        }
+        for (int i = 0; i < points.length && chosen.size() < count; i++) {
+            String owner = owners[(start + i) % points.length];
+            if (!chosen.contains(owner) && eligible.test(owner)) {
+                chosen.add(owner);
+            }
+        }
+        return chosen;
+    }
+
+    /**
+     * Хеш строки: FNV-1a 64 от байт UTF-8 с перемешиванием fmix64 из MurmurHash3.
+     * FNV-1a сам по себе плохо разносит строки, отличающиеся последним символом, а точки одного DataNode
+     * отличаются именно номером в конце.
+     */
+    public static long hash(String key) {
+        long hash = FNV_OFFSET_BASIS;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= FNV_PRIME;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    /**
+     * ID файла, размещённого по кольцу. Он определяется путём, поэтому клиент может читать файл,
+     * не спрашивая координатор.
+     */
+    public static String fileId(String filePath) {
+        return UUID.nameUUIDFromBytes(("ring:" + filePath).getBytes(StandardCharsets.UTF_8)).toString();
+    }
+
+    private record Point(long hash, String owner) {
+    }
+}
@@ -0,0 +1,207 @@
+package ru.kostacie;
+
+import coordinator.MetadataProto.FileRecord;
+import coordinator.MetadataProto.LogRecord;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+
+/**
+ * Хранение метаданных координатора на диске: журнал изменений и периодические снимки.
+ * <p>
+ * Каждое изменение сначала попадает в {@link WriteAheadLog}. Снимок содержит все файлы на момент перехода журнала
+ * на новый сегмент; после его записи старые сегменты удаляются. При запуске загружается снимок, затем применяются
+ * записи журнала после него. Снимок пишется без остановки записи: файлы, изменённые во время его создания,
+ * могут попасть в снимок, но их записи всё равно есть в журнале после снимка и применяются повторно.
+ * <p>
+ * Формат снимка: {@link #SNAPSHOT_MAGIC} (int), номер первой записи журнала после снимка (long),
+ * для каждого файла размер (int) и сериализованный {@link FileRecord}, затем -1 (int), количество файлов (long)
+ * и CRC32C всего предыдущего (int).
+ */
+@Slf4j
+public class MetadataStore implements AutoCloseable {
+    public static final long DEFAULT_SNAPSHOT_THRESHOLD = 1_000_000;
+
+    private static final int SNAPSHOT_MAGIC = 0x44465353;
+    private static final String SNAPSHOT_FILE = "snapshot";
+    private static final String SNAPSHOT_TEMP_FILE = "snapshot.tmp";
+    private static final int END_OF_RECORDS = -1;
+
+    private final Path dir;
+    private final long snapshotThreshold;
+    private WriteAheadLog wal;
+    // Номер первой записи журнала, которой нет в последнем снимке
+    private volatile long snapshotSequence;
+
+    /**
+     * @param dir директория для журнала и снимков.
+     */
+    public MetadataStore(Path dir) {
+        this(dir, DEFAULT_SNAPSHOT_THRESHOLD);
+    }
+
+    /**
+     * @param dir               директория для журнала и снимков.
+     * @param snapshotThreshold количество записей журнала после снимка, при котором нужен новый снимок.
+     */
+    public MetadataStore(Path dir, long snapshotThreshold) {
+        this.dir = dir;
+        this.snapshotThreshold = snapshotThreshold;
+    }
+
+    /**
+     * Загружает последний снимок и применяет записи журнала после него, затем открывает журнал для записи.
+     *
+     * @param consumer получатель файлов в порядке изменений; запись о файле заменяет предыдущую.
+     * @throws IOException если метаданные повреждены или не удалось их прочитать.
+     */
+    public void recover(Consumer<FileRecord> consumer) throws IOException {
+        Files.createDirectories(dir);
+        long start = System.nanoTime();
+        long snapshotFiles = readSnapshot(consumer);
+        long[] logRecords = new long[1];
+        long nextSequence = WriteAheadLog.replay(dir, snapshotSequence, record -> {
+            logRecords[0]++;
+            apply(record, consumer);
+        });
+        wal = new WriteAheadLog(dir, nextSequence);
+        log.info("Metadata recovered in {} ms: {} files from snapshot, {} log records",
+                (System.nanoTime() - start) / 1_000_000, snapshotFiles, logRecords[0]);
+    }
+
+    /**
+     * Записывает в журнал создание файла.
+     * Возвращает future, которое завершается, когда запись сброшена на диск.
+     */
+    public CompletableFuture<Void> putFile(FileRecord record) {
+        return wal.append(LogRecord.newBuilder().setPutFile(record).build()).thenApply(sequence -> null);
+    }
+
+    /**
+     * Проверяет, накопилось ли в журнале после последнего снимка достаточно записей для нового снимка.
+     */
+    public boolean needsSnapshot() {
+        return wal.nextSequence() - snapshotSequence >= snapshotThreshold;
+    }
+
+    /**
+     * Записывает снимок и удаляет сегменты журнала, которые в нём учтены.
+     * Записи в журнал во время создания снимка не останавливаются.
+     *
+     * @param records все файлы; итератор читается после перехода журнала на новый сегмент.
+     * @throws IOException если не удалось записать снимок.
+     */
+    public void snapshot(Iterator<FileRecord> records) throws IOException {
+        long start = System.nanoTime();
+        long sequence;
+        try {
+            sequence = wal.roll().join();
+        } catch (CompletionException e) {
+            throw new IOException("Failed to roll metadata log: " + e.getCause().getMessage(), e.getCause());
+        }
+
+        Path temp = dir.resolve(SNAPSHOT_TEMP_FILE);
+        long count = 0;
+        try (FileOutputStream file = new FileOutputStream(temp.toFile())) {
+            CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(file), new CRC32C());
+            DataOutputStream out = new DataOutputStream(checked);
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeLong(sequence);
+            while (records.hasNext()) {
+                FileRecord record = records.next();
+                out.writeInt(record.getSerializedSize());
+                record.writeTo(out);
+                count++;
+            }
+            out.writeInt(END_OF_RECORDS);
+            out.writeLong(count);
+            out.writeInt((int) checked.getChecksum().getValue());
+            out.flush();
+            file.getFD().sync();
+        }
+        Files.move(temp, dir.resolve(SNAPSHOT_FILE), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        WriteAheadLog.syncDirectory(dir);
+        snapshotSequence = sequence;
+        wal.deleteSegmentsBefore(sequence);
+        log.info("Metadata snapshot written in {} ms: {} files, log continues from record {}",
+                (System.nanoTime() - start) / 1_000_000, count, sequence);
+    }
+
+    /**
+     * Возвращает счётчики журнала: имя метрики и её значение.
+     */
+    public Map<String, Long> getMetrics() {
+        Map<String, Long> metrics = new LinkedHashMap<>(wal.getMetrics());
+        metrics.put("wal.recordsSinceSnapshot", wal.nextSequence() - snapshotSequence);
+        return metrics;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (wal != null) {
+            wal.close();
+        }
+    }
+
+    /**
+     * Читает снимок, если он есть. Возвращает количество файлов в нём.
+     */
+    private long readSnapshot(Consumer<FileRecord> consumer) throws IOException {
+        Path snapshot = dir.resolve(SNAPSHOT_FILE);
+        if (!Files.exists(snapshot)) {
+            snapshotSequence = 0;
+            return 0;
+        }
+        try (InputStream file = Files.newInputStream(snapshot)) {
+            CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(file), new CRC32C());
+            DataInputStream in = new DataInputStream(checked);
+            if (in.readInt() != SNAPSHOT_MAGIC) {
+                throw new IOException("Not a metadata snapshot: " + snapshot);
+            }
+            long sequence = in.readLong();
+            long count = 0;
+            for (int size = in.readInt(); size != END_OF_RECORDS; size = in.readInt()) {
+                if (size < 0) {
+                    throw new IOException("Metadata snapshot is corrupted: " + snapshot);
+                }
+                byte[] data = new byte[size];
+                in.readFully(data);
+                consumer.accept(FileRecord.parseFrom(data));
+                count++;
+            }
+            boolean countMatches = in.readLong() == count;
+            int expectedChecksum = (int) checked.getChecksum().getValue();
+            if (!countMatches || in.readInt() != expectedChecksum) {
+                throw new IOException("Metadata snapshot is corrupted: " + snapshot);
+            }
+            snapshotSequence = sequence;
+            return count;
+        }
+    }
+
+    private static void apply(LogRecord record, Consumer<FileRecord> consumer) {
+        switch (record.getMutationCase()) {
+            case PUT_FILE -> consumer.accept(record.getPutFile());
+            default -> log.warn("Skipping unknown metadata log record: {}", record.getMutationCase());
+        }
+    }
+}
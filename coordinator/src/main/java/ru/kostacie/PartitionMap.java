@@ -0,0 +1,87 @@
+package ru.kostacie;
+
+import coordinator.CoordinatorProto.GetPartitionMapResponse;
+import coordinator.CoordinatorProto.Partition;
+import io.grpc.Metadata;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * Разбиение пространства путей между координаторами.
+ * <p>
+ * Путь принадлежит координатору, в диапазон которого попадает хеш пути ({@link HashRing#hash} без знакового бита).
+ * Хеш разносит файлы одного каталога по всем координаторам, поэтому нагрузка массовой записи в каталог
+ * делится между ними. Координатор отвечает на запрос о чужом пути ошибкой FAILED_PRECONDITION с адресом
+ * владельца в метаданных {@link #REDIRECT_ADDRESS}: клиент повторяет запрос там и обновляет свою копию карты.
+ */
+public class PartitionMap {
+    // Адрес координатора, которому принадлежит путь, в метаданных ошибки
+    public static final Metadata.Key<String> REDIRECT_ADDRESS =
+            Metadata.Key.of("redirect-address", Metadata.ASCII_STRING_MARSHALLER);
+
+    // Начала диапазонов хешей по возрастанию: диапазон продолжается до начала следующего
+    private final long[] starts;
+    private final String[] addresses;
+
+    private PartitionMap(long[] starts, String[] addresses) {
+        this.starts = starts;
+        this.addresses = addresses;
+    }
+
+    /**
+     * Делит хеши путей на равные диапазоны по числу координаторов.
+     *
+     * @param addresses адреса координаторов в порядке диапазонов.
+     */
+    public static PartitionMap uniform(List<String> addresses) {
+        if (addresses.isEmpty()) {
+            throw new IllegalArgumentException("No coordinators");
+        }
+        long rangeSize = Long.MAX_VALUE / addresses.size() + 1;
+        long[] starts = new long[addresses.size()];
+        for (int i = 0; i < starts.length; i++) {
+            starts[i] = i * rangeSize;
+        }
+        return new PartitionMap(starts, addresses.toArray(String[]::new));
+    }
+
+    public int size() {
+        return addresses.length;
+    }
+
+    /**
+     * Номер координатора, которому принадлежит путь.
+     */
+    public int partitionOf(String filePath) {
+        int index = Arrays.binarySearch(starts, HashRing.hash(filePath) >>> 1);
+        return index >= 0 ? index : -index - 2;
+    }
+
+    public String address(int partition) {
+        return addresses[partition];
+    }
+
+    /**
+     * Ошибка для запроса о пути, принадлежащем другому координатору.
+     */
+    public StatusRuntimeException redirect(String filePath) {
+        String owner = addresses[partitionOf(filePath)];
+        Metadata trailers = new Metadata();
+        trailers.put(REDIRECT_ADDRESS, owner);
+        return Status.FAILED_PRECONDITION
+                .withDescription("File path '" + filePath + "' belongs to coordinator " + owner)
+                .asRuntimeException(trailers);
+    }
+
+    public GetPartitionMapResponse toProto() {
+        GetPartitionMapResponse.Builder response = GetPartitionMapResponse.newBuilder();
+        for (int i = 0; i < starts.length; i++) {
+            response.addPartitions(Partition.newBuilder().setStartHash(starts[i]).setAddress(addresses[i]));
+        }
+        return response.build();
+    }
+}
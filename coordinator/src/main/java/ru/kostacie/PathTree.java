@@ -0,0 +1,351 @@
+package ru.kostacie;
+
+import java.util.Arrays;
+
+
+/**
+ * Сжатое префиксное дерево (radix tree) путей файлов для листинга по префиксу.
+ * <p>
+ * Каждый узел хранит только свой участок пути, поэтому общие префиксы (каталоги) хранятся один раз.
+ * Дети узла упорядочены по первому символу, и обход дерева выдаёт пути в лексикографическом порядке.
+ * Продолжение листинга с заданного пути спускается прямо к нему, не перебирая предыдущие пути,
+ * поэтому каждая страница большого каталога стоит O(глубина + размер страницы).
+ * <p>
+ * Изменения выполняются под блокировкой и копируют только массив детей изменяемого узла, а участки путей
+ * узлов не меняются. Поэтому листинг и поиск идут без блокировок и видят согласованное дерево.
+ */
+public class PathTree {
+    private static final Node[] NO_CHILDREN = new Node[0];
+
+    private final Node root = new Node("", false, NO_CHILDREN);
+    private volatile int size;
+
+    /**
+     * Получатель элементов листинга.
+     */
+    @FunctionalInterface
+    public interface EntryConsumer {
+        /**
+         * @param path      путь файла или общий префикс до разделителя включительно.
+         * @param directory true, если это общий префикс нескольких путей.
+         */
+        void accept(String path, boolean directory);
+    }
+
+    /**
+     * Добавляет путь. Возвращает false, если он уже добавлен.
+     */
+    public synchronized boolean add(String path) {
+        Node node = root;
+        int position = 0;
+        while (position < path.length()) {
+            Node[] children = node.children;
+            int index = indexOf(children, path.charAt(position));
+            if (index < 0) {
+                node.children = insert(children, -index - 1, new Node(path.substring(position), true, NO_CHILDREN));
+                size++;
+                return true;
+            }
+            Node child = children[index];
+            int common = commonLength(child.label, path, position);
+            if (common < child.label.length()) {
+                // Путь расходится с участком ребёнка: ребёнок делится на общую часть и остаток.
+                // Ребёнок не меняется, а заменяется новыми узлами, чтобы листинг видел дерево целиком старым или новым
+                Node rest = new Node(child.label.substring(common), child.terminal, child.children);
+                String shared = child.label.substring(0, common);
+                Node split;
+                if (position + common == path.length()) {
+                    split = new Node(shared, true, new Node[]{rest});
+                } else {
+                    Node leaf = new Node(path.substring(position + common), true, NO_CHILDREN);
+                    split = new Node(shared, false, rest.label.charAt(0) < leaf.label.charAt(0)
+                            ? new Node[]{rest, leaf}
+                            : new Node[]{leaf, rest});
+                }
+                node.children = replace(children, index, split);
+                size++;
+                return true;
+            }
+            node = child;
+            position += common;
+        }
+        if (node.terminal) {
+            return false;
+        }
+        node.terminal = true;
+        size++;
+        return true;
+    }
+
+    /**
+     * Удаляет путь. Возвращает false, если его не было.
+     * Узлы, оставшиеся без путей, удаляются, а узел с единственным ребёнком сливается с ним.
+     */
+    public synchronized boolean remove(String path) {
+        Node grandparent = null;
+        Node parent = null;
+        Node node = root;
+        int position = 0;
+        while (position < path.length()) {
+            Node child = find(node, path, position);
+            if (child == null) {
+                return false;
+            }
+            grandparent = parent;
+            parent = node;
+            node = child;
+            position += child.label.length();
+        }
+        if (!node.terminal) {
+            return false;
+        }
+        node.terminal = false;
+        size--;
+        if (parent == null) {
+            return true;
+        }
+        Node[] children = node.children;
+        if (children.length == 1) {
+            replaceChild(parent, node, merge(node, children[0]));
+        } else if (children.length == 0) {
+            Node[] siblings = parent.children;
+            parent.children = delete(siblings, indexOf(siblings, node.label.charAt(0)));
+            // Родитель без пути с одним оставшимся ребёнком больше не нужен
+            if (grandparent != null && !parent.terminal && parent.children.length == 1) {
+                replaceChild(grandparent, parent, merge(parent, parent.children[0]));
+            }
+        }
+        return true;
+    }
+
+    public boolean contains(String path) {
+        Node node = root;
+        int position = 0;
+        while (position < path.length()) {
+            node = find(node, path, position);
+            if (node == null) {
+                return false;
+            }
+            position += node.label.length();
+        }
+        return node.terminal;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Перечисляет пути с префиксом в лексикографическом порядке.
+     *
+     * @param prefix     префикс путей.
+     * @param startAfter путь, после которого начинается перечисление; пустая строка - с начала.
+     * @param delimiter  разделитель каталогов: пути, в которых после префикса есть разделитель, заменяются общим
+     *                   префиксом до разделителя включительно, как содержимое каталога; 0 - без группировки.
+     * @param limit      наибольшее число элементов.
+     * @param consumer   получатель элементов.
+     * @return число перечисленных элементов.
+     */
+    public int list(String prefix, String startAfter, char delimiter, int limit, EntryConsumer consumer) {
+        Listing listing = new Listing(prefix, startAfter, delimiter, limit, consumer);
+        if (limit > 0) {
+            listing.visit(root, new StringBuilder(), false);
+        }
+        return limit - listing.remaining;
+    }
+
+    /**
+     * Обход дерева для одного листинга.
+     */
+    private static final class Listing {
+        private final String prefix;
+        private final String startAfter;
+        private final char delimiter;
+        private final EntryConsumer consumer;
+        private int remaining;
+
+        Listing(String prefix, String startAfter, char delimiter, int limit, EntryConsumer consumer) {
+            this.prefix = prefix;
+            this.startAfter = startAfter;
+            this.delimiter = delimiter;
+            this.remaining = limit;
+            this.consumer = consumer;
+        }
+
+        /**
+         * Перечисляет пути поддерева узла. Возвращает false, когда набрано limit элементов.
+         *
+         * @param path  путь до узла; узел дописывает свой участок и убирает его перед возвратом.
+         * @param after true, если все пути поддерева заведомо больше startAfter.
+         */
+        boolean visit(Node node, StringBuilder path, boolean after) {
+            int start = path.length();
+            path.append(node.label);
+            try {
+                int length = path.length();
+                // Путь узла должен совпадать с префиксом на общей длине
+                int checked = Math.min(length, prefix.length());
+                for (int i = start; i < checked; i++) {
+                    if (path.charAt(i) != prefix.charAt(i)) {
+                        return true;
+                    }
+                }
+                if (!after) {
+                    int order = compareToStart(path);
+                    if (order < 0) {
+                        return true;
+                    }
+                    after = order > 0;
+                }
+                if (length >= prefix.length() && delimiter != 0) {
+                    int index = indexOf(path, delimiter, Math.max(start, prefix.length()));
+                    if (index >= 0) {
+                        // Всё поддерево лежит в одном каталоге, и больше он нигде не встретится.
+                        // after тут не годится: путь узла может быть больше startAfter, а сам каталог - равен ему
+                        String directory = path.substring(0, index + 1);
+                        if (directory.compareTo(startAfter) > 0) {
+                            return emit(directory, true);
+                        }
+                        return true;
+                    }
+                }
+                if (node.terminal && length >= prefix.length() && after && !emit(path.toString(), false)) {
+                    return false;
+                }
+                Node[] children = node.children;
+                int from = 0;
+                if (length < prefix.length()) {
+                    // До конца префикса подходит не больше одного ребёнка
+                    int index = PathTree.indexOf(children, prefix.charAt(length));
+                    return index < 0 || visit(children[index], path, after);
+                }
+                if (!after && length < startAfter.length()) {
+                    // Дети с меньшим первым символом целиком лежат до startAfter
+                    int index = PathTree.indexOf(children, startAfter.charAt(length));
+                    from = index < 0 ? -index - 1 : index;
+                }
+                for (int i = from; i < children.length; i++) {
+                    if (!visit(children[i], path, after)) {
+                        return false;
+                    }
+                }
+                return true;
+            } finally {
+                path.setLength(start);
+            }
+        }
+
+        /**
+         * Сравнивает путь узла с startAfter: отрицательное число - все пути поддерева меньше startAfter,
+         * положительное - все больше, 0 - путь узла является префиксом startAfter.
+         */
+        private int compareToStart(CharSequence path) {
+            int length = Math.min(path.length(), startAfter.length());
+            for (int i = 0; i < length; i++) {
+                int difference = path.charAt(i) - startAfter.charAt(i);
+                if (difference != 0) {
+                    return difference;
+                }
+            }
+            return path.length() > startAfter.length() ? 1 : 0;
+        }
+
+        private boolean emit(String path, boolean directory) {
+            consumer.accept(path, directory);
+            return --remaining > 0;
+        }
+
+        private static int indexOf(CharSequence path, char c, int from) {
+            for (int i = from; i < path.length(); i++) {
+                if (path.charAt(i) == c) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    private static Node find(Node node, String path, int position) {
+        Node[] children = node.children;
+        int index = indexOf(children, path.charAt(position));
+        if (index < 0) {
+            return null;
+        }
+        Node child = children[index];
+        return path.startsWith(child.label, position) ? child : null;
+    }
+
+    private static Node merge(Node parent, Node child) {
+        return new Node(parent.label + child.label, child.terminal, child.children);
+    }
+
+    private static void replaceChild(Node parent, Node child, Node replacement) {
+        Node[] children = parent.children;
+        parent.children = replace(children, indexOf(children, child.label.charAt(0)), replacement);
+    }
+
+    /**
+     * Бинарный поиск ребёнка по первому символу; если его нет - (-(точка вставки) - 1).
+     */
+    private static int indexOf(Node[] children, char first) {
+        int low = 0;
+        int high = children.length - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            char c = children[middle].label.charAt(0);
+            if (c < first) {
+                low = middle + 1;
+            } else if (c > first) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -low - 1;
+    }
+
+    private static int commonLength(String label, String path, int position) {
+        int length = Math.min(label.length(), path.length() - position);
+        int i = 0;
+        while (i < length && label.charAt(i) == path.charAt(position + i)) {
+            i++;
+        }
+        return i;
+    }
+
+    private static Node[] insert(Node[] children, int index, Node child) {
+        Node[] result = new Node[children.length + 1];
+        System.arraycopy(children, 0, result, 0, index);
+        result[index] = child;
+        System.arraycopy(children, index, result, index + 1, children.length - index);
+        return result;
+    }
+
+    private static Node[] replace(Node[] children, int index, Node child) {
+        Node[] result = Arrays.copyOf(children, children.length);
+        result[index] = child;
+        return result;
+    }
+
+    private static Node[] delete(Node[] children, int index) {
+        Node[] result = new Node[children.length - 1];
+        System.arraycopy(children, 0, result, 0, index);
+        System.arraycopy(children, index + 1, result, index, children.length - index - 1);
+        return result;
+    }
+
+    private static final class Node {
+        // Участок пути от родителя до узла; у всех узлов, кроме корня, непустой
+        private final String label;
+        // Заканчивается ли в узле путь файла
+        private volatile boolean terminal;
+        // Дети, упорядоченные по первому символу участка; массив не меняется, а заменяется целиком
+        private volatile Node[] children;
+
+        Node(String label, boolean terminal, Node[] children) {
+            this.label = label;
+            this.terminal = terminal;
+            this.children = children;
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package ru.kostacie;
+
+import java.util.List;
+
+
+/**
+ * Политика выбора DataNode для нового файла.
+ */
+public interface PlacementPolicy {
+    /**
+     * Выбирает различные DataNode для копий файла, в порядке цепочки репликации.
+     * Возвращает меньше count DataNode (или пустой список), если места для файла хватает на меньшем числе DataNode.
+     *
+     * @param nodes    неизменяемый непустой список активных DataNode.
+     * @param fileSize размер файла в байтах; 0 - неизвестен.
+     * @param count    нужное количество копий.
+     */
+    List<DataNodeState> choose(List<DataNodeState> nodes, long fileSize, int count);
+
+    /**
+     * Выбирает DataNode для копий файла с известным путём.
+     * Политики, которые размещают файл по его пути, переопределяют этот метод; остальные путь не учитывают.
+     *
+     * @param filePath путь файла.
+     * @param nodes    неизменяемый непустой список активных DataNode.
+     * @param fileSize размер файла в байтах; 0 - неизвестен.
+     * @param count    нужное количество копий.
+     */
+    default List<DataNodeState> choose(String filePath, List<DataNodeState> nodes, long fileSize, int count) {
+        return choose(nodes, fileSize, count);
+    }
+}
@@ -0,0 +1,75 @@
+package ru.kostacie;
+
+import coordinator.CoordinatorProto.DataNodeLoad;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+
+/**
+ * Выбор менее нагруженного из двух случайных DataNode, на которых хватает места, для каждой копии файла.
+ * <p>
+ * Нагрузка оценивается по {@link DataNodeState#cost()}. Выбор из двух случайных DataNode, а не самого
+ * свободного, не даёт всем записям между heartbeat'ами уйти на один DataNode.
+ */
+public class PowerOfTwoChoicesPolicy implements PlacementPolicy {
+    // Место, которое должно остаться на DataNode после записи файла
+    public static final long DEFAULT_RESERVED_BYTES = 1024L * 1024 * 1024;
+    private static final int SAMPLE_ATTEMPTS = 4;
+
+    private final long reservedBytes;
+
+    public PowerOfTwoChoicesPolicy() {
+        this(DEFAULT_RESERVED_BYTES);
+    }
+
+    /**
+     * @param reservedBytes место, которое должно остаться на DataNode после записи файла.
+     */
+    public PowerOfTwoChoicesPolicy(long reservedBytes) {
+        this.reservedBytes = reservedBytes;
+    }
+
+    @Override
+    public List<DataNodeState> choose(List<DataNodeState> nodes, long fileSize, int count) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        List<DataNodeState> chosen = new ArrayList<>(count);
+        while (chosen.size() < count) {
+            DataNodeState first = sample(nodes, fileSize, chosen, random);
+            if (first == null) {
+                break;
+            }
+            DataNodeState second = sample(nodes, fileSize, chosen, random);
+            chosen.add(second.cost() < first.cost() ? second : first);
+        }
+        return chosen;
+    }
+
+    /**
+     * Выбирает случайный DataNode, на котором хватает места и который ещё не выбран.
+     */
+    private DataNodeState sample(List<DataNodeState> nodes, long fileSize, List<DataNodeState> chosen,
+                                 ThreadLocalRandom random) {
+        for (int attempt = 0; attempt < SAMPLE_ATTEMPTS; attempt++) {
+            DataNodeState node = nodes.get(random.nextInt(nodes.size()));
+            if (fits(node, fileSize) && !chosen.contains(node)) {
+                return node;
+            }
+        }
+        // Большинство DataNode заполнены или уже выбраны: ищем подходящий перебором со случайного места
+        int start = random.nextInt(nodes.size());
+        for (int i = 0; i < nodes.size(); i++) {
+            DataNodeState node = nodes.get((start + i) % nodes.size());
+            if (fits(node, fileSize) && !chosen.contains(node)) {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    private boolean fits(DataNodeState node, long fileSize) {
+        DataNodeLoad load = node.getLoad();
+        return load == null || load.getFreeBytes() - fileSize >= reservedBytes;
+    }
+}
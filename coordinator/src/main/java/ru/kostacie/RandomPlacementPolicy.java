@@ -0,0 +1,20 @@
+package ru.kostacie;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+
+/**
+ * Случайный выбор DataNode без учёта нагрузки и свободного места.
+ */
+public class RandomPlacementPolicy implements PlacementPolicy {
+
+    @Override
+    public List<DataNodeState> choose(List<DataNodeState> nodes, long fileSize, int count) {
+        List<DataNodeState> shuffled = new ArrayList<>(nodes);
+        Collections.shuffle(shuffled, ThreadLocalRandom.current());
+        return shuffled.subList(0, Math.min(count, shuffled.size()));
+    }
+}
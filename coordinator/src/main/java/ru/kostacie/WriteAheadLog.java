@@ -0,0 +1,402 @@
+package ru.kostacie;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import coordinator.MetadataProto.LogRecord;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
+
+
+/**
+ * Журнал изменений метаданных координатора с групповой фиксацией.
+ * <p>
+ * Записи хранятся в сегментах wal-N.log, где N - номер первой записи сегмента. Запись на диске - длина данных (int),
+ * CRC32C номера и данных (int), номер (long) и сериализованный {@link LogRecord}.
+ * Записи пишет один поток: всё, что добавили, пока сбрасывалась на диск предыдущая группа,
+ * уходит следующей группой одним write и одним force.
+ */
+@Slf4j
+class WriteAheadLog implements Closeable {
+    private static final String SEGMENT_PREFIX = "wal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final int HEADER_SIZE = Integer.BYTES * 2 + Long.BYTES;
+    private static final int MAX_RECORD_SIZE = 16 * 1024 * 1024;
+
+    private final Path dir;
+    private final Thread writer;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition pendingCondition = lock.newCondition();
+    private List<Entry> pending = new ArrayList<>();
+    private long nextSequence;
+    private IOException failure;
+    private boolean closed;
+
+    // Используется только потоком записи
+    private FileChannel channel;
+
+    private final AtomicLong records = new AtomicLong();
+    private final AtomicLong commits = new AtomicLong();
+
+    /**
+     * Открывает новый сегмент для записи.
+     *
+     * @param dir          директория журнала.
+     * @param nextSequence номер следующей записи, см. {@link #replay(Path, long, Consumer)}.
+     * @throws IOException если не удалось создать сегмент.
+     */
+    WriteAheadLog(Path dir, long nextSequence) throws IOException {
+        this.dir = dir;
+        this.nextSequence = nextSequence;
+        this.channel = openSegment(nextSequence);
+        this.writer = new Thread(this::writeLoop, "metadata-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Читает записи журнала с номера fromSequence и передаёт их consumer по порядку.
+     * Недописанная запись в конце последнего сегмента (сбой во время записи) отрезается.
+     * Возвращает номер, с которого надо продолжать журнал.
+     *
+     * @param dir          директория журнала.
+     * @param fromSequence номер первой нужной записи; более ранние уже есть в снимке.
+     * @param consumer     получатель записей.
+     * @throws IOException если журнал повреждён не в конце или не удалось его прочитать.
+     */
+    static long replay(Path dir, long fromSequence, Consumer<LogRecord> consumer) throws IOException {
+        List<Path> segments = segments(dir);
+        long next = fromSequence;
+        for (int i = 0; i < segments.size(); i++) {
+            // Все записи сегмента есть в снимке, если следующий сегмент начинается не позже fromSequence
+            if (i + 1 < segments.size() && firstSequence(segments.get(i + 1)) <= fromSequence) {
+                continue;
+            }
+            next = replaySegment(segments.get(i), fromSequence, next, i == segments.size() - 1, consumer);
+        }
+        return next;
+    }
+
+    /**
+     * Добавляет запись в журнал.
+     * Возвращает future, которое завершается номером записи, когда запись сброшена на диск.
+     */
+    CompletableFuture<Long> append(LogRecord record) {
+        byte[] data = record.toByteArray();
+        if (data.length > MAX_RECORD_SIZE) {
+            return CompletableFuture.failedFuture(new IOException("Metadata record is too large: " + data.length));
+        }
+        return enqueue(data);
+    }
+
+    /**
+     * Начинает новый сегмент.
+     * Возвращает future, которое завершается номером первой записи нового сегмента,
+     * когда все записи до него сброшены на диск.
+     */
+    CompletableFuture<Long> roll() {
+        return enqueue(null);
+    }
+
+    /**
+     * Возвращает номер следующей записи.
+     */
+    long nextSequence() {
+        lock.lock();
+        try {
+            return nextSequence;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Удаляет сегменты, все записи которых имеют номер меньше sequence.
+     *
+     * @throws IOException если не удалось удалить сегмент.
+     */
+    void deleteSegmentsBefore(long sequence) throws IOException {
+        List<Path> segments = segments(dir);
+        for (int i = 0; i + 1 < segments.size(); i++) {
+            if (firstSequence(segments.get(i + 1)) > sequence) {
+                break;
+            }
+            Files.delete(segments.get(i));
+        }
+    }
+
+    /**
+     * Возвращает счётчики журнала: имя метрики и её значение.
+     */
+    Map<String, Long> getMetrics() {
+        Map<String, Long> metrics = new LinkedHashMap<>();
+        metrics.put("wal.records", records.get());
+        metrics.put("wal.commits", commits.get());
+        return metrics;
+    }
+
+    /**
+     * Дописывает уже добавленные записи и закрывает журнал.
+     */
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            closed = true;
+            pendingCondition.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+    }
+
+    /**
+     * Синхронизирует директорию, чтобы созданные и переименованные файлы пережили сбой.
+     */
+    static void syncDirectory(Path dir) {
+        try (FileChannel directory = FileChannel.open(dir, StandardOpenOption.READ)) {
+            directory.force(true);
+        } catch (IOException e) {
+            // Не все платформы позволяют открыть директорию
+            log.debug("Failed to sync directory {}: {}", dir, e.getMessage());
+        }
+    }
+
+    private CompletableFuture<Long> enqueue(byte[] data) {
+        lock.lock();
+        try {
+            if (failure != null) {
+                return CompletableFuture.failedFuture(failure);
+            }
+            if (closed) {
+                return CompletableFuture.failedFuture(new IOException("Metadata log is closed"));
+            }
+            Entry entry = new Entry(data == null ? nextSequence : nextSequence++, data, new CompletableFuture<>());
+            pending.add(entry);
+            pendingCondition.signal();
+            return entry.future();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void writeLoop() {
+        while (true) {
+            List<Entry> batch;
+            IOException failed;
+            lock.lock();
+            try {
+                while (pending.isEmpty() && !closed) {
+                    pendingCondition.awaitUninterruptibly();
+                }
+                if (pending.isEmpty()) {
+                    return;
+                }
+                batch = pending;
+                pending = new ArrayList<>();
+                failed = failure;
+            } finally {
+                lock.unlock();
+            }
+            if (failed != null) {
+                // После ошибки записи порядок на диске не гарантирован, поэтому дальше журнал не пишется
+                batch.forEach(entry -> entry.future().completeExceptionally(failed));
+            } else {
+                writeBatch(batch);
+            }
+        }
+    }
+
+    /**
+     * Пишет группу записей, сбрасывает её на диск и только затем завершает future записей.
+     */
+    private void writeBatch(List<Entry> batch) {
+        int from = 0;
+        try {
+            for (int i = 0; i < batch.size(); i++) {
+                Entry entry = batch.get(i);
+                if (entry.data() == null) {
+                    commit(batch, from, i);
+                    channel.close();
+                    channel = openSegment(entry.sequence());
+                    entry.future().complete(entry.sequence());
+                    from = i + 1;
+                }
+            }
+            commit(batch, from, batch.size());
+        } catch (IOException e) {
+            log.error("Failed to write metadata log: {}", e.getMessage(), e);
+            lock.lock();
+            try {
+                failure = e;
+            } finally {
+                lock.unlock();
+            }
+            for (int i = from; i < batch.size(); i++) {
+                batch.get(i).future().completeExceptionally(e);
+            }
+        }
+    }
+
+    private void commit(List<Entry> batch, int from, int to) throws IOException {
+        if (from == to) {
+            return;
+        }
+        int size = 0;
+        for (int i = from; i < to; i++) {
+            size += HEADER_SIZE + batch.get(i).data().length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        CRC32C crc = new CRC32C();
+        for (int i = from; i < to; i++) {
+            Entry entry = batch.get(i);
+            crc.reset();
+            crc.update(ByteBuffer.allocate(Long.BYTES).putLong(0, entry.sequence()));
+            crc.update(entry.data());
+            buffer.putInt(entry.data().length)
+                    .putInt((int) crc.getValue())
+                    .putLong(entry.sequence())
+                    .put(entry.data());
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        channel.force(false);
+
+        records.addAndGet(to - from);
+        commits.incrementAndGet();
+        for (int i = from; i < to; i++) {
+            Entry entry = batch.get(i);
+            entry.future().complete(entry.sequence());
+        }
+    }
+
+    private FileChannel openSegment(long firstSequence) throws IOException {
+        Path segment = dir.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, firstSequence, SEGMENT_SUFFIX));
+        FileChannel segmentChannel = FileChannel.open(segment,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        syncDirectory(dir);
+        return segmentChannel;
+    }
+
+    /**
+     * Читает один сегмент. Возвращает номер записи, следующей за последней прочитанной.
+     */
+    private static long replaySegment(Path segment, long fromSequence, long next, boolean last,
+                                      Consumer<LogRecord> consumer) throws IOException {
+        try (FileChannel segmentChannel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = segmentChannel.size();
+            long position = 0;
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            CRC32C crc = new CRC32C();
+            while (position < size) {
+                String error = null;
+                ByteBuffer data = null;
+                long sequence = -1;
+                if (size - position < HEADER_SIZE) {
+                    error = "truncated record header";
+                } else {
+                    readFully(segmentChannel, header.clear(), position);
+                    int length = header.getInt(0);
+                    int checksum = header.getInt(Integer.BYTES);
+                    sequence = header.getLong(Integer.BYTES * 2);
+                    if (length < 0 || length > MAX_RECORD_SIZE || size - position - HEADER_SIZE < length) {
+                        error = "truncated record";
+                    } else {
+                        data = readFully(segmentChannel, ByteBuffer.allocate(length), position + HEADER_SIZE);
+                        crc.reset();
+                        crc.update(header.duplicate().position(Integer.BYTES * 2));
+                        crc.update(data.duplicate());
+                        if ((int) crc.getValue() != checksum) {
+                            error = "checksum mismatch";
+                        }
+                    }
+                }
+                if (error != null) {
+                    if (!last) {
+                        throw new IOException("Metadata log " + segment + " is corrupted at " + position + ": " + error);
+                    }
+                    // Запись не была подтверждена: сбой произошёл во время её записи
+                    log.warn("Truncating metadata log {} at {}: {}", segment, position, error);
+                    segmentChannel.truncate(position);
+                    segmentChannel.force(true);
+                    break;
+                }
+                if (sequence >= fromSequence) {
+                    if (sequence != next) {
+                        throw new IOException("Metadata log " + segment + " has a gap: expected record "
+                                + next + ", found " + sequence);
+                    }
+                    consumer.accept(parse(data, segment, sequence));
+                    next = sequence + 1;
+                }
+                position += HEADER_SIZE + data.limit();
+            }
+        }
+        return next;
+    }
+
+    private static LogRecord parse(ByteBuffer data, Path segment, long sequence) throws IOException {
+        try {
+            return LogRecord.parseFrom(data);
+        } catch (InvalidProtocolBufferException e) {
+            throw new IOException("Malformed record " + sequence + " in metadata log " + segment, e);
+        }
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, ByteBuffer target, long position) throws IOException {
+        while (target.hasRemaining()) {
+            if (channel.read(target, position + target.position()) < 0) {
+                throw new IOException("Unexpected end of metadata log");
+            }
+        }
+        return target.flip();
+    }
+
+    /**
+     * Возвращает сегменты журнала в порядке номеров.
+     */
+    private static List<Path> segments(Path dir) throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            stream.forEach(segments::add);
+        }
+        segments.sort(Comparator.comparingLong(WriteAheadLog::firstSequence));
+        return segments;
+    }
+
+    private static long firstSequence(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    /**
+     * Запись в очереди; data == null - переход на новый сегмент.
+     */
+    private record Entry(long sequence, byte[] data, CompletableFuture<Long> future) {
+    }
+}
@@ -0,0 +1,117 @@
+package ru.kostacie;
+
+import coordinator.CoordinatorGrpc;
+import coordinator.CoordinatorProto.*;
+import io.grpc.Grpc;
+import io.grpc.InsecureChannelCredentials;
+import io.grpc.InsecureServerCredentials;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Время назначения DataNode для {@code FILES} файлов массовой загрузки через gRPC на localhost.
+ * <p>
+ * batchSize = 1 - отдельный WriteFile на каждый файл, то есть FILES обращений к координатору;
+ * иначе WriteFiles пакетами по batchSize файлов, то есть FILES / batchSize обращений.
+ * Координатор пишет метаданные в журнал на диске, как в работе.
+ * <p>
+ * Запуск: {@code mvn -pl coordinator test-compile}, затем {@link #main(String[])} с test-classpath модуля.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class BulkIngestBenchmark {
+    private static final int FILES = 10_000;
+
+    @Param({"1", "100", "1000"})
+    private int batchSize;
+
+    private final AtomicLong counter = new AtomicLong();
+    private Path metadataDir;
+    private CoordinatorService coordinatorService;
+    private Server server;
+    private ManagedChannel channel;
+    private CoordinatorGrpc.CoordinatorBlockingStub stub;
+
+    @Setup
+    public void setUp() throws IOException {
+        metadataDir = Files.createTempDirectory("bulk-ingest-benchmark");
+        coordinatorService = new CoordinatorService(new MetadataStore(metadataDir, Long.MAX_VALUE));
+        coordinatorService.recoverMetadata();
+        server = Grpc.newServerBuilderForPort(0, InsecureServerCredentials.create())
+                .addService(coordinatorService)
+                .build()
+                .start();
+        channel = Grpc.newChannelBuilder("localhost:" + server.getPort(), InsecureChannelCredentials.create()).build();
+        stub = CoordinatorGrpc.newBlockingStub(channel);
+        for (int port = 5001; port <= 5003; port++) {
+            stub.heartbeat(HeartbeatRequest.newBuilder()
+                    .setAddress("localhost:" + port)
+                    .setLoad(DataNodeLoad.newBuilder().setFreeBytes(1L << 50))
+                    .build());
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException, InterruptedException {
+        channel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        server.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        coordinatorService.getMetadataStore().close();
+        try (Stream<Path> files = Files.walk(metadataDir)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Benchmark
+    public int ingest() {
+        int placed = 0;
+        if (batchSize == 1) {
+            for (int i = 0; i < FILES; i++) {
+                stub.writeFile(request());
+                placed++;
+            }
+            return placed;
+        }
+        for (int i = 0; i < FILES; i += batchSize) {
+            WriteFilesRequest.Builder batch = WriteFilesRequest.newBuilder();
+            for (int j = i; j < Math.min(i + batchSize, FILES); j++) {
+                batch.addFiles(request());
+            }
+            for (WriteFileResult result : stub.writeFiles(batch.build()).getResultsList()) {
+                placed += result.hasResponse() ? 1 : 0;
+            }
+        }
+        return placed;
+    }
+
+    private WriteFileRequest request() {
+        long i = counter.incrementAndGet();
+        return WriteFileRequest.newBuilder()
+                .setFilePath("/ingest/dir" + (i % 1000) + "/file" + i)
+                .setFileSize(4096)
+                .build();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(BulkIngestBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
@@ -1,14 +1,27 @@
 package ru.kostacie;
 
 import coordinator.CoordinatorProto.*;
+import coordinator.MetadataProto.FileRecord;
+import io.grpc.Status;
 import io.grpc.stub.StreamObserver;
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
 import org.mockito.ArgumentCaptor;
-import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.IntStream;
+
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.Mockito.*;
 
@@ -17,8 +30,8 @@ import static org.mockito.Mockito.*;
  */
 @ExtendWith(MockitoExtension.class)
 public class CoordinatorServiceTest {
+    private static final long FREE_BYTES = 1L << 40;
 
-    @InjectMocks
     private CoordinatorService coordinatorService;
 
     @Mock
@@ -33,6 +46,26 @@ public class CoordinatorServiceTest {
     @Mock
     private StreamObserver<ReadFileResponse> readFileResponseObserver;
 
+    @Mock
+    private StreamObserver<HeartbeatResponse> heartbeatResponseObserver;
+
+    @Mock
+    private StreamObserver<WriteFilesResponse> writeFilesResponseObserver;
+
+    @Mock
+    private StreamObserver<ReadFilesResponse> readFilesResponseObserver;
+
+    @Mock
+    private StreamObserver<SetStoragePolicyResponse> setStoragePolicyResponseObserver;
+
+    @Mock
+    private StreamObserver<ReportEncodedResponse> reportEncodedResponseObserver;
+
+    @BeforeEach
+    void setUp() {
+        coordinatorService = new CoordinatorService();
+    }
+
     /**
      * Тест добавления DataNode.
      */
@@ -100,6 +133,69 @@ public class CoordinatorServiceTest {
         verify(writeFileResponseObserver).onCompleted();
     }
 
+    /**
+     * Тест назначения цепочки из различных DataNode для копий файла.
+     */
+    @Test
+    void writeFile_replicateToDistinctDataNodes() {
+        for (int port = 5001; port <= 5004; port++) {
+            coordinatorService.heartbeat(heartbeat("localhost:" + port, 0, FREE_BYTES), heartbeatResponseObserver);
+        }
+
+        coordinatorService.writeFile(WriteFileRequest.newBuilder().setFilePath("file1.txt").build(),
+                writeFileResponseObserver);
+
+        ArgumentCaptor<WriteFileResponse> captor = ArgumentCaptor.forClass(WriteFileResponse.class);
+        verify(writeFileResponseObserver).onNext(captor.capture());
+        List<String> chain = captor.getValue().getDataNodeAddressesList();
+        assertEquals(CoordinatorService.DEFAULT_REPLICATION_FACTOR, Set.copyOf(chain).size());
+        assertEquals(chain.get(0), captor.getValue().getDataNodeAddress());
+        assertEquals(chain.size(), captor.getValue().getMinReplicas());
+        assertEquals(chain, coordinatorService.getFileLocations().get("file1.txt"));
+    }
+
+    /**
+     * Тест выбора менее нагруженного DataNode.
+     */
+    @Test
+    void writeFile_preferLessLoadedDataNode() {
+        coordinatorService.heartbeat(heartbeat("localhost:5001", 1000, FREE_BYTES), heartbeatResponseObserver);
+        coordinatorService.heartbeat(heartbeat("localhost:5002", 0, FREE_BYTES), heartbeatResponseObserver);
+
+        ArgumentCaptor<WriteFileResponse> captor = ArgumentCaptor.forClass(WriteFileResponse.class);
+        for (int i = 0; i < 100; i++) {
+            coordinatorService.writeFile(WriteFileRequest.newBuilder().setFilePath("file" + i).build(),
+                    writeFileResponseObserver);
+        }
+        verify(writeFileResponseObserver, times(100)).onNext(captor.capture());
+
+        // Нагруженный DataNode выбирается, только если он случайно выбран оба раза
+        long toLoaded = captor.getAllValues().stream()
+                .filter(response -> response.getDataNodeAddress().equals("localhost:5001"))
+                .count();
+        assertTrue(toLoaded < 50, "Loaded DataNode got " + toLoaded + " of 100 files");
+    }
+
+    /**
+     * Тест отказа в записи, если ни на одном DataNode нет места.
+     */
+    @Test
+    void writeFile_failIfNoFreeSpace() {
+        coordinatorService.heartbeat(heartbeat("localhost:5001", 0, 1024), heartbeatResponseObserver);
+
+        WriteFileRequest request = WriteFileRequest.newBuilder()
+                .setFilePath("file1.txt")
+                .setFileSize(4096)
+                .build();
+
+        coordinatorService.writeFile(request, writeFileResponseObserver);
+
+        ArgumentCaptor<Throwable> captor = ArgumentCaptor.forClass(Throwable.class);
+        verify(writeFileResponseObserver).onError(captor.capture());
+        assertEquals(Status.Code.RESOURCE_EXHAUSTED, Status.fromThrowable(captor.getValue()).getCode());
+        assertFalse(coordinatorService.getFileLocations().containsKey("file1.txt"));
+    }
+
     /**
      * Тест записи файла, если DataNode отсутствует.
      */
@@ -114,12 +210,55 @@ public class CoordinatorServiceTest {
         verify(writeFileResponseObserver).onError(any());
     }
 
+    /**
+     * Тест записи файла, запись о котором ещё сохраняется в журнале: файл не виден чтениям и снимку,
+     * а после ошибки журнала путь освобождается.
+     */
+    @Test
+    void writeFile_hideFileUntilPersisted() throws IOException {
+        MetadataStore metadataStore = mock(MetadataStore.class);
+        CompletableFuture<Void> persisted = new CompletableFuture<>();
+        when(metadataStore.putFile(any())).thenReturn(persisted, CompletableFuture.completedFuture(null));
+        when(metadataStore.needsSnapshot()).thenReturn(true);
+        List<FileRecord> snapshot = new ArrayList<>();
+        doAnswer(invocation -> {
+            Iterator<FileRecord> records = invocation.getArgument(0);
+            records.forEachRemaining(snapshot::add);
+            return null;
+        }).when(metadataStore).snapshot(any());
+        coordinatorService = new CoordinatorService(metadataStore);
+        for (int port = 5001; port <= 5003; port++) {
+            coordinatorService.heartbeat(heartbeat("localhost:" + port, 0, FREE_BYTES), heartbeatResponseObserver);
+        }
+        WriteFileRequest request = WriteFileRequest.newBuilder().setFilePath("file1.txt").build();
+
+        coordinatorService.writeFile(request, writeFileResponseObserver);
+        coordinatorService.snapshotMetadataIfNeeded();
+        coordinatorService.readFile(ReadFileRequest.newBuilder().setFilePath("file1.txt").build(),
+                readFileResponseObserver);
+
+        assertTrue(snapshot.isEmpty());
+        ArgumentCaptor<Throwable> readError = ArgumentCaptor.forClass(Throwable.class);
+        verify(readFileResponseObserver).onError(readError.capture());
+        assertEquals(Status.Code.NOT_FOUND, Status.fromThrowable(readError.getValue()).getCode());
+
+        persisted.completeExceptionally(new IOException("disk full"));
+        ArgumentCaptor<Throwable> writeError = ArgumentCaptor.forClass(Throwable.class);
+        verify(writeFileResponseObserver).onError(writeError.capture());
+        assertEquals(Status.Code.INTERNAL, Status.fromThrowable(writeError.getValue()).getCode());
+        assertFalse(coordinatorService.getFileLocations().containsKey("file1.txt"));
+
+        coordinatorService.writeFile(request, writeFileResponseObserver);
+        verify(writeFileResponseObserver).onNext(any());
+        assertTrue(coordinatorService.getFileUploadIds().containsKey("file1.txt"));
+    }
+
     /**
      * Тест чтения файла - успех.
      */
     @Test
     void readFile_successReturnFileLocation() {
-        coordinatorService.getFileLocations().put("file1.txt", "localhost:5001");
+        coordinatorService.getFileLocations().put("file1.txt", List.of("localhost:5001"));
         coordinatorService.getFileUploadIds().put("file1.txt", "upload123");
         coordinatorService.getDataNodes().add("localhost:5001");
 
@@ -138,6 +277,49 @@ public class CoordinatorServiceTest {
         verify(readFileResponseObserver).onCompleted();
     }
 
+    /**
+     * Тест чтения файла, если часть DataNode с копиями недоступна.
+     */
+    @Test
+    void readFile_returnOnlyAvailableReplicas() {
+        coordinatorService.getFileLocations().put("file1.txt",
+                List.of("localhost:5001", "localhost:5002", "localhost:5003"));
+        coordinatorService.getFileUploadIds().put("file1.txt", "upload123");
+        coordinatorService.getDataNodes().add("localhost:5002");
+        coordinatorService.getDataNodes().add("localhost:5003");
+
+        coordinatorService.readFile(ReadFileRequest.newBuilder().setFilePath("file1.txt").build(),
+                readFileResponseObserver);
+
+        ArgumentCaptor<ReadFileResponse> captor = ArgumentCaptor.forClass(ReadFileResponse.class);
+        verify(readFileResponseObserver).onNext(captor.capture());
+        assertEquals(Set.of("localhost:5002", "localhost:5003"),
+                Set.copyOf(captor.getValue().getDataNodeAddressesList()));
+        assertNotEquals("localhost:5001", captor.getValue().getDataNodeAddress());
+    }
+
+    /**
+     * Тест упорядочивания копий для чтения по нагрузке DataNode.
+     */
+    @Test
+    void readFile_rankReplicasByLoad() {
+        coordinatorService.heartbeat(heartbeat("localhost:5001", 10, FREE_BYTES), heartbeatResponseObserver);
+        coordinatorService.heartbeat(heartbeat("localhost:5002", 0, FREE_BYTES), heartbeatResponseObserver);
+        coordinatorService.heartbeat(heartbeat("localhost:5003", 5, FREE_BYTES), heartbeatResponseObserver);
+        coordinatorService.getFileLocations().put("file1.txt",
+                List.of("localhost:5001", "localhost:5002", "localhost:5003"));
+        coordinatorService.getFileUploadIds().put("file1.txt", "upload123");
+
+        coordinatorService.readFile(ReadFileRequest.newBuilder().setFilePath("file1.txt").build(),
+                readFileResponseObserver);
+
+        ArgumentCaptor<ReadFileResponse> captor = ArgumentCaptor.forClass(ReadFileResponse.class);
+        verify(readFileResponseObserver).onNext(captor.capture());
+        assertEquals(List.of("localhost:5002", "localhost:5003", "localhost:5001"),
+                captor.getValue().getDataNodeAddressesList());
+        assertEquals("localhost:5002", captor.getValue().getDataNodeAddress());
+    }
+
     /**
      * Тест чтения файла, если файл не найден.
      */
@@ -151,4 +333,401 @@ public class CoordinatorServiceTest {
 
         verify(readFileResponseObserver).onError(any());
     }
+
+    /**
+     * Тест пакетной записи: ошибка одного файла возвращается в его результате и не прерывает пакет.
+     */
+    @Test
+    void writeFiles_returnResultForEveryFile() {
+        coordinatorService.heartbeat(heartbeat("localhost:5001", 0, FREE_BYTES), heartbeatResponseObserver);
+        coordinatorService.getFileLocations().put("existing.txt", List.of("localhost:5001"));
+
+        coordinatorService.writeFiles(WriteFilesRequest.newBuilder()
+                        .addFiles(WriteFileRequest.newBuilder().setFilePath("file1.txt"))
+                        .addFiles(WriteFileRequest.newBuilder().setFilePath("existing.txt"))
+                        .addFiles(WriteFileRequest.newBuilder().setFilePath("file2.txt"))
+                        .build(),
+                writeFilesResponseObserver);
+
+        ArgumentCaptor<WriteFilesResponse> captor = ArgumentCaptor.forClass(WriteFilesResponse.class);
+        verify(writeFilesResponseObserver).onNext(captor.capture());
+        List<WriteFileResult> results = captor.getValue().getResultsList();
+        assertEquals(3, results.size());
+        assertEquals("localhost:5001", results.get(0).getResponse().getDataNodeAddress());
+        assertEquals(Status.Code.ALREADY_EXISTS.value(), results.get(1).getStatus().getCode());
+        assertEquals("localhost:5001", results.get(2).getResponse().getDataNodeAddress());
+        assertTrue(coordinatorService.getFileUploadIds().containsKey("file2.txt"));
+        verify(writeFilesResponseObserver).onCompleted();
+    }
+
+    /**
+     * Тест пакетного чтения: ненайденный файл возвращается со статусом NOT_FOUND.
+     */
+    @Test
+    void readFiles_returnResultForEveryFile() {
+        coordinatorService.getDataNodes().add("localhost:5001");
+        coordinatorService.getFileLocations().put("file1.txt", List.of("localhost:5001"));
+        coordinatorService.getFileUploadIds().put("file1.txt", "upload123");
+
+        coordinatorService.readFiles(ReadFilesRequest.newBuilder()
+                        .addFiles(ReadFileRequest.newBuilder().setFilePath("missing.txt"))
+                        .addFiles(ReadFileRequest.newBuilder().setFilePath("file1.txt"))
+                        .build(),
+                readFilesResponseObserver);
+
+        ArgumentCaptor<ReadFilesResponse> captor = ArgumentCaptor.forClass(ReadFilesResponse.class);
+        verify(readFilesResponseObserver).onNext(captor.capture());
+        assertEquals(Status.Code.NOT_FOUND.value(), captor.getValue().getResults(0).getStatus().getCode());
+        assertEquals("upload123", captor.getValue().getResults(1).getResponse().getFileId());
+    }
+
+    /**
+     * Тест листинга: записанные файлы перечисляются по префиксу страницами с токеном продолжения.
+     */
+    @Test
+    void listFiles_streamPagesOfWrittenFiles() {
+        coordinatorService.heartbeat(heartbeat("localhost:5001", 0, FREE_BYTES), heartbeatResponseObserver);
+        for (int i = 0; i < CoordinatorService.LIST_PAGE_SIZE + 5; i++) {
+            coordinatorService.writeFile(WriteFileRequest.newBuilder().setFilePath(String.format("/logs/%05d", i)).build(),
+                    writeFileResponseObserver);
+        }
+        coordinatorService.writeFile(WriteFileRequest.newBuilder().setFilePath("/other").build(),
+                writeFileResponseObserver);
+        @SuppressWarnings("unchecked")
+        StreamObserver<ListFilesResponse> listObserver = mock(StreamObserver.class);
+
+        coordinatorService.listFiles(ListFilesRequest.newBuilder().setPrefix("/logs/").setPageToken("/logs/00002").build(),
+                listObserver);
+
+        ArgumentCaptor<ListFilesResponse> captor = ArgumentCaptor.forClass(ListFilesResponse.class);
+        verify(listObserver, times(2)).onNext(captor.capture());
+        ListFilesResponse first = captor.getAllValues().get(0);
+        ListFilesResponse last = captor.getAllValues().get(1);
+        assertEquals(CoordinatorService.LIST_PAGE_SIZE, first.getEntriesCount());
+        assertEquals("/logs/00003", first.getEntries(0).getPath());
+        assertEquals(first.getEntries(first.getEntriesCount() - 1).getPath(), first.getNextPageToken());
+        assertEquals(2, last.getEntriesCount());
+        assertEquals("/logs/01004", last.getEntries(1).getPath());
+        assertTrue(last.getNextPageToken().isEmpty());
+        verify(listObserver).onCompleted();
+    }
+
+    /**
+     * Тест записи файла полосами: каждая полоса назначается отдельному DataNode.
+     */
+    @Test
+    void writeFile_placeStripesOnDistinctDataNodes() {
+        for (int port = 5001; port <= 5010; port++) {
+            coordinatorService.heartbeat(heartbeat("localhost:" + port, 0, FREE_BYTES), heartbeatResponseObserver);
+        }
+
+        coordinatorService.writeFile(WriteFileRequest.newBuilder()
+                        .setFilePath("file1.txt")
+                        .setFileSize(1000)
+                        .setStoragePolicy(StoragePolicy.ERASURE_CODED)
+                        .build(),
+                writeFileResponseObserver);
+
+        ArgumentCaptor<WriteFileResponse> captor = ArgumentCaptor.forClass(WriteFileResponse.class);
+        verify(writeFileResponseObserver).onNext(captor.capture());
+        ErasureLayout layout = captor.getValue().getErasureLayout();
+        assertEquals(9, Set.copyOf(layout.getStripeAddressesList()).size());
+        assertEquals(1000, layout.getFileSize());
+        assertEquals(layout.getStripeAddresses(0), captor.getValue().getDataNodeAddress());
+    }
+
+    /**
+     * Тест повторного создания файла из блоков: отказ ALREADY_EXISTS не увеличивает нагрузку DataNode.
+     */
+    @Test
+    void writeFile_notCountPlacementsOfExistingFile() {
+        for (int port = 5001; port <= 5004; port++) {
+            coordinatorService.heartbeat(heartbeat("localhost:" + port, 0, FREE_BYTES), heartbeatResponseObserver);
+        }
+        long blockSize = CoordinatorService.MIN_BLOCK_SIZE;
+        WriteFileRequest request = WriteFileRequest.newBuilder()
+                .setFilePath("big.bin")
+                .setFileSize(4 * blockSize)
+                .setBlockSize(blockSize)
+                .build();
+        coordinatorService.writeFile(request, writeFileResponseObserver);
+        List<Double> costs = IntStream.rangeClosed(5001, 5004)
+                .mapToObj(port -> coordinatorService.getDataNodes().get("localhost:" + port).cost())
+                .toList();
+
+        coordinatorService.writeFile(request, writeFileResponseObserver);
+
+        ArgumentCaptor<Throwable> captor = ArgumentCaptor.forClass(Throwable.class);
+        verify(writeFileResponseObserver).onError(captor.capture());
+        assertEquals(Status.Code.ALREADY_EXISTS, Status.fromThrowable(captor.getValue()).getCode());
+        assertEquals(costs, IntStream.rangeClosed(5001, 5004)
+                .mapToObj(port -> coordinatorService.getDataNodes().get("localhost:" + port).cost())
+                .toList());
+    }
+
+    /**
+     * Тест записи файла больше блока: блоки по порядку получают свои цепочки на разных DataNode
+     * и восстанавливаются из журнала в том же порядке вместе с размером файла.
+     */
+    @Test
+    void writeFile_splitLargeFileIntoBlocks(@TempDir Path metadataDir) throws IOException {
+        coordinatorService = new CoordinatorService(new MetadataStore(metadataDir));
+        coordinatorService.recoverMetadata();
+        for (int port = 5001; port <= 5006; port++) {
+            coordinatorService.heartbeat(heartbeat("localhost:" + port, 0, FREE_BYTES), heartbeatResponseObserver);
+        }
+        long blockSize = CoordinatorService.MIN_BLOCK_SIZE;
+
+        coordinatorService.writeFile(WriteFileRequest.newBuilder()
+                        .setFilePath("big.bin")
+                        .setFileSize(9 * blockSize + 100)
+                        .setBlockSize(blockSize)
+                        .build(),
+                writeFileResponseObserver);
+        coordinatorService.writeFile(WriteFileRequest.newBuilder()
+                        .setFilePath("small.bin")
+                        .setFileSize(blockSize)
+                        .setBlockSize(blockSize)
+                        .build(),
+                writeFileResponseObserver);
+        coordinatorService.getMetadataStore().close();
+
+        ArgumentCaptor<WriteFileResponse> captor = ArgumentCaptor.forClass(WriteFileResponse.class);
+        verify(writeFileResponseObserver, times(2)).onNext(captor.capture());
+        assertEquals(0, captor.getAllValues().get(1).getBlocksCount());
+        List<FileBlock> blocks = captor.getAllValues().get(0).getBlocksList();
+        assertEquals(10, blocks.size());
+        Set<String> primaries = new HashSet<>();
+        for (int i = 0; i < blocks.size(); i++) {
+            assertEquals(i * blockSize, blocks.get(i).getOffset());
+            assertEquals(i < 9 ? blockSize : 100, blocks.get(i).getLength());
+            assertEquals(CoordinatorService.DEFAULT_REPLICATION_FACTOR,
+                    Set.copyOf(blocks.get(i).getDataNodeAddressesList()).size());
+            primaries.add(blocks.get(i).getDataNodeAddresses(0));
+        }
+        // Назначенные блоки учитываются в нагрузке, поэтому блоки не достаются одним и тем же DataNode
+        assertTrue(primaries.size() >= 3, "Blocks went to " + primaries);
+
+        CoordinatorService restarted = new CoordinatorService(new MetadataStore(metadataDir));
+        restarted.recoverMetadata();
+        for (int port = 5001; port <= 5006; port++) {
+            restarted.heartbeat(heartbeat("localhost:" + port, 0, FREE_BYTES), heartbeatResponseObserver);
+        }
+        restarted.readFile(ReadFileRequest.newBuilder().setFilePath("big.bin").build(), readFileResponseObserver);
+        restarted.readFile(ReadFileRequest.newBuilder().setFilePath("small.bin").build(), readFileResponseObserver);
+        restarted.getMetadataStore().close();
+
+        ArgumentCaptor<ReadFileResponse> readCaptor = ArgumentCaptor.forClass(ReadFileResponse.class);
+        verify(readFileResponseObserver, times(2)).onNext(readCaptor.capture());
+        ReadFileResponse big = readCaptor.getAllValues().get(0);
+        assertEquals(captor.getAllValues().get(0).getUploadId(), big.getFileId());
+        // Размер нужен клиенту, чтобы скачивать файл диапазонами
+        assertEquals(9 * blockSize + 100, big.getFileSize());
+        assertEquals(blockSize, readCaptor.getAllValues().get(1).getFileSize());
+        for (int i = 0; i < blocks.size(); i++) {
+            FileBlock block = big.getBlocks(i);
+            assertEquals(blocks.get(i).getBlockId(), block.getBlockId());
+            assertEquals(blocks.get(i).getOffset(), block.getOffset());
+            assertEquals(Set.copyOf(blocks.get(i).getDataNodeAddressesList()),
+                    Set.copyOf(block.getDataNodeAddressesList()));
+        }
+    }
+
+    /**
+     * Тест перекодирования файла в полосы: задание уходит DataNode с копией, после отчёта копии удаляются,
+     * а задание на удаление повторяется, пока DataNode его не подтвердит.
+     */
+    @Test
+    void setStoragePolicy_convertReplicasToStripes() {
+        ErasureLayout code = ErasureLayout.newBuilder().setDataStripes(2).setParityStripes(1).setCellSize(4096).build();
+        coordinatorService = new CoordinatorService(null, new PowerOfTwoChoicesPolicy(), 1, 0, code);
+        for (int port = 5001; port <= 5003; port++) {
+            coordinatorService.heartbeat(heartbeat("localhost:" + port, 0, FREE_BYTES), heartbeatResponseObserver);
+        }
+        coordinatorService.getFileLocations().put("file1.txt", List.of("localhost:5001"));
+        coordinatorService.getFileUploadIds().put("file1.txt", "upload123");
+
+        coordinatorService.setStoragePolicy(SetStoragePolicyRequest.newBuilder()
+                        .setFilePath("file1.txt")
+                        .setStoragePolicy(StoragePolicy.ERASURE_CODED)
+                        .build(),
+                setStoragePolicyResponseObserver);
+        ArgumentCaptor<HeartbeatResponse> heartbeats = ArgumentCaptor.forClass(HeartbeatResponse.class);
+        coordinatorService.heartbeat(heartbeat("localhost:5001", 0, FREE_BYTES), heartbeatResponseObserver);
+        verify(heartbeatResponseObserver, atLeastOnce()).onNext(heartbeats.capture());
+        EncodeTask task = heartbeats.getValue().getEncodeTasks(0);
+        assertEquals("upload123", task.getSourceFileId());
+        assertEquals(3, task.getLayout().getStripeAddressesCount());
+
+        coordinatorService.reportEncoded(ReportEncodedRequest.newBuilder()
+                        .setFilePath("file1.txt")
+                        .setFileId(task.getFileId())
+                        .setLayout(task.getLayout().toBuilder().setFileSize(1000))
+                        .setSuccess(true)
+                        .build(),
+                reportEncodedResponseObserver);
+        coordinatorService.readFile(ReadFileRequest.newBuilder().setFilePath("file1.txt").build(),
+                readFileResponseObserver);
+
+        ArgumentCaptor<ReadFileResponse> captor = ArgumentCaptor.forClass(ReadFileResponse.class);
+        verify(readFileResponseObserver).onNext(captor.capture());
+        assertEquals(task.getFileId(), captor.getValue().getFileId());
+        assertEquals(1000, captor.getValue().getErasureLayout().getFileSize());
+        coordinatorService.heartbeat(heartbeat("localhost:5001", 0, FREE_BYTES), heartbeatResponseObserver);
+        verify(heartbeatResponseObserver, atLeastOnce()).onNext(heartbeats.capture());
+        List<DeleteTask> deletes = heartbeats.getValue().getDeleteTasksList();
+        assertEquals(List.of("upload123"), deletes.stream().map(DeleteTask::getFileId).toList());
+
+        // Неподтверждённое удаление повторяется, подтверждённое - больше нет
+        coordinatorService.heartbeat(heartbeat("localhost:5001", 0, FREE_BYTES), heartbeatResponseObserver);
+        verify(heartbeatResponseObserver, atLeastOnce()).onNext(heartbeats.capture());
+        assertEquals(deletes, heartbeats.getValue().getDeleteTasksList());
+        coordinatorService.heartbeat(heartbeat("localhost:5001", 0, FREE_BYTES).toBuilder()
+                .addCompletedTaskIds(deletes.get(0).getTaskId())
+                .build(), heartbeatResponseObserver);
+        verify(heartbeatResponseObserver, atLeastOnce()).onNext(heartbeats.capture());
+        assertTrue(heartbeats.getValue().getDeleteTasksList().isEmpty());
+    }
+
+    /**
+     * Тест зависшего перекодирования: после отказа DataNode-источника и по истечении срока задание
+     * поручается заново, а отчёт по прежнему заданию отклоняется.
+     */
+    @Test
+    void retryStalledEncodes_reassignEncodeOfFailedOrSilentSource() {
+        ErasureLayout code = ErasureLayout.newBuilder().setDataStripes(2).setParityStripes(1).setCellSize(4096).build();
+        coordinatorService = new CoordinatorService(null, new PowerOfTwoChoicesPolicy(), 1, 0, code);
+        for (int port = 5001; port <= 5004; port++) {
+            coordinatorService.heartbeat(heartbeat("localhost:" + port, 0, FREE_BYTES), heartbeatResponseObserver);
+        }
+        coordinatorService.getFileLocations().put("file1.txt", List.of("localhost:5001", "localhost:5002"));
+        coordinatorService.getFileUploadIds().put("file1.txt", "upload123");
+        SetStoragePolicyRequest request = SetStoragePolicyRequest.newBuilder()
+                .setFilePath("file1.txt")
+                .setStoragePolicy(StoragePolicy.ERASURE_CODED)
+                .build();
+        coordinatorService.setStoragePolicy(request, setStoragePolicyResponseObserver);
+        EncodeTask first = coordinatorService.getPendingEncodes().get("file1.txt").task();
+
+        // Пока источник жив и срок не истёк, повторный запрос не порождает второе задание
+        coordinatorService.setStoragePolicy(request, setStoragePolicyResponseObserver);
+        coordinatorService.retryStalledEncodes(System.nanoTime());
+        assertEquals(first, coordinatorService.getPendingEncodes().get("file1.txt").task());
+
+        coordinatorService.getDataNodes().remove("localhost:5001");
+        coordinatorService.retryStalledEncodes(System.nanoTime());
+        CoordinatorService.PendingEncode second = coordinatorService.getPendingEncodes().get("file1.txt");
+        assertNotEquals(first.getFileId(), second.task().getFileId());
+        assertEquals("localhost:5002", second.source());
+        ArgumentCaptor<HeartbeatResponse> heartbeats = ArgumentCaptor.forClass(HeartbeatResponse.class);
+        coordinatorService.heartbeat(heartbeat("localhost:5002", 0, FREE_BYTES), heartbeatResponseObserver);
+        verify(heartbeatResponseObserver, atLeastOnce()).onNext(heartbeats.capture());
+        assertEquals(second.task(), heartbeats.getValue().getEncodeTasks(0));
+
+        coordinatorService.retryStalledEncodes(second.startedNanos() + CoordinatorService.ENCODE_TIMEOUT_NANOS + 1);
+        EncodeTask third = coordinatorService.getPendingEncodes().get("file1.txt").task();
+        assertNotEquals(second.task().getFileId(), third.getFileId());
+
+        coordinatorService.reportEncoded(ReportEncodedRequest.newBuilder()
+                        .setFilePath("file1.txt")
+                        .setFileId(first.getFileId())
+                        .setLayout(first.getLayout().toBuilder().setFileSize(1000))
+                        .setSuccess(true)
+                        .build(),
+                reportEncodedResponseObserver);
+        verify(reportEncodedResponseObserver).onNext(ReportEncodedResponse.newBuilder().setAccepted(false).build());
+        assertEquals(third, coordinatorService.getPendingEncodes().get("file1.txt").task());
+    }
+
+    /**
+     * Тест размещения по кольцу: ID файла и DataNode совпадают с кольцом, после добавления DataNode
+     * в списке переноса ровно файлы, которые кольцо назначило новому DataNode.
+     */
+    @Test
+    void listMigrations_listFilesMovedByAddedDataNode() {
+        ConsistentHashPolicy policy = new ConsistentHashPolicy();
+        coordinatorService = new CoordinatorService(null, policy, 2, 0);
+        for (int port = 5001; port <= 5004; port++) {
+            coordinatorService.heartbeat(heartbeat("localhost:" + port, 0, FREE_BYTES), heartbeatResponseObserver);
+        }
+        for (int i = 0; i < 200; i++) {
+            coordinatorService.writeFile(WriteFileRequest.newBuilder().setFilePath("/data/file" + i).build(),
+                    writeFileResponseObserver);
+        }
+        @SuppressWarnings("unchecked")
+        StreamObserver<GetRingResponse> ringObserver = mock(StreamObserver.class);
+        coordinatorService.getRing(GetRingRequest.getDefaultInstance(), ringObserver);
+        ArgumentCaptor<GetRingResponse> ring = ArgumentCaptor.forClass(GetRingResponse.class);
+        verify(ringObserver).onNext(ring.capture());
+        assertEquals(4, ring.getValue().getMembersCount());
+        ArgumentCaptor<WriteFileResponse> written = ArgumentCaptor.forClass(WriteFileResponse.class);
+        verify(writeFileResponseObserver, times(200)).onNext(written.capture());
+        HashRing before = policy.ring(coordinatorService.getDataNodes().snapshot());
+        assertEquals(HashRing.fileId("/data/file7"), written.getAllValues().get(7).getUploadId());
+        assertEquals(before.locate("/data/file7", 2), written.getAllValues().get(7).getDataNodeAddressesList());
+
+        coordinatorService.heartbeat(heartbeat("localhost:5005", 0, FREE_BYTES), heartbeatResponseObserver);
+        @SuppressWarnings("unchecked")
+        StreamObserver<ListMigrationsResponse> migrationsObserver = mock(StreamObserver.class);
+        coordinatorService.listMigrations(ListMigrationsRequest.getDefaultInstance(), migrationsObserver);
+
+        ArgumentCaptor<ListMigrationsResponse> captor = ArgumentCaptor.forClass(ListMigrationsResponse.class);
+        verify(migrationsObserver).onNext(captor.capture());
+        ListMigrationsResponse response = captor.getValue();
+        assertEquals(ring.getValue().getVersion() + 1, response.getRingVersion());
+        assertTrue(response.getNextPageToken().isEmpty());
+        HashRing after = policy.ring(coordinatorService.getDataNodes().snapshot());
+        long expected = IntStream.range(0, 200)
+                .filter(i -> after.locate("/data/file" + i, 2).contains("localhost:5005"))
+                .count();
+        assertTrue(expected > 0);
+        assertEquals(expected, response.getMigrationsCount());
+        for (FileMigration migration : response.getMigrationsList()) {
+            assertTrue(migration.getTargetAddressesList().contains("localhost:5005"));
+            assertFalse(migration.getSourceAddressesList().contains("localhost:5005"));
+        }
+    }
+
+    /**
+     * Тест разделения путей: запрос о пути другого координатора перенаправляется ему.
+     */
+    @Test
+    void writeFile_redirectPathOfOtherPartition() {
+        PartitionMap partitionMap = PartitionMap.uniform(List.of("localhost:5051", "localhost:5052"));
+        coordinatorService = new CoordinatorService(null, new PowerOfTwoChoicesPolicy(), 1, 0,
+                CoordinatorService.DEFAULT_ERASURE_CODE, partitionMap, 0);
+        coordinatorService.heartbeat(heartbeat("localhost:5001", 0, FREE_BYTES), heartbeatResponseObserver);
+        String own = IntStream.range(0, 100).mapToObj(i -> "/data/file" + i)
+                .filter(path -> partitionMap.partitionOf(path) == 0).findFirst().orElseThrow();
+        String foreign = IntStream.range(0, 100).mapToObj(i -> "/data/file" + i)
+                .filter(path -> partitionMap.partitionOf(path) == 1).findFirst().orElseThrow();
+
+        coordinatorService.writeFile(WriteFileRequest.newBuilder().setFilePath(foreign).build(),
+                writeFileResponseObserver);
+        coordinatorService.writeFiles(WriteFilesRequest.newBuilder()
+                        .addFiles(WriteFileRequest.newBuilder().setFilePath(own))
+                        .addFiles(WriteFileRequest.newBuilder().setFilePath(foreign))
+                        .build(),
+                writeFilesResponseObserver);
+
+        ArgumentCaptor<Throwable> error = ArgumentCaptor.forClass(Throwable.class);
+        verify(writeFileResponseObserver).onError(error.capture());
+        assertEquals(Status.Code.FAILED_PRECONDITION, Status.fromThrowable(error.getValue()).getCode());
+        assertEquals("localhost:5052", Status.trailersFromThrowable(error.getValue()).get(PartitionMap.REDIRECT_ADDRESS));
+        ArgumentCaptor<WriteFilesResponse> captor = ArgumentCaptor.forClass(WriteFilesResponse.class);
+        verify(writeFilesResponseObserver).onNext(captor.capture());
+        assertTrue(captor.getValue().getResults(0).hasResponse());
+        assertEquals("localhost:5052", captor.getValue().getResults(1).getStatus().getRedirectAddress());
+        assertFalse(coordinatorService.getFileLocations().containsKey(foreign));
+    }
+
+    private static HeartbeatRequest heartbeat(String address, int activeTransfers, long freeBytes) {
+        return HeartbeatRequest.newBuilder()
+                .setAddress(address)
+                .setLoad(DataNodeLoad.newBuilder()
+                        .setActiveTransfers(activeTransfers)
+                        .setFreeBytes(freeBytes)
+                        .setLatencyMicros(100))
+                .build();
+    }
 }
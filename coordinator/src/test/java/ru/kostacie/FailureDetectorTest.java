@@ -0,0 +1,52 @@
+package ru.kostacie;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Тесты для FailureDetector.
+ */
+class FailureDetectorTest {
+    private static final long TIMEOUT_MILLIS = 10;
+
+    private final DataNodeRegistry dataNodes = new DataNodeRegistry();
+    private final FailureDetector failureDetector = new FailureDetector(dataNodes, TIMEOUT_MILLIS);
+
+    /**
+     * Тест удаления DataNode, от которого нет heartbeat'ов, и сохранения остальных.
+     */
+    @Test
+    void sweep_removeSilentDataNode() throws InterruptedException {
+        dataNodes.add("localhost:5001");
+        dataNodes.add("localhost:5002");
+        TimeUnit.MILLISECONDS.sleep(2 * TIMEOUT_MILLIS);
+        dataNodes.heartbeat("localhost:5002", null);
+
+        long now = dataNodes.get("localhost:5002").getLastHeartbeatNanos()
+                + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLIS / 2);
+        assertEquals(List.of("localhost:5001"), failureDetector.sweep(now));
+
+        assertFalse(dataNodes.contains("localhost:5001"));
+        assertTrue(dataNodes.contains("localhost:5002"));
+        assertEquals(1, dataNodes.snapshot().size());
+    }
+
+    /**
+     * Тест возврата удалённого DataNode после нового heartbeat.
+     */
+    @Test
+    void heartbeat_restoreRemovedDataNode() {
+        dataNodes.add("localhost:5001");
+        failureDetector.sweep(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(2 * TIMEOUT_MILLIS));
+        assertTrue(dataNodes.isEmpty());
+
+        assertTrue(dataNodes.heartbeat("localhost:5001", null));
+
+        assertTrue(dataNodes.contains("localhost:5001"));
+        assertTrue(failureDetector.sweep(System.nanoTime()).isEmpty());
+    }
+}
@@ -0,0 +1,73 @@
+package ru.kostacie;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Тесты для HashRing.
+ */
+class HashRingTest {
+    private static final int KEYS = 20_000;
+
+    /**
+     * Тест размещения: различные DataNode, доли файлов пропорциональны весам.
+     */
+    @Test
+    void locate_spreadKeysByWeight() {
+        Map<String, Integer> weights = new HashMap<>();
+        for (int port = 5001; port <= 5004; port++) {
+            weights.put("localhost:" + port, 1);
+        }
+        weights.put("localhost:5005", 2);
+        HashRing ring = new HashRing(1, weights, ConsistentHashPolicy.DEFAULT_VIRTUAL_NODES);
+
+        Map<String, Integer> primaries = new HashMap<>();
+        for (int i = 0; i < KEYS; i++) {
+            List<String> replicas = ring.locate("/data/file" + i, 3);
+            assertEquals(3, Set.copyOf(replicas).size());
+            assertEquals(replicas, ring.locate("/data/file" + i, 3));
+            primaries.merge(replicas.get(0), 1, Integer::sum);
+        }
+
+        // Доля DataNode веса 1 - 1/6 файлов, веса 2 - 1/3
+        for (int port = 5001; port <= 5004; port++) {
+            assertEquals(KEYS / 6.0, primaries.get("localhost:" + port), KEYS / 6.0 * 0.25);
+        }
+        assertEquals(KEYS / 3.0, primaries.get("localhost:5005"), KEYS / 3.0 * 0.25);
+        assertEquals(List.of("localhost:5001", "localhost:5002"),
+                new HashRing(1, Map.of("localhost:5001", 1, "localhost:5002", 1), 4).locate("file", 3).stream()
+                        .sorted().toList());
+    }
+
+    /**
+     * Тест добавления DataNode: переезжает около 1/N файлов, и только на новый DataNode.
+     */
+    @Test
+    void locate_moveOnlyKeysOfAddedNode() {
+        Map<String, Integer> weights = new HashMap<>();
+        for (int port = 5001; port <= 5010; port++) {
+            weights.put("localhost:" + port, 1);
+        }
+        HashRing before = new HashRing(1, weights, ConsistentHashPolicy.DEFAULT_VIRTUAL_NODES);
+        weights.put("localhost:5011", 1);
+        HashRing after = new HashRing(2, weights, ConsistentHashPolicy.DEFAULT_VIRTUAL_NODES);
+
+        int moved = 0;
+        for (int i = 0; i < KEYS; i++) {
+            String oldPrimary = before.locate("/data/file" + i, 1).get(0);
+            String newPrimary = after.locate("/data/file" + i, 1).get(0);
+            if (!oldPrimary.equals(newPrimary)) {
+                assertEquals("localhost:5011", newPrimary);
+                moved++;
+            }
+        }
+
+        assertEquals(KEYS / 11.0, moved, KEYS / 11.0 * 0.25);
+    }
+}
@@ -0,0 +1,148 @@
+package ru.kostacie;
+
+import coordinator.MetadataProto.FileRecord;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Пропускная способность записи метаданных в журнал и время перезапуска координатора.
+ * <p>
+ * appendOneWriter - один поток, каждая запись ждёт собственного fsync; appendGroupCommit - 64 потока,
+ * записи объединяются в группы с одним fsync. restart - загрузка снимка на {@code files} файлов
+ * и применение хвоста журнала в CoordinatorService.
+ * <p>
+ * Запуск: {@code mvn -pl coordinator test-compile}, затем {@link #main(String[])} с test-classpath модуля.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MetadataStoreBenchmark {
+    private static final int LOG_TAIL_RECORDS = 100_000;
+
+    private final AtomicLong counter = new AtomicLong();
+    private Path metadataDir;
+    private MetadataStore store;
+
+    @Setup
+    public void setUp() throws IOException {
+        metadataDir = Files.createTempDirectory("metadata-benchmark");
+        store = new MetadataStore(metadataDir, Long.MAX_VALUE);
+        store.recover(record -> {
+        });
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        store.close();
+        delete(metadataDir);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void appendOneWriter() {
+        store.putFile(record(counter.incrementAndGet())).join();
+    }
+
+    @Benchmark
+    @Threads(64)
+    public void appendGroupCommit() {
+        store.putFile(record(counter.incrementAndGet())).join();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 1)
+    @Measurement(iterations = 3)
+    @Fork(value = 1, jvmArgsAppend = {"-Xms8g", "-Xmx8g"})
+    public int restart(RestartState state) throws IOException {
+        CoordinatorService coordinatorService = new CoordinatorService(new MetadataStore(state.metadataDir));
+        try {
+            coordinatorService.recoverMetadata();
+            return coordinatorService.getFileLocations().size();
+        } finally {
+            coordinatorService.getMetadataStore().close();
+        }
+    }
+
+    /**
+     * Метаданные на диске: снимок на files файлов и LOG_TAIL_RECORDS записей журнала после него.
+     */
+    @State(Scope.Benchmark)
+    public static class RestartState {
+        @Param({"10000000"})
+        private int files;
+
+        private Path metadataDir;
+
+        @Setup
+        public void setUp() throws IOException {
+            metadataDir = Files.createTempDirectory("metadata-restart-benchmark");
+            try (MetadataStore store = new MetadataStore(metadataDir)) {
+                store.recover(record -> {
+                });
+                store.snapshot(new Iterator<>() {
+                    private int next;
+
+                    @Override
+                    public boolean hasNext() {
+                        return next < files;
+                    }
+
+                    @Override
+                    public FileRecord next() {
+                        return record(next++);
+                    }
+                });
+                CompletableFuture<Void> last = null;
+                for (int i = 0; i < LOG_TAIL_RECORDS; i++) {
+                    last = store.putFile(record(files + i));
+                }
+                last.join();
+            }
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            delete(metadataDir);
+        }
+    }
+
+    private static FileRecord record(long i) {
+        return FileRecord.newBuilder()
+                .setFilePath("/data/dir" + (i % 1000) + "/file" + i)
+                .setDataNodeAddress("localhost:" + (5001 + i % 3))
+                .setUploadId(new UUID(i, ~i).toString())
+                .build();
+    }
+
+    private static void delete(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(MetadataStoreBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
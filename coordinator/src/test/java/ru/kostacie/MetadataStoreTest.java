@@ -0,0 +1,119 @@
+package ru.kostacie;
+
+import coordinator.MetadataProto.FileRecord;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Тесты для MetadataStore.
+ */
+class MetadataStoreTest {
+
+    @TempDir
+    private Path tempDir;
+
+    /**
+     * Тест восстановления файлов из журнала после перезапуска.
+     */
+    @Test
+    void recover_replayLog() throws IOException {
+        try (MetadataStore store = open(new HashMap<>())) {
+            List<CompletableFuture<Void>> writes = IntStream.range(0, 100)
+                    .mapToObj(i -> store.putFile(record(i)))
+                    .toList();
+            CompletableFuture.allOf(writes.toArray(CompletableFuture[]::new)).join();
+        }
+
+        Map<String, FileRecord> recovered = new HashMap<>();
+        try (MetadataStore ignored = open(recovered)) {
+            assertEquals(100, recovered.size());
+            assertEquals(record(42), recovered.get("/dir/file42"));
+        }
+    }
+
+    /**
+     * Тест восстановления из снимка и записей журнала после него; учтённые в снимке сегменты удаляются.
+     */
+    @Test
+    void recover_loadSnapshotAndLogTail() throws IOException {
+        Map<String, FileRecord> files = new HashMap<>();
+        try (MetadataStore store = open(files)) {
+            for (int i = 0; i < 10; i++) {
+                FileRecord record = record(i);
+                store.putFile(record).join();
+                files.put(record.getFilePath(), record);
+            }
+            store.snapshot(files.values().iterator());
+            store.putFile(record(10)).join();
+        }
+        try (Stream<Path> segments = Files.list(tempDir)) {
+            assertEquals(1, segments.filter(file -> file.getFileName().toString().startsWith("wal-")).count());
+        }
+
+        Map<String, FileRecord> recovered = new HashMap<>();
+        try (MetadataStore store = open(recovered)) {
+            assertEquals(11, recovered.size());
+            assertFalse(store.needsSnapshot());
+        }
+    }
+
+    /**
+     * Тест восстановления, если последняя запись журнала записана не полностью.
+     */
+    @Test
+    void recover_truncateTornRecord() throws IOException {
+        try (MetadataStore store = open(new HashMap<>())) {
+            store.putFile(record(1)).join();
+            store.putFile(record(2)).join();
+        }
+        Path segment;
+        try (Stream<Path> files = Files.list(tempDir)) {
+            segment = files.filter(file -> Files.isRegularFile(file) && file.toFile().length() > 0)
+                    .findFirst()
+                    .orElseThrow();
+        }
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 3);
+        }
+
+        Map<String, FileRecord> recovered = new HashMap<>();
+        try (MetadataStore store = open(recovered)) {
+            assertEquals(Map.of("/dir/file1", record(1)), recovered);
+            store.putFile(record(3)).join();
+        }
+
+        recovered.clear();
+        try (MetadataStore ignored = open(recovered)) {
+            assertEquals(2, recovered.size());
+            assertTrue(recovered.containsKey("/dir/file3"));
+        }
+    }
+
+    private MetadataStore open(Map<String, FileRecord> files) throws IOException {
+        MetadataStore store = new MetadataStore(tempDir, 100);
+        store.recover(record -> files.put(record.getFilePath(), record));
+        return store;
+    }
+
+    private static FileRecord record(int i) {
+        return FileRecord.newBuilder()
+                .setFilePath("/dir/file" + i)
+                .setDataNodeAddress("localhost:500" + (i % 3))
+                .setUploadId("upload" + i)
+                .build();
+    }
+}
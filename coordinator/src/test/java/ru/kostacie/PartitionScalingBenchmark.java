@@ -0,0 +1,126 @@
+package ru.kostacie;
+
+import coordinator.CoordinatorGrpc;
+import coordinator.CoordinatorProto.*;
+import io.grpc.Grpc;
+import io.grpc.InsecureChannelCredentials;
+import io.grpc.InsecureServerCredentials;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Пропускная способность WriteFile и ReadFile при разделении путей между partitions координаторами на localhost.
+ * <p>
+ * Каждый координатор - отдельный gRPC-сервер со своим журналом метаданных на диске, как в работе.
+ * Клиентские потоки отправляют запрос о файле сразу координатору его раздела по {@link PartitionMap}.
+ * Одна операция - запись нового файла и чтение его размещения. Прирост от числа координаторов
+ * ограничен числом ядер: все серверы и клиенты работают в одном процессе.
+ * <p>
+ * Запуск: {@code mvn -pl coordinator test-compile}, затем {@link #main(String[])} с test-classpath модуля.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Threads(16)
+@Fork(1)
+public class PartitionScalingBenchmark {
+    @Param({"1", "2", "4"})
+    private int partitions;
+
+    private final AtomicLong counter = new AtomicLong();
+    private final List<Path> metadataDirs = new ArrayList<>();
+    private final List<CoordinatorService> coordinatorServices = new ArrayList<>();
+    private final List<Server> servers = new ArrayList<>();
+    private final List<ManagedChannel> channels = new ArrayList<>();
+    private final List<CoordinatorGrpc.CoordinatorBlockingStub> stubs = new ArrayList<>();
+    private PartitionMap partitionMap;
+
+    @Setup
+    public void setUp() throws IOException {
+        List<String> addresses = new ArrayList<>();
+        for (int i = 0; i < partitions; i++) {
+            try (ServerSocket socket = new ServerSocket(0)) {
+                addresses.add("localhost:" + socket.getLocalPort());
+            }
+        }
+        partitionMap = PartitionMap.uniform(addresses);
+        for (int i = 0; i < partitions; i++) {
+            Path metadataDir = Files.createTempDirectory("partition-benchmark");
+            metadataDirs.add(metadataDir);
+            CoordinatorService coordinatorService = new CoordinatorService(
+                    new MetadataStore(metadataDir, Long.MAX_VALUE), new PowerOfTwoChoicesPolicy(),
+                    CoordinatorService.DEFAULT_REPLICATION_FACTOR, CoordinatorService.DEFAULT_WRITE_QUORUM,
+                    CoordinatorService.DEFAULT_ERASURE_CODE, partitionMap, i);
+            coordinatorService.recoverMetadata();
+            coordinatorServices.add(coordinatorService);
+            int port = Integer.parseInt(addresses.get(i).substring("localhost:".length()));
+            servers.add(Grpc.newServerBuilderForPort(port, InsecureServerCredentials.create())
+                    .addService(coordinatorService)
+                    .build()
+                    .start());
+            ManagedChannel channel = Grpc.newChannelBuilder(addresses.get(i), InsecureChannelCredentials.create())
+                    .build();
+            channels.add(channel);
+            CoordinatorGrpc.CoordinatorBlockingStub stub = CoordinatorGrpc.newBlockingStub(channel);
+            stubs.add(stub);
+            for (int dataNode = 5001; dataNode <= 5003; dataNode++) {
+                stub.heartbeat(HeartbeatRequest.newBuilder()
+                        .setAddress("localhost:" + dataNode)
+                        .setLoad(DataNodeLoad.newBuilder().setFreeBytes(1L << 50))
+                        .build());
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException, InterruptedException {
+        for (ManagedChannel channel : channels) {
+            channel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        }
+        for (Server server : servers) {
+            server.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        }
+        for (CoordinatorService coordinatorService : coordinatorServices) {
+            coordinatorService.getMetadataStore().close();
+        }
+        for (Path metadataDir : metadataDirs) {
+            try (Stream<Path> files = Files.walk(metadataDir)) {
+                for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public ReadFileResponse writeAndRead() {
+        long i = counter.incrementAndGet();
+        String filePath = "/scaling/dir" + i % 1000 + "/file" + i;
+        CoordinatorGrpc.CoordinatorBlockingStub stub = stubs.get(partitionMap.partitionOf(filePath));
+        stub.writeFile(WriteFileRequest.newBuilder().setFilePath(filePath).setFileSize(4096).build());
+        return stub.readFile(ReadFileRequest.newBuilder().setFilePath(filePath).build());
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(PartitionScalingBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
@@ -0,0 +1,80 @@
+package ru.kostacie;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Время получения одной страницы листинга каталога из {@code files} файлов со случайного места.
+ * <p>
+ * pathTree - продолжение листинга в {@link PathTree}; hashMapScan - то, что пришлось бы делать с плоской
+ * хеш-таблицей путей: отобрать пути каталога, отсортировать их и пропустить уже отправленные.
+ * <p>
+ * Запуск: {@code mvn -pl coordinator test-compile}, затем {@link #main(String[])} с test-classpath модуля.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+public class PathTreeBenchmark {
+    private static final int PAGE_SIZE = CoordinatorService.LIST_PAGE_SIZE;
+
+    @Param({"1000000"})
+    private int files;
+
+    private final PathTree tree = new PathTree();
+    private final Map<String, Boolean> hashMap = new ConcurrentHashMap<>();
+
+    @Setup
+    public void setUp() {
+        for (int i = 0; i < files; i++) {
+            String path = path(i);
+            tree.add(path);
+            hashMap.put(path, true);
+            // Соседние каталоги, которые листинг должен пропускать
+            tree.add("/archive/file" + i);
+            hashMap.put("/archive/file" + i, true);
+        }
+    }
+
+    @Benchmark
+    public List<String> pathTree() {
+        List<String> page = new ArrayList<>(PAGE_SIZE);
+        tree.list("/data/big/", randomStart(), '/', PAGE_SIZE, (path, directory) -> page.add(path));
+        return page;
+    }
+
+    @Benchmark
+    public List<String> hashMapScan() {
+        String startAfter = randomStart();
+        return hashMap.keySet().stream()
+                .filter(path -> path.startsWith("/data/big/") && path.compareTo(startAfter) > 0)
+                .sorted()
+                .limit(PAGE_SIZE)
+                .toList();
+    }
+
+    private String randomStart() {
+        return path(ThreadLocalRandom.current().nextInt(files));
+    }
+
+    private static String path(int i) {
+        return String.format("/data/big/file%08d.log", i);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(PathTreeBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
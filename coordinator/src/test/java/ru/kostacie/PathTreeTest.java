@@ -0,0 +1,119 @@
+package ru.kostacie;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Тесты для PathTree.
+ */
+class PathTreeTest {
+
+    /**
+     * Тест добавления и удаления путей с общими префиксами.
+     */
+    @Test
+    void addAndRemove_keepPathsWithSharedPrefixes() {
+        PathTree tree = new PathTree();
+
+        assertTrue(tree.add("/data/file1"));
+        assertTrue(tree.add("/data/file10"));
+        assertTrue(tree.add("/data"));
+        assertTrue(tree.add("/docs/a"));
+        assertFalse(tree.add("/data/file1"));
+        assertEquals(4, tree.size());
+        assertFalse(tree.contains("/data/file"));
+
+        assertTrue(tree.remove("/data/file1"));
+        assertFalse(tree.remove("/data/file1"));
+        assertFalse(tree.remove("/da"));
+        assertTrue(tree.remove("/data"));
+
+        assertEquals(List.of("/data/file10", "/docs/a"), list(tree, "", "", (char) 0, 10));
+        assertTrue(tree.contains("/data/file10"));
+        assertFalse(tree.contains("/data"));
+        assertEquals(2, tree.size());
+    }
+
+    /**
+     * Тест листинга страницами: страницы продолжают друг друга и вместе совпадают с отсортированным списком путей.
+     */
+    @Test
+    void list_returnSortedPagesByPrefix() {
+        PathTree tree = new PathTree();
+        TreeSet<String> expected = new TreeSet<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 2000; i++) {
+            String path = "/dir" + random.nextInt(5) + "/file" + random.nextInt(1000);
+            tree.add(path);
+            if (path.startsWith("/dir1")) {
+                expected.add(path);
+            }
+        }
+
+        List<String> listed = new ArrayList<>();
+        String startAfter = "";
+        List<String> page;
+        do {
+            page = list(tree, "/dir1", startAfter, (char) 0, 7);
+            listed.addAll(page);
+            startAfter = page.isEmpty() ? startAfter : page.get(page.size() - 1);
+        } while (page.size() == 7);
+
+        assertEquals(new ArrayList<>(expected), listed);
+    }
+
+    /**
+     * Тест листинга каталога: вложенные каталоги возвращаются одним элементом.
+     */
+    @Test
+    void list_groupSubdirectoriesByDelimiter() {
+        PathTree tree = new PathTree();
+        tree.add("/data/a.txt");
+        tree.add("/data/logs/1.log");
+        tree.add("/data/logs/2.log");
+        tree.add("/data/z.txt");
+        tree.add("/database");
+
+        List<String> entries = new ArrayList<>();
+        tree.list("/data/", "", '/', 10, (path, directory) -> entries.add(path + (directory ? " dir" : "")));
+        assertEquals(List.of("/data/a.txt", "/data/logs/ dir", "/data/z.txt"), entries);
+
+        // Продолжение после каталога не возвращает его содержимое
+        assertEquals(List.of("/data/z.txt"), list(tree, "/data/", "/data/logs/", '/', 10));
+    }
+
+    /**
+     * Тест постраничного листинга каталога: каталог, чей узел продолжается за разделителем,
+     * не повторяется на следующей странице.
+     */
+    @Test
+    void list_returnEachDirectoryOnceWhenPagingByOne() {
+        PathTree tree = new PathTree();
+        tree.add("a/bx");
+        tree.add("a/by");
+        tree.add("b");
+
+        List<String> listed = new ArrayList<>();
+        String startAfter = "";
+        List<String> page;
+        do {
+            page = list(tree, "", startAfter, '/', 1);
+            listed.addAll(page);
+            startAfter = page.isEmpty() ? startAfter : page.get(0);
+        } while (!page.isEmpty() && listed.size() <= 3);
+
+        assertEquals(List.of("a/", "b"), listed);
+    }
+
+    private static List<String> list(PathTree tree, String prefix, String startAfter, char delimiter, int limit) {
+        List<String> paths = new ArrayList<>();
+        tree.list(prefix, startAfter, delimiter, limit, (path, directory) -> paths.add(path));
+        return paths;
+    }
+}
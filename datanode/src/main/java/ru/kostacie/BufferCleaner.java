@@ -0,0 +1,53 @@
+package ru.kostacie;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+
+
+/**
+ * Явное освобождение direct-буферов и отображений в память, не дожидаясь GC.
+ * Если освобождение недоступно, буфер освобождается сборщиком мусора как обычно.
+ */
+@Slf4j
+final class BufferCleaner {
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            unsafe = theUnsafe.get(null);
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            log.warn("Explicit buffer release is not available, buffers will be released by GC: {}", e.getMessage());
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    private BufferCleaner() {
+    }
+
+    /**
+     * Освобождает память direct-буфера. После вызова обращаться к буферу и его срезам нельзя.
+     *
+     * @param buffer direct-буфер или отображение, не являющиеся срезом другого буфера.
+     */
+    static void free(ByteBuffer buffer) {
+        if (INVOKE_CLEANER == null) {
+            return;
+        }
+        try {
+            INVOKE_CLEANER.invoke(UNSAFE, buffer);
+        } catch (ReflectiveOperationException e) {
+            log.warn("Failed to release buffer: {}", e.getMessage());
+        }
+    }
+}
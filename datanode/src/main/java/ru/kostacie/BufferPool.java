@@ -0,0 +1,42 @@
+package ru.kostacie;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+
+/**
+ * Пул direct-буферов фиксированного размера для чтения файлов.
+ * Буферы выделяются вне кучи и переиспользуются между запросами, чтобы не нагружать GC.
+ */
+class BufferPool {
+    private final int bufferSize;
+    private final BlockingQueue<ByteBuffer> freeBuffers;
+
+    /**
+     * @param bufferSize размер одного буфера.
+     * @param maxPooled  максимальное количество свободных буферов в пуле.
+     */
+    BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.freeBuffers = new ArrayBlockingQueue<>(maxPooled);
+    }
+
+    /**
+     * Возвращает свободный буфер из пула или выделяет новый.
+     */
+    ByteBuffer acquire() {
+        ByteBuffer buffer = freeBuffers.poll();
+        return buffer != null ? buffer : ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    /**
+     * Возвращает буфер в пул. Если пул заполнен, буфер освобождается сборщиком мусора.
+     *
+     * @param buffer буфер, полученный из {@link #acquire()}.
+     */
+    void release(ByteBuffer buffer) {
+        buffer.clear();
+        freeBuffers.offer(buffer);
+    }
+}
@@ -0,0 +1,343 @@
+package ru.kostacie;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * Кэш маленьких часто читаемых файлов поверх любого {@link FileStorage}.
+ * <p>
+ * Содержимое файлов хранится в direct-буферах вне кучи, поэтому GC не сканирует закэшированные данные.
+ * Кэш ограничен суммарным размером файлов. Вытесняется файл, к которому дольше всего не обращались (LRU),
+ * но новый файл допускается в заполненный кэш, только если к нему обращались чаще, чем к вытесняемым
+ * (TinyLFU, см. {@link FrequencySketch}). Поэтому однократное чтение множества файлов не вымывает горячие.
+ * <p>
+ * Буфер файла освобождается явно, когда его вытеснили и закрыли все открытые по нему {@link FileHandle}.
+ */
+public class CachingFileStorage implements FileStorage {
+    public static final long DEFAULT_MAX_OBJECT_SIZE = 1024 * 1024;
+    // Средний размер файла в кэше для оценки количества ключей в FrequencySketch
+    private static final long AVERAGE_OBJECT_SIZE = 16 * 1024;
+
+    private final FileStorage delegate;
+    private final long capacityBytes;
+    private final long maxObjectSize;
+
+    private final LinkedHashMap<String, CachedObject> objects = new LinkedHashMap<>(16, 0.75f, true);
+    private final FrequencySketch sketch;
+    private final ReentrantLock lock = new ReentrantLock();
+    private long cachedBytes;
+    // Увеличивается при каждой инвалидации, чтобы не закэшировать файл, прочитанный до удаления
+    private long invalidations;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder rejections = new LongAdder();
+
+    /**
+     * Создаёт кэш файлов размером до {@link #DEFAULT_MAX_OBJECT_SIZE}.
+     *
+     * @param delegate      хранилище файлов.
+     * @param capacityBytes максимальный суммарный размер закэшированных файлов.
+     */
+    public CachingFileStorage(FileStorage delegate, long capacityBytes) {
+        this(delegate, capacityBytes, DEFAULT_MAX_OBJECT_SIZE);
+    }
+
+    /**
+     * @param delegate      хранилище файлов.
+     * @param capacityBytes максимальный суммарный размер закэшированных файлов.
+     * @param maxObjectSize максимальный размер файла, который кэшируется.
+     */
+    public CachingFileStorage(FileStorage delegate, long capacityBytes, long maxObjectSize) {
+        this.delegate = delegate;
+        this.capacityBytes = capacityBytes;
+        this.maxObjectSize = Math.min(maxObjectSize, Math.min(capacityBytes, Integer.MAX_VALUE));
+        this.sketch = new FrequencySketch((int) Math.min(1 << 20, Math.max(1, capacityBytes / AVERAGE_OBJECT_SIZE)));
+    }
+
+    @Override
+    public boolean fileExists(String fileId) {
+        return delegate.fileExists(fileId);
+    }
+
+    @Override
+    public FileUpload createUpload(String fileId) throws IOException {
+        invalidate(fileId);
+        return delegate.createUpload(fileId);
+    }
+
+    @Override
+    public FileHandle openFile(String fileId) throws IOException {
+        long epoch;
+        lock.lock();
+        try {
+            sketch.increment(fileId);
+            CachedObject cached = objects.get(fileId);
+            if (cached != null && cached.retain()) {
+                hits.increment();
+                return new CachedFileHandle(cached);
+            }
+            epoch = invalidations;
+        } finally {
+            lock.unlock();
+        }
+
+        misses.increment();
+        FileHandle file = delegate.openFile(fileId);
+        if (file.size() == 0 || file.size() > maxObjectSize || !canAdmit(fileId, file.size())) {
+            return file;
+        }
+        CachedObject loaded;
+        try (file) {
+            loaded = new CachedObject(load(file));
+        }
+
+        List<CachedObject> released = new ArrayList<>();
+        lock.lock();
+        try {
+            CachedObject cached = objects.get(fileId);
+            if (cached != null && cached.retain()) {
+                // Файл уже закэшировал другой поток - наша копия не нужна
+                released.add(loaded);
+                loaded = cached;
+            } else if (epoch == invalidations && admit(fileId, loaded.size, released)) {
+                loaded.retain();
+                objects.put(fileId, loaded);
+                cachedBytes += loaded.size;
+            }
+        } finally {
+            lock.unlock();
+        }
+        released.forEach(CachedObject::release);
+        return new CachedFileHandle(loaded);
+    }
+
+    @Override
+    public List<String> listFiles() throws IOException {
+        return delegate.listFiles();
+    }
+
+    @Override
+    public FileHandle openFileUncached(String fileId) throws IOException {
+        return delegate.openFileUncached(fileId);
+    }
+
+    @Override
+    public boolean deleteFile(String fileId) throws IOException {
+        boolean deleted = delegate.deleteFile(fileId);
+        invalidate(fileId);
+        return deleted;
+    }
+
+    @Override
+    public Map<String, Long> getMetrics() {
+        Map<String, Long> metrics = new LinkedHashMap<>(delegate.getMetrics());
+        metrics.put("objectCache.hits", hits.sum());
+        metrics.put("objectCache.misses", misses.sum());
+        metrics.put("objectCache.evictions", evictions.sum());
+        metrics.put("objectCache.rejections", rejections.sum());
+        metrics.put("objectCache.bytes", getCachedBytes());
+        return metrics;
+    }
+
+    @Override
+    public void close() throws IOException {
+        List<CachedObject> removed;
+        lock.lock();
+        try {
+            removed = new ArrayList<>(objects.values());
+            objects.clear();
+            cachedBytes = 0;
+        } finally {
+            lock.unlock();
+        }
+        removed.forEach(CachedObject::release);
+        delegate.close();
+    }
+
+    long getCachedBytes() {
+        lock.lock();
+        try {
+            return cachedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Удаляет файл из кэша.
+     */
+    private void invalidate(String fileId) {
+        CachedObject removed;
+        lock.lock();
+        try {
+            invalidations++;
+            removed = objects.remove(fileId);
+            if (removed != null) {
+                cachedBytes -= removed.size;
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (removed != null) {
+            removed.release();
+        }
+    }
+
+    /**
+     * Проверяет, будет ли файл допущен в кэш, чтобы не читать в память файлы, которые не попадут в кэш.
+     */
+    private boolean canAdmit(String fileId, long size) {
+        lock.lock();
+        try {
+            if (selectVictims(fileId, size) != null) {
+                return true;
+            }
+            rejections.increment();
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Освобождает место под файл, вытесняя файлы, к которым обращались реже него.
+     * Возвращает false, если файл не допущен в кэш. Вызывается под блокировкой.
+     */
+    private boolean admit(String fileId, long size, List<CachedObject> evicted) {
+        List<String> victims = selectVictims(fileId, size);
+        if (victims == null) {
+            rejections.increment();
+            return false;
+        }
+        for (String victim : victims) {
+            CachedObject removed = objects.remove(victim);
+            cachedBytes -= removed.size;
+            evicted.add(removed);
+            evictions.increment();
+        }
+        return true;
+    }
+
+    /**
+     * Выбирает файлы для вытеснения в порядке LRU, чтобы поместить новый файл.
+     * Возвращает null, если среди них есть файл, к которому обращались не реже нового.
+     */
+    private List<String> selectVictims(String fileId, long size) {
+        List<String> victims = new ArrayList<>();
+        long needed = cachedBytes + size - capacityBytes;
+        if (needed <= 0) {
+            return victims;
+        }
+        int candidateFrequency = sketch.frequency(fileId);
+        Iterator<Map.Entry<String, CachedObject>> iterator = objects.entrySet().iterator();
+        long freed = 0;
+        while (freed < needed && iterator.hasNext()) {
+            Map.Entry<String, CachedObject> entry = iterator.next();
+            if (sketch.frequency(entry.getKey()) >= candidateFrequency) {
+                return null;
+            }
+            victims.add(entry.getKey());
+            freed += entry.getValue().size;
+        }
+        return victims;
+    }
+
+    /**
+     * Читает файл целиком в direct-буфер.
+     */
+    private static ByteBuffer load(FileHandle file) throws IOException {
+        ByteBuffer content = ByteBuffer.allocateDirect((int) file.size());
+        try {
+            while (content.hasRemaining()) {
+                ByteBuffer target = content.slice();
+                ByteBuffer chunk = file.read(content.position(), target);
+                if (!chunk.hasRemaining()) {
+                    throw new IOException("Unexpected end of file while caching");
+                }
+                // Хранилище может вернуть собственный буфер вместо переданного
+                if (chunk == target) {
+                    content.position(content.position() + chunk.remaining());
+                } else {
+                    content.put(chunk);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            BufferCleaner.free(content);
+            throw e;
+        }
+        return content.flip();
+    }
+
+    /**
+     * Закэшированный файл со счётчиком ссылок. Одна ссылка принадлежит кэшу, остальные - открытым FileHandle.
+     */
+    private static class CachedObject {
+        private final ByteBuffer buffer;
+        private final long size;
+        private final AtomicInteger refs = new AtomicInteger(1);
+
+        CachedObject(ByteBuffer buffer) {
+            this.buffer = buffer;
+            this.size = buffer.capacity();
+        }
+
+        boolean retain() {
+            int current;
+            do {
+                current = refs.get();
+                if (current == 0) {
+                    return false;
+                }
+            } while (!refs.compareAndSet(current, current + 1));
+            return true;
+        }
+
+        void release() {
+            if (refs.decrementAndGet() == 0) {
+                BufferCleaner.free(buffer);
+            }
+        }
+    }
+
+    /**
+     * Файл, читаемый срезами буфера кэша. Удерживает буфер, пока открыт.
+     */
+    private static class CachedFileHandle implements FileHandle {
+        private final CachedObject cached;
+        private boolean closed;
+
+        CachedFileHandle(CachedObject cached) {
+            this.cached = cached;
+        }
+
+        @Override
+        public long size() {
+            return cached.size;
+        }
+
+        @Override
+        public ByteBuffer read(long position, ByteBuffer buffer) {
+            int length = (int) Math.max(0, Math.min(buffer.capacity(), cached.size - position));
+            return cached.buffer.slice((int) Math.min(position, cached.size), length);
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                cached.release();
+            }
+        }
+    }
+}
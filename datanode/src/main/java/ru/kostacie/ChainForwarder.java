@@ -0,0 +1,115 @@
+package ru.kostacie;
+
+import datanode.DataNodeProto.UploadFileRequest;
+import datanode.DataNodeProto.UploadFileResponse;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+
+/**
+ * Пересылка загружаемого файла следующему DataNode цепочки репликации.
+ * Через неё же {@link StripeEncoder} отправляет полосы файла.
+ * <p>
+ * Чанки отправляются дальше по мере приёма, поэтому все копии пишутся одновременно, а клиент передаёт файл
+ * только один раз. Если следующий DataNode отказал, пересылка прекращается, а загрузка на этот DataNode
+ * продолжается: копий файла просто будет меньше.
+ */
+@Slf4j
+class ChainForwarder implements ClientResponseObserver<UploadFileRequest, UploadFileResponse> {
+    private final String address;
+    private final List<String> downstream;
+    // Количество копий, сохранённых следующим DataNode и DataNode после него; 0 - пересылка не удалась
+    private final CompletableFuture<Integer> replicas = new CompletableFuture<>();
+    private final Runnable onReadyHandler;
+    private ClientCallStreamObserver<UploadFileRequest> requestStream;
+
+    /**
+     * @param downstream     DataNode, которым файл пересылается, по порядку; первый получает его от этого DataNode.
+     * @param onReadyHandler вызывается, когда следующий DataNode готов принять чанк или пересылка прекратилась.
+     */
+    ChainForwarder(List<String> downstream, Runnable onReadyHandler) {
+        this.address = downstream.get(0);
+        this.downstream = downstream.subList(1, downstream.size());
+        this.onReadyHandler = onReadyHandler;
+    }
+
+    /**
+     * Открывает поток к следующему DataNode и отправляет первый чанк.
+     * Следующему DataNode достаточно сохранить свою копию: сколько копий нужно всего, проверяет начало цепочки.
+     */
+    void start(DataNodeChannels channels, UploadFileRequest first) {
+        try {
+            channels.stub(address).uploadFile(this);
+        } catch (RuntimeException e) {
+            onError(e);
+            return;
+        }
+        forward(first.toBuilder()
+                .clearDownstreamAddresses()
+                .addAllDownstreamAddresses(downstream)
+                .setMinReplicas(1)
+                .build());
+    }
+
+    @Override
+    public void beforeStart(ClientCallStreamObserver<UploadFileRequest> requestStream) {
+        this.requestStream = requestStream;
+        requestStream.setOnReadyHandler(onReadyHandler);
+    }
+
+    void forward(UploadFileRequest request) {
+        if (!replicas.isDone()) {
+            requestStream.onNext(request);
+        }
+    }
+
+    /**
+     * Готов ли следующий DataNode принять чанк без буферизации. До начала и после отказа пересылки всегда true.
+     */
+    boolean isReady() {
+        return replicas.isDone() || requestStream == null || requestStream.isReady();
+    }
+
+    /**
+     * Завершает пересылку. Возвращает future с количеством копий, сохранённых дальше по цепочке.
+     */
+    CompletableFuture<Integer> complete() {
+        if (!replicas.isDone()) {
+            requestStream.onCompleted();
+        }
+        return replicas;
+    }
+
+    /**
+     * Прерывает пересылку: следующий DataNode удаляет незавершённую копию.
+     */
+    void cancel(Throwable cause) {
+        if (!replicas.isDone() && requestStream != null) {
+            requestStream.cancel("Upstream upload failed", cause);
+        }
+        replicas.complete(0);
+    }
+
+    @Override
+    public void onNext(UploadFileResponse response) {
+        replicas.complete(response.getSuccess() ? Math.max(response.getReplicas(), 1) : 0);
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        if (replicas.complete(0)) {
+            log.warn("Forwarding upload to DataNode {} failed: {}", address, t.getMessage());
+            // Загрузка больше не ждёт следующий DataNode
+            onReadyHandler.run();
+        }
+    }
+
+    @Override
+    public void onCompleted() {
+        replicas.complete(0);
+    }
+}
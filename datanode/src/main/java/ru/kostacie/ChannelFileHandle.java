@@ -0,0 +1,52 @@
+package ru.kostacie;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+
+/**
+ * Файл хранилища, читаемый через {@link FileChannel} позиционными чтениями.
+ */
+class ChannelFileHandle implements FileHandle {
+    private final FileChannel channel;
+    private final long size;
+
+    /**
+     * Открывает файл для чтения.
+     *
+     * @param file путь к файлу.
+     * @throws IOException если файл не удалось открыть.
+     */
+    ChannelFileHandle(Path file) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+        this.size = channel.size();
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public ByteBuffer read(long position, ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        if (size - position < buffer.capacity()) {
+            buffer.limit((int) Math.max(0, size - position));
+        }
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                break;
+            }
+        }
+        return buffer.flip();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,73 @@
+package ru.kostacie;
+
+import datanode.DataNodeProto.Codec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+
+/**
+ * Распаковка чанков, сжатых клиентом.
+ */
+final class Compression {
+    /**
+     * Наибольший размер сжатого чанка до сжатия. Совпадает с наибольшим чанком загрузки клиента
+     * и ограничивает буфер, который выделяется под распаковку.
+     */
+    static final int MAX_RAW_LENGTH = 2 * 1024 * 1024;
+
+    private Compression() {
+    }
+
+    /**
+     * Проверяет, умеет ли DataNode распаковывать чанки, сжатые этим кодеком.
+     */
+    static boolean isSupported(Codec codec) {
+        return codec == Codec.NONE || codec == Codec.DEFLATE;
+    }
+
+    /**
+     * Распаковывает чанк.
+     *
+     * @param codec     кодек, которым сжат чанк.
+     * @param stored    сжатые данные.
+     * @param rawLength размер чанка до сжатия.
+     * @throws IOException если данные повреждены, размер после распаковки не совпадает
+     *                     или превышает {@link #MAX_RAW_LENGTH}.
+     */
+    static byte[] decompress(Codec codec, ByteBuffer stored, int rawLength) throws IOException {
+        if (codec != Codec.DEFLATE) {
+            throw new IOException("Unsupported codec: " + codec);
+        }
+        if (rawLength <= 0 || rawLength > MAX_RAW_LENGTH) {
+            throw new IOException("Invalid raw length of a compressed chunk: " + rawLength);
+        }
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(stored);
+            byte[] raw = new byte[rawLength];
+            int length = 0;
+            while (length < rawLength && !inflater.finished()) {
+                int inflated = inflater.inflate(raw, length, rawLength - length);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                length += inflated;
+            }
+            // Конец потока может быть прочитан только после заполнения буфера
+            if (length == rawLength && !inflater.finished() && inflater.inflate(new byte[1]) > 0) {
+                length++;
+            }
+            if (length != rawLength || !inflater.finished()) {
+                throw new IOException("Corrupted compressed chunk: expected " + rawLength + " bytes");
+            }
+            return raw;
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupted compressed chunk: " + e.getMessage(), e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
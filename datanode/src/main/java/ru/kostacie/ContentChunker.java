@@ -0,0 +1,70 @@
+package ru.kostacie;
+
+import java.util.Random;
+
+
+/**
+ * Разбиение данных на чанки по содержимому (content-defined chunking).
+ * <p>
+ * Границы чанков выбираются скользящим Gear-хешем по последним 64 байтам, а не по фиксированным смещениям,
+ * поэтому вставка или удаление байт сдвигает только соседние границы, и одинаковые участки
+ * почти одинаковых файлов разбиваются на одинаковые чанки.
+ */
+class ContentChunker {
+    // Таблица Gear-хеша должна быть одинаковой между перезапусками, иначе те же данные разобьются иначе
+    private static final long[] GEAR = new long[256];
+
+    static {
+        Random random = new Random(0x5EED_C4C1L);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private final int minChunkSize;
+    private final int maxChunkSize;
+    private final long boundaryMask;
+
+    /**
+     * @param averageChunkSize средний размер чанка, степень двойки;
+     *                         чанки получаются не меньше четверти и не больше учетверённого среднего размера.
+     */
+    ContentChunker(int averageChunkSize) {
+        if (averageChunkSize < 64 || Integer.bitCount(averageChunkSize) != 1) {
+            throw new IllegalArgumentException("Average chunk size must be a power of two >= 64: " + averageChunkSize);
+        }
+        this.minChunkSize = averageChunkSize / 4;
+        this.maxChunkSize = averageChunkSize * 4;
+        // Старшие биты Gear-хеша зависят от последних 64 байт, младшие - только от последних нескольких
+        this.boundaryMask = -1L << (Long.SIZE - Integer.numberOfTrailingZeros(averageChunkSize));
+    }
+
+    /**
+     * Возвращает максимальный размер чанка.
+     */
+    int getMaxChunkSize() {
+        return maxChunkSize;
+    }
+
+    /**
+     * Находит конец первого чанка в данных.
+     *
+     * @param data   данные, начинающиеся с начала чанка.
+     * @param length количество доступных байт; если это не конец файла, должно быть не меньше максимального размера чанка.
+     * @return длина первого чанка.
+     */
+    int cutPoint(byte[] data, int length) {
+        if (length <= minChunkSize) {
+            return length;
+        }
+        int limit = Math.min(length, maxChunkSize);
+        long hash = 0;
+        for (int i = minChunkSize; i < limit; i++) {
+            hash = (hash << 1) + GEAR[data[i] & 0xFF];
+            if ((hash & boundaryMask) == 0) {
+                return i + 1;
+            }
+        }
+        return limit;
+    }
+}
@@ -0,0 +1,55 @@
+package ru.kostacie;
+
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+
+/**
+ * Каналы к другим DataNode для пересылки копий файла по цепочке и чтения полос.
+ * Канал к каждому DataNode создаётся при первом обращении и используется всеми загрузками.
+ */
+@Slf4j
+class DataNodeChannels implements Closeable {
+    private final Function<String, ManagedChannel> channelFactory;
+    private final Map<String, ManagedChannel> channels = new ConcurrentHashMap<>();
+
+    DataNodeChannels() {
+        this(address -> ManagedChannelBuilder.forTarget(address).usePlaintext().build());
+    }
+
+    /**
+     * @param channelFactory создаёт канал по адресу DataNode.
+     */
+    DataNodeChannels(Function<String, ManagedChannel> channelFactory) {
+        this.channelFactory = channelFactory;
+    }
+
+    /**
+     * Возвращает асинхронный stub для DataNode по адресу.
+     */
+    datanode.DataNodeGrpc.DataNodeStub stub(String address) {
+        return datanode.DataNodeGrpc.newStub(channels.computeIfAbsent(address, channelFactory));
+    }
+
+    /**
+     * Возвращает блокирующий stub для DataNode по адресу.
+     */
+    datanode.DataNodeGrpc.DataNodeBlockingStub blockingStub(String address) {
+        return datanode.DataNodeGrpc.newBlockingStub(channels.computeIfAbsent(address, channelFactory));
+    }
+
+    @Override
+    public void close() {
+        for (Map.Entry<String, ManagedChannel> channel : channels.entrySet()) {
+            log.debug("Closing channel to DataNode {}", channel.getKey());
+            channel.getValue().shutdown();
+        }
+        channels.clear();
+    }
+}
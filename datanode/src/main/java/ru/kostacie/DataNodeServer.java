@@ -2,100 +2,365 @@ package ru.kostacie;
 
 import coordinator.CoordinatorGrpc;
 import coordinator.CoordinatorProto.*;
+import datanode.DataNodeProto.StripeLayout;
 import io.grpc.Server;
 import io.grpc.ServerBuilder;
 import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
+import io.grpc.StatusRuntimeException;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Сервер для работы с DataNode.
  */
 @Slf4j
 public class DataNodeServer {
-    private static final int COORDINATOR_PORT = 5051;
     private static final String COORDINATOR_HOST = "localhost";
+    private static final String DEFAULT_COORDINATOR = COORDINATOR_HOST + ":5051";
+    private static final String STORAGE_DIR = "storage/";
+    private static final String CHUNKS_DIR = ".chunks";
+    private static final long DEFAULT_MMAP_CACHE_BYTES = 1024L * 1024 * 1024;
+    private static final long METRICS_LOG_INTERVAL_SECONDS = 60;
+    private static final long DEFAULT_SCRUB_BYTES_PER_SECOND = 10L * 1024 * 1024;
+    private static final long SCRUB_INTERVAL_HOURS = 6;
+    private static final long HEARTBEAT_INTERVAL_MILLIS = 1000;
 
     private final int port;
     private final String dataNodeId;
+    private final FileStorage fileStorage;
+    // Вес DataNode в кольце консистентного хеширования координатора
+    private final int ringWeight;
+    // Координаторы, между которыми разделены пути файлов: каждый размещает свои файлы и получает heartbeat'ы
+    private final List<String> coordinatorAddresses;
+    // Фоновая проверка контрольных сумм; null - отключена
+    private final Scrubber scrubber;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "datanode-scheduler");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Перекодирование файлов в полосы по заданиям координатора, по одному файлу за раз
+    private final ExecutorService encoder = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "erasure-encoder");
+        thread.setDaemon(true);
+        return thread;
+    });
     private Server server;
+    private DataNodeService dataNodeService;
+    private final List<ManagedChannel> coordinatorChannels = new ArrayList<>();
+    private final List<CoordinatorGrpc.CoordinatorBlockingStub> coordinatorStubs = new ArrayList<>();
+    // Выполненные задания на удаление, которые ещё не подтверждены координатору; меняются только в потоке heartbeat'ов
+    private final Map<CoordinatorGrpc.CoordinatorBlockingStub, List<Long>> completedTasks = new HashMap<>();
 
-    public DataNodeServer(int port, String dataNodeId) {
+    public DataNodeServer(int port, String dataNodeId, FileStorage fileStorage) {
+        this(port, dataNodeId, fileStorage, DEFAULT_SCRUB_BYTES_PER_SECOND);
+    }
+
+    /**
+     * @param scrubBytesPerSecond скорость фоновой проверки контрольных сумм; 0 - не проверять.
+     */
+    public DataNodeServer(int port, String dataNodeId, FileStorage fileStorage, long scrubBytesPerSecond) {
+        this(port, dataNodeId, fileStorage, scrubBytesPerSecond, 1);
+    }
+
+    /**
+     * @param scrubBytesPerSecond скорость фоновой проверки контрольных сумм; 0 - не проверять.
+     * @param ringWeight          вес DataNode в кольце консистентного хеширования: во сколько раз больше файлов
+     *                            он получает по сравнению с DataNode веса 1.
+     */
+    public DataNodeServer(int port, String dataNodeId, FileStorage fileStorage, long scrubBytesPerSecond,
+                          int ringWeight) {
+        this(port, dataNodeId, fileStorage, scrubBytesPerSecond, ringWeight, List.of(DEFAULT_COORDINATOR));
+    }
+
+    /**
+     * @param scrubBytesPerSecond  скорость фоновой проверки контрольных сумм; 0 - не проверять.
+     * @param ringWeight           вес DataNode в кольце консистентного хеширования.
+     * @param coordinatorAddresses адреса всех координаторов в виде host:port.
+     */
+    public DataNodeServer(int port, String dataNodeId, FileStorage fileStorage, long scrubBytesPerSecond,
+                          int ringWeight, List<String> coordinatorAddresses) {
+        if (ringWeight <= 0) {
+            throw new IllegalArgumentException("Invalid ring weight: " + ringWeight);
+        }
         this.port = port;
         this.dataNodeId = dataNodeId;
+        this.fileStorage = fileStorage;
+        this.ringWeight = ringWeight;
+        this.coordinatorAddresses = List.copyOf(coordinatorAddresses);
+        this.scrubber = scrubBytesPerSecond > 0 ? new Scrubber(fileStorage, scrubBytesPerSecond) : null;
     }
 
     public static void main(String[] args) throws IOException, InterruptedException {
         if (args.length < 2) {
-            System.err.println("Use: java DataNodeServer -port- -dataNodeId-");
+            System.err.println("Use: java DataNodeServer -port- -dataNodeId- [--storage=directory|segment]"
+                    + " [--read-mode=channel|mmap] [--mmap-cache-bytes=-bytes-] [--dedup=true|false]"
+                    + " [--object-cache-bytes=-bytes-] [--scrub-bytes-per-second=-bytes-] [--ring-weight=1]"
+                    + " [--coordinators=host:port,...]");
             System.exit(1);
         }
 
         int port = Integer.parseInt(args[0]);
         String dataNodeId = args[1];
+        Map<String, String> options = parseOptions(args);
 
-        DataNodeServer dataNode = new DataNodeServer(port, dataNodeId);
+        long scrubBytesPerSecond = Long.parseLong(options.getOrDefault("scrub-bytes-per-second",
+                String.valueOf(DEFAULT_SCRUB_BYTES_PER_SECOND)));
+        int ringWeight = Integer.parseInt(options.getOrDefault("ring-weight", "1"));
+        List<String> coordinators = List.of(options.getOrDefault("coordinators", DEFAULT_COORDINATOR).split(","));
+        DataNodeServer dataNode = new DataNodeServer(port, dataNodeId, createFileStorage(options), scrubBytesPerSecond,
+                ringWeight, coordinators);
         dataNode.startDataNode();
         dataNode.awaitTermination();
     }
 
+    /**
+     * Разбирает необязательные параметры вида --name=value, идущие после порта и ID.
+     */
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 2; i < args.length; i++) {
+            String arg = args[i];
+            int separator = arg.indexOf('=');
+            if (!arg.startsWith("--") || separator < 0) {
+                throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+            options.put(arg.substring(2, separator), arg.substring(separator + 1));
+        }
+        return options;
+    }
+
+    /**
+     * Создаёт хранилище выбранного типа:
+     * directory - каждый файл хранится отдельно, segment - маленькие файлы упаковываются в сегменты.
+     * В режиме чтения mmap часто читаемые файлы отдаются из отображений в память.
+     * С дедупликацией файлы разбиваются на чанки, а хранилище выбранного типа хранит уникальные чанки.
+     * Если задан размер кэша объектов, маленькие часто читаемые файлы кэшируются в памяти вне кучи.
+     */
+    private static FileStorage createFileStorage(Map<String, String> options) throws IOException {
+        String storage = options.getOrDefault("storage", "directory");
+        String readMode = options.getOrDefault("read-mode", "channel");
+        boolean dedup = Boolean.parseBoolean(options.getOrDefault("dedup", "false"));
+        long objectCacheBytes = Long.parseLong(options.getOrDefault("object-cache-bytes", "0"));
+        long mappedCacheBytes = switch (readMode) {
+            case "channel" -> 0;
+            case "mmap" -> Long.parseLong(options.getOrDefault("mmap-cache-bytes", String.valueOf(DEFAULT_MMAP_CACHE_BYTES)));
+            default -> throw new IllegalArgumentException("Unknown read mode: " + readMode);
+        };
+        Path storageDir = Path.of(STORAGE_DIR);
+        Path dataDir = dedup ? storageDir.resolve(CHUNKS_DIR) : storageDir;
+        FileStorage fileStorage = switch (storage) {
+            case "directory" -> new DirectoryFileStorage(dataDir, mappedCacheBytes);
+            case "segment" -> new SegmentFileStorage(dataDir, SegmentFileStorage.DEFAULT_SMALL_FILE_THRESHOLD,
+                    SegmentFileStorage.DEFAULT_MAX_SEGMENT_SIZE, mappedCacheBytes);
+            default -> throw new IllegalArgumentException("Unknown storage type: " + storage);
+        };
+        if (dedup) {
+            fileStorage = new DedupFileStorage(storageDir, fileStorage);
+        }
+        return objectCacheBytes > 0 ? new CachingFileStorage(fileStorage, objectCacheBytes) : fileStorage;
+    }
+
     /**
      * Запускает DataNode и добавляет его в CoordinatorService.
      *
      * @throws IOException если не удается запустить сервер.
      */
     public void startDataNode() throws IOException {
+        dataNodeService = new DataNodeService(fileStorage);
         server = ServerBuilder.forPort(port)
-                .addService(new DataNodeService(new FileStorage()))
+                .addService(dataNodeService)
                 .build()
                 .start();
 
         log.info("DataNode {} started on port {}", dataNodeId, port);
 
+        // Один канал к каждому координатору на всё время работы: по нему регулярно отправляются heartbeat'ы
+        for (String coordinatorAddress : coordinatorAddresses) {
+            ManagedChannel channel = ManagedChannelBuilder.forTarget(coordinatorAddress)
+                    .usePlaintext()
+                    .build();
+            coordinatorChannels.add(channel);
+            coordinatorStubs.add(CoordinatorGrpc.newBlockingStub(channel));
+        }
+
         // Добавляем DataNode в Координатор
         addToCoordinator();
 
+        scheduler.scheduleAtFixedRate(this::logMetrics,
+                METRICS_LOG_INTERVAL_SECONDS, METRICS_LOG_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        scheduler.scheduleAtFixedRate(this::sendHeartbeat,
+                HEARTBEAT_INTERVAL_MILLIS, HEARTBEAT_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        if (scrubber != null) {
+            scrubber.start(SCRUB_INTERVAL_HOURS, TimeUnit.HOURS);
+        }
+
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            scheduler.shutdownNow();
+            encoder.shutdownNow();
             removeFromCoordinator();
+            coordinatorChannels.forEach(ManagedChannel::shutdown);
+            if (scrubber != null) {
+                scrubber.close();
+            }
             server.shutdown();
+            dataNodeService.close();
+            try {
+                fileStorage.close();
+            } catch (IOException e) {
+                log.error("Failed to close file storage: {}", e.getMessage());
+            }
             log.info("DataNode {} stopped", dataNodeId);
         }));
     }
 
     /**
-     * Добавляет DataNode в список CoordinatorService.
+     * Пишет в лог счётчики хранилища и фоновой проверки.
      */
-    private void addToCoordinator() {
-        ManagedChannel channel = ManagedChannelBuilder.forAddress(COORDINATOR_HOST, COORDINATOR_PORT)
-                .usePlaintext()
+    private void logMetrics() {
+        Map<String, Long> metrics = new LinkedHashMap<>(fileStorage.getMetrics());
+        if (scrubber != null) {
+            metrics.putAll(scrubber.getMetrics());
+        }
+        if (!metrics.isEmpty()) {
+            log.info("DataNode {} storage metrics: {}", dataNodeId, metrics);
+        }
+    }
+
+    /**
+     * Отправляет координаторам heartbeat с нагрузкой DataNode: свободным местом,
+     * числом активных передач и средним временем обработки чанка, а также весом DataNode в кольце.
+     * В ответ каждый координатор присылает задания для своих файлов: какие удалить и какие перекодировать в полосы.
+     */
+    private void sendHeartbeat() {
+        HeartbeatRequest.Builder request = HeartbeatRequest.newBuilder()
+                .setAddress(address())
+                .setRingWeight(ringWeight);
+        LoadTracker loadTracker = dataNodeService.getLoadTracker();
+        try {
+            request.setLoad(DataNodeLoad.newBuilder()
+                    .setFreeBytes(Files.getFileStore(Path.of(STORAGE_DIR)).getUsableSpace())
+                    .setActiveTransfers(loadTracker.getActiveTransfers())
+                    .setLatencyMicros(loadTracker.getLatencyMicros()));
+        } catch (IOException e) {
+            log.warn("Failed to get free space of {}: {}", STORAGE_DIR, e.getMessage());
+        }
+        for (CoordinatorGrpc.CoordinatorBlockingStub coordinatorStub : coordinatorStubs) {
+            sendHeartbeat(coordinatorStub, request);
+        }
+    }
+
+    /**
+     * Отправляет heartbeat одному координатору, подтверждая задания на удаление, выполненные по его прошлому ответу.
+     * Если heartbeat не дошёл, подтверждения уходят со следующим; координатор повторяет неподтверждённые задания.
+     * Удаление, которое не удалось, не подтверждается и будет повторено.
+     */
+    private void sendHeartbeat(CoordinatorGrpc.CoordinatorBlockingStub coordinatorStub,
+                               HeartbeatRequest.Builder request) {
+        List<Long> completed = completedTasks.computeIfAbsent(coordinatorStub, key -> new ArrayList<>());
+        HeartbeatResponse response;
+        try {
+            response = coordinatorStub.withDeadlineAfter(HEARTBEAT_INTERVAL_MILLIS, TimeUnit.MILLISECONDS)
+                    .heartbeat(request.clearCompletedTaskIds().addAllCompletedTaskIds(completed).build());
+        } catch (StatusRuntimeException e) {
+            log.warn("DataNode {} failed to send heartbeat: {}", dataNodeId, e.getStatus());
+            return;
+        }
+        completed.clear();
+        for (DeleteTask task : response.getDeleteTasksList()) {
+            try {
+                if (fileStorage.deleteFile(task.getFileId())) {
+                    log.info("File {} deleted by coordinator", task.getFileId());
+                }
+                completed.add(task.getTaskId());
+            } catch (IOException e) {
+                log.error("Failed to delete file {}: {}", task.getFileId(), e.getMessage());
+            }
+        }
+        for (EncodeTask task : response.getEncodeTasksList()) {
+            encoder.execute(() -> encode(task, coordinatorStub));
+        }
+    }
+
+    /**
+     * Перекодирует файл в полосы и сообщает результат координатору, приславшему задание.
+     */
+    private void encode(EncodeTask task, CoordinatorGrpc.CoordinatorBlockingStub coordinatorStub) {
+        ReportEncodedRequest.Builder report = ReportEncodedRequest.newBuilder()
+                .setFilePath(task.getFilePath())
+                .setFileId(task.getFileId())
+                .setLayout(task.getLayout());
+        try {
+            StripeLayout layout = dataNodeService.encodeFile(task.getSourceFileId(), task.getFileId(),
+                    toStripeLayout(task.getLayout()));
+            report.setSuccess(true).getLayoutBuilder().setFileSize(layout.getFileSize());
+        } catch (IOException e) {
+            log.error("Failed to encode file {}: {}", task.getFilePath(), e.getMessage());
+            report.setSuccess(false).setError(e.getMessage());
+        }
+        try {
+            ReportEncodedResponse response = coordinatorStub.reportEncoded(report.build());
+            log.info("Encoding of file {} reported, accepted: {}", task.getFilePath(), response.getAccepted());
+        } catch (StatusRuntimeException e) {
+            log.error("Failed to report encoding of file {}: {}", task.getFilePath(), e.getStatus());
+        }
+    }
+
+    private static StripeLayout toStripeLayout(ErasureLayout layout) {
+        return StripeLayout.newBuilder()
+                .setDataStripes(layout.getDataStripes())
+                .setParityStripes(layout.getParityStripes())
+                .setCellSize(layout.getCellSize())
+                .addAllStripeAddresses(layout.getStripeAddressesList())
+                .setFileSize(layout.getFileSize())
                 .build();
-        CoordinatorGrpc.CoordinatorBlockingStub stub = CoordinatorGrpc.newBlockingStub(channel);
+    }
 
+    /**
+     * Добавляет DataNode в список CoordinatorService.
+     */
+    private void addToCoordinator() {
         RegisterDataNodeRequest request = RegisterDataNodeRequest.newBuilder()
-                .setAddress(String.format("%s:%d", COORDINATOR_HOST, port))
+                .setAddress(address())
                 .build();
 
-        RegisterDataNodeResponse response = stub.registerDataNode(request);
-        log.info("DataNode {} added to Coordinator: {}", dataNodeId, response.getSuccess());
+        for (int i = 0; i < coordinatorStubs.size(); i++) {
+            RegisterDataNodeResponse response = coordinatorStubs.get(i).registerDataNode(request);
+            log.info("DataNode {} added to Coordinator {}: {}", dataNodeId, coordinatorAddresses.get(i),
+                    response.getSuccess());
+        }
     }
 
     /**
      * Удаляет DataNode из списка CoordinatorService.
      */
     private void removeFromCoordinator() {
-        ManagedChannel channel = ManagedChannelBuilder.forAddress(COORDINATOR_HOST, COORDINATOR_PORT)
-                .usePlaintext()
-                .build();
-        CoordinatorGrpc.CoordinatorBlockingStub stub = CoordinatorGrpc.newBlockingStub(channel);
-
         UnregisterDataNodeRequest request = UnregisterDataNodeRequest.newBuilder()
-                .setAddress(String.format("%s:%d", COORDINATOR_HOST, port))
+                .setAddress(address())
                 .build();
 
-        UnregisterDataNodeResponse response = stub.unregisterDataNode(request);
-        log.info("DataNode {} removed from Coordinator: {}", dataNodeId, response.getSuccess());
+        for (int i = 0; i < coordinatorStubs.size(); i++) {
+            UnregisterDataNodeResponse response = coordinatorStubs.get(i).unregisterDataNode(request);
+            log.info("DataNode {} removed from Coordinator {}: {}", dataNodeId, coordinatorAddresses.get(i),
+                    response.getSuccess());
+        }
+    }
+
+    private String address() {
+        return String.format("%s:%d", COORDINATOR_HOST, port);
     }
 
     public void awaitTermination() throws InterruptedException {
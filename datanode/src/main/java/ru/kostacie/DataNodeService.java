@@ -1,127 +1,452 @@
 package ru.kostacie;
 
-import com.google.protobuf.ByteString;
 import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
-import lombok.AllArgsConstructor;
-import lombok.NoArgsConstructor;
-import lombok.RequiredArgsConstructor;
+import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 import datanode.DataNodeProto.*;
 import ru.kostacie.exception.FileUploadException;
 
-import java.io.ByteArrayOutputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 
 /**
  * Сервис для обработки запросов клиента по загрузке и скачиванию файлов в DataNode.
  */
 @Slf4j
-@RequiredArgsConstructor
 public class DataNodeService extends datanode.DataNodeGrpc.DataNodeImplBase {
+    // Размер чанка, которым файл отправляется клиенту
+    private static final int DOWNLOAD_CHUNK_SIZE = 64 * 1024;
+    private static final int MAX_POOLED_BUFFERS = 64;
+
     private final FileStorage fileStorage;
+    // Каналы к DataNode, которым пересылаются копии файлов
+    private final DataNodeChannels dataNodeChannels;
+    private final BufferPool bufferPool = new BufferPool(DOWNLOAD_CHUNK_SIZE, MAX_POOLED_BUFFERS);
+    // Активные передачи и время обработки чанков для heartbeat'ов координатору
+    @Getter
+    private final LoadTracker loadTracker = new LoadTracker();
+
+    public DataNodeService(FileStorage fileStorage) {
+        this(fileStorage, new DataNodeChannels());
+    }
+
+    DataNodeService(FileStorage fileStorage, DataNodeChannels dataNodeChannels) {
+        this.fileStorage = fileStorage;
+        this.dataNodeChannels = dataNodeChannels;
+    }
 
     /**
      * Загружает файл на DataNode.
+     * Чанки, сжатые клиентом, хранятся сжатыми и распаковываются только при скачивании клиентом,
+     * который не умеет их распаковать. Контрольная сумма каждого чанка проверяется при приёме
+     * и сохраняется вместе с данными.
+     * <p>
+     * Если в первом сообщении указаны DataNode дальше по цепочке, чанки пересылаются первому из них по мере приёма.
+     * Следующий чанк запрашивается у клиента, только когда следующий DataNode готов его принять, поэтому
+     * медленная копия замедляет загрузку, а не копит чанки в памяти. Успешный ответ отправляется, когда все
+     * DataNode цепочки ответили и сохранено не меньше min_replicas копий.
+     * <p>
+     * Если в первом сообщении указано размещение полос, файл не сохраняется на этом DataNode: он кодируется
+     * кодом Рида-Соломона, и полосы рассылаются по размещению. Загрузка успешна, если сохранены все полосы.
      *
-     * @param responseObserver ответ для клиента.
+     * @param responseObserver ответ для клиента или предыдущего DataNode цепочки.
      */
     @Override
     public StreamObserver<UploadFileRequest> uploadFile(StreamObserver<UploadFileResponse> responseObserver) {
+        loadTracker.transferStarted();
+        // Чанки запрашиваются вручную, только если ответ идёт через gRPC; иначе они приходят без ограничений
+        ServerCallStreamObserver<UploadFileResponse> serverCall =
+                responseObserver instanceof ServerCallStreamObserver<UploadFileResponse> call ? call : null;
+        AtomicBoolean requestPending = new AtomicBoolean();
+        if (serverCall != null) {
+            serverCall.disableAutoRequest();
+            serverCall.request(1);
+        }
         return new StreamObserver<>() {
             private String uploadId;
-            private List<byte[]> chunks = new ArrayList<>();
+            private FileUpload upload;
+            private FramedFile.Writer writer;
+            private ChainForwarder forwarder;
+            private StripeEncoder encoder;
+            // Заявленный размер файла, который кодируется полосами
+            private long fileSize;
+            private int minReplicas;
+            private boolean failed;
+            private boolean finished;
 
             @Override
             public void onNext(UploadFileRequest request) {
+                if (failed) {
+                    return;
+                }
                 try {
-                    if (request.getUploadId().isEmpty()) {
-                        responseObserver.onError(new FileUploadException("Upload ID must not be empty"));
-                        return;
-                    }
-                    // Если файл уже существует - ошибка
                     if (uploadId == null) {
+                        if (request.getUploadId().isEmpty()) {
+                            fail(new FileUploadException("Upload ID must not be empty"));
+                            return;
+                        }
                         uploadId = request.getUploadId();
-                        if (fileStorage.fileExists(uploadId)) {
-                            responseObserver.onError(new FileUploadException("File already exists"));
+                        if (request.hasStripeLayout()) {
+                            encoder = new StripeEncoder(dataNodeChannels, uploadId, request.getStripeLayout(),
+                                    this::requestIfReady);
+                            fileSize = request.getStripeLayout().getFileSize();
+                        }
+                        // Если файл уже существует - ошибка
+                        if (encoder == null && fileStorage.fileExists(uploadId)) {
+                            fail(new FileUploadException("File already exists"));
                             return;
                         }
+                        if (encoder == null) {
+                            upload = fileStorage.createUpload(uploadId);
+                            writer = new FramedFile.Writer(upload);
+                        }
+                        minReplicas = request.getMinReplicas() == 0
+                                ? 1 + request.getDownstreamAddressesCount()
+                                : request.getMinReplicas();
+                    }
+                    Codec codec = request.getCodec();
+                    if (!Compression.isSupported(codec)) {
+                        fail(new FileUploadException("Unsupported codec: " + codec));
+                        return;
+                    }
+                    if (codec != Codec.NONE && (request.getRawLength() <= 0
+                            || request.getRawLength() > Compression.MAX_RAW_LENGTH)) {
+                        fail(new FileUploadException("Raw length of a compressed chunk must be between 1 and "
+                                + Compression.MAX_RAW_LENGTH + " bytes"));
+                        return;
+                    }
+                    int checksum = FramedFile.checksum(request.getContent());
+                    if (request.hasCrc32C() && request.getCrc32C() != checksum) {
+                        fail(new FileUploadException("Chunk checksum mismatch"));
+                        return;
+                    }
+                    // Сжатый чанк распаковывается один раз при загрузке: неверный raw_length или
+                    // повреждённые данные отклоняют загрузку, а не портят последующие чтения
+                    ByteBuffer raw = codec == Codec.NONE
+                            ? request.getContent().asReadOnlyByteBuffer()
+                            : ByteBuffer.wrap(Compression.decompress(codec,
+                            request.getContent().asReadOnlyByteBuffer(), request.getRawLength()));
+                    if (encoder != null) {
+                        // Полосы кодируются из исходных данных
+                        encoder.append(raw);
+                        requestPending.set(true);
+                        requestIfReady();
+                        return;
                     }
-                    // Добавляем каждый чанк в список со всеми данными файла
-                    chunks.add(request.getContent().toByteArray());
+                    if (forwarder == null && request.getDownstreamAddressesCount() > 0) {
+                        forwarder = new ChainForwarder(request.getDownstreamAddressesList(), this::requestIfReady);
+                        forwarder.start(dataNodeChannels, request);
+                    } else if (forwarder != null) {
+                        forwarder.forward(request);
+                    }
+                    // Пишем чанк сразу на диск, не накапливая файл в памяти
+                    long start = System.nanoTime();
+                    writer.append(codec, request.getRawLength(), request.getContent(), checksum);
+                    loadTracker.recordLatency(System.nanoTime() - start);
+                    requestPending.set(true);
+                    requestIfReady();
                 } catch (Exception e) {
-                    responseObserver.onError(new FileUploadException("File upload failed: " + e.getMessage()));
+                    fail(new FileUploadException("File upload failed: " + e.getMessage()));
+                }
+            }
+
+            /**
+             * Запрашивает следующий чанк, если он ожидается и следующий DataNode готов его принять.
+             * Вызывается после записи чанка и из потока gRPC, когда следующий DataNode становится готов.
+             */
+            private void requestIfReady() {
+                if (serverCall != null && (forwarder == null || forwarder.isReady())
+                        && (encoder == null || encoder.isReady())
+                        && requestPending.compareAndSet(true, false)) {
+                    serverCall.request(1);
                 }
             }
 
             @Override
             public void onError(Throwable t) {
                 log.error("Error during file uploading: {}", t.getMessage());
+                finishTransfer();
+                if (forwarder != null) {
+                    forwarder.cancel(t);
+                }
+                if (encoder != null) {
+                    encoder.cancel(t);
+                }
+                if (upload != null) {
+                    upload.abort();
+                }
                 responseObserver.onError(t);
             }
 
             @Override
             public void onCompleted() {
-                if (uploadId == null) {
+                if (failed) {
+                    return;
+                }
+                finishTransfer();
+                if (encoder != null) {
+                    finishStripes();
+                    return;
+                }
+                if (upload == null) {
                     responseObserver.onError(new FileUploadException("Upload ID is not set"));
                     return;
                 }
                 try {
-                    // Объединяем чанки
-                    byte[] concatedChunks = concatChunks(chunks);
-                    // Сохраняем файл в FileStorage
-                    fileStorage.saveFile(uploadId, concatedChunks);
+                    // Дописываем индекс кадров; файл попадает в хранилище, когда известно число копий
+                    writer.finish();
+                } catch (IOException e) {
+                    upload.abort();
+                    if (forwarder != null) {
+                        forwarder.cancel(e);
+                    }
+                    responseObserver.onError(new FileUploadException("Failed to write file: " + e.getMessage()));
+                    return;
+                }
+                if (forwarder == null) {
+                    commit(1);
+                } else {
+                    forwarder.complete().thenAccept(downstreamReplicas -> commit(1 + downstreamReplicas));
+                }
+            }
+
+            /**
+             * Отправляет последнюю строку полос и отвечает, когда все полосы сохранены.
+             */
+            private void finishStripes() {
+                // Размер в размещении нужен, чтобы отбросить дополнение последней строки при чтении
+                if (encoder.size() != fileSize) {
+                    encoder.cancel(new FileUploadException("File size mismatch"));
+                    responseObserver.onError(Status.INVALID_ARGUMENT
+                            .withDescription("File size " + encoder.size() + " does not match declared " + fileSize)
+                            .asRuntimeException());
+                    return;
+                }
+                int total = encoder.layout().getStripeAddressesCount();
+                encoder.finish().thenAccept(stripes -> {
+                    if (stripes < total) {
+                        log.error("File {} stored with {} of {} stripes", uploadId, stripes, total);
+                        responseObserver.onError(Status.UNAVAILABLE
+                                .withDescription("Only " + stripes + " of " + total + " stripes stored")
+                                .asRuntimeException());
+                        return;
+                    }
+                    log.info("File encoding completed. ID: {}, stripes: {}", uploadId, stripes);
+                    responseObserver.onNext(UploadFileResponse.newBuilder()
+                            .setSuccess(true)
+                            .setReplicas(stripes)
+                            .build());
+                    responseObserver.onCompleted();
+                });
+            }
+
+            /**
+             * Переносит временный файл в хранилище, если сохранено достаточно копий.
+             */
+            private void commit(int replicas) {
+                if (replicas < minReplicas) {
+                    upload.abort();
+                    log.error("File {} stored with {} of {} required replicas", uploadId, replicas, minReplicas);
+                    responseObserver.onError(Status.UNAVAILABLE
+                            .withDescription("Only " + replicas + " of " + minReplicas + " required replicas stored")
+                            .asRuntimeException());
+                    return;
+                }
+                try {
+                    upload.commit();
 
-                    log.info("File uploading completed. ID: {}", uploadId);
+                    log.info("File uploading completed. ID: {}, replicas: {}", uploadId, replicas);
 
-                    UploadFileResponse response = UploadFileResponse.newBuilder().setSuccess(true).build();
+                    UploadFileResponse response = UploadFileResponse.newBuilder()
+                            .setSuccess(true)
+                            .setReplicas(replicas)
+                            .build();
                     responseObserver.onNext(response);
                     responseObserver.onCompleted();
                 } catch (IOException e) {
+                    upload.abort();
                     responseObserver.onError(new FileUploadException("Failed to write file: " + e.getMessage()));
                 }
             }
+
+            private void fail(FileUploadException e) {
+                failed = true;
+                finishTransfer();
+                if (forwarder != null) {
+                    forwarder.cancel(e);
+                }
+                if (encoder != null) {
+                    encoder.cancel(e);
+                }
+                if (upload != null) {
+                    upload.abort();
+                }
+                responseObserver.onError(e);
+            }
+
+            private void finishTransfer() {
+                if (!finished) {
+                    finished = true;
+                    loadTracker.transferFinished();
+                }
+            }
         };
     }
 
     /**
-     * Читает файл из FileStorage.
+     * Читает файл или диапазон его байт из FileStorage и отправляет клиенту чанками.
      *
-     * @param request          запрос с ID файла.
+     * @param request          запрос с ID файла и необязательным диапазоном.
      * @param responseObserver ответ для клиента.
      */
     @Override
     public void downloadFile(DownloadFileRequest request, StreamObserver<DownloadFileResponse> responseObserver) {
+        if (request.hasStripeLayout()) {
+            downloadStripes(request, responseObserver);
+            return;
+        }
+        String fileId = request.getFileId();
+        FileHandle file;
         try {
-            String fileId = request.getFileId();
-            byte[] fileData = fileStorage.getFile(fileId);
-            if (fileData == null) {
-                responseObserver.onError(new FileNotFoundException("File not found: " + fileId));
-                return;
-            }
+            file = fileStorage.openFile(fileId);
+        } catch (IOException e) {
+            responseObserver.onError(new IOException("Downloading failed: " + e.getMessage()));
+            return;
+        }
 
-            ByteString byteContent = ByteString.copyFrom(fileData);
-            DownloadFileResponse response = DownloadFileResponse.newBuilder().setContent(byteContent).build();
-            responseObserver.onNext(response);
+        FramedFile framedFile;
+        try {
+            framedFile = FramedFile.open(file);
+        } catch (IOException e) {
+            closeQuietly(file);
+            responseObserver.onError(new IOException("Downloading failed: " + e.getMessage()));
+            return;
+        }
+        long size = framedFile != null ? framedFile.rawSize() : file.size();
 
-            log.info("File successfully sent: {}", fileId);
+        long offset = request.getOffset();
+        long length = request.getLength();
+        if (offset < 0 || offset > size || length < 0) {
+            closeQuietly(file);
+            responseObserver.onError(Status.OUT_OF_RANGE
+                    .withDescription(String.format("Invalid range [%s, +%s) for file %s of %d bytes",
+                            Long.toUnsignedString(offset), Long.toUnsignedString(length), fileId, size))
+                    .asRuntimeException());
+            return;
+        }
+        long end = length == 0 || length >= size - offset ? size : offset + length;
+        if (framedFile == null) {
+            new FileDownload(fileId, file, offset, end, responseObserver, bufferPool, loadTracker).start();
+            return;
+        }
+        Set<Codec> acceptedCodecs = EnumSet.noneOf(Codec.class);
+        for (Codec codec : request.getAcceptedCodecsList()) {
+            if (codec != Codec.UNRECOGNIZED) {
+                acceptedCodecs.add(codec);
+            }
+        }
+        FramedChunkReader reader = new FramedChunkReader(file, framedFile, offset, end, acceptedCodecs);
+        new FileDownload(fileId, file, reader, responseObserver, bufferPool, loadTracker).start();
+    }
 
-            responseObserver.onCompleted();
+    /**
+     * Собирает диапазон файла, хранящегося полосами, и отправляет клиенту несжатым.
+     */
+    private void downloadStripes(DownloadFileRequest request, StreamObserver<DownloadFileResponse> responseObserver) {
+        String fileId = request.getFileId();
+        long size = request.getStripeLayout().getFileSize();
+        long offset = request.getOffset();
+        long length = request.getLength();
+        if (offset < 0 || offset > size || length < 0) {
+            responseObserver.onError(Status.OUT_OF_RANGE
+                    .withDescription(String.format("Invalid range [%s, +%s) for file %s of %d bytes",
+                            Long.toUnsignedString(offset), Long.toUnsignedString(length), fileId, size))
+                    .asRuntimeException());
+            return;
+        }
+        long end = length == 0 || length >= size - offset ? size : offset + length;
+        StripedChunkReader reader;
+        try {
+            reader = new StripedChunkReader(dataNodeChannels, fileId, request.getStripeLayout(), offset, end);
         } catch (IOException e) {
-            responseObserver.onError(new IOException("Downloading is failed: " + e.getMessage()));
+            responseObserver.onError(Status.UNAVAILABLE
+                    .withDescription("Downloading failed: " + e.getMessage())
+                    .asRuntimeException());
+            return;
         }
+        new FileDownload(fileId, reader, reader, responseObserver, bufferPool, loadTracker).start();
     }
 
-    private byte[] concatChunks(List<byte[]> chunks) throws IOException {
-        try (ByteArrayOutputStream byteStream = new ByteArrayOutputStream()) {
-            for (byte[] chunk : chunks) {
-                byteStream.write(chunk);
+    /**
+     * Перекодирует файл этого DataNode в полосы кода Рида-Соломона и рассылает их по размещению.
+     * Исходный файл не удаляется: его удаляет координатор, когда запишет новое размещение.
+     * Блокирует вызывающий поток до сохранения всех полос.
+     *
+     * @param sourceFileId ID файла на этом DataNode.
+     * @param fileId       ID, под которым сохраняются полосы.
+     * @param layout       размещение полос.
+     * @return размещение с размером файла.
+     * @throws IOException если файл не удалось прочитать или сохранены не все полосы.
+     */
+    public StripeLayout encodeFile(String sourceFileId, String fileId, StripeLayout layout) throws IOException {
+        Object readyLock = new Object();
+        StripeEncoder encoder = new StripeEncoder(dataNodeChannels, fileId, layout, () -> {
+            synchronized (readyLock) {
+                readyLock.notifyAll();
             }
-            return byteStream.toByteArray();
+        });
+        ByteBuffer buffer = bufferPool.acquire();
+        try (FileHandle file = fileStorage.openFileUncached(sourceFileId)) {
+            FramedFile framedFile = FramedFile.open(file);
+            FileDownload.ChunkReader reader = framedFile == null
+                    ? new FileDownload.RangeReader(file, 0, file.size())
+                    : new FramedChunkReader(file, framedFile, 0, framedFile.rawSize(), EnumSet.noneOf(Codec.class));
+            for (DownloadFileResponse chunk = reader.next(buffer); chunk != null; chunk = reader.next(buffer)) {
+                encoder.append(chunk.getContent().asReadOnlyByteBuffer());
+                synchronized (readyLock) {
+                    while (!encoder.isReady()) {
+                        readyLock.wait();
+                    }
+                }
+            }
+            int stripes = encoder.finish().get();
+            if (stripes < layout.getStripeAddressesCount()) {
+                throw new IOException("Only " + stripes + " of " + layout.getStripeAddressesCount() + " stripes stored");
+            }
+            log.info("File {} encoded into {} stripes as {}", sourceFileId, stripes, fileId);
+            return encoder.layout();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            encoder.cancel(e);
+            throw new IOException("Encoding of file " + sourceFileId + " interrupted", e);
+        } catch (ExecutionException | IOException | RuntimeException e) {
+            encoder.cancel(e);
+            throw e instanceof IOException io ? io : new IOException("Encoding of file " + sourceFileId + " failed: "
+                    + e.getMessage(), e);
+        } finally {
+            bufferPool.release(buffer);
+        }
+    }
+
+    /**
+     * Закрывает каналы к другим DataNode.
+     */
+    public void close() {
+        dataNodeChannels.close();
+    }
+
+    private void closeQuietly(FileHandle file) {
+        try {
+            file.close();
+        } catch (IOException e) {
+            log.warn("Failed to close file: {}", e.getMessage());
         }
     }
 }
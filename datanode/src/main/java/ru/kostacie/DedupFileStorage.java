@@ -0,0 +1,427 @@
+package ru.kostacie;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * Хранилище DataNode с дедупликацией на уровне чанков.
+ * <p>
+ * Загруженный файл разбивается на чанки по содержимому ({@link ContentChunker}), каждый уникальный чанк
+ * сохраняется один раз в хранилище чанков под своим SHA-256, а сам файл хранится как манифест -
+ * список хешей и длин его чанков. Для чанков ведётся счётчик ссылок: чанк удаляется,
+ * когда на него не ссылается ни один манифест и ни один открытый файл.
+ * <p>
+ * Счётчики ссылок не хранятся на диске и восстанавливаются по манифестам при запуске.
+ * Чанки сохраняются до публикации манифеста, поэтому после сбоя в хранилище чанков могут остаться
+ * чанки без ссылок; они переиспользуются, если те же данные будут загружены снова.
+ */
+@Slf4j
+public class DedupFileStorage implements FileStorage {
+    public static final int DEFAULT_AVERAGE_CHUNK_SIZE = 64 * 1024;
+
+    private static final String MANIFESTS_DIR = ".manifests";
+    private static final int MANIFEST_MAGIC = 0x4446534D;
+    private static final int HASH_SIZE = 32;
+    private static final int LOCK_STRIPES = 64;
+
+    private final DirectoryFileStorage manifests;
+    private final Path manifestsDir;
+    private final FileStorage chunks;
+    private final ContentChunker chunker;
+
+    // Счётчики ссылок на чанки. Изменяются только под блокировкой чанка
+    private final Map<String, ChunkRef> chunkRefs = new ConcurrentHashMap<>();
+    private final Lock[] chunkLocks = new Lock[LOCK_STRIPES];
+
+    private final AtomicLong fileCount = new AtomicLong();
+    private final AtomicLong logicalBytes = new AtomicLong();
+    private final AtomicLong storedBytes = new AtomicLong();
+
+    /**
+     * Создаёт хранилище со средним размером чанка по умолчанию.
+     *
+     * @param storageDir директория для манифестов.
+     * @param chunks     хранилище чанков.
+     * @throws IOException если не удалось открыть хранилище.
+     */
+    public DedupFileStorage(Path storageDir, FileStorage chunks) throws IOException {
+        this(storageDir, chunks, DEFAULT_AVERAGE_CHUNK_SIZE);
+    }
+
+    /**
+     * Открывает хранилище и восстанавливает счётчики ссылок по манифестам.
+     *
+     * @param storageDir       директория для манифестов.
+     * @param chunks           хранилище чанков.
+     * @param averageChunkSize средний размер чанка, степень двойки.
+     * @throws IOException если не удалось открыть хранилище.
+     */
+    public DedupFileStorage(Path storageDir, FileStorage chunks, int averageChunkSize) throws IOException {
+        this.manifestsDir = storageDir.resolve(MANIFESTS_DIR);
+        this.manifests = new DirectoryFileStorage(manifestsDir);
+        this.chunks = chunks;
+        this.chunker = new ContentChunker(averageChunkSize);
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            chunkLocks[i] = new ReentrantLock();
+        }
+        recover();
+    }
+
+    @Override
+    public boolean fileExists(String fileId) {
+        return manifests.fileExists(fileId);
+    }
+
+    @Override
+    public FileUpload createUpload(String fileId) throws IOException {
+        return manifests.createUpload(fileId, this::publish);
+    }
+
+    @Override
+    public FileHandle openFile(String fileId) throws IOException {
+        Manifest manifest = readManifest(fileId);
+        List<String> retained = new ArrayList<>(manifest.chunkIds().length);
+        for (String chunkId : manifest.chunkIds()) {
+            if (!retainChunk(chunkId)) {
+                // Файл удалили, пока его открывали, и чанк уже удалён
+                releaseChunks(retained);
+                throw new FileNotFoundException("File not found: " + fileId);
+            }
+            retained.add(chunkId);
+        }
+        return new DedupFileHandle(manifest);
+    }
+
+    @Override
+    public List<String> listFiles() throws IOException {
+        return manifests.listFiles();
+    }
+
+    @Override
+    public boolean deleteFile(String fileId) throws IOException {
+        Manifest manifest;
+        try {
+            manifest = readManifest(fileId);
+        } catch (FileNotFoundException e) {
+            return false;
+        }
+        if (!manifests.deleteFile(fileId)) {
+            return false;
+        }
+        fileCount.decrementAndGet();
+        logicalBytes.addAndGet(-manifest.size());
+        releaseChunks(Arrays.asList(manifest.chunkIds()));
+        return true;
+    }
+
+    @Override
+    public Map<String, Long> getMetrics() {
+        Map<String, Long> metrics = new LinkedHashMap<>(chunks.getMetrics());
+        long logical = logicalBytes.get();
+        long stored = storedBytes.get();
+        metrics.put("dedup.files", fileCount.get());
+        metrics.put("dedup.chunks", (long) chunkRefs.size());
+        metrics.put("dedup.logicalBytes", logical);
+        metrics.put("dedup.storedBytes", stored);
+        metrics.put("dedup.ratioPercent", stored == 0 ? 100 : logical * 100 / stored);
+        return metrics;
+    }
+
+    @Override
+    public void close() throws IOException {
+        manifests.close();
+        chunks.close();
+    }
+
+    /**
+     * Разбивает загруженный файл на чанки, сохраняет новые чанки и публикует манифест.
+     * Если манифест опубликовать не удалось, ссылки на чанки снимаются.
+     */
+    private void publish(String fileId, Path tempFile) throws IOException {
+        if (manifests.fileExists(fileId)) {
+            throw new FileAlreadyExistsException("File already exists: " + fileId);
+        }
+
+        MessageDigest digest = sha256();
+        List<String> chunkIds = new ArrayList<>();
+        List<Integer> chunkLengths = new ArrayList<>();
+        try (FileChannel source = FileChannel.open(tempFile, StandardOpenOption.READ)) {
+            ByteBuffer window = ByteBuffer.allocate(chunker.getMaxChunkSize());
+            while (true) {
+                while (window.hasRemaining() && source.read(window) > 0) {
+                    // Дочитываем окно до максимального размера чанка или до конца файла
+                }
+                window.flip();
+                if (!window.hasRemaining()) {
+                    break;
+                }
+                int length = chunker.cutPoint(window.array(), window.limit());
+                digest.update(window.array(), 0, length);
+                String chunkId = HexFormat.of().formatHex(digest.digest());
+                acquireChunk(chunkId, window.array(), length);
+                chunkIds.add(chunkId);
+                chunkLengths.add(length);
+                window.position(length).compact();
+            }
+        } catch (IOException | RuntimeException e) {
+            releaseChunks(chunkIds);
+            throw e;
+        }
+
+        Manifest manifest = new Manifest(chunkIds.toArray(String[]::new),
+                chunkLengths.stream().mapToInt(Integer::intValue).toArray());
+        try {
+            manifests.saveFile(fileId, manifest.encode());
+        } catch (IOException e) {
+            releaseChunks(chunkIds);
+            throw e;
+        }
+        fileCount.incrementAndGet();
+        logicalBytes.addAndGet(manifest.size());
+        Files.delete(tempFile);
+        log.info("File {} deduplicated into {} chunks", fileId, chunkIds.size());
+    }
+
+    /**
+     * Добавляет ссылку на чанк, сохраняя его, если такого чанка ещё нет.
+     */
+    private void acquireChunk(String chunkId, byte[] data, int length) throws IOException {
+        Lock lock = chunkLock(chunkId);
+        lock.lock();
+        try {
+            ChunkRef ref = chunkRefs.get(chunkId);
+            if (ref == null) {
+                try {
+                    chunks.saveFile(chunkId, Arrays.copyOf(data, length));
+                } catch (FileAlreadyExistsException e) {
+                    // Чанк без ссылок остался после сбоя - его содержимое совпадает по хешу
+                }
+                ref = new ChunkRef(length);
+                chunkRefs.put(chunkId, ref);
+                storedBytes.addAndGet(length);
+            }
+            ref.refs++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Добавляет ссылку на существующий чанк.
+     * Возвращает false, если чанка уже нет.
+     */
+    private boolean retainChunk(String chunkId) {
+        Lock lock = chunkLock(chunkId);
+        lock.lock();
+        try {
+            ChunkRef ref = chunkRefs.get(chunkId);
+            if (ref == null) {
+                return false;
+            }
+            ref.refs++;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Снимает ссылки на чанки и удаляет чанки, на которые больше никто не ссылается.
+     */
+    private void releaseChunks(List<String> chunkIds) {
+        for (String chunkId : chunkIds) {
+            Lock lock = chunkLock(chunkId);
+            lock.lock();
+            try {
+                ChunkRef ref = chunkRefs.get(chunkId);
+                if (ref == null || --ref.refs > 0) {
+                    continue;
+                }
+                chunkRefs.remove(chunkId);
+                storedBytes.addAndGet(-ref.length);
+                chunks.deleteFile(chunkId);
+            } catch (IOException e) {
+                log.warn("Failed to delete chunk {}: {}", chunkId, e.getMessage());
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private Lock chunkLock(String chunkId) {
+        return chunkLocks[Math.floorMod(chunkId.hashCode(), LOCK_STRIPES)];
+    }
+
+    private Manifest readManifest(String fileId) throws IOException {
+        return Manifest.decode(fileId, manifests.getFile(fileId));
+    }
+
+    /**
+     * Восстанавливает счётчики ссылок на чанки по всем манифестам.
+     */
+    private void recover() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(manifestsDir, Files::isRegularFile)) {
+            for (Path file : files) {
+                String fileId = file.getFileName().toString();
+                Manifest manifest = readManifest(fileId);
+                for (int i = 0; i < manifest.chunkIds().length; i++) {
+                    ChunkRef ref = chunkRefs.get(manifest.chunkIds()[i]);
+                    if (ref == null) {
+                        ref = new ChunkRef(manifest.chunkLengths()[i]);
+                        chunkRefs.put(manifest.chunkIds()[i], ref);
+                        storedBytes.addAndGet(ref.length);
+                    }
+                    ref.refs++;
+                }
+                fileCount.incrementAndGet();
+                logicalBytes.addAndGet(manifest.size());
+            }
+        }
+        log.info("Dedup index rebuilt: {} files, {} unique chunks", fileCount.get(), chunkRefs.size());
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * Счётчик ссылок на чанк.
+     */
+    private static class ChunkRef {
+        private final int length;
+        private long refs;
+
+        ChunkRef(int length) {
+            this.length = length;
+        }
+    }
+
+    /**
+     * Манифест файла: хеши и длины его чанков по порядку.
+     * Формат: magic int, количество чанков int, затем для каждого чанка 32 байта SHA-256 и длина int.
+     */
+    private record Manifest(String[] chunkIds, int[] chunkLengths) {
+
+        long size() {
+            long size = 0;
+            for (int length : chunkLengths) {
+                size += length;
+            }
+            return size;
+        }
+
+        byte[] encode() {
+            ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES * 2 + chunkIds.length * (HASH_SIZE + Integer.BYTES));
+            buffer.putInt(MANIFEST_MAGIC).putInt(chunkIds.length);
+            for (int i = 0; i < chunkIds.length; i++) {
+                buffer.put(HexFormat.of().parseHex(chunkIds[i])).putInt(chunkLengths[i]);
+            }
+            return buffer.array();
+        }
+
+        static Manifest decode(String fileId, byte[] content) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(content);
+            if (content.length < Integer.BYTES * 2 || buffer.getInt() != MANIFEST_MAGIC) {
+                throw new IOException("Corrupted manifest of file " + fileId);
+            }
+            int count = buffer.getInt();
+            if (buffer.remaining() != (long) count * (HASH_SIZE + Integer.BYTES)) {
+                throw new IOException("Corrupted manifest of file " + fileId);
+            }
+            String[] chunkIds = new String[count];
+            int[] chunkLengths = new int[count];
+            byte[] hash = new byte[HASH_SIZE];
+            for (int i = 0; i < count; i++) {
+                buffer.get(hash);
+                chunkIds[i] = HexFormat.of().formatHex(hash);
+                chunkLengths[i] = buffer.getInt();
+            }
+            return new Manifest(chunkIds, chunkLengths);
+        }
+    }
+
+    /**
+     * Файл, собранный из чанков. Удерживает ссылки на свои чанки, пока открыт.
+     * Чтение возвращает данные не дальше конца текущего чанка.
+     */
+    private class DedupFileHandle implements FileHandle {
+        private final String[] chunkIds;
+        // Смещение начала каждого чанка в файле; последний элемент - размер файла
+        private final long[] chunkOffsets;
+        private FileHandle currentChunk;
+        private int currentIndex = -1;
+        private boolean closed;
+
+        DedupFileHandle(Manifest manifest) {
+            this.chunkIds = manifest.chunkIds();
+            this.chunkOffsets = new long[chunkIds.length + 1];
+            for (int i = 0; i < chunkIds.length; i++) {
+                chunkOffsets[i + 1] = chunkOffsets[i] + manifest.chunkLengths()[i];
+            }
+        }
+
+        @Override
+        public long size() {
+            return chunkOffsets[chunkIds.length];
+        }
+
+        @Override
+        public synchronized ByteBuffer read(long position, ByteBuffer buffer) throws IOException {
+            if (position >= size()) {
+                return buffer.clear().flip();
+            }
+            int index = Arrays.binarySearch(chunkOffsets, position);
+            if (index < 0) {
+                index = -index - 2;
+            }
+            if (index != currentIndex) {
+                if (currentChunk != null) {
+                    currentChunk.close();
+                }
+                currentChunk = null;
+                currentIndex = -1;
+                currentChunk = chunks.openFile(chunkIds[index]);
+                currentIndex = index;
+            }
+            return currentChunk.read(position - chunkOffsets[index], buffer);
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (currentChunk != null) {
+                currentChunk.close();
+            }
+            releaseChunks(Arrays.asList(chunkIds));
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package ru.kostacie;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * Хранилище DataNode, в котором каждый файл хранится отдельным файлом в плоской директории.
+ * <p>
+ * Файлы в хранилище неизменяемы: новый файл сначала целиком пишется во временный файл,
+ * а затем атомарно публикуется под своим ID. Поэтому чтения не берут блокировок и
+ * никогда не видят частично записанный файл, а запись блокирует только публикацию
+ * файлов с тем же ID. Данные файла и запись о нём в директории сбрасываются на диск
+ * до подтверждения загрузки, как и записи {@link SegmentFileStorage}.
+ * <p>
+ * Если задан {@link MappedFileCache}, часто читаемые файлы отдаются из отображений в память.
+ */
+@Slf4j
+public class DirectoryFileStorage implements FileStorage {
+    private static final String UPLOADS_DIR = ".uploads";
+    private static final int LOCK_STRIPES = 64;
+
+    private final Path storageDir;
+    private final Path uploadsDir;
+    // Кэш отображений файлов в память; null - файлы читаются через FileChannel
+    private final MappedFileCache mappedFileCache;
+
+    // Блокировки публикации файлов, если файловая система не поддерживает жёсткие ссылки
+    private final Lock[] commitLocks = new Lock[LOCK_STRIPES];
+    private volatile boolean hardLinksSupported = true;
+
+    /**
+     * Создаёт хранилище, читающее файлы через FileChannel.
+     *
+     * @param storageDir директория хранилища.
+     * @throws IOException если не удалось создать директорию.
+     */
+    public DirectoryFileStorage(Path storageDir) throws IOException {
+        this(storageDir, 0);
+    }
+
+    /**
+     * Создаёт директорию для хранения файлов, если она не существует,
+     * и удаляет временные файлы незавершённых загрузок.
+     *
+     * @param storageDir       директория хранилища.
+     * @param mappedCacheBytes предельный суммарный размер файлов, отображённых в память; 0 - не отображать.
+     * @throws IOException если не удалось создать директорию.
+     */
+    public DirectoryFileStorage(Path storageDir, long mappedCacheBytes) throws IOException {
+        this.mappedFileCache = mappedCacheBytes > 0 ? new MappedFileCache(mappedCacheBytes) : null;
+        this.storageDir = Files.createDirectories(storageDir);
+        this.uploadsDir = Files.createDirectories(storageDir.resolve(UPLOADS_DIR));
+        try (DirectoryStream<Path> staleUploads = Files.newDirectoryStream(uploadsDir)) {
+            for (Path staleUpload : staleUploads) {
+                Files.deleteIfExists(staleUpload);
+            }
+        }
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            commitLocks[i] = new ReentrantLock();
+        }
+    }
+
+    @Override
+    public boolean fileExists(String fileId) {
+        return Files.exists(storageDir.resolve(fileId));
+    }
+
+    /**
+     * Начинает потоковую загрузку файла.
+     * Чанки пишутся во временный файл, который переносится в хранилище при {@link FileUpload#commit()}.
+     *
+     * @param fileId ID файла.
+     * @throws IOException если не удалось создать временный файл.
+     */
+    @Override
+    public FileUpload createUpload(String fileId) throws IOException {
+        return createUpload(fileId, this::commit);
+    }
+
+    /**
+     * Начинает загрузку во временный файл этого хранилища с собственным способом публикации.
+     *
+     * @param fileId    ID файла.
+     * @param publisher публикует записанный файл.
+     * @throws IOException если не удалось создать временный файл.
+     */
+    FileUpload createUpload(String fileId, FileUpload.Publisher publisher) throws IOException {
+        Path tempFile = Files.createTempFile(uploadsDir, fileId + "-", ".part");
+        return new FileUpload(fileId, tempFile, publisher);
+    }
+
+    @Override
+    public byte[] getFile(String fileId) throws IOException {
+        try {
+            return Files.readAllBytes(storageDir.resolve(fileId));
+        } catch (NoSuchFileException e) {
+            throw new FileNotFoundException("File not found: " + fileId);
+        }
+    }
+
+    @Override
+    public FileHandle openFile(String fileId) throws IOException {
+        try {
+            Path file = storageDir.resolve(fileId);
+            return mappedFileCache != null ? mappedFileCache.open(fileId, file) : new ChannelFileHandle(file);
+        } catch (NoSuchFileException e) {
+            throw new FileNotFoundException("File not found: " + fileId);
+        }
+    }
+
+    /**
+     * Возвращает ID файлов хранилища. Служебные директории, имена которых начинаются с точки, пропускаются.
+     */
+    @Override
+    public List<String> listFiles() throws IOException {
+        List<String> fileIds = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(storageDir,
+                file -> !file.getFileName().toString().startsWith(".") && Files.isRegularFile(file))) {
+            for (Path file : files) {
+                fileIds.add(file.getFileName().toString());
+            }
+        }
+        return fileIds;
+    }
+
+    @Override
+    public FileHandle openFileUncached(String fileId) throws IOException {
+        try {
+            return new ChannelFileHandle(storageDir.resolve(fileId));
+        } catch (NoSuchFileException e) {
+            throw new FileNotFoundException("File not found: " + fileId);
+        }
+    }
+
+    @Override
+    public boolean deleteFile(String fileId) throws IOException {
+        if (mappedFileCache != null) {
+            mappedFileCache.invalidate(fileId);
+        }
+        boolean deleted = Files.deleteIfExists(storageDir.resolve(fileId));
+        if (deleted) {
+            log.info("File deleted: {}", fileId);
+        }
+        return deleted;
+    }
+
+    @Override
+    public Map<String, Long> getMetrics() {
+        if (mappedFileCache == null) {
+            return Map.of();
+        }
+        Map<String, Long> metrics = new LinkedHashMap<>();
+        metrics.put("mmap.hits", mappedFileCache.getHits());
+        metrics.put("mmap.misses", mappedFileCache.getMisses());
+        metrics.put("mmap.evictions", mappedFileCache.getEvictions());
+        metrics.put("mmap.mappedBytes", mappedFileCache.getMappedBytes());
+        return metrics;
+    }
+
+    @Override
+    public void close() {
+        if (mappedFileCache != null) {
+            mappedFileCache.clear();
+        }
+    }
+
+    /**
+     * Сбрасывает полностью записанный временный файл на диск и публикует его под заданным ID.
+     * Директория сбрасывается после публикации, поэтому подтверждённый файл переживает сбой.
+     *
+     * @param fileId   ID файла.
+     * @param tempFile временный файл загрузки.
+     * @throws FileAlreadyExistsException если файл с таким ID уже существует.
+     * @throws IOException                если файл не удалось сбросить на диск или опубликовать.
+     */
+    void commit(String fileId, Path tempFile) throws IOException {
+        try (FileChannel file = FileChannel.open(tempFile, StandardOpenOption.WRITE)) {
+            file.force(false);
+        }
+        link(fileId, tempFile);
+        syncDirectory(storageDir);
+    }
+
+    /**
+     * Публикует временный файл под заданным ID.
+     * Жёсткая ссылка создаётся атомарно и только если файла с таким ID ещё нет,
+     * поэтому блокировка не нужна. Если файловая система не поддерживает жёсткие ссылки,
+     * файл переносится под блокировкой, общей лишь для части ID.
+     *
+     * @param fileId   ID файла.
+     * @param tempFile временный файл загрузки.
+     * @throws FileAlreadyExistsException если файл с таким ID уже существует.
+     * @throws IOException                если файл не удалось опубликовать.
+     */
+    private void link(String fileId, Path tempFile) throws IOException {
+        Path targetFile = storageDir.resolve(fileId);
+        if (hardLinksSupported) {
+            try {
+                Files.createLink(targetFile, tempFile);
+                Files.delete(tempFile);
+                return;
+            } catch (FileAlreadyExistsException e) {
+                throw new FileAlreadyExistsException("File already exists: " + fileId);
+            } catch (NoSuchFileException e) {
+                throw e;
+            } catch (UnsupportedOperationException | FileSystemException e) {
+                if (Files.exists(targetFile)) {
+                    throw new FileAlreadyExistsException("File already exists: " + fileId);
+                }
+                log.warn("Hard links are not supported in {}, falling back to locked rename: {}",
+                        storageDir, e.getMessage());
+                hardLinksSupported = false;
+            }
+        }
+
+        Lock lock = commitLocks[Math.floorMod(fileId.hashCode(), LOCK_STRIPES)];
+        lock.lock();
+        try {
+            if (Files.exists(targetFile)) {
+                throw new FileAlreadyExistsException("File already exists: " + fileId);
+            }
+            Files.move(tempFile, targetFile, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Сбрасывает директорию на диск, чтобы созданные в ней файлы пережили сбой.
+     */
+    static void syncDirectory(Path dir) {
+        try (FileChannel directory = FileChannel.open(dir, StandardOpenOption.READ)) {
+            directory.force(true);
+        } catch (IOException e) {
+            // Не все платформы позволяют открыть директорию
+            log.debug("Failed to sync directory {}: {}", dir, e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package ru.kostacie;
+
+import com.google.protobuf.ByteString;
+import datanode.DataNodeProto.DownloadFileResponse;
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import lombok.extern.slf4j.Slf4j;
+import ru.kostacie.exception.ChecksumMismatchException;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+
+/**
+ * Потоковая отправка файла или его диапазона клиенту чанками.
+ * Следующий чанк читается только когда транспорт готов его принять,
+ * поэтому медленный клиент не заставляет DataNode накапливать буферы.
+ * <p>
+ * Данные чанка копируются из буфера чтения, отображения или кэша в сообщение. Отправка без копирования
+ * безопасна, только если транспорт сериализует сообщение внутри onNext; in-process транспорт передаёт
+ * его получателю как есть, а отображение может быть освобождено раньше, чем сообщение сериализовано.
+ * Это одно копирование на чанк сверх того, что делает gRPC при сериализации.
+ */
+@Slf4j
+class FileDownload {
+    private final String fileId;
+    // Открытый файл или другой источник чанков; закрывается по окончании отправки
+    private final Closeable resource;
+    private final StreamObserver<DownloadFileResponse> responseObserver;
+    private final BufferPool bufferPool;
+    private final ChunkReader reader;
+    private final LoadTracker loadTracker;
+    private ByteBuffer buffer;
+    private boolean finished;
+
+    /**
+     * Создаёт отправку диапазона байт файла, хранящегося как обычный файл.
+     *
+     * @param fileId           ID файла.
+     * @param file             открытый файл.
+     * @param offset           позиция, с которой начинается отправка.
+     * @param end              позиция, на которой отправка заканчивается (не включительно).
+     * @param responseObserver ответ для клиента.
+     * @param bufferPool       пул буферов для чтения.
+     * @param loadTracker      учёт нагрузки DataNode.
+     */
+    FileDownload(String fileId, FileHandle file, long offset, long end,
+                 StreamObserver<DownloadFileResponse> responseObserver, BufferPool bufferPool, LoadTracker loadTracker) {
+        this(fileId, file, new RangeReader(file, offset, end), responseObserver, bufferPool, loadTracker);
+    }
+
+    /**
+     * @param fileId           ID файла.
+     * @param resource         открытый файл или другой ресурс чтения; закрывается по окончании отправки.
+     * @param reader           источник чанков.
+     * @param responseObserver ответ для клиента.
+     * @param bufferPool       пул буферов для чтения.
+     * @param loadTracker      учёт нагрузки DataNode.
+     */
+    FileDownload(String fileId, Closeable resource, ChunkReader reader,
+                 StreamObserver<DownloadFileResponse> responseObserver, BufferPool bufferPool, LoadTracker loadTracker) {
+        this.fileId = fileId;
+        this.resource = resource;
+        this.reader = reader;
+        this.responseObserver = responseObserver;
+        this.bufferPool = bufferPool;
+        this.loadTracker = loadTracker;
+    }
+
+    /**
+     * Начинает отправку файла.
+     */
+    void start() {
+        loadTracker.transferStarted();
+        buffer = bufferPool.acquire();
+        if (responseObserver instanceof ServerCallStreamObserver<DownloadFileResponse> serverObserver) {
+            serverObserver.setOnCancelHandler(() -> {
+                log.warn("Download of file {} cancelled by client", fileId);
+                finish();
+            });
+            serverObserver.setOnReadyHandler(() -> drain(serverObserver));
+            drain(serverObserver);
+        } else {
+            while (!finished) {
+                sendNextChunk();
+            }
+        }
+    }
+
+    /**
+     * Отправляет чанки, пока транспорт готов их принимать.
+     * Обработчики gRPC вызываются последовательно, поэтому синхронизация не нужна.
+     */
+    private void drain(ServerCallStreamObserver<DownloadFileResponse> serverObserver) {
+        while (!finished && serverObserver.isReady()) {
+            sendNextChunk();
+        }
+    }
+
+    private void sendNextChunk() {
+        try {
+            long start = System.nanoTime();
+            DownloadFileResponse chunk = reader.next(buffer);
+            if (chunk == null) {
+                finish();
+                log.info("File successfully sent: {}", fileId);
+                responseObserver.onCompleted();
+                return;
+            }
+            loadTracker.recordLatency(System.nanoTime() - start);
+            // Чанк не ссылается на буфер, поэтому буфер можно переиспользовать сразу: транспорт может
+            // сериализовать сообщение позже onNext, а in-process транспорт передаёт его получателю как есть
+            responseObserver.onNext(chunk);
+        } catch (ChecksumMismatchException e) {
+            finish();
+            log.error("File {} is corrupted: {}", fileId, e.getMessage());
+            responseObserver.onError(Status.DATA_LOSS
+                    .withDescription("Downloading failed: " + e.getMessage())
+                    .asRuntimeException());
+        } catch (IOException e) {
+            finish();
+            responseObserver.onError(new IOException("Downloading failed: " + e.getMessage()));
+        }
+    }
+
+    private void finish() {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        loadTracker.transferFinished();
+        try {
+            resource.close();
+        } catch (IOException e) {
+            log.warn("Failed to close file {}: {}", fileId, e.getMessage());
+        }
+        bufferPool.release(buffer);
+    }
+
+    /**
+     * Источник чанков для отправки.
+     */
+    interface ChunkReader {
+        /**
+         * Читает следующий чанк. Чанк не должен ссылаться на buffer или отображённую память файла:
+         * буфер переиспользуется сразу после onNext, а файл закрывается по окончании отправки.
+         * Возвращает null, когда диапазон отправлен целиком.
+         *
+         * @param buffer буфер из пула для чтения.
+         * @throws IOException если файл не удалось прочитать.
+         */
+        DownloadFileResponse next(ByteBuffer buffer) throws IOException;
+    }
+
+    /**
+     * Чтение диапазона обычного файла чанками размером с буфер.
+     */
+    static class RangeReader implements ChunkReader {
+        private final FileHandle file;
+        private final long end;
+        private long position;
+
+        RangeReader(FileHandle file, long offset, long end) {
+            this.file = file;
+            this.position = offset;
+            this.end = end;
+        }
+
+        @Override
+        public DownloadFileResponse next(ByteBuffer buffer) throws IOException {
+            if (position >= end) {
+                return null;
+            }
+            buffer.clear();
+            if (end - position < buffer.capacity()) {
+                buffer.limit((int) (end - position));
+            }
+            ByteBuffer chunk = file.read(position, buffer.slice());
+            if (!chunk.hasRemaining()) {
+                throw new EOFException("Unexpected end of file at position " + position);
+            }
+            position += chunk.remaining();
+            return DownloadFileResponse.newBuilder()
+                    .setContent(ByteString.copyFrom(chunk))
+                    .build();
+        }
+    }
+}
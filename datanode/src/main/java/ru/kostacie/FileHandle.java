@@ -0,0 +1,29 @@
+package ru.kostacie;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+
+/**
+ * Открытый для чтения файл хранилища DataNode.
+ * Поддерживает позиционное чтение, поэтому файл можно отдавать по частям без загрузки в память целиком.
+ */
+public interface FileHandle extends Closeable {
+
+    /**
+     * Возвращает размер файла в байтах.
+     */
+    long size();
+
+    /**
+     * Читает данные файла начиная с заданной позиции.
+     * Возвращает буфер, подготовленный для чтения и содержащий не более {@code buffer.capacity()} байт:
+     * переданный буфер или представление данных хранилища.
+     *
+     * @param position позиция в файле.
+     * @param buffer   буфер, в который можно прочитать до {@code buffer.capacity()} байт.
+     * @throws IOException если возникла ошибка при чтении.
+     */
+    ByteBuffer read(long position, ByteBuffer buffer) throws IOException;
+}
@@ -1,40 +1,26 @@
 package ru.kostacie;
 
-import lombok.extern.slf4j.Slf4j;
-
+import java.io.Closeable;
+import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.StandardOpenOption;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
 
 
 /**
- * Класс для работы с файловым хранилищем DataNode.
+ * Файловое хранилище DataNode.
  * Позволяет сохранять, проверять существование файлов и загружать их.
+ * Файлы в хранилище неизменяемы: файл с тем же ID можно сохранить снова только после удаления.
  */
-
-
-@Slf4j
-public class FileStorage {
-    private static final String STORAGE_DIR = "storage/";
-
-    /**
-     * Создаёт директорию для хранения файлов, если она не существует.
-     *
-     * @throws IOException если не удалось создать директорию.
-     */
-    public FileStorage() throws IOException {
-        Files.createDirectories(Path.of(STORAGE_DIR));
-    }
+public interface FileStorage extends Closeable {
 
     /**
      * Проверяет, существует ли файл с данным ID.
      * Возвращает true, если файл существует, иначе false.
      * @param fileId ID файла.
      */
-    public synchronized boolean fileExists(String fileId) {
-        return Files.exists(Path.of(STORAGE_DIR, fileId));
-    }
+    boolean fileExists(String fileId);
 
     /**
      * Сохраняет файл.
@@ -43,15 +29,26 @@ public class FileStorage {
      * @param content контент файла.
      * @throws IOException если файл уже существует или возникла ошибка при записи.
      */
-    public synchronized void saveFile(String fileId, byte[] content) throws IOException {
-        Path file = Path.of(STORAGE_DIR, fileId);
-        if (Files.exists(file)) {
-            throw new IOException("File already exists: " + fileId);
+    default void saveFile(String fileId, byte[] content) throws IOException {
+        FileUpload upload = createUpload(fileId);
+        try {
+            upload.write(ByteBuffer.wrap(content));
+            upload.commit();
+        } catch (IOException e) {
+            upload.abort();
+            throw e;
         }
-        Files.write(file, content, StandardOpenOption.CREATE_NEW);
-        log.info("File saved: {}", file);
     }
 
+    /**
+     * Начинает потоковую загрузку файла.
+     * Файл становится доступен для чтения только после {@link FileUpload#commit()}.
+     *
+     * @param fileId ID файла.
+     * @throws IOException если не удалось начать загрузку.
+     */
+    FileUpload createUpload(String fileId) throws IOException;
+
     /**
      * Загружает файл из хранилища.
      * Возвращает контент файла.
@@ -59,12 +56,97 @@ public class FileStorage {
      * @param fileId ID файла.
      * @throws IOException если файл не найден.
      */
-    public synchronized byte[] getFile(String fileId) throws IOException {
-        Path filePath = Path.of(STORAGE_DIR, fileId);
-        if (!Files.exists(filePath)) {
-            throw new IOException("File not found: " + fileId);
+    default byte[] getFile(String fileId) throws IOException {
+        return getFile(fileId, 0, Long.MAX_VALUE);
+    }
+
+    /**
+     * Загружает диапазон байт файла позиционными чтениями.
+     * Возвращает не более length байт, начиная с offset; меньше, если файл заканчивается раньше.
+     *
+     * @param fileId ID файла.
+     * @param offset позиция начала диапазона.
+     * @param length длина диапазона.
+     * @throws IOException если файл не найден или offset за пределами файла.
+     */
+    default byte[] getFile(String fileId, long offset, long length) throws IOException {
+        try (FileHandle file = openFile(fileId)) {
+            if (offset < 0 || offset > file.size()) {
+                throw new IOException("Offset " + offset + " is out of file " + fileId);
+            }
+            long size = Math.min(length, file.size() - offset);
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("File is too large to be read into memory: " + fileId);
+            }
+            ByteBuffer content = ByteBuffer.allocate((int) size);
+            while (content.hasRemaining()) {
+                ByteBuffer target = content.slice();
+                ByteBuffer chunk = file.read(offset + content.position(), target);
+                if (!chunk.hasRemaining()) {
+                    throw new IOException("Unexpected end of file: " + fileId);
+                }
+                // Хранилище может вернуть собственный буфер вместо переданного
+                if (chunk == target) {
+                    content.position(content.position() + chunk.remaining());
+                } else {
+                    content.put(chunk);
+                }
+            }
+            return content.array();
         }
-        return Files.readAllBytes(filePath);
     }
-}
 
+    /**
+     * Открывает файл хранилища для потокового чтения.
+     *
+     * @param fileId ID файла.
+     * @throws FileNotFoundException если файл не найден.
+     * @throws IOException           если файл не удалось открыть.
+     */
+    FileHandle openFile(String fileId) throws IOException;
+
+    /**
+     * Открывает файл в обход кэшей хранилища.
+     * Используется фоновыми задачами, которые читают все файлы, чтобы не вытеснять из кэшей горячие файлы.
+     *
+     * @param fileId ID файла.
+     * @throws FileNotFoundException если файл не найден.
+     * @throws IOException           если файл не удалось открыть.
+     */
+    default FileHandle openFileUncached(String fileId) throws IOException {
+        return openFile(fileId);
+    }
+
+    /**
+     * Возвращает ID всех файлов хранилища.
+     * Файлы, сохранённые или удалённые во время вызова, могут как попасть в список, так и не попасть.
+     *
+     * @throws IOException если список файлов не удалось прочитать.
+     */
+    List<String> listFiles() throws IOException;
+
+    /**
+     * Удаляет файл из хранилища.
+     * Возвращает true, если файл был удалён, и false, если его не было.
+     *
+     * @param fileId ID файла.
+     * @throws IOException если файл не удалось удалить.
+     */
+    boolean deleteFile(String fileId) throws IOException;
+
+    /**
+     * Возвращает счётчики работы хранилища: имя метрики и её значение.
+     */
+    default Map<String, Long> getMetrics() {
+        return Map.of();
+    }
+
+    /**
+     * Освобождает ресурсы хранилища.
+     *
+     * @throws IOException если возникла ошибка при закрытии.
+     */
+    @Override
+    default void close() throws IOException {
+    }
+}
@@ -0,0 +1,101 @@
+package ru.kostacie;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+
+/**
+ * Незавершённая загрузка файла в хранилище DataNode.
+ * Данные пишутся во временный файл по мере поступления чанков,
+ * а после завершения загрузки хранилище атомарно публикует файл под его ID.
+ */
+@Slf4j
+public class FileUpload {
+    private final String fileId;
+    private final Path tempFile;
+    private final Publisher publisher;
+    private final FileChannel channel;
+    private long size;
+
+    /**
+     * Открывает временный файл для записи.
+     *
+     * @param fileId    ID файла.
+     * @param tempFile  временный файл загрузки.
+     * @param publisher публикует записанный файл в хранилище.
+     * @throws IOException если не удалось открыть временный файл.
+     */
+    FileUpload(String fileId, Path tempFile, Publisher publisher) throws IOException {
+        this.fileId = fileId;
+        this.tempFile = tempFile;
+        this.publisher = publisher;
+        this.channel = FileChannel.open(tempFile, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    /**
+     * Дописывает чанк в конец временного файла.
+     *
+     * @param buffer данные чанка.
+     * @throws IOException если возникла ошибка при записи.
+     */
+    public void write(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            size += channel.write(buffer);
+        }
+    }
+
+    /**
+     * Возвращает количество записанных байт.
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Завершает загрузку: закрывает временный файл и публикует его в хранилище.
+     *
+     * @throws IOException если файл уже существует или перенос не удался.
+     */
+    public void commit() throws IOException {
+        channel.close();
+        try {
+            publisher.publish(fileId, tempFile);
+        } catch (IOException e) {
+            abort();
+            throw e;
+        }
+        log.info("File saved: {} ({} bytes)", fileId, size);
+    }
+
+    /**
+     * Отменяет загрузку и удаляет временный файл.
+     */
+    public void abort() {
+        try {
+            channel.close();
+            Files.deleteIfExists(tempFile);
+        } catch (IOException e) {
+            log.warn("Failed to delete temporary upload file {}: {}", tempFile, e.getMessage());
+        }
+    }
+
+    /**
+     * Публикация полностью записанного временного файла в хранилище.
+     */
+    @FunctionalInterface
+    interface Publisher {
+        /**
+         * @param fileId   ID файла.
+         * @param tempFile временный файл загрузки.
+         * @throws java.nio.file.FileAlreadyExistsException если файл с таким ID уже существует.
+         * @throws IOException                              если файл не удалось опубликовать.
+         */
+        void publish(String fileId, Path tempFile) throws IOException;
+    }
+}
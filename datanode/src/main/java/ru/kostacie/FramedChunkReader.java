@@ -0,0 +1,92 @@
+package ru.kostacie;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+import datanode.DataNodeProto.Codec;
+import datanode.DataNodeProto.DownloadFileResponse;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Set;
+
+
+/**
+ * Чтение диапазона файла, сохранённого кадрами ({@link FramedFile}).
+ * <p>
+ * Контрольная сумма каждого кадра проверяется при чтении, и клиент получает CRC32C каждого чанка.
+ * Кадр, который целиком попадает в диапазон, отправляется как есть, если он не сжат или клиент умеет
+ * его распаковать. Иначе кадр распаковывается на DataNode, и нужная часть отправляется несжатой.
+ */
+class FramedChunkReader implements FileDownload.ChunkReader {
+    private final FileHandle file;
+    private final FramedFile framedFile;
+    private final Set<Codec> acceptedCodecs;
+    private final long end;
+    private long position;
+
+    // Последний распакованный кадр: он может отправляться в несколько чанков
+    private int decodedFrame = -1;
+    private byte[] decoded;
+
+    /**
+     * @param file           открытый файл.
+     * @param framedFile     индекс кадров файла.
+     * @param offset         позиция в исходном файле, с которой начинается отправка.
+     * @param end            позиция в исходном файле, на которой отправка заканчивается (не включительно).
+     * @param acceptedCodecs кодеки, которые умеет распаковывать клиент.
+     */
+    FramedChunkReader(FileHandle file, FramedFile framedFile, long offset, long end, Set<Codec> acceptedCodecs) {
+        this.file = file;
+        this.framedFile = framedFile;
+        this.position = offset;
+        this.end = end;
+        this.acceptedCodecs = acceptedCodecs;
+    }
+
+    @Override
+    public DownloadFileResponse next(ByteBuffer buffer) throws IOException {
+        if (position >= end) {
+            return null;
+        }
+        int frame = framedFile.frameAt(position);
+        Codec codec = framedFile.codec(frame);
+        long frameStart = framedFile.rawOffset(frame);
+        int rawLength = framedFile.rawLength(frame);
+        long sendEnd = Math.min(end, frameStart + rawLength);
+
+        boolean wholeFrame = position == frameStart && sendEnd == frameStart + rawLength;
+        boolean fitsBuffer = framedFile.storedLength(frame) <= buffer.capacity();
+        if (wholeFrame && (codec == Codec.NONE ? fitsBuffer : acceptedCodecs.contains(codec))) {
+            ByteBuffer stored = framedFile.readFrame(file, frame, buffer);
+            position = sendEnd;
+            // Кадр копируется: он лежит в буфере из пула или в отображённой памяти файла
+            DownloadFileResponse.Builder response = DownloadFileResponse.newBuilder()
+                    .setContent(ByteString.copyFrom(stored))
+                    .setCrc32C(framedFile.checksum(frame));
+            if (codec != Codec.NONE) {
+                response.setCodec(codec).setRawLength(rawLength);
+            }
+            return response.build();
+        }
+
+        if (frame != decodedFrame) {
+            ByteBuffer stored = framedFile.readFrame(file, frame, buffer);
+            if (codec == Codec.NONE) {
+                decoded = new byte[rawLength];
+                stored.get(decoded);
+            } else {
+                decoded = Compression.decompress(codec, stored, rawLength);
+            }
+            decodedFrame = frame;
+        }
+        int from = (int) (position - frameStart);
+        int length = (int) Math.min(sendEnd - position, buffer.capacity());
+        position += length;
+        ByteBuffer chunk = ByteBuffer.wrap(decoded, from, length);
+        // Распакованный кадр не меняется после распаковки, поэтому чанк ссылается на него без копирования
+        return DownloadFileResponse.newBuilder()
+                .setContent(UnsafeByteOperations.unsafeWrap(chunk.slice()))
+                .setCrc32C(FramedFile.checksum(chunk))
+                .build();
+    }
+}
@@ -0,0 +1,264 @@
+package ru.kostacie;
+
+import com.google.protobuf.ByteString;
+import datanode.DataNodeProto.Codec;
+import ru.kostacie.exception.ChecksumMismatchException;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+
+/**
+ * Файл, сохранённый кадрами - чанками в том виде, в котором их прислал клиент, в том числе сжатыми.
+ * <p>
+ * Формат: данные кадров подряд, затем индекс - для каждого кадра кодек (byte), размер до сжатия (int),
+ * размер на диске (int) и CRC32C данных на диске (int), затем трейлер: количество кадров (int),
+ * смещение индекса (long) и {@link #MAGIC} (int). Файлы без индекса, сохранённые до появления кадров,
+ * читаются как обычные файлы без контрольных сумм.
+ */
+class FramedFile {
+    static final int MAGIC = 0x4446535A;
+    private static final int ENTRY_SIZE = Byte.BYTES + Integer.BYTES * 3;
+    private static final int TRAILER_SIZE = Integer.BYTES + Long.BYTES + Integer.BYTES;
+
+    private final Codec[] codecs;
+    // Смещения начала кадров в исходном файле и на диске; последний элемент - размер
+    private final long[] rawOffsets;
+    private final long[] storedOffsets;
+    private final int[] checksums;
+
+    private FramedFile(Codec[] codecs, long[] rawOffsets, long[] storedOffsets, int[] checksums) {
+        this.codecs = codecs;
+        this.rawOffsets = rawOffsets;
+        this.storedOffsets = storedOffsets;
+        this.checksums = checksums;
+    }
+
+    /**
+     * Читает индекс кадров файла.
+     * Возвращает null, если файл хранится как обычный, без кадров.
+     *
+     * @param file открытый файл хранилища.
+     * @throws IOException если индекс повреждён или не удалось его прочитать.
+     */
+    static FramedFile open(FileHandle file) throws IOException {
+        long size = file.size();
+        if (size < TRAILER_SIZE) {
+            return null;
+        }
+        ByteBuffer trailer = readFully(file, size - TRAILER_SIZE, ByteBuffer.allocate(TRAILER_SIZE));
+        int count = trailer.getInt();
+        long indexOffset = trailer.getLong();
+        if (trailer.getInt() != MAGIC || count <= 0 || indexOffset < 0
+                || indexOffset + (long) count * ENTRY_SIZE + TRAILER_SIZE != size) {
+            return null;
+        }
+
+        ByteBuffer index = readFully(file, indexOffset, ByteBuffer.allocate(count * ENTRY_SIZE));
+        Codec[] codecs = new Codec[count];
+        long[] rawOffsets = new long[count + 1];
+        long[] storedOffsets = new long[count + 1];
+        int[] checksums = new int[count];
+        for (int i = 0; i < count; i++) {
+            codecs[i] = Codec.forNumber(index.get());
+            int rawLength = index.getInt();
+            int storedLength = index.getInt();
+            checksums[i] = index.getInt();
+            if (codecs[i] == null || rawLength <= 0 || storedLength <= 0
+                    || codecs[i] != Codec.NONE && rawLength > Compression.MAX_RAW_LENGTH) {
+                return null;
+            }
+            rawOffsets[i + 1] = rawOffsets[i] + rawLength;
+            storedOffsets[i + 1] = storedOffsets[i] + storedLength;
+        }
+        if (storedOffsets[count] != indexOffset) {
+            return null;
+        }
+        return new FramedFile(codecs, rawOffsets, storedOffsets, checksums);
+    }
+
+    /**
+     * Возвращает количество кадров.
+     */
+    int frameCount() {
+        return codecs.length;
+    }
+
+    /**
+     * Возвращает размер файла до сжатия.
+     */
+    long rawSize() {
+        return rawOffsets[codecs.length];
+    }
+
+    /**
+     * Возвращает номер кадра, содержащего байт исходного файла с данной позицией.
+     */
+    int frameAt(long rawPosition) {
+        int index = Arrays.binarySearch(rawOffsets, rawPosition);
+        return index >= 0 ? Math.min(index, codecs.length - 1) : -index - 2;
+    }
+
+    Codec codec(int frame) {
+        return codecs[frame];
+    }
+
+    long rawOffset(int frame) {
+        return rawOffsets[frame];
+    }
+
+    int rawLength(int frame) {
+        return (int) (rawOffsets[frame + 1] - rawOffsets[frame]);
+    }
+
+    long storedOffset(int frame) {
+        return storedOffsets[frame];
+    }
+
+    int storedLength(int frame) {
+        return (int) (storedOffsets[frame + 1] - storedOffsets[frame]);
+    }
+
+    int checksum(int frame) {
+        return checksums[frame];
+    }
+
+    /**
+     * Читает данные кадра в том виде, в котором они хранятся на диске, и проверяет их контрольную сумму.
+     * Если кадр помещается в buffer, он читается в него или отдаётся срезом буфера хранилища без копирования.
+     *
+     * @param file   открытый файл.
+     * @param frame  номер кадра.
+     * @param buffer буфер для чтения.
+     * @throws ChecksumMismatchException если данные кадра повреждены.
+     * @throws IOException               если кадр не удалось прочитать.
+     */
+    ByteBuffer readFrame(FileHandle file, int frame, ByteBuffer buffer) throws IOException {
+        int storedLength = storedLength(frame);
+        ByteBuffer stored;
+        if (storedLength <= buffer.capacity()) {
+            ByteBuffer target = buffer.clear().limit(storedLength).slice();
+            stored = file.read(storedOffsets[frame], target);
+            if (stored.remaining() < storedLength) {
+                stored = readFully(file, storedOffsets[frame], target.clear());
+            }
+        } else {
+            stored = readFully(file, storedOffsets[frame], ByteBuffer.allocate(storedLength));
+        }
+        if (checksum(stored) != checksums[frame]) {
+            throw new ChecksumMismatchException("Checksum mismatch in frame " + frame
+                    + " at offset " + storedOffsets[frame]);
+        }
+        return stored;
+    }
+
+    /**
+     * Вычисляет CRC32C данных, не изменяя позицию буфера.
+     */
+    static int checksum(ByteBuffer data) {
+        CRC32C crc = new CRC32C();
+        crc.update(data.duplicate());
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Вычисляет CRC32C содержимого чанка.
+     */
+    static int checksum(ByteString data) {
+        CRC32C crc = new CRC32C();
+        for (ByteBuffer buffer : data.asReadOnlyByteBufferList()) {
+            crc.update(buffer);
+        }
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Читает из файла ровно target.remaining() байт в target.
+     * Возвращает target, подготовленный для чтения.
+     *
+     * @throws EOFException если файл закончился раньше.
+     */
+    static ByteBuffer readFully(FileHandle file, long position, ByteBuffer target) throws IOException {
+        while (target.hasRemaining()) {
+            ByteBuffer slice = target.slice();
+            ByteBuffer chunk = file.read(position + target.position(), slice);
+            if (!chunk.hasRemaining()) {
+                throw new EOFException("Unexpected end of file at position " + (position + target.position()));
+            }
+            // Хранилище может вернуть собственный буфер вместо переданного
+            if (chunk == slice) {
+                target.position(target.position() + chunk.remaining());
+            } else {
+                target.put(chunk);
+            }
+        }
+        return target.flip();
+    }
+
+    /**
+     * Запись загружаемого файла кадрами.
+     */
+    static class Writer {
+        private final FileUpload upload;
+        private final List<Frame> frames = new ArrayList<>();
+
+        /**
+         * @param upload загрузка, в которую пишутся кадры.
+         */
+        Writer(FileUpload upload) {
+            this.upload = upload;
+        }
+
+        /**
+         * Дописывает кадр.
+         *
+         * @param codec     кодек, которым сжат кадр.
+         * @param rawLength размер кадра до сжатия.
+         * @param content   данные кадра.
+         * @param checksum  CRC32C данных кадра.
+         * @throws IOException если возникла ошибка при записи или размер сжатого кадра до сжатия
+         *                     вне допустимых границ.
+         */
+        void append(Codec codec, int rawLength, ByteString content, int checksum) throws IOException {
+            if (content.isEmpty()) {
+                return;
+            }
+            if (codec != Codec.NONE && (rawLength <= 0 || rawLength > Compression.MAX_RAW_LENGTH)) {
+                throw new IOException("Invalid raw length of a compressed frame: " + rawLength);
+            }
+            for (ByteBuffer buffer : content.asReadOnlyByteBufferList()) {
+                upload.write(buffer);
+            }
+            frames.add(new Frame(codec, codec == Codec.NONE ? content.size() : rawLength, content.size(), checksum));
+        }
+
+        /**
+         * Дописывает индекс кадров и трейлер.
+         *
+         * @throws IOException если возникла ошибка при записи.
+         */
+        void finish() throws IOException {
+            if (frames.isEmpty()) {
+                return;
+            }
+            long indexOffset = upload.size();
+            ByteBuffer index = ByteBuffer.allocate(frames.size() * ENTRY_SIZE + TRAILER_SIZE);
+            for (Frame frame : frames) {
+                index.put((byte) frame.codec().getNumber())
+                        .putInt(frame.rawLength())
+                        .putInt(frame.storedLength())
+                        .putInt(frame.checksum());
+            }
+            index.putInt(frames.size()).putLong(indexOffset).putInt(MAGIC);
+            upload.write(index.flip());
+        }
+
+        private record Frame(Codec codec, int rawLength, int storedLength, int checksum) {
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package ru.kostacie;
+
+
+/**
+ * Приблизительный счётчик частоты обращений к ключам (count-min sketch) для политики допуска TinyLFU.
+ * <p>
+ * Каждый ключ отображается на четыре 4-битных счётчика, частотой считается минимальный из них.
+ * Когда число обращений достигает размера выборки, все счётчики делятся пополам, поэтому частоты
+ * устаревают, и ключи, популярные в прошлом, со временем уступают место новым.
+ * <p>
+ * Не потокобезопасен: вызывающий код должен синхронизировать обращения.
+ */
+class FrequencySketch {
+    private static final long[] SEEDS = {
+            0xC3A5C85C97CB3127L, 0xB492B66FBE98F273L, 0x9AE16A3B2F90404FL, 0xCBF29CE484222325L};
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final int MAX_COUNT = 15;
+
+    // В каждом long хранится 16 счётчиков по 4 бита
+    private final long[] table;
+    private final int tableMask;
+    private final int sampleSize;
+    private int additions;
+
+    /**
+     * @param expectedEntries ожидаемое количество ключей в кэше.
+     */
+    FrequencySketch(int expectedEntries) {
+        int size = Integer.highestOneBit(Math.max(16, expectedEntries) - 1) << 1;
+        this.table = new long[size];
+        this.tableMask = size - 1;
+        this.sampleSize = 10 * size;
+    }
+
+    /**
+     * Возвращает оценку частоты обращений к ключу, от 0 до 15.
+     */
+    int frequency(Object key) {
+        int hash = spread(key.hashCode());
+        int frequency = MAX_COUNT;
+        for (int i = 0; i < SEEDS.length; i++) {
+            frequency = Math.min(frequency, counter(hash, i));
+        }
+        return frequency;
+    }
+
+    /**
+     * Учитывает обращение к ключу.
+     */
+    void increment(Object key) {
+        int hash = spread(key.hashCode());
+        boolean added = false;
+        for (int i = 0; i < SEEDS.length; i++) {
+            if (counter(hash, i) < MAX_COUNT) {
+                table[index(hash, i)] += 1L << shift(hash, i);
+                added = true;
+            }
+        }
+        if (added && ++additions >= sampleSize) {
+            reset();
+        }
+    }
+
+    private int counter(int hash, int i) {
+        return (int) (table[index(hash, i)] >>> shift(hash, i)) & MAX_COUNT;
+    }
+
+    private int index(int hash, int i) {
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        h += h >>> 32;
+        return (int) h & tableMask;
+    }
+
+    private static int shift(int hash, int i) {
+        return ((hash >>> (i << 3)) & 15) << 2;
+    }
+
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        additions /= 2;
+    }
+
+    private static int spread(int hash) {
+        hash = ((hash >>> 16) ^ hash) * 0x45D9F3B;
+        return (hash >>> 16) ^ hash;
+    }
+}
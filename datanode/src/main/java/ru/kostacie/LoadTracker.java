@@ -0,0 +1,43 @@
+package ru.kostacie;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Нагрузка DataNode, о которой он сообщает координатору: число активных передач
+ * и скользящее среднее времени чтения или записи одного чанка.
+ */
+class LoadTracker {
+    // Вес нового замера в среднем: 1/2^LATENCY_SMOOTHING_SHIFT
+    private static final int LATENCY_SMOOTHING_SHIFT = 3;
+
+    private final AtomicInteger activeTransfers = new AtomicInteger();
+    private final AtomicLong averageLatencyNanos = new AtomicLong();
+
+    void transferStarted() {
+        activeTransfers.incrementAndGet();
+    }
+
+    void transferFinished() {
+        activeTransfers.decrementAndGet();
+    }
+
+    /**
+     * Учитывает время чтения или записи одного чанка.
+     */
+    void recordLatency(long nanos) {
+        averageLatencyNanos.getAndUpdate(average -> average == 0
+                ? nanos
+                : average + ((nanos - average) >> LATENCY_SMOOTHING_SHIFT));
+    }
+
+    int getActiveTransfers() {
+        return activeTransfers.get();
+    }
+
+    long getLatencyMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(averageLatencyNanos.get());
+    }
+}
@@ -0,0 +1,225 @@
+package ru.kostacie;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * Кэш отображений файлов в память, ограниченный суммарным размером отображённых файлов.
+ * <p>
+ * Часто читаемые файлы отдаются срезами {@link MappedByteBuffer} без повторного открытия и чтения файла.
+ * При отправке клиенту срез копируется в сообщение (см. {@link FileDownload}): отображение не должно
+ * удерживаться до сериализации сообщения.
+ * Вытесняется отображение, к которому дольше всего не обращались (LRU). Отображение освобождается
+ * явно, как только его вытеснили и закрыли все открытые по нему {@link FileHandle}, не дожидаясь GC.
+ */
+class MappedFileCache {
+    private final long capacityBytes;
+    private final LinkedHashMap<String, MappedFile> mappings = new LinkedHashMap<>(16, 0.75f, true);
+    private final ReentrantLock lock = new ReentrantLock();
+    private long mappedBytes;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param capacityBytes максимальный суммарный размер отображённых файлов.
+     */
+    MappedFileCache(long capacityBytes) {
+        this.capacityBytes = capacityBytes;
+    }
+
+    /**
+     * Открывает файл для чтения через отображение в память.
+     * Файлы, которые не помещаются в кэш, читаются через {@link FileChannel}.
+     *
+     * @param fileId ID файла.
+     * @param file   путь к файлу.
+     * @throws java.nio.file.NoSuchFileException если файл не найден.
+     * @throws IOException                       если файл не удалось открыть.
+     */
+    FileHandle open(String fileId, Path file) throws IOException {
+        lock.lock();
+        try {
+            MappedFile cached = mappings.get(fileId);
+            if (cached != null && cached.retain()) {
+                hits.increment();
+                return new MappedFileHandle(cached);
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        misses.increment();
+        MappedFile mapped;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size == 0 || size > capacityBytes || size > Integer.MAX_VALUE) {
+                return new ChannelFileHandle(file);
+            }
+            mapped = new MappedFile(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+        }
+        List<MappedFile> released = new ArrayList<>();
+        lock.lock();
+        try {
+            MappedFile cached = mappings.get(fileId);
+            if (cached != null && cached.retain()) {
+                // Файл уже отобразил другой поток - наше отображение не нужно
+                released.add(mapped);
+                mapped = cached;
+            } else {
+                mapped.retain();
+                mappings.put(fileId, mapped);
+                mappedBytes += mapped.size;
+                evictOverCapacity(released);
+            }
+        } finally {
+            lock.unlock();
+        }
+        released.forEach(MappedFile::release);
+        return new MappedFileHandle(mapped);
+    }
+
+    /**
+     * Удаляет отображение файла из кэша, например при удалении файла.
+     *
+     * @param fileId ID файла.
+     */
+    void invalidate(String fileId) {
+        MappedFile removed;
+        lock.lock();
+        try {
+            removed = mappings.remove(fileId);
+            if (removed != null) {
+                mappedBytes -= removed.size;
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (removed != null) {
+            removed.release();
+        }
+    }
+
+    /**
+     * Освобождает все отображения.
+     */
+    void clear() {
+        List<MappedFile> removed;
+        lock.lock();
+        try {
+            removed = new ArrayList<>(mappings.values());
+            mappings.clear();
+            mappedBytes = 0;
+        } finally {
+            lock.unlock();
+        }
+        removed.forEach(MappedFile::release);
+    }
+
+    long getHits() {
+        return hits.sum();
+    }
+
+    long getMisses() {
+        return misses.sum();
+    }
+
+    long getEvictions() {
+        return evictions.sum();
+    }
+
+    long getMappedBytes() {
+        lock.lock();
+        try {
+            return mappedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void evictOverCapacity(List<MappedFile> evicted) {
+        Iterator<MappedFile> iterator = mappings.values().iterator();
+        while (mappedBytes > capacityBytes && iterator.hasNext()) {
+            MappedFile victim = iterator.next();
+            iterator.remove();
+            mappedBytes -= victim.size;
+            evicted.add(victim);
+            evictions.increment();
+        }
+    }
+
+    /**
+     * Отображённый файл со счётчиком ссылок. Одна ссылка принадлежит кэшу, остальные - открытым FileHandle.
+     */
+    private static class MappedFile {
+        private final MappedByteBuffer buffer;
+        private final long size;
+        private final AtomicInteger refs = new AtomicInteger(1);
+
+        MappedFile(MappedByteBuffer buffer) {
+            this.buffer = buffer;
+            this.size = buffer.capacity();
+        }
+
+        boolean retain() {
+            int current;
+            do {
+                current = refs.get();
+                if (current == 0) {
+                    return false;
+                }
+            } while (!refs.compareAndSet(current, current + 1));
+            return true;
+        }
+
+        void release() {
+            if (refs.decrementAndGet() == 0) {
+                BufferCleaner.free(buffer);
+            }
+        }
+    }
+
+    /**
+     * Файл, читаемый срезами отображения. Удерживает отображение, пока открыт.
+     */
+    private static class MappedFileHandle implements FileHandle {
+        private final MappedFile mapped;
+        private boolean closed;
+
+        MappedFileHandle(MappedFile mapped) {
+            this.mapped = mapped;
+        }
+
+        @Override
+        public long size() {
+            return mapped.size;
+        }
+
+        @Override
+        public ByteBuffer read(long position, ByteBuffer buffer) {
+            int length = (int) Math.max(0, Math.min(buffer.capacity(), mapped.size - position));
+            return mapped.buffer.slice((int) Math.min(position, mapped.size), length);
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                mapped.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package ru.kostacie;
+
+import java.io.IOException;
+
+
+/**
+ * Систематический код Рида-Соломона над GF(2^8): k полос данных и m полос чётности.
+ * <p>
+ * Полосы данных хранятся как есть, полоса чётности i - сумма полос данных с коэффициентами строки i
+ * матрицы Коши. Любая квадратная подматрица матрицы Коши обратима, поэтому данные восстанавливаются
+ * по любым k полосам из k + m.
+ */
+final class ReedSolomon {
+    // Неприводимый многочлен x^8 + x^4 + x^3 + x^2 + 1
+    private static final int POLYNOMIAL = 0x11D;
+    private static final int FIELD_SIZE = 256;
+
+    private static final byte[] EXP = new byte[2 * FIELD_SIZE];
+    private static final int[] LOG = new int[FIELD_SIZE];
+    // Таблица умножения: MULTIPLY[a][b] = a * b. Строка для коэффициента читается в цикле кодирования
+    private static final byte[][] MULTIPLY = new byte[FIELD_SIZE][FIELD_SIZE];
+
+    static {
+        int x = 1;
+        for (int i = 0; i < FIELD_SIZE - 1; i++) {
+            EXP[i] = (byte) x;
+            LOG[x] = i;
+            x <<= 1;
+            if (x >= FIELD_SIZE) {
+                x ^= POLYNOMIAL;
+            }
+        }
+        for (int i = FIELD_SIZE - 1; i < EXP.length; i++) {
+            EXP[i] = EXP[i - (FIELD_SIZE - 1)];
+        }
+        for (int a = 1; a < FIELD_SIZE; a++) {
+            for (int b = 1; b < FIELD_SIZE; b++) {
+                MULTIPLY[a][b] = EXP[LOG[a] + LOG[b]];
+            }
+        }
+    }
+
+    private final int dataShards;
+    private final int parityShards;
+    // Строки полос чётности: parity[i] = sum(parityMatrix[i][j] * data[j])
+    private final byte[][] parityMatrix;
+
+    /**
+     * @param dataShards   количество полос данных k.
+     * @param parityShards количество полос чётности m.
+     */
+    ReedSolomon(int dataShards, int parityShards) {
+        if (dataShards <= 0 || parityShards < 0 || dataShards + parityShards > FIELD_SIZE) {
+            throw new IllegalArgumentException("Invalid Reed-Solomon code: " + dataShards + "+" + parityShards);
+        }
+        this.dataShards = dataShards;
+        this.parityShards = parityShards;
+        // Матрица Коши 1 / (x_i + y_j) с x_i = k + i и y_j = j: все x_i и y_j различны
+        parityMatrix = new byte[parityShards][dataShards];
+        for (int i = 0; i < parityShards; i++) {
+            for (int j = 0; j < dataShards; j++) {
+                parityMatrix[i][j] = inverse((dataShards + i) ^ j);
+            }
+        }
+    }
+
+    int getDataShards() {
+        return dataShards;
+    }
+
+    int getParityShards() {
+        return parityShards;
+    }
+
+    int getTotalShards() {
+        return dataShards + parityShards;
+    }
+
+    /**
+     * Вычисляет полосы чётности.
+     *
+     * @param shards k + m буферов одного размера: первые k - данные, в остальные записывается чётность.
+     * @param offset начало кодируемого участка в каждом буфере.
+     * @param length длина участка.
+     */
+    void encode(byte[][] shards, int offset, int length) {
+        for (int i = 0; i < parityShards; i++) {
+            byte[] parity = shards[dataShards + i];
+            multiply(parityMatrix[i], shards, parity, offset, length);
+        }
+    }
+
+    /**
+     * Восстанавливает недостающие полосы данных по любым k имеющимся полосам.
+     * Полосы чётности не восстанавливаются: для чтения они не нужны.
+     *
+     * @param shards  k + m буферов одного размера; буферы недостающих полос данных перезаписываются.
+     * @param present какие полосы есть.
+     * @param offset  начало участка в каждом буфере.
+     * @param length  длина участка.
+     * @throws IOException если имеющихся полос меньше k.
+     */
+    void decodeData(byte[][] shards, boolean[] present, int offset, int length) throws IOException {
+        int[] rows = new int[dataShards];
+        int found = 0;
+        boolean missingData = false;
+        for (int i = 0; i < getTotalShards() && found < dataShards; i++) {
+            if (present[i]) {
+                rows[found++] = i;
+            } else if (i < dataShards) {
+                missingData = true;
+            }
+        }
+        if (found < dataShards) {
+            throw new IOException("Need " + dataShards + " stripes to decode, got " + found);
+        }
+        if (!missingData) {
+            return;
+        }
+
+        // Строки кодирующей матрицы для имеющихся полос; её обратная матрица выражает данные через них
+        byte[][] matrix = new byte[dataShards][];
+        byte[][] inputs = new byte[dataShards][];
+        for (int r = 0; r < dataShards; r++) {
+            int shard = rows[r];
+            if (shard < dataShards) {
+                matrix[r] = new byte[dataShards];
+                matrix[r][shard] = 1;
+            } else {
+                matrix[r] = parityMatrix[shard - dataShards].clone();
+            }
+            inputs[r] = shards[shard];
+        }
+        byte[][] inverted = invert(matrix);
+        for (int j = 0; j < dataShards; j++) {
+            if (!present[j]) {
+                multiply(inverted[j], inputs, shards[j], offset, length);
+            }
+        }
+    }
+
+    /**
+     * output[offset, offset + length) = sum(coefficients[j] * inputs[j][offset, offset + length)).
+     */
+    private static void multiply(byte[] coefficients, byte[][] inputs, byte[] output, int offset, int length) {
+        int end = offset + length;
+        byte[] first = MULTIPLY[coefficients[0] & 0xFF];
+        byte[] input = inputs[0];
+        for (int b = offset; b < end; b++) {
+            output[b] = first[input[b] & 0xFF];
+        }
+        for (int j = 1; j < coefficients.length; j++) {
+            byte[] row = MULTIPLY[coefficients[j] & 0xFF];
+            input = inputs[j];
+            for (int b = offset; b < end; b++) {
+                output[b] ^= row[input[b] & 0xFF];
+            }
+        }
+    }
+
+    /**
+     * Обращает квадратную матрицу над GF(2^8) методом Гаусса-Жордана.
+     */
+    private static byte[][] invert(byte[][] matrix) throws IOException {
+        int n = matrix.length;
+        byte[][] work = new byte[n][];
+        byte[][] result = new byte[n][n];
+        for (int i = 0; i < n; i++) {
+            work[i] = matrix[i].clone();
+            result[i][i] = 1;
+        }
+        for (int column = 0; column < n; column++) {
+            int pivot = column;
+            while (pivot < n && work[pivot][column] == 0) {
+                pivot++;
+            }
+            if (pivot == n) {
+                throw new IOException("Stripe matrix is singular");
+            }
+            swap(work, pivot, column);
+            swap(result, pivot, column);
+
+            byte[] scale = MULTIPLY[inverse(work[column][column] & 0xFF) & 0xFF];
+            for (int c = 0; c < n; c++) {
+                work[column][c] = scale[work[column][c] & 0xFF];
+                result[column][c] = scale[result[column][c] & 0xFF];
+            }
+            for (int r = 0; r < n; r++) {
+                int factor = work[r][column] & 0xFF;
+                if (r == column || factor == 0) {
+                    continue;
+                }
+                byte[] row = MULTIPLY[factor];
+                for (int c = 0; c < n; c++) {
+                    work[r][c] ^= row[work[column][c] & 0xFF];
+                    result[r][c] ^= row[result[column][c] & 0xFF];
+                }
+            }
+        }
+        return result;
+    }
+
+    private static void swap(byte[][] rows, int i, int j) {
+        byte[] row = rows[i];
+        rows[i] = rows[j];
+        rows[j] = row;
+    }
+
+    private static byte inverse(int a) {
+        return EXP[FIELD_SIZE - 1 - LOG[a]];
+    }
+}
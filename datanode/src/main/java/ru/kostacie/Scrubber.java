@@ -0,0 +1,167 @@
+package ru.kostacie;
+
+import lombok.extern.slf4j.Slf4j;
+import ru.kostacie.exception.ChecksumMismatchException;
+
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Фоновая проверка контрольных сумм всех файлов хранилища.
+ * <p>
+ * Проход читает файлы по кадрам и сверяет CRC32C каждого кадра с сохранённым в индексе.
+ * Скорость чтения ограничена, а поток имеет минимальный приоритет, чтобы проверка не увеличивала
+ * задержку запросов клиентов. Повреждённые файлы пишутся в лог и возвращаются {@link #getCorruptFiles()}.
+ * Файлы, сохранённые без контрольных сумм, пропускаются.
+ */
+@Slf4j
+public class Scrubber implements Closeable {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final FileStorage fileStorage;
+    private final long bytesPerSecond;
+    private final ScheduledExecutorService executor;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private final Set<String> corruptFiles = ConcurrentHashMap.newKeySet();
+
+    private final AtomicLong passes = new AtomicLong();
+    private final AtomicLong checkedFiles = new AtomicLong();
+    private final AtomicLong checkedBytes = new AtomicLong();
+
+    // Начало текущего прохода и прочитанные за него байты - для ограничения скорости
+    private long passStartNanos;
+    private long passBytes;
+
+    /**
+     * @param fileStorage    проверяемое хранилище.
+     * @param bytesPerSecond максимальная скорость чтения при проверке.
+     */
+    public Scrubber(FileStorage fileStorage, long bytesPerSecond) {
+        if (bytesPerSecond <= 0) {
+            throw new IllegalArgumentException("Scrub rate must be positive: " + bytesPerSecond);
+        }
+        this.fileStorage = fileStorage;
+        this.bytesPerSecond = bytesPerSecond;
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "datanode-scrubber");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+    }
+
+    /**
+     * Запускает проходы проверки с паузой между ними.
+     *
+     * @param interval пауза между окончанием прохода и началом следующего.
+     * @param unit     единица измерения паузы.
+     */
+    public void start(long interval, TimeUnit unit) {
+        executor.scheduleWithFixedDelay(() -> {
+            try {
+                scrub();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                log.error("Scrub pass failed: {}", e.getMessage(), e);
+            }
+        }, interval, interval, unit);
+    }
+
+    /**
+     * Проверяет все файлы хранилища один раз.
+     *
+     * @throws IOException          если не удалось получить список файлов.
+     * @throws InterruptedException если проверку прервали.
+     */
+    public void scrub() throws IOException, InterruptedException {
+        passStartNanos = System.nanoTime();
+        passBytes = 0;
+        int corrupt = 0;
+        for (String fileId : fileStorage.listFiles()) {
+            if (!verify(fileId)) {
+                corrupt++;
+            }
+        }
+        passes.incrementAndGet();
+        log.info("Scrub pass completed: {} bytes checked, {} corrupt files found", passBytes, corrupt);
+    }
+
+    /**
+     * Возвращает ID файлов, в которых найдены повреждённые данные.
+     */
+    public Set<String> getCorruptFiles() {
+        return Set.copyOf(corruptFiles);
+    }
+
+    /**
+     * Возвращает счётчики проверки: имя метрики и её значение.
+     */
+    public Map<String, Long> getMetrics() {
+        Map<String, Long> metrics = new LinkedHashMap<>();
+        metrics.put("scrub.passes", passes.get());
+        metrics.put("scrub.checkedFiles", checkedFiles.get());
+        metrics.put("scrub.checkedBytes", checkedBytes.get());
+        metrics.put("scrub.corruptFiles", (long) corruptFiles.size());
+        return metrics;
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Проверяет контрольные суммы всех кадров файла.
+     * Возвращает false, если файл повреждён.
+     */
+    private boolean verify(String fileId) throws InterruptedException {
+        try (FileHandle file = fileStorage.openFileUncached(fileId)) {
+            FramedFile framedFile = FramedFile.open(file);
+            if (framedFile == null) {
+                return true;
+            }
+            for (int frame = 0; frame < framedFile.frameCount(); frame++) {
+                framedFile.readFrame(file, frame, buffer);
+                throttle(framedFile.storedLength(frame));
+            }
+            checkedFiles.incrementAndGet();
+            corruptFiles.remove(fileId);
+            return true;
+        } catch (FileNotFoundException e) {
+            // Файл удалили во время прохода
+            corruptFiles.remove(fileId);
+            return true;
+        } catch (ChecksumMismatchException e) {
+            log.error("Corrupted file {}: {}", fileId, e.getMessage());
+        } catch (IOException e) {
+            log.error("Failed to read file {} during scrub: {}", fileId, e.getMessage());
+        }
+        corruptFiles.add(fileId);
+        return false;
+    }
+
+    /**
+     * Засыпает, если проход читает быстрее заданной скорости.
+     */
+    private void throttle(long bytes) throws InterruptedException {
+        passBytes += bytes;
+        checkedBytes.addAndGet(bytes);
+        long expectedNanos = (long) (passBytes * 1e9 / bytesPerSecond);
+        long aheadNanos = expectedNanos - (System.nanoTime() - passStartNanos);
+        if (aheadNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(aheadNanos);
+        }
+    }
+}
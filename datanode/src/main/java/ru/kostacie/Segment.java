@@ -0,0 +1,356 @@
+package ru.kostacie;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Сегмент хранилища {@link SegmentFileStorage}: файл, в который записи только дописываются.
+ * <p>
+ * Формат записи: magic (4), тип (1), длина ID (2), ID, длина данных (8), данные.
+ * При запечатывании в конец сегмента пишется футер со списком всех записей и трейлер:
+ * количество записей (4), смещение футера (8), magic футера (4). По футеру индекс
+ * восстанавливается без чтения самих записей. У незапечатанного после сбоя сегмента
+ * записи сканируются подряд, а недописанный хвост обрезается.
+ */
+@Slf4j
+class Segment {
+    static final byte PUT = 1;
+    static final byte DELETE = 2;
+
+    private static final int RECORD_MAGIC = 0x44465352;
+    private static final int FOOTER_MAGIC = 0x44465346;
+    private static final int RECORD_FIXED_SIZE = 4 + 1 + 2 + 8;
+    private static final int FOOTER_ENTRY_FIXED_SIZE = 1 + 2 + 8 + 8;
+    private static final int TRAILER_SIZE = 4 + 8 + 4;
+
+    @Getter
+    private final int id;
+    private final Path path;
+    private final FileChannel channel;
+    private final AtomicLong liveBytes = new AtomicLong();
+    private final AtomicInteger refs = new AtomicInteger(1);
+    private volatile long size;
+    private volatile boolean sealed;
+    private volatile boolean deleted;
+
+    // Записи незапечатанного сегмента, из которых при запечатывании строится футер
+    private List<SegmentRecord> records;
+
+    private Segment(int id, Path path, FileChannel channel) throws IOException {
+        this.id = id;
+        this.path = path;
+        this.channel = channel;
+        this.size = channel.size();
+    }
+
+    /**
+     * Создаёт новый пустой сегмент.
+     *
+     * @param id   номер сегмента.
+     * @param path путь к файлу сегмента.
+     * @throws IOException если файл не удалось создать.
+     */
+    static Segment create(int id, Path path) throws IOException {
+        Segment segment = new Segment(id, path, FileChannel.open(path,
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE));
+        segment.records = new ArrayList<>();
+        return segment;
+    }
+
+    /**
+     * Открывает существующий сегмент и читает список его записей.
+     *
+     * @param id      номер сегмента.
+     * @param path    путь к файлу сегмента.
+     * @param records список, в который добавляются записи сегмента в порядке их записи.
+     * @throws IOException если сегмент не удалось прочитать.
+     */
+    static Segment open(int id, Path path, List<SegmentRecord> records) throws IOException {
+        Segment segment = new Segment(id, path, FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE));
+        if (segment.readFooter(records)) {
+            segment.sealed = true;
+        } else {
+            segment.scanRecords(records);
+            segment.records = new ArrayList<>(records);
+        }
+        return segment;
+    }
+
+    /**
+     * Возвращает размер записи с данными заданной длины вместе с заголовком.
+     */
+    static long recordSize(String fileId, long length) {
+        return RECORD_FIXED_SIZE + fileId.getBytes(StandardCharsets.UTF_8).length + length;
+    }
+
+    long size() {
+        return size;
+    }
+
+    boolean isSealed() {
+        return sealed;
+    }
+
+    long getLiveBytes() {
+        return liveBytes.get();
+    }
+
+    void addLiveBytes(long delta) {
+        liveBytes.addAndGet(delta);
+    }
+
+    /**
+     * Дописывает запись с данными файла, копируя их из канала-источника средствами ОС.
+     *
+     * @param fileId         ID файла.
+     * @param source         канал с данными.
+     * @param sourcePosition позиция данных в канале-источнике.
+     * @param length         длина данных.
+     * @throws IOException если запись не удалась.
+     */
+    SegmentRecord appendPut(String fileId, FileChannel source, long sourcePosition, long length) throws IOException {
+        long recordStart = size;
+        long dataOffset = writeHeader(recordStart, PUT, fileId, length);
+        source.position(sourcePosition);
+        long transferred = 0;
+        while (transferred < length) {
+            long count = channel.transferFrom(source, dataOffset + transferred, length - transferred);
+            if (count <= 0) {
+                channel.truncate(recordStart);
+                throw new EOFException("Source ended before " + length + " bytes were copied for file " + fileId);
+            }
+            transferred += count;
+        }
+        return appended(new SegmentRecord(PUT, fileId, dataOffset, length), dataOffset + length);
+    }
+
+    /**
+     * Дописывает запись об удалении файла.
+     *
+     * @param fileId ID файла.
+     * @throws IOException если запись не удалась.
+     */
+    SegmentRecord appendDelete(String fileId) throws IOException {
+        long dataOffset = writeHeader(size, DELETE, fileId, 0);
+        return appended(new SegmentRecord(DELETE, fileId, dataOffset, 0), dataOffset);
+    }
+
+    /**
+     * Читает данные сегмента начиная с заданной позиции.
+     *
+     * @param buffer   буфер для данных.
+     * @param position позиция в сегменте.
+     * @throws IOException если возникла ошибка при чтении.
+     */
+    int read(ByteBuffer buffer, long position) throws IOException {
+        return channel.read(buffer, position);
+    }
+
+    FileChannel channel() {
+        return channel;
+    }
+
+    /**
+     * Читает список записей запечатанного сегмента из его футера.
+     *
+     * @throws IOException если футер не удалось прочитать.
+     */
+    List<SegmentRecord> sealedRecords() throws IOException {
+        List<SegmentRecord> result = new ArrayList<>();
+        if (!readFooter(result)) {
+            throw new IOException("Segment " + id + " has no footer");
+        }
+        return result;
+    }
+
+    /**
+     * Сбрасывает дописанные записи на диск, чтобы они пережили сбой.
+     *
+     * @throws IOException если данные не удалось сбросить.
+     */
+    void force() throws IOException {
+        channel.force(false);
+    }
+
+    /**
+     * Запечатывает сегмент: пишет футер со списком записей. После этого сегмент только читается.
+     *
+     * @throws IOException если футер не удалось записать.
+     */
+    void seal() throws IOException {
+        if (sealed) {
+            return;
+        }
+        long footerOffset = size;
+        int footerSize = TRAILER_SIZE;
+        for (SegmentRecord record : records) {
+            footerSize += FOOTER_ENTRY_FIXED_SIZE + record.fileId().getBytes(StandardCharsets.UTF_8).length;
+        }
+        ByteBuffer footer = ByteBuffer.allocate(footerSize);
+        for (SegmentRecord record : records) {
+            byte[] id = record.fileId().getBytes(StandardCharsets.UTF_8);
+            footer.put(record.type()).putShort((short) id.length).put(id)
+                    .putLong(record.offset()).putLong(record.length());
+        }
+        footer.putInt(records.size()).putLong(footerOffset).putInt(FOOTER_MAGIC).flip();
+        writeFully(footer, footerOffset);
+        force();
+        size = footerOffset + footerSize;
+        sealed = true;
+        records = null;
+        log.info("Segment {} sealed: {} bytes", id, size);
+    }
+
+    /**
+     * Захватывает сегмент для чтения. Возвращает false, если сегмент уже закрыт.
+     */
+    boolean retain() {
+        int current;
+        do {
+            current = refs.get();
+            if (current == 0) {
+                return false;
+            }
+        } while (!refs.compareAndSet(current, current + 1));
+        return true;
+    }
+
+    /**
+     * Освобождает сегмент. Последнее освобождение закрывает файл, а удалённый сегмент стирает с диска.
+     */
+    void release() {
+        if (refs.decrementAndGet() != 0) {
+            return;
+        }
+        try {
+            channel.close();
+            if (deleted) {
+                Files.deleteIfExists(path);
+            }
+        } catch (IOException e) {
+            log.warn("Failed to release segment {}: {}", id, e.getMessage());
+        }
+    }
+
+    /**
+     * Помечает сегмент удалённым. Файл стирается, когда его перестанут читать.
+     */
+    void delete() {
+        deleted = true;
+        release();
+    }
+
+    private long writeHeader(long position, byte type, String fileId, long length) throws IOException {
+        if (sealed) {
+            throw new IllegalStateException("Segment " + id + " is sealed");
+        }
+        byte[] id = fileId.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer header = ByteBuffer.allocate(RECORD_FIXED_SIZE + id.length);
+        header.putInt(RECORD_MAGIC).put(type).putShort((short) id.length).put(id).putLong(length).flip();
+        writeFully(header, position);
+        return position + header.capacity();
+    }
+
+    private SegmentRecord appended(SegmentRecord record, long end) {
+        records.add(record);
+        size = end;
+        return record;
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException("Unexpected end of segment " + id);
+            }
+            position += read;
+        }
+        buffer.flip();
+    }
+
+    private boolean readFooter(List<SegmentRecord> result) throws IOException {
+        if (size < TRAILER_SIZE) {
+            return false;
+        }
+        ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+        readFully(trailer, size - TRAILER_SIZE);
+        int count = trailer.getInt();
+        long footerOffset = trailer.getLong();
+        if (trailer.getInt() != FOOTER_MAGIC || footerOffset < 0 || footerOffset > size - TRAILER_SIZE) {
+            return false;
+        }
+        ByteBuffer footer = ByteBuffer.allocate((int) (size - TRAILER_SIZE - footerOffset));
+        readFully(footer, footerOffset);
+        for (int i = 0; i < count; i++) {
+            byte type = footer.get();
+            byte[] id = new byte[footer.getShort()];
+            footer.get(id);
+            result.add(new SegmentRecord(type, new String(id, StandardCharsets.UTF_8), footer.getLong(), footer.getLong()));
+        }
+        return true;
+    }
+
+    private void scanRecords(List<SegmentRecord> result) throws IOException {
+        long position = 0;
+        ByteBuffer fixed = ByteBuffer.allocate(4 + 1 + 2);
+        while (position + RECORD_FIXED_SIZE <= size) {
+            fixed.clear();
+            readFully(fixed, position);
+            if (fixed.getInt() != RECORD_MAGIC) {
+                break;
+            }
+            byte type = fixed.get();
+            int idLength = fixed.getShort();
+            if (type != PUT && type != DELETE || position + RECORD_FIXED_SIZE + idLength > size) {
+                break;
+            }
+            ByteBuffer rest = ByteBuffer.allocate(idLength + 8);
+            readFully(rest, position + fixed.capacity());
+            byte[] id = new byte[idLength];
+            rest.get(id);
+            long length = rest.getLong();
+            long dataOffset = position + RECORD_FIXED_SIZE + idLength;
+            if (length < 0 || dataOffset + length > size) {
+                break;
+            }
+            result.add(new SegmentRecord(type, new String(id, StandardCharsets.UTF_8), dataOffset, length));
+            position = dataOffset + length;
+        }
+        if (position < size) {
+            log.warn("Segment {} has an incomplete tail, truncating it from {} to {} bytes", id, size, position);
+            channel.truncate(position);
+            size = position;
+        }
+    }
+
+    /**
+     * Запись сегмента.
+     *
+     * @param type   тип записи: {@link #PUT} или {@link #DELETE}.
+     * @param fileId ID файла.
+     * @param offset смещение данных файла в сегменте.
+     * @param length длина данных файла.
+     */
+    record SegmentRecord(byte type, String fileId, long offset, long length) {
+    }
+}
@@ -0,0 +1,466 @@
+package ru.kostacie;
+
+import lombok.extern.slf4j.Slf4j;
+import ru.kostacie.Segment.SegmentRecord;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+
+/**
+ * Хранилище DataNode для большого количества маленьких файлов.
+ * <p>
+ * Маленькие файлы дописываются в общие сегменты ({@link Segment}), а индекс в памяти хранит для каждого ID
+ * номер сегмента, смещение и длину данных. Так на каждый файл не тратится отдельный inode, а запись
+ * становится последовательной. Файлы больше порога хранятся отдельными файлами в {@link DirectoryFileStorage}.
+ * <p>
+ * Записи в сегменты и изменения индекса выполняются под одной блокировкой, чтения блокировок не берут.
+ * Записи сбрасываются на диск вне этой блокировки групповой фиксацией: один force покрывает все записи,
+ * дописанные к его началу, как в журнале координатора.
+ * Удаление дописывает запись-надгробие. Фоновая компактификация переписывает живые записи
+ * сегментов, в которых много мусора, в активный сегмент и удаляет старые сегменты.
+ */
+@Slf4j
+public class SegmentFileStorage implements FileStorage {
+    public static final long DEFAULT_SMALL_FILE_THRESHOLD = 1024 * 1024;
+    public static final long DEFAULT_MAX_SEGMENT_SIZE = 64L * 1024 * 1024;
+
+    private static final String SEGMENTS_DIR = ".segments";
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    // Сегмент компактифицируется, когда живые записи занимают меньше этой доли его размера
+    private static final double COMPACTION_LIVE_RATIO = 0.5;
+    private static final long COMPACTION_INTERVAL_SECONDS = 60;
+
+    private final DirectoryFileStorage largeFiles;
+    private final Path segmentsDir;
+    private final long smallFileThreshold;
+    private final long maxSegmentSize;
+
+    private final Map<String, SegmentEntry> index = new ConcurrentHashMap<>();
+    private final ConcurrentNavigableMap<Integer, Segment> segments = new ConcurrentSkipListMap<>();
+    private final ReentrantLock appendLock = new ReentrantLock();
+    private final ScheduledExecutorService compactor;
+
+    // Сегмент, в который дописываются записи. Изменяется только под appendLock
+    private Segment activeSegment;
+    // Номер последней дописанной записи; изменяется только под appendLock
+    private long appendedRecords;
+    // Номер последней записи, сброшенной на диск; изменяется только под forceLock
+    private long forcedRecords;
+    private final ReentrantLock forceLock = new ReentrantLock();
+    private final AtomicLong commits = new AtomicLong();
+
+    /**
+     * Создаёт хранилище с параметрами по умолчанию.
+     *
+     * @param storageDir директория хранилища.
+     * @throws IOException если не удалось открыть хранилище.
+     */
+    public SegmentFileStorage(Path storageDir) throws IOException {
+        this(storageDir, DEFAULT_SMALL_FILE_THRESHOLD, DEFAULT_MAX_SEGMENT_SIZE, 0);
+    }
+
+    /**
+     * Создаёт хранилище, читающее большие файлы через FileChannel.
+     *
+     * @param storageDir         директория хранилища.
+     * @param smallFileThreshold максимальный размер файла, который хранится в сегментах.
+     * @param maxSegmentSize     размер, после которого сегмент запечатывается и начинается новый.
+     * @throws IOException если не удалось открыть хранилище.
+     */
+    public SegmentFileStorage(Path storageDir, long smallFileThreshold, long maxSegmentSize) throws IOException {
+        this(storageDir, smallFileThreshold, maxSegmentSize, 0);
+    }
+
+    /**
+     * Открывает хранилище и восстанавливает индекс по сегментам.
+     *
+     * @param storageDir         директория хранилища.
+     * @param smallFileThreshold максимальный размер файла, который хранится в сегментах.
+     * @param maxSegmentSize     размер, после которого сегмент запечатывается и начинается новый.
+     * @param mappedCacheBytes   предельный размер отображённых в память больших файлов; 0 - не отображать.
+     * @throws IOException если не удалось открыть хранилище.
+     */
+    public SegmentFileStorage(Path storageDir, long smallFileThreshold, long maxSegmentSize,
+                              long mappedCacheBytes) throws IOException {
+        this.largeFiles = new DirectoryFileStorage(storageDir, mappedCacheBytes);
+        this.segmentsDir = Files.createDirectories(storageDir.resolve(SEGMENTS_DIR));
+        this.smallFileThreshold = smallFileThreshold;
+        this.maxSegmentSize = maxSegmentSize;
+        recover();
+
+        compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "segment-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        compactor.scheduleWithFixedDelay(() -> {
+            try {
+                compact();
+            } catch (Exception e) {
+                log.error("Segment compaction failed: {}", e.getMessage(), e);
+            }
+        }, COMPACTION_INTERVAL_SECONDS, COMPACTION_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public boolean fileExists(String fileId) {
+        return index.containsKey(fileId) || largeFiles.fileExists(fileId);
+    }
+
+    @Override
+    public FileUpload createUpload(String fileId) throws IOException {
+        return largeFiles.createUpload(fileId, this::publish);
+    }
+
+    @Override
+    public FileHandle openFile(String fileId) throws IOException {
+        return open(fileId, false);
+    }
+
+    @Override
+    public FileHandle openFileUncached(String fileId) throws IOException {
+        return open(fileId, true);
+    }
+
+    private FileHandle open(String fileId, boolean uncached) throws IOException {
+        while (true) {
+            SegmentEntry entry = index.get(fileId);
+            if (entry == null) {
+                return uncached ? largeFiles.openFileUncached(fileId) : largeFiles.openFile(fileId);
+            }
+            Segment segment = segments.get(entry.segmentId());
+            if (segment != null && segment.retain()) {
+                return new SegmentFileHandle(segment, entry.offset(), entry.length());
+            }
+            // Компактификация уже перенесла запись в другой сегмент - ищем заново
+        }
+    }
+
+    @Override
+    public List<String> listFiles() throws IOException {
+        List<String> fileIds = new ArrayList<>(index.keySet());
+        fileIds.addAll(largeFiles.listFiles());
+        return fileIds;
+    }
+
+    @Override
+    public boolean deleteFile(String fileId) throws IOException {
+        long sequence;
+        appendLock.lock();
+        try {
+            SegmentEntry entry = index.get(fileId);
+            if (entry == null) {
+                return largeFiles.deleteFile(fileId);
+            }
+            Segment segment = activeSegment();
+            segment.appendDelete(fileId);
+            sequence = ++appendedRecords;
+            index.remove(fileId);
+            releaseLiveBytes(fileId, entry);
+            rollIfFull(segment);
+        } finally {
+            appendLock.unlock();
+        }
+        awaitForced(sequence);
+        log.info("File deleted: {}", fileId);
+        return true;
+    }
+
+    @Override
+    public Map<String, Long> getMetrics() {
+        Map<String, Long> metrics = new LinkedHashMap<>(largeFiles.getMetrics());
+        metrics.put("segment.files", (long) index.size());
+        metrics.put("segment.count", (long) segments.size());
+        metrics.put("segment.commits", commits.get());
+        return metrics;
+    }
+
+    /**
+     * Компактифицирует запечатанные сегменты, в которых живые записи занимают меньше половины места.
+     *
+     * @throws IOException если сегмент не удалось переписать.
+     */
+    public void compact() throws IOException {
+        for (Segment segment : segments.values()) {
+            if (segment.isSealed() && segment.getLiveBytes() < segment.size() * COMPACTION_LIVE_RATIO) {
+                compactSegment(segment);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        compactor.shutdownNow();
+        appendLock.lock();
+        try {
+            if (activeSegment != null) {
+                activeSegment.seal();
+                activeSegment = null;
+            }
+            for (Segment segment : segments.values()) {
+                segment.release();
+            }
+            segments.clear();
+        } finally {
+            appendLock.unlock();
+        }
+        largeFiles.close();
+    }
+
+    /**
+     * Публикует загруженный файл: маленький дописывается в активный сегмент, большой хранится отдельно.
+     * Запись сбрасывается на диск до возврата, поэтому подтверждённая загрузка переживает сбой.
+     * Большой файл публикуется вне блокировки записи: его сброс на диск не задерживает маленькие файлы.
+     */
+    private void publish(String fileId, Path tempFile) throws IOException {
+        long length = Files.size(tempFile);
+        long sequence;
+        appendLock.lock();
+        try {
+            if (index.containsKey(fileId) || largeFiles.fileExists(fileId)) {
+                throw new FileAlreadyExistsException("File already exists: " + fileId);
+            }
+            if (length <= smallFileThreshold) {
+                try (FileChannel source = FileChannel.open(tempFile, StandardOpenOption.READ)) {
+                    Segment segment = activeSegment();
+                    SegmentRecord record = segment.appendPut(fileId, source, 0, length);
+                    sequence = ++appendedRecords;
+                    index.put(fileId, new SegmentEntry(segment.getId(), record.offset(), length));
+                    segment.addLiveBytes(Segment.recordSize(fileId, length));
+                    rollIfFull(segment);
+                }
+            } else {
+                sequence = 0;
+            }
+        } finally {
+            appendLock.unlock();
+        }
+        if (length > smallFileThreshold) {
+            largeFiles.commit(fileId, tempFile);
+            return;
+        }
+        awaitForced(sequence);
+        Files.delete(tempFile);
+    }
+
+    /**
+     * Ждёт, пока записи с номерами до sequence будут сброшены на диск.
+     * Групповая фиксация: поток, первым захвативший forceLock, сбрасывает активный сегмент один раз
+     * за все записи, дописанные к этому моменту, а потоки, ждавшие forceLock, находят свою запись уже
+     * сброшенной и возвращаются без своего force. Запечатанные сегменты сбрасываются при запечатывании.
+     *
+     * @throws IOException если сегмент не удалось сбросить на диск.
+     */
+    private void awaitForced(long sequence) throws IOException {
+        forceLock.lock();
+        try {
+            if (forcedRecords >= sequence) {
+                return;
+            }
+            Segment segment;
+            long appended;
+            appendLock.lock();
+            try {
+                // Сегмент удерживается, чтобы компактификация не закрыла его во время force
+                segment = activeSegment != null && activeSegment.retain() ? activeSegment : null;
+                appended = appendedRecords;
+            } finally {
+                appendLock.unlock();
+            }
+            if (segment != null) {
+                try {
+                    segment.force();
+                } finally {
+                    segment.release();
+                }
+            }
+            forcedRecords = appended;
+            commits.incrementAndGet();
+        } finally {
+            forceLock.unlock();
+        }
+    }
+
+    private Segment activeSegment() throws IOException {
+        if (activeSegment == null) {
+            int id = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+            activeSegment = Segment.create(id, segmentsDir.resolve(String.format("%s%08d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX)));
+            segments.put(id, activeSegment);
+            // Новый файл сегмента должен пережить сбой вместе с записями в нём
+            DirectoryFileStorage.syncDirectory(segmentsDir);
+        }
+        return activeSegment;
+    }
+
+    private void rollIfFull(Segment segment) throws IOException {
+        if (segment.size() >= maxSegmentSize) {
+            segment.seal();
+            activeSegment = null;
+        }
+    }
+
+    private void releaseLiveBytes(String fileId, SegmentEntry entry) {
+        Segment segment = segments.get(entry.segmentId());
+        if (segment != null) {
+            segment.addLiveBytes(-Segment.recordSize(fileId, entry.length()));
+        }
+    }
+
+    /**
+     * Восстанавливает индекс, применяя записи всех сегментов в порядке их создания.
+     * Незапечатанный сегмент, который не является последним, остался после сбоя и запечатывается.
+     */
+    private void recover() throws IOException {
+        List<Path> segmentFiles;
+        try (Stream<Path> files = Files.list(segmentsDir)) {
+            segmentFiles = files
+                    .filter(file -> file.getFileName().toString().startsWith(SEGMENT_PREFIX))
+                    .filter(file -> file.getFileName().toString().endsWith(SEGMENT_SUFFIX))
+                    .sorted()
+                    .toList();
+        }
+
+        Segment last = null;
+        for (Path file : segmentFiles) {
+            String name = file.getFileName().toString();
+            int id = Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+            List<SegmentRecord> records = new ArrayList<>();
+            Segment segment = Segment.open(id, file, records);
+            segments.put(id, segment);
+            for (SegmentRecord record : records) {
+                if (record.type() == Segment.PUT) {
+                    SegmentEntry previous = index.put(record.fileId(), new SegmentEntry(id, record.offset(), record.length()));
+                    if (previous != null) {
+                        releaseLiveBytes(record.fileId(), previous);
+                    }
+                    segment.addLiveBytes(Segment.recordSize(record.fileId(), record.length()));
+                } else {
+                    SegmentEntry previous = index.remove(record.fileId());
+                    if (previous != null) {
+                        releaseLiveBytes(record.fileId(), previous);
+                    }
+                }
+            }
+            if (last != null && !last.isSealed()) {
+                last.seal();
+            }
+            last = segment;
+        }
+        if (last != null && !last.isSealed()) {
+            activeSegment = last;
+        }
+        log.info("Segment index rebuilt: {} files in {} segments", index.size(), segments.size());
+    }
+
+    /**
+     * Переписывает живые записи сегмента в активный сегмент и удаляет его.
+     * Копии сбрасываются на диск до удаления исходного сегмента, чтобы сбой не потерял перенесённые файлы.
+     * Надгробия переносятся, только если в более старых сегментах могут остаться удалённые записи.
+     */
+    private void compactSegment(Segment segment) throws IOException {
+        List<SegmentRecord> records = segment.sealedRecords();
+        boolean hasOlderSegments = !segments.headMap(segment.getId()).isEmpty();
+        int moved = 0;
+        long sequence = 0;
+        for (SegmentRecord record : records) {
+            appendLock.lock();
+            try {
+                SegmentEntry current = index.get(record.fileId());
+                if (record.type() == Segment.PUT) {
+                    if (current == null || current.segmentId() != segment.getId() || current.offset() != record.offset()) {
+                        continue;
+                    }
+                    Segment target = activeSegment();
+                    SegmentRecord copy = target.appendPut(record.fileId(), segment.channel(), record.offset(), record.length());
+                    sequence = ++appendedRecords;
+                    index.put(record.fileId(), new SegmentEntry(target.getId(), copy.offset(), copy.length()));
+                    long recordSize = Segment.recordSize(record.fileId(), record.length());
+                    target.addLiveBytes(recordSize);
+                    segment.addLiveBytes(-recordSize);
+                    rollIfFull(target);
+                    moved++;
+                } else if (hasOlderSegments && current == null) {
+                    Segment target = activeSegment();
+                    target.appendDelete(record.fileId());
+                    sequence = ++appendedRecords;
+                    rollIfFull(target);
+                }
+            } finally {
+                appendLock.unlock();
+            }
+        }
+        awaitForced(sequence);
+        segments.remove(segment.getId());
+        segment.delete();
+        log.info("Segment {} compacted: {} live files moved", segment.getId(), moved);
+    }
+
+    /**
+     * Положение данных файла в сегменте.
+     */
+    private record SegmentEntry(int segmentId, long offset, long length) {
+    }
+
+    /**
+     * Файл, хранящийся в сегменте. Удерживает сегмент от удаления, пока открыт.
+     */
+    private static class SegmentFileHandle implements FileHandle {
+        private final Segment segment;
+        private final long offset;
+        private final long length;
+        private boolean closed;
+
+        SegmentFileHandle(Segment segment, long offset, long length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public long size() {
+            return length;
+        }
+
+        @Override
+        public ByteBuffer read(long position, ByteBuffer buffer) throws IOException {
+            buffer.clear();
+            if (length - position < buffer.capacity()) {
+                buffer.limit((int) Math.max(0, length - position));
+            }
+            while (buffer.hasRemaining()) {
+                if (segment.read(buffer, offset + position + buffer.position()) < 0) {
+                    break;
+                }
+            }
+            return buffer.flip();
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                segment.release();
+            }
+        }
+    }
+}
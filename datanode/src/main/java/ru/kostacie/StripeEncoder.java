@@ -0,0 +1,150 @@
+package ru.kostacie;
+
+import com.google.protobuf.ByteString;
+import datanode.DataNodeProto.StripeLayout;
+import datanode.DataNodeProto.UploadFileRequest;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+
+/**
+ * Кодирование файла кодом Рида-Соломона и отправка полос на DataNode по {@link StripeLayout}.
+ * <p>
+ * Данные накапливаются построчно: строка - data_stripes ячеек по cell_size байт. Для заполненной строки
+ * вычисляются ячейки чётности, и каждая ячейка отправляется своей полосе. Последняя строка дополняется нулями;
+ * настоящий размер файла хранится в размещении.
+ */
+class StripeEncoder {
+    private final String fileId;
+    private final StripeLayout layout;
+    private final ReedSolomon code;
+    private final int cellSize;
+    private final ChainForwarder[] stripes;
+    private final DataNodeChannels channels;
+    // Ячейки текущей строки: сначала данные, затем чётность
+    private final byte[][] row;
+    private int rowPosition;
+    private long size;
+    private boolean started;
+
+    /**
+     * @param channels       каналы к DataNode полос.
+     * @param fileId         ID файла; полоса i сохраняется под ID {@link #stripeId(String, int)}.
+     * @param layout         размещение полос.
+     * @param onReadyHandler вызывается, когда DataNode полосы готов принять следующую ячейку.
+     */
+    StripeEncoder(DataNodeChannels channels, String fileId, StripeLayout layout, Runnable onReadyHandler) {
+        this.code = new ReedSolomon(layout.getDataStripes(), layout.getParityStripes());
+        if (layout.getStripeAddressesCount() != code.getTotalShards() || layout.getCellSize() <= 0) {
+            throw new IllegalArgumentException("Invalid stripe layout: " + layout.getStripeAddressesCount()
+                    + " addresses for " + code.getDataShards() + "+" + code.getParityShards()
+                    + " stripes, cell size " + layout.getCellSize());
+        }
+        this.channels = channels;
+        this.fileId = fileId;
+        this.layout = layout;
+        this.cellSize = layout.getCellSize();
+        this.row = new byte[code.getTotalShards()][cellSize];
+        this.stripes = new ChainForwarder[code.getTotalShards()];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new ChainForwarder(List.of(layout.getStripeAddresses(i)), onReadyHandler);
+        }
+    }
+
+    /**
+     * ID, под которым полоса файла хранится на DataNode.
+     */
+    static String stripeId(String fileId, int stripe) {
+        return fileId + "." + stripe;
+    }
+
+    /**
+     * Добавляет данные файла. Заполненные строки сразу кодируются и отправляются.
+     */
+    void append(ByteBuffer data) {
+        int rowSize = cellSize * code.getDataShards();
+        while (data.hasRemaining()) {
+            int cell = rowPosition / cellSize;
+            int cellOffset = rowPosition % cellSize;
+            int length = Math.min(data.remaining(), cellSize - cellOffset);
+            data.get(row[cell], cellOffset, length);
+            rowPosition += length;
+            size += length;
+            if (rowPosition == rowSize) {
+                sendRow();
+            }
+        }
+    }
+
+    /**
+     * Готовы ли DataNode всех полос принять следующую строку без буферизации.
+     */
+    boolean isReady() {
+        for (ChainForwarder stripe : stripes) {
+            if (!stripe.isReady()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Размер закодированных данных файла.
+     */
+    long size() {
+        return size;
+    }
+
+    /**
+     * Размещение полос с размером закодированных данных.
+     */
+    StripeLayout layout() {
+        return layout.toBuilder().setFileSize(size).build();
+    }
+
+    /**
+     * Отправляет последнюю неполную строку и завершает полосы.
+     * Возвращает future с количеством сохранённых полос.
+     */
+    CompletableFuture<Integer> finish() {
+        if (rowPosition > 0 || !started) {
+            for (int cell = rowPosition / cellSize; cell < code.getDataShards(); cell++) {
+                Arrays.fill(row[cell], cell == rowPosition / cellSize ? rowPosition % cellSize : 0, cellSize, (byte) 0);
+            }
+            sendRow();
+        }
+        CompletableFuture<Integer> stored = CompletableFuture.completedFuture(0);
+        for (ChainForwarder stripe : stripes) {
+            stored = stored.thenCombine(stripe.complete(), Integer::sum);
+        }
+        return stored;
+    }
+
+    /**
+     * Прерывает отправку полос: DataNode удаляют незавершённые полосы.
+     */
+    void cancel(Throwable cause) {
+        for (ChainForwarder stripe : stripes) {
+            stripe.cancel(cause);
+        }
+    }
+
+    private void sendRow() {
+        code.encode(row, 0, cellSize);
+        for (int i = 0; i < stripes.length; i++) {
+            UploadFileRequest.Builder cell = UploadFileRequest.newBuilder()
+                    .setContent(ByteString.copyFrom(row[i]))
+                    .setCrc32C(FramedFile.checksum(ByteBuffer.wrap(row[i])));
+            if (started) {
+                stripes[i].forward(cell.build());
+            } else {
+                stripes[i].start(channels, cell.setUploadId(stripeId(fileId, i)).build());
+            }
+        }
+        started = true;
+        rowPosition = 0;
+    }
+}
@@ -0,0 +1,204 @@
+package ru.kostacie;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+import datanode.DataNodeProto.DownloadFileRequest;
+import datanode.DataNodeProto.DownloadFileResponse;
+import datanode.DataNodeProto.StripeLayout;
+import io.grpc.Context;
+import io.grpc.StatusRuntimeException;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+
+
+/**
+ * Чтение диапазона файла, хранящегося полосами кода Рида-Соломона.
+ * <p>
+ * Диапазон читается строками: из data_stripes полос читается по ячейке, и если среди них есть полосы чётности,
+ * недостающие ячейки данных восстанавливаются. Сначала читаются полосы данных, чтобы обойтись без декодирования.
+ * Если полоса недоступна или повреждена, её заменяет следующая запасная полоса с той же строки.
+ */
+@Slf4j
+class StripedChunkReader implements FileDownload.ChunkReader, Closeable {
+    private final DataNodeChannels channels;
+    private final String fileId;
+    private final StripeLayout layout;
+    private final ReedSolomon code;
+    private final int cellSize;
+    private final long rowSize;
+    private final long end;
+    // Последняя строка диапазона: полосы читаются до неё включительно
+    private final long lastRow;
+    private final byte[][] cells;
+    private final boolean[] present;
+    // Полосы, которые читаются сейчас, и запасные
+    private final StripeStream[] active;
+    private final Deque<Integer> spares = new ArrayDeque<>();
+    private long position;
+
+    /**
+     * @param channels каналы к DataNode полос.
+     * @param fileId   ID файла; полосы хранятся под ID {@link StripeEncoder#stripeId(String, int)}.
+     * @param layout   размещение полос с размером файла.
+     * @param offset   позиция, с которой начинается чтение.
+     * @param end      позиция, на которой чтение заканчивается (не включительно).
+     * @throws IOException если доступных полос меньше data_stripes.
+     */
+    StripedChunkReader(DataNodeChannels channels, String fileId, StripeLayout layout, long offset, long end)
+            throws IOException {
+        this.channels = channels;
+        this.fileId = fileId;
+        this.layout = layout;
+        this.code = new ReedSolomon(layout.getDataStripes(), layout.getParityStripes());
+        if (layout.getStripeAddressesCount() != code.getTotalShards() || layout.getCellSize() <= 0) {
+            throw new IOException("Invalid stripe layout of file " + fileId);
+        }
+        this.cellSize = layout.getCellSize();
+        this.rowSize = (long) cellSize * code.getDataShards();
+        this.position = offset;
+        this.end = end;
+        this.lastRow = end > 0 ? (end - 1) / rowSize : 0;
+        this.cells = new byte[code.getTotalShards()][cellSize];
+        this.present = new boolean[code.getTotalShards()];
+        this.active = new StripeStream[code.getDataShards()];
+        for (int i = 0; i < code.getTotalShards(); i++) {
+            if (!layout.getStripeAddresses(i).isEmpty()) {
+                spares.add(i);
+            }
+        }
+        if (spares.size() < code.getDataShards()) {
+            throw new IOException("Only " + spares.size() + " of " + code.getDataShards()
+                    + " required stripes are available for file " + fileId);
+        }
+    }
+
+    @Override
+    public DownloadFileResponse next(ByteBuffer buffer) throws IOException {
+        if (position >= end) {
+            return null;
+        }
+        long row = position / rowSize;
+        readRow(row);
+
+        long rowStart = row * rowSize;
+        int from = (int) (position - rowStart);
+        int to = (int) Math.min(end - rowStart, rowSize);
+        byte[] content = new byte[to - from];
+        for (int copied = 0; copied < content.length; ) {
+            int cellPosition = from + copied;
+            int length = Math.min(cellSize - cellPosition % cellSize, content.length - copied);
+            System.arraycopy(cells[cellPosition / cellSize], cellPosition % cellSize, content, copied, length);
+            copied += length;
+        }
+        position = rowStart + to;
+        return DownloadFileResponse.newBuilder()
+                .setContent(UnsafeByteOperations.unsafeWrap(content))
+                .setCrc32C(FramedFile.checksum(ByteBuffer.wrap(content)))
+                .build();
+    }
+
+    /**
+     * Читает строку из data_stripes полос и восстанавливает недостающие ячейки данных.
+     */
+    private void readRow(long row) throws IOException {
+        Arrays.fill(present, false);
+        int read = 0;
+        while (read < active.length) {
+            read = 0;
+            for (int slot = 0; slot < active.length; slot++) {
+                if (active[slot] == null) {
+                    active[slot] = open(spares.poll(), row);
+                }
+                StripeStream stream = active[slot];
+                if (!present[stream.stripe]) {
+                    try {
+                        stream.readCell(cells[stream.stripe]);
+                        present[stream.stripe] = true;
+                    } catch (IOException | StatusRuntimeException e) {
+                        log.warn("Stripe {} of file {} on DataNode {} failed: {}", stream.stripe, fileId,
+                                layout.getStripeAddresses(stream.stripe), e.getMessage());
+                        stream.close();
+                        if (spares.isEmpty()) {
+                            throw new IOException("Not enough stripes to read file " + fileId, e);
+                        }
+                        active[slot] = open(spares.poll(), row);
+                        continue;
+                    }
+                }
+                read++;
+            }
+        }
+        code.decodeData(cells, present, 0, cellSize);
+    }
+
+    private StripeStream open(int stripe, long fromRow) {
+        DownloadFileRequest request = DownloadFileRequest.newBuilder()
+                .setFileId(StripeEncoder.stripeId(fileId, stripe))
+                .setOffset(fromRow * cellSize)
+                .setLength((lastRow - fromRow + 1) * cellSize)
+                .build();
+        return new StripeStream(stripe, request);
+    }
+
+    @Override
+    public void close() {
+        for (StripeStream stream : active) {
+            if (stream != null) {
+                stream.close();
+            }
+        }
+    }
+
+    /**
+     * Поток чанков одной полосы, из которого ячейки читаются по очереди.
+     */
+    private class StripeStream {
+        private final int stripe;
+        // Отмена контекста прерывает вызов, если полоса не дочитана до конца
+        private final Context.CancellableContext context = Context.current().withCancellation();
+        private final Iterator<DownloadFileResponse> chunks;
+        private ByteString pending = ByteString.EMPTY;
+
+        StripeStream(int stripe, DownloadFileRequest request) {
+            this.stripe = stripe;
+            Context previous = context.attach();
+            try {
+                chunks = channels.blockingStub(layout.getStripeAddresses(stripe)).downloadFile(request);
+            } finally {
+                context.detach(previous);
+            }
+        }
+
+        void readCell(byte[] cell) throws IOException {
+            int filled = 0;
+            while (filled < cell.length) {
+                if (pending.isEmpty()) {
+                    if (!chunks.hasNext()) {
+                        throw new EOFException("Stripe ended before cell end");
+                    }
+                    DownloadFileResponse chunk = chunks.next();
+                    if (chunk.hasCrc32C() && chunk.getCrc32C() != FramedFile.checksum(chunk.getContent())) {
+                        throw new IOException("Stripe chunk checksum mismatch");
+                    }
+                    pending = chunk.getContent();
+                }
+                int length = Math.min(pending.size(), cell.length - filled);
+                pending.copyTo(cell, 0, filled, length);
+                pending = pending.substring(length);
+                filled += length;
+            }
+        }
+
+        void close() {
+            context.cancel(null);
+        }
+    }
+}
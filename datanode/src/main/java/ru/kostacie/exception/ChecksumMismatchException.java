@@ -0,0 +1,12 @@
+package ru.kostacie.exception;
+
+import java.io.IOException;
+
+/**
+ * Контрольная сумма данных не совпала с сохранённой: данные повреждены.
+ */
+public class ChecksumMismatchException extends IOException {
+    public ChecksumMismatchException(String message) {
+        super(message);
+    }
+}
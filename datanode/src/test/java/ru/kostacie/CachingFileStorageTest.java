@@ -0,0 +1,99 @@
+package ru.kostacie;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Тесты для CachingFileStorage.
+ */
+class CachingFileStorageTest {
+    private static final int FILE_SIZE = 1024;
+    private static final long CAPACITY = 4 * FILE_SIZE;
+
+    @TempDir
+    private Path tempDir;
+
+    private CachingFileStorage fileStorage;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        fileStorage = new CachingFileStorage(new DirectoryFileStorage(tempDir), CAPACITY);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        fileStorage.close();
+    }
+
+    /**
+     * Тест повторного чтения файла из кэша.
+     */
+    @Test
+    void openFile_serveRepeatedReadsFromCache() throws IOException {
+        fileStorage.saveFile("file123", content(1));
+
+        assertArrayEquals(content(1), fileStorage.getFile("file123"));
+        assertArrayEquals(content(1), fileStorage.getFile("file123"));
+
+        assertEquals(1, fileStorage.getMetrics().get("objectCache.misses"));
+        assertEquals(1, fileStorage.getMetrics().get("objectCache.hits"));
+        assertEquals(FILE_SIZE, fileStorage.getMetrics().get("objectCache.bytes"));
+    }
+
+    /**
+     * Тест защиты от вымывания: однократное чтение многих файлов не вытесняет часто читаемые.
+     */
+    @Test
+    void openFile_keepHotFilesDuringScan() throws IOException {
+        for (int i = 0; i < 4; i++) {
+            fileStorage.saveFile("hot" + i, content(i));
+            for (int read = 0; read < 3; read++) {
+                fileStorage.getFile("hot" + i);
+            }
+        }
+        for (int i = 0; i < 50; i++) {
+            fileStorage.saveFile("cold" + i, content(100 + i));
+            assertArrayEquals(content(100 + i), fileStorage.getFile("cold" + i));
+        }
+
+        long hitsBefore = fileStorage.getMetrics().get("objectCache.hits");
+        for (int i = 0; i < 4; i++) {
+            assertArrayEquals(content(i), fileStorage.getFile("hot" + i));
+        }
+        assertEquals(hitsBefore + 4, fileStorage.getMetrics().get("objectCache.hits"));
+        assertEquals(0, fileStorage.getMetrics().get("objectCache.evictions"));
+        assertTrue(fileStorage.getMetrics().get("objectCache.rejections") > 0);
+    }
+
+    /**
+     * Тест удаления файла из кэша при удалении из хранилища.
+     */
+    @Test
+    void deleteFile_invalidateCachedFile() throws IOException {
+        fileStorage.saveFile("file123", content(1));
+        fileStorage.getFile("file123");
+
+        assertTrue(fileStorage.deleteFile("file123"));
+
+        assertEquals(0, fileStorage.getMetrics().get("objectCache.bytes"));
+        assertThrows(FileNotFoundException.class, () -> fileStorage.openFile("file123"));
+        fileStorage.saveFile("file123", content(2));
+        assertArrayEquals(content(2), fileStorage.getFile("file123"));
+    }
+
+    private static byte[] content(int seed) {
+        byte[] content = new byte[FILE_SIZE];
+        for (int i = 0; i < FILE_SIZE; i++) {
+            content[i] = (byte) (seed * 31 + i);
+        }
+        return content;
+    }
+}
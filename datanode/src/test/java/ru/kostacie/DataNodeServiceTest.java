@@ -2,10 +2,16 @@ package ru.kostacie;
 
 import com.google.protobuf.ByteString;
 import datanode.DataNodeProto.*;
+import io.grpc.Server;
+import io.grpc.Status;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
@@ -14,6 +20,17 @@ import ru.kostacie.exception.FileUploadException;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+import java.util.zip.Deflater;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.Mockito.*;
@@ -26,9 +43,15 @@ class DataNodeServiceTest {
 
     private DataNodeService dataNodeService;
 
+    @TempDir
+    private Path tempDir;
+
     @Mock
     private FileStorage fileStorage;
 
+    @Mock
+    private FileUpload fileUpload;
+
     @Mock
     private StreamObserver<UploadFileResponse> uploadResponseObserver;
 
@@ -47,17 +70,23 @@ class DataNodeServiceTest {
     @Test
     void uploadFile_uploadSuccessfully() throws IOException {
         when(fileStorage.fileExists("file123")).thenReturn(false);
+        when(fileStorage.createUpload("file123")).thenReturn(fileUpload);
 
         StreamObserver<UploadFileRequest> requestObserver = dataNodeService.uploadFile(uploadResponseObserver);
 
         requestObserver.onNext(UploadFileRequest.newBuilder()
                 .setUploadId("file123")
-                .setContent(ByteString.copyFromUtf8("test data"))
+                .setContent(ByteString.copyFromUtf8("test "))
+                .build());
+        requestObserver.onNext(UploadFileRequest.newBuilder()
+                .setContent(ByteString.copyFromUtf8("data"))
                 .build());
 
         requestObserver.onCompleted();
 
-        verify(fileStorage).saveFile(eq("file123"), any(byte[].class));
+        // Два чанка и индекс кадров с контрольными суммами
+        verify(fileUpload, times(3)).write(any(ByteBuffer.class));
+        verify(fileUpload).commit();
 
         ArgumentCaptor<UploadFileResponse> captor = ArgumentCaptor.forClass(UploadFileResponse.class);
         verify(uploadResponseObserver).onNext(captor.capture());
@@ -66,6 +95,71 @@ class DataNodeServiceTest {
         verify(uploadResponseObserver).onCompleted();
     }
 
+    /**
+     * Тест учёта активных передач для heartbeat'ов координатору.
+     */
+    @Test
+    void uploadFile_trackActiveTransfers() throws IOException {
+        when(fileStorage.fileExists("file123")).thenReturn(false);
+        when(fileStorage.createUpload("file123")).thenReturn(fileUpload);
+
+        StreamObserver<UploadFileRequest> requestObserver = dataNodeService.uploadFile(uploadResponseObserver);
+        requestObserver.onNext(UploadFileRequest.newBuilder()
+                .setUploadId("file123")
+                .setContent(ByteString.copyFromUtf8("test data"))
+                .build());
+        assertEquals(1, dataNodeService.getLoadTracker().getActiveTransfers());
+
+        requestObserver.onCompleted();
+        assertEquals(0, dataNodeService.getLoadTracker().getActiveTransfers());
+
+        // Ошибка клиента после завершения не уменьшает счётчик повторно
+        requestObserver.onError(new RuntimeException("Client error"));
+        assertEquals(0, dataNodeService.getLoadTracker().getActiveTransfers());
+    }
+
+    /**
+     * Тест отмены загрузки при ошибке со стороны клиента.
+     */
+    @Test
+    void uploadFile_abortOnClientError() throws IOException {
+        when(fileStorage.fileExists("file123")).thenReturn(false);
+        when(fileStorage.createUpload("file123")).thenReturn(fileUpload);
+
+        StreamObserver<UploadFileRequest> requestObserver = dataNodeService.uploadFile(uploadResponseObserver);
+
+        requestObserver.onNext(UploadFileRequest.newBuilder()
+                .setUploadId("file123")
+                .setContent(ByteString.copyFromUtf8("test data"))
+                .build());
+        requestObserver.onError(new RuntimeException("Connection lost"));
+
+        verify(fileUpload).abort();
+        verify(fileUpload, never()).commit();
+    }
+
+    /**
+     * Тест отклонения чанка, контрольная сумма которого не совпала.
+     */
+    @Test
+    void uploadFile_failOnChecksumMismatch() throws IOException {
+        when(fileStorage.fileExists("file123")).thenReturn(false);
+        when(fileStorage.createUpload("file123")).thenReturn(fileUpload);
+
+        StreamObserver<UploadFileRequest> requestObserver = dataNodeService.uploadFile(uploadResponseObserver);
+
+        requestObserver.onNext(UploadFileRequest.newBuilder()
+                .setUploadId("file123")
+                .setContent(ByteString.copyFromUtf8("test data"))
+                .setCrc32C(checksum("test daTa".getBytes()))
+                .build());
+        requestObserver.onCompleted();
+
+        verify(uploadResponseObserver).onError(any(FileUploadException.class));
+        verify(fileUpload).abort();
+        verify(fileUpload, never()).commit();
+    }
+
     /**
      * Тест ошибки при загрузке, если uploadId пустой.
      */
@@ -98,13 +192,204 @@ class DataNodeServiceTest {
         verify(uploadResponseObserver).onError(any(FileUploadException.class));
     }
 
+    /**
+     * Тест хранения сжатых чанков: клиенту без кодека файл отдаётся распакованным, клиенту с кодеком - как есть.
+     */
+    @Test
+    void uploadFile_keepCompressedChunksAtRest() throws IOException {
+        FileStorage storage = new DirectoryFileStorage(tempDir.resolve("storage"));
+        DataNodeService service = new DataNodeService(storage);
+        byte[] first = "2024-01-01 INFO request served\n".repeat(2000).getBytes();
+        byte[] second = "2024-01-01 WARN slow request\n".repeat(1000).getBytes();
+
+        StreamObserver<UploadFileRequest> requestObserver = service.uploadFile(uploadResponseObserver);
+        requestObserver.onNext(UploadFileRequest.newBuilder()
+                .setUploadId("file123")
+                .setCodec(Codec.DEFLATE)
+                .setRawLength(first.length)
+                .setContent(ByteString.copyFrom(deflate(first)))
+                .build());
+        requestObserver.onNext(UploadFileRequest.newBuilder()
+                .setCodec(Codec.DEFLATE)
+                .setRawLength(second.length)
+                .setContent(ByteString.copyFrom(deflate(second)))
+                .build());
+        requestObserver.onCompleted();
+        verify(uploadResponseObserver).onCompleted();
+
+        ByteString expected = ByteString.copyFrom(first).concat(ByteString.copyFrom(second));
+        try (FileHandle stored = storage.openFile("file123")) {
+            assertTrue(stored.size() < expected.size() / 5);
+        }
+
+        List<DownloadFileResponse> plain = download(service, DownloadFileRequest.newBuilder().setFileId("file123").build());
+        assertTrue(plain.stream().allMatch(chunk -> chunk.getCodec() == Codec.NONE));
+        assertEquals(expected, plain.stream().map(DownloadFileResponse::getContent).reduce(ByteString.EMPTY, ByteString::concat));
+
+        List<DownloadFileResponse> compressed = download(service, DownloadFileRequest.newBuilder()
+                .setFileId("file123")
+                .addAcceptedCodecs(Codec.DEFLATE)
+                .build());
+        assertEquals(2, compressed.size());
+        assertEquals(Codec.DEFLATE, compressed.get(0).getCodec());
+        assertEquals(first.length, compressed.get(0).getRawLength());
+        assertEquals(checksum(deflate(first)), compressed.get(0).getCrc32C());
+
+        List<DownloadFileResponse> range = download(service, DownloadFileRequest.newBuilder()
+                .setFileId("file123")
+                .setOffset(first.length - 10)
+                .setLength(20)
+                .addAcceptedCodecs(Codec.DEFLATE)
+                .build());
+        assertEquals(expected.substring(first.length - 10, first.length + 10),
+                range.stream().map(DownloadFileResponse::getContent).reduce(ByteString.EMPTY, ByteString::concat));
+        storage.close();
+    }
+
+    /**
+     * Тест проверки размера до сжатия: слишком большой или неверный raw_length отклоняет загрузку,
+     * и файл не сохраняется.
+     */
+    @Test
+    void uploadFile_rejectInvalidRawLength() throws IOException {
+        FileStorage storage = new DirectoryFileStorage(tempDir.resolve("storage"));
+        DataNodeService service = new DataNodeService(storage);
+        byte[] data = "2024-01-01 INFO request served\n".repeat(100).getBytes();
+
+        for (int rawLength : new int[]{Integer.MAX_VALUE - 8, data.length - 1, data.length + 1}) {
+            StreamObserver<UploadFileResponse> responseObserver = mock(StreamObserver.class);
+            StreamObserver<UploadFileRequest> requestObserver = service.uploadFile(responseObserver);
+            requestObserver.onNext(UploadFileRequest.newBuilder()
+                    .setUploadId("file" + rawLength)
+                    .setCodec(Codec.DEFLATE)
+                    .setRawLength(rawLength)
+                    .setContent(ByteString.copyFrom(deflate(data)))
+                    .build());
+
+            verify(responseObserver).onError(any(FileUploadException.class));
+            assertFalse(storage.fileExists("file" + rawLength));
+        }
+        storage.close();
+    }
+
+    /**
+     * Тест пересылки файла следующему DataNode цепочки: обе копии сохранены.
+     */
+    @Test
+    void uploadFile_forwardAlongChain() throws Exception {
+        FileStorage headStorage = new DirectoryFileStorage(tempDir.resolve("head"));
+        FileStorage tailStorage = new DirectoryFileStorage(tempDir.resolve("tail"));
+        Server tail = InProcessServerBuilder.forName("tail")
+                .addService(new DataNodeService(tailStorage))
+                .directExecutor()
+                .build()
+                .start();
+        DataNodeService head = new DataNodeService(headStorage,
+                new DataNodeChannels(address -> InProcessChannelBuilder.forName(address).directExecutor().build()));
+        try {
+            UploadFileResponse response = upload(head, UploadFileRequest.newBuilder()
+                    .setUploadId("file123")
+                    .setContent(ByteString.copyFromUtf8("replicated data"))
+                    .addDownstreamAddresses("tail")
+                    .build());
+
+            assertEquals(2, response.getReplicas());
+            assertTrue(headStorage.fileExists("file123"));
+            assertTrue(tailStorage.fileExists("file123"));
+        } finally {
+            head.close();
+            tail.shutdownNow();
+            headStorage.close();
+            tailStorage.close();
+        }
+    }
+
+    /**
+     * Тест загрузки при отказе следующего DataNode: файл сохранён, если хватает копий для min_replicas.
+     */
+    @Test
+    void uploadFile_tolerateDownstreamFailureWithinQuorum() throws Exception {
+        FileStorage storage = new DirectoryFileStorage(tempDir.resolve("storage"));
+        DataNodeService head = new DataNodeService(storage,
+                new DataNodeChannels(address -> InProcessChannelBuilder.forName(address).directExecutor().build()));
+        try {
+            UploadFileResponse response = upload(head, UploadFileRequest.newBuilder()
+                    .setUploadId("file123")
+                    .setContent(ByteString.copyFromUtf8("test data"))
+                    .addDownstreamAddresses("missing")
+                    .setMinReplicas(1)
+                    .build());
+
+            assertEquals(1, response.getReplicas());
+            assertTrue(storage.fileExists("file123"));
+        } finally {
+            head.close();
+            storage.close();
+        }
+    }
+
+    /**
+     * Тест хранения полосами: файл кодируется при загрузке и читается при потере одной полосы данных.
+     */
+    @Test
+    void uploadFile_storeStripesAndReadWithoutOneStripe() throws Exception {
+        List<FileStorage> storages = new ArrayList<>();
+        List<Server> servers = new ArrayList<>();
+        List<DataNodeService> services = new ArrayList<>();
+        StripeLayout.Builder layout = StripeLayout.newBuilder()
+                .setDataStripes(2)
+                .setParityStripes(1)
+                .setCellSize(4096);
+        try {
+            for (int i = 0; i < 3; i++) {
+                FileStorage storage = new DirectoryFileStorage(tempDir.resolve("stripe" + i));
+                DataNodeService service = new DataNodeService(storage,
+                        new DataNodeChannels(address -> InProcessChannelBuilder.forName(address).build()));
+                storages.add(storage);
+                services.add(service);
+                servers.add(InProcessServerBuilder.forName("node" + i).addService(service).build().start());
+                layout.addStripeAddresses("node" + i);
+            }
+            byte[] data = new byte[3 * 2 * 4096 + 100];
+            new Random(42).nextBytes(data);
+
+            UploadFileResponse response = upload(services.get(0), UploadFileRequest.newBuilder()
+                    .setUploadId("file123")
+                    .setContent(ByteString.copyFrom(data))
+                    .setStripeLayout(layout.setFileSize(data.length))
+                    .build());
+
+            assertEquals(3, response.getReplicas());
+            assertFalse(storages.get(0).fileExists("file123"));
+            for (int i = 0; i < 3; i++) {
+                assertTrue(storages.get(i).fileExists("file123." + i));
+            }
+
+            storages.get(1).deleteFile("file123.1");
+            ByteString.Output content = ByteString.newOutput();
+            datanode.DataNodeGrpc.newBlockingStub(InProcessChannelBuilder.forName("node0").build())
+                    .downloadFile(DownloadFileRequest.newBuilder()
+                            .setFileId("file123")
+                            .setStripeLayout(layout)
+                            .build())
+                    .forEachRemaining(chunk -> content.write(chunk.getContent().toByteArray(), 0, chunk.getContent().size()));
+            assertArrayEquals(data, content.toByteString().toByteArray());
+        } finally {
+            for (int i = 0; i < servers.size(); i++) {
+                services.get(i).close();
+                servers.get(i).shutdownNow();
+                storages.get(i).close();
+            }
+        }
+    }
+
     /**
      * Тест успешного чтения файла.
      */
     @Test
     void downloadFile_returnFileContent() throws IOException {
         byte[] fileData = "test data".getBytes();
-        when(fileStorage.getFile("file123")).thenReturn(fileData);
+        when(fileStorage.openFile("file123")).thenReturn(createFile(fileData));
 
         DownloadFileRequest request = DownloadFileRequest.newBuilder()
                 .setFileId("file123")
@@ -120,12 +405,86 @@ class DataNodeServiceTest {
         verify(downloadResponseObserver).onCompleted();
     }
 
+    /**
+     * Тест отправки большого файла чанками с учётом готовности транспорта.
+     */
+    @Test
+    @SuppressWarnings("unchecked")
+    void downloadFile_sendChunksWhenReady() throws IOException {
+        byte[] fileData = new byte[200 * 1024];
+        new Random(42).nextBytes(fileData);
+        when(fileStorage.openFile("file123")).thenReturn(createFile(fileData));
+
+        ServerCallStreamObserver<DownloadFileResponse> serverObserver = mock(ServerCallStreamObserver.class);
+        ByteString.Output received = ByteString.newOutput();
+        doAnswer(invocation -> {
+            DownloadFileResponse response = invocation.getArgument(0);
+            response.getContent().writeTo(received);
+            return null;
+        }).when(serverObserver).onNext(any());
+        when(serverObserver.isReady()).thenReturn(false);
+
+        dataNodeService.downloadFile(DownloadFileRequest.newBuilder().setFileId("file123").build(), serverObserver);
+
+        // Пока транспорт не готов, чанки не отправляются
+        verify(serverObserver, never()).onNext(any());
+
+        ArgumentCaptor<Runnable> onReady = ArgumentCaptor.forClass(Runnable.class);
+        verify(serverObserver).setOnReadyHandler(onReady.capture());
+        when(serverObserver.isReady()).thenReturn(true);
+        onReady.getValue().run();
+
+        verify(serverObserver, times(4)).onNext(any());
+        verify(serverObserver).onCompleted();
+        assertEquals(ByteString.copyFrom(fileData), received.toByteString());
+    }
+
+    /**
+     * Тест чтения диапазона байт файла.
+     */
+    @Test
+    void downloadFile_returnRequestedRange() throws IOException {
+        when(fileStorage.openFile("file123")).thenReturn(createFile("test data".getBytes()));
+
+        DownloadFileRequest request = DownloadFileRequest.newBuilder()
+                .setFileId("file123")
+                .setOffset(5)
+                .setLength(3)
+                .build();
+
+        dataNodeService.downloadFile(request, downloadResponseObserver);
+
+        ArgumentCaptor<DownloadFileResponse> captor = ArgumentCaptor.forClass(DownloadFileResponse.class);
+        verify(downloadResponseObserver).onNext(captor.capture());
+        assertEquals(ByteString.copyFromUtf8("dat"), captor.getValue().getContent());
+        verify(downloadResponseObserver).onCompleted();
+    }
+
+    /**
+     * Тест ошибки при чтении диапазона за пределами файла.
+     */
+    @Test
+    void downloadFile_failIfOffsetOutOfFile() throws IOException {
+        when(fileStorage.openFile("file123")).thenReturn(createFile("test data".getBytes()));
+
+        DownloadFileRequest request = DownloadFileRequest.newBuilder()
+                .setFileId("file123")
+                .setOffset(100)
+                .build();
+
+        dataNodeService.downloadFile(request, downloadResponseObserver);
+
+        verify(downloadResponseObserver).onError(argThat(error ->
+                Status.fromThrowable(error).getCode() == Status.Code.OUT_OF_RANGE));
+        verify(downloadResponseObserver, never()).onNext(any());
+    }
+
     /**
      * Тест ошибки при чтении файла, если файла нет.
      */
     @Test
     void downloadFile_failIfFileNotFound() throws IOException {
-        when(fileStorage.getFile("file123")).thenThrow(new FileNotFoundException("File not found"));
+        when(fileStorage.openFile("file123")).thenThrow(new FileNotFoundException("File not found"));
 
         DownloadFileRequest request = DownloadFileRequest.newBuilder()
                 .setFileId("file123")
@@ -138,4 +497,71 @@ class DataNodeServiceTest {
                         error.getMessage().contains("Downloading failed: File not found")
         ));
     }
+
+    private static UploadFileResponse upload(DataNodeService service, UploadFileRequest request) throws Exception {
+        CompletableFuture<UploadFileResponse> result = new CompletableFuture<>();
+        StreamObserver<UploadFileRequest> requestObserver = service.uploadFile(new StreamObserver<>() {
+            @Override
+            public void onNext(UploadFileResponse response) {
+                result.complete(response);
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                result.completeExceptionally(t);
+            }
+
+            @Override
+            public void onCompleted() {
+            }
+        });
+        requestObserver.onNext(request);
+        requestObserver.onCompleted();
+        return result.get(10, TimeUnit.SECONDS);
+    }
+
+    private FileHandle createFile(byte[] content) throws IOException {
+        Path file = tempDir.resolve("file123");
+        Files.write(file, content);
+        return new ChannelFileHandle(file);
+    }
+
+    private static List<DownloadFileResponse> download(DataNodeService service, DownloadFileRequest request) {
+        List<DownloadFileResponse> chunks = new ArrayList<>();
+        service.downloadFile(request, new StreamObserver<>() {
+            @Override
+            public void onNext(DownloadFileResponse response) {
+                // Содержимое чанка может ссылаться на переиспользуемый буфер - копируем его
+                chunks.add(response.toBuilder()
+                        .setContent(ByteString.copyFrom(response.getContent().asReadOnlyByteBuffer()))
+                        .build());
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                fail(t);
+            }
+
+            @Override
+            public void onCompleted() {
+            }
+        });
+        return chunks;
+    }
+
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater();
+        deflater.setInput(data);
+        deflater.finish();
+        byte[] compressed = new byte[data.length];
+        int length = deflater.deflate(compressed);
+        deflater.end();
+        return Arrays.copyOf(compressed, length);
+    }
+
+    private static int checksum(byte[] data) {
+        CRC32C crc = new CRC32C();
+        crc.update(data);
+        return (int) crc.getValue();
+    }
 }
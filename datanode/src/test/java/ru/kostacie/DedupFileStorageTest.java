@@ -0,0 +1,128 @@
+package ru.kostacie;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Тесты для DedupFileStorage.
+ */
+class DedupFileStorageTest {
+    private static final int AVERAGE_CHUNK_SIZE = 1024;
+
+    @TempDir
+    private Path tempDir;
+
+    private DedupFileStorage fileStorage;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        fileStorage = open();
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        fileStorage.close();
+    }
+
+    /**
+     * Тест сохранения почти одинаковых файлов: общие чанки хранятся один раз.
+     */
+    @Test
+    void saveFile_storeSharedChunksOnce() throws IOException {
+        byte[] original = content(64 * 1024, 1);
+        byte[] modified = insert(original, 30_000, "patch".getBytes());
+
+        fileStorage.saveFile("file1", original);
+        fileStorage.saveFile("file2", modified);
+
+        assertArrayEquals(original, fileStorage.getFile("file1"));
+        assertArrayEquals(modified, fileStorage.getFile("file2"));
+        Map<String, Long> metrics = fileStorage.getMetrics();
+        assertEquals(original.length + modified.length, metrics.get("dedup.logicalBytes"));
+        assertTrue(metrics.get("dedup.storedBytes") < original.length + 16 * AVERAGE_CHUNK_SIZE);
+        assertTrue(metrics.get("dedup.ratioPercent") > 150);
+    }
+
+    /**
+     * Тест ошибки при повторном сохранении файла с тем же ID.
+     */
+    @Test
+    void saveFile_failIfFileAlreadyExists() throws IOException {
+        fileStorage.saveFile("file123", content(4096, 1));
+
+        assertThrows(FileAlreadyExistsException.class, () -> fileStorage.saveFile("file123", content(4096, 2)));
+        assertArrayEquals(content(4096, 1), fileStorage.getFile("file123"));
+        assertEquals(4096, fileStorage.getMetrics().get("dedup.storedBytes"));
+    }
+
+    /**
+     * Тест удаления файлов: общие чанки удаляются только вместе с последним ссылающимся файлом.
+     */
+    @Test
+    void deleteFile_keepChunksReferencedByOtherFiles() throws IOException {
+        byte[] content = content(16 * 1024, 1);
+        fileStorage.saveFile("file1", content);
+        fileStorage.saveFile("file2", content);
+
+        assertTrue(fileStorage.deleteFile("file1"));
+        assertThrows(FileNotFoundException.class, () -> fileStorage.openFile("file1"));
+        assertArrayEquals(content, fileStorage.getFile("file2"));
+
+        try (FileHandle file = fileStorage.openFile("file2")) {
+            assertTrue(fileStorage.deleteFile("file2"));
+            // Открытый файл удерживает свои чанки
+            assertEquals(content.length, file.size());
+        }
+        assertEquals(0, fileStorage.getMetrics().get("dedup.chunks"));
+        assertEquals(0, fileStorage.getMetrics().get("dedup.storedBytes"));
+        assertFalse(fileStorage.deleteFile("file2"));
+    }
+
+    /**
+     * Тест восстановления счётчиков ссылок по манифестам после перезапуска.
+     */
+    @Test
+    void open_rebuildReferenceCounts() throws IOException {
+        byte[] content = content(16 * 1024, 1);
+        fileStorage.saveFile("file1", content);
+        fileStorage.saveFile("file2", content);
+        long storedBytes = fileStorage.getMetrics().get("dedup.storedBytes");
+        fileStorage.close();
+
+        fileStorage = open();
+
+        assertEquals(storedBytes, fileStorage.getMetrics().get("dedup.storedBytes"));
+        assertEquals(2 * content.length, fileStorage.getMetrics().get("dedup.logicalBytes"));
+        fileStorage.deleteFile("file1");
+        assertArrayEquals(content, fileStorage.getFile("file2"));
+    }
+
+    private DedupFileStorage open() throws IOException {
+        return new DedupFileStorage(tempDir, new SegmentFileStorage(tempDir.resolve(".chunks")), AVERAGE_CHUNK_SIZE);
+    }
+
+    private static byte[] insert(byte[] content, int position, byte[] inserted) {
+        byte[] result = new byte[content.length + inserted.length];
+        System.arraycopy(content, 0, result, 0, position);
+        System.arraycopy(inserted, 0, result, position, inserted.length);
+        System.arraycopy(content, position, result, position + inserted.length, content.length - position);
+        return result;
+    }
+
+    private static byte[] content(int size, int seed) {
+        byte[] content = new byte[size];
+        new Random(seed).nextBytes(content);
+        return content;
+    }
+}
@@ -0,0 +1,217 @@
+package ru.kostacie;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Тесты для DirectoryFileStorage.
+ */
+class DirectoryFileStorageTest {
+
+    @TempDir
+    private Path tempDir;
+
+    private FileStorage fileStorage;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        fileStorage = new DirectoryFileStorage(tempDir);
+    }
+
+    /**
+     * Тест сохранения и чтения файла.
+     */
+    @Test
+    void saveFile_readSavedContent() throws IOException {
+        fileStorage.saveFile("file123", "test data".getBytes());
+
+        assertTrue(fileStorage.fileExists("file123"));
+        assertArrayEquals("test data".getBytes(), fileStorage.getFile("file123"));
+    }
+
+    /**
+     * Тест ошибки при повторном сохранении файла с тем же ID.
+     */
+    @Test
+    void saveFile_failIfFileAlreadyExists() throws IOException {
+        fileStorage.saveFile("file123", "test data".getBytes());
+
+        assertThrows(FileAlreadyExistsException.class, () -> fileStorage.saveFile("file123", "other".getBytes()));
+        assertArrayEquals("test data".getBytes(), fileStorage.getFile("file123"));
+    }
+
+    /**
+     * Тест удаления файла.
+     */
+    @Test
+    void deleteFile_removeFile() throws IOException {
+        fileStorage.saveFile("file123", "test data".getBytes());
+
+        assertTrue(fileStorage.deleteFile("file123"));
+        assertFalse(fileStorage.fileExists("file123"));
+        assertFalse(fileStorage.deleteFile("file123"));
+    }
+
+    /**
+     * Тест чтения из кэша отображений: повторное чтение - попадание в кэш, данные совпадают.
+     */
+    @Test
+    void openFile_serveHotFileFromMappedCache() throws IOException {
+        DirectoryFileStorage mappedStorage = new DirectoryFileStorage(tempDir, 1024 * 1024);
+        mappedStorage.saveFile("file123", "test data".getBytes());
+
+        assertArrayEquals("test data".getBytes(), readAll(mappedStorage, "file123"));
+        assertArrayEquals("test data".getBytes(), readAll(mappedStorage, "file123"));
+
+        assertEquals(1L, mappedStorage.getMetrics().get("mmap.misses"));
+        assertEquals(1L, mappedStorage.getMetrics().get("mmap.hits"));
+        mappedStorage.close();
+    }
+
+    /**
+     * Тест вытеснения отображений при превышении бюджета кэша.
+     */
+    @Test
+    void openFile_evictMappingsOverCapacity() throws IOException {
+        DirectoryFileStorage mappedStorage = new DirectoryFileStorage(tempDir, 100 * 1024);
+        byte[] content = new byte[40 * 1024];
+        for (int i = 0; i < 5; i++) {
+            Arrays.fill(content, (byte) i);
+            mappedStorage.saveFile("file" + i, content);
+            assertArrayEquals(content, readAll(mappedStorage, "file" + i));
+        }
+
+        assertEquals(3L, mappedStorage.getMetrics().get("mmap.evictions"));
+        assertTrue(mappedStorage.getMetrics().get("mmap.mappedBytes") <= 100 * 1024);
+        mappedStorage.close();
+    }
+
+    /**
+     * Тест удаления временного файла при отмене загрузки.
+     */
+    @Test
+    void createUpload_abortRemovesTemporaryFile() throws IOException {
+        FileUpload upload = fileStorage.createUpload("file123");
+        upload.abort();
+
+        assertFalse(fileStorage.fileExists("file123"));
+        try (var uploads = Files.list(tempDir.resolve(".uploads"))) {
+            assertEquals(0, uploads.count());
+        }
+    }
+
+    /**
+     * Тест одновременной публикации файлов с одним ID: сохраняется ровно один файл целиком.
+     */
+    @Test
+    void saveFile_onlyOneConcurrentWriterWins() throws Exception {
+        int writers = 16;
+        ExecutorService executor = Executors.newFixedThreadPool(writers);
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicInteger successes = new AtomicInteger();
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < writers; i++) {
+            byte[] content = new byte[64 * 1024];
+            Arrays.fill(content, (byte) i);
+            futures.add(executor.submit(() -> {
+                start.await();
+                try {
+                    fileStorage.saveFile("file123", content);
+                    successes.incrementAndGet();
+                } catch (FileAlreadyExistsException ignored) {
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> future : futures) {
+            future.get(10, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+
+        assertEquals(1, successes.get());
+        byte[] saved = fileStorage.getFile("file123");
+        assertEquals(64 * 1024, saved.length);
+        for (byte b : saved) {
+            assertEquals(saved[0], b);
+        }
+    }
+
+    /**
+     * Тест параллельных чтений во время записи: читатели не блокируются и не видят частично записанных файлов.
+     */
+    @Test
+    void getFile_parallelReadersNeverSeePartialFiles() throws Exception {
+        int files = 100;
+        int readers = 64;
+        byte[] content = new byte[256 * 1024];
+        Arrays.fill(content, (byte) 7);
+
+        ExecutorService executor = Executors.newFixedThreadPool(readers + 1);
+        AtomicBoolean writing = new AtomicBoolean(true);
+        AtomicInteger reads = new AtomicInteger();
+        Future<?> writer = executor.submit(() -> {
+            try {
+                for (int i = 0; i < files; i++) {
+                    fileStorage.saveFile("file" + i, content);
+                }
+            } finally {
+                writing.set(false);
+            }
+            return null;
+        });
+        List<Future<?>> futures = new ArrayList<>();
+        for (int r = 0; r < readers; r++) {
+            int offset = r;
+            futures.add(executor.submit(() -> {
+                while (writing.get()) {
+                    for (int i = offset % files; i < files; i += 7) {
+                        if (fileStorage.fileExists("file" + i)) {
+                            assertArrayEquals(content, fileStorage.getFile("file" + i));
+                            reads.incrementAndGet();
+                        }
+                    }
+                }
+                return null;
+            }));
+        }
+        writer.get(30, TimeUnit.SECONDS);
+        for (Future<?> future : futures) {
+            future.get(30, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+
+        for (int i = 0; i < files; i++) {
+            assertArrayEquals(content, fileStorage.getFile("file" + i));
+        }
+        assertTrue(reads.get() > 0);
+    }
+
+    private static byte[] readAll(FileStorage storage, String fileId) throws IOException {
+        try (FileHandle file = storage.openFile(fileId)) {
+            ByteBuffer content = file.read(0, ByteBuffer.allocate((int) file.size()));
+            byte[] result = new byte[content.remaining()];
+            content.get(result);
+            return result;
+        }
+    }
+}
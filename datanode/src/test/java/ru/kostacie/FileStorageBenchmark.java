@@ -0,0 +1,81 @@
+package ru.kostacie;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Сравнение пропускной способности чтения FileStorage из 64 потоков:
+ * с глобальным монитором (как было раньше) и без него.
+ * <p>
+ * Запуск: {@code mvn -pl datanode test-compile}, затем {@link #main(String[])} с test-classpath модуля.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(64)
+public class FileStorageBenchmark {
+    private static final int FILES = 256;
+
+    @Param({"262144"})
+    private int fileSize;
+
+    private Path storageDir;
+    private FileStorage fileStorage;
+
+    @Setup
+    public void setUp() throws IOException {
+        storageDir = Files.createTempDirectory("file-storage-benchmark");
+        fileStorage = new DirectoryFileStorage(storageDir);
+        byte[] content = new byte[fileSize];
+        for (int i = 0; i < FILES; i++) {
+            fileStorage.saveFile("file" + i, content);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(storageDir)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    /**
+     * Чтение под одним монитором на всё хранилище, как в прежней реализации.
+     */
+    @Benchmark
+    public byte[] globalMonitor() throws IOException {
+        String fileId = "file" + ThreadLocalRandom.current().nextInt(FILES);
+        synchronized (this) {
+            return fileStorage.getFile(fileId);
+        }
+    }
+
+    /**
+     * Чтение без блокировок.
+     */
+    @Benchmark
+    public byte[] lockFree() throws IOException {
+        return fileStorage.getFile("file" + ThreadLocalRandom.current().nextInt(FILES));
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(FileStorageBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
@@ -0,0 +1,68 @@
+package ru.kostacie;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Пропускная способность кодирования и восстановления строки кода Рида-Соломона 6+3 с ячейками по 64 КБ.
+ * Одна операция - строка из 6 ячеек данных, то есть 384 КБ данных файла.
+ * <p>
+ * Запуск: {@code mvn -pl datanode test-compile}, затем {@link #main(String[])} с test-classpath модуля.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReedSolomonBenchmark {
+    @Param({"65536"})
+    private int cellSize;
+
+    private ReedSolomon code;
+    private byte[][] shards;
+    // Потеряны две полосы данных и одна полоса чётности: худший случай для 6+3
+    private boolean[] present;
+
+    @Setup
+    public void setUp() {
+        code = new ReedSolomon(6, 3);
+        shards = new byte[code.getTotalShards()][cellSize];
+        Random random = new Random(42);
+        for (int i = 0; i < code.getDataShards(); i++) {
+            random.nextBytes(shards[i]);
+        }
+        code.encode(shards, 0, cellSize);
+        present = new boolean[]{false, true, false, true, true, true, true, false, true};
+    }
+
+    /**
+     * Вычисление трёх ячеек чётности.
+     */
+    @Benchmark
+    public byte[][] encode() {
+        code.encode(shards, 0, cellSize);
+        return shards;
+    }
+
+    /**
+     * Восстановление двух ячеек данных по оставшимся шести ячейкам.
+     */
+    @Benchmark
+    public byte[][] decode() throws IOException {
+        code.decodeData(shards, present, 0, cellSize);
+        return shards;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(ReedSolomonBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
@@ -0,0 +1,61 @@
+package ru.kostacie;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Тесты для ReedSolomon.
+ */
+class ReedSolomonTest {
+
+    /**
+     * Тест восстановления данных по любым k полосам из k + m.
+     */
+    @Test
+    void decodeData_restoreAnyMissingShards() throws IOException {
+        ReedSolomon code = new ReedSolomon(6, 3);
+        byte[][] shards = new byte[code.getTotalShards()][1024];
+        Random random = new Random(42);
+        for (int i = 0; i < code.getDataShards(); i++) {
+            random.nextBytes(shards[i]);
+        }
+        code.encode(shards, 0, 1024);
+        byte[][] expected = Arrays.stream(shards).map(byte[]::clone).toArray(byte[][]::new);
+
+        int[][] losses = {{0, 1, 2}, {3, 6, 8}, {5}, {6, 7, 8}, {0, 4, 7}};
+        for (int[] lost : losses) {
+            boolean[] present = new boolean[code.getTotalShards()];
+            Arrays.fill(present, true);
+            for (int i = 0; i < shards.length; i++) {
+                shards[i] = expected[i].clone();
+            }
+            for (int shard : lost) {
+                present[shard] = false;
+                Arrays.fill(shards[shard], (byte) 0);
+            }
+
+            code.decodeData(shards, present, 0, 1024);
+
+            for (int i = 0; i < code.getDataShards(); i++) {
+                assertArrayEquals(expected[i], shards[i], "Shard " + i + " after losing " + Arrays.toString(lost));
+            }
+        }
+    }
+
+    /**
+     * Тест ошибки, если доступно меньше k полос.
+     */
+    @Test
+    void decodeData_failIfTooFewShards() {
+        ReedSolomon code = new ReedSolomon(2, 1);
+        byte[][] shards = new byte[3][16];
+        code.encode(shards, 0, 16);
+
+        assertThrows(IOException.class, () -> code.decodeData(shards, new boolean[]{true, false, false}, 0, 16));
+    }
+}
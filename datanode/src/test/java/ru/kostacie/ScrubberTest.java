@@ -0,0 +1,91 @@
+package ru.kostacie;
+
+import com.google.protobuf.ByteString;
+import datanode.DataNodeProto.UploadFileRequest;
+import datanode.DataNodeProto.UploadFileResponse;
+import io.grpc.stub.StreamObserver;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Тесты для Scrubber.
+ */
+class ScrubberTest {
+    private static final long BYTES_PER_SECOND = 100L * 1024 * 1024;
+
+    @TempDir
+    private Path tempDir;
+
+    private FileStorage fileStorage;
+    private DataNodeService dataNodeService;
+    private Scrubber scrubber;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        fileStorage = new DirectoryFileStorage(tempDir);
+        dataNodeService = new DataNodeService(fileStorage);
+        scrubber = new Scrubber(fileStorage, BYTES_PER_SECOND);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        scrubber.close();
+        fileStorage.close();
+    }
+
+    /**
+     * Тест проверки неповреждённых файлов.
+     */
+    @Test
+    void scrub_acceptIntactFiles() throws Exception {
+        upload("file1", "first file".getBytes());
+        upload("file2", "second file".getBytes());
+
+        scrubber.scrub();
+
+        assertTrue(scrubber.getCorruptFiles().isEmpty());
+        assertEquals(2, scrubber.getMetrics().get("scrub.checkedFiles"));
+    }
+
+    /**
+     * Тест обнаружения файла, данные которого повреждены на диске.
+     */
+    @Test
+    void scrub_reportCorruptedFile() throws Exception {
+        upload("file1", "first file".getBytes());
+        upload("file2", "second file".getBytes());
+        try (FileChannel channel = FileChannel.open(tempDir.resolve("file2"), StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{'S'}), 0);
+        }
+
+        scrubber.scrub();
+
+        assertEquals(Set.of("file2"), scrubber.getCorruptFiles());
+        assertEquals(1, scrubber.getMetrics().get("scrub.corruptFiles"));
+    }
+
+    @SuppressWarnings("unchecked")
+    private void upload(String fileId, byte[] content) {
+        StreamObserver<UploadFileResponse> responseObserver = mock(StreamObserver.class);
+        StreamObserver<UploadFileRequest> requestObserver = dataNodeService.uploadFile(responseObserver);
+        requestObserver.onNext(UploadFileRequest.newBuilder()
+                .setUploadId(fileId)
+                .setContent(ByteString.copyFrom(content))
+                .build());
+        requestObserver.onCompleted();
+        verify(responseObserver).onCompleted();
+    }
+}
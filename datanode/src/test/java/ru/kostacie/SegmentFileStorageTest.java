@@ -0,0 +1,256 @@
+package ru.kostacie;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Тесты для SegmentFileStorage.
+ */
+class SegmentFileStorageTest {
+    private static final long SMALL_FILE_THRESHOLD = 1024;
+    private static final long MAX_SEGMENT_SIZE = 16 * 1024;
+
+    @TempDir
+    private Path tempDir;
+
+    private SegmentFileStorage fileStorage;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        fileStorage = open();
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        fileStorage.close();
+    }
+
+    /**
+     * Тест сохранения и чтения маленького файла из сегмента.
+     */
+    @Test
+    void saveFile_storeSmallFileInSegment() throws IOException {
+        fileStorage.saveFile("file123", "test data".getBytes());
+
+        assertTrue(fileStorage.fileExists("file123"));
+        assertArrayEquals("test data".getBytes(), fileStorage.getFile("file123"));
+        assertFalse(Files.exists(tempDir.resolve("file123")));
+    }
+
+    /**
+     * Тест сохранения большого файла отдельным файлом.
+     */
+    @Test
+    void saveFile_storeLargeFileSeparately() throws IOException {
+        byte[] content = content(4096, 1);
+        fileStorage.saveFile("file123", content);
+
+        assertTrue(Files.exists(tempDir.resolve("file123")));
+        assertArrayEquals(content, fileStorage.getFile("file123"));
+    }
+
+    /**
+     * Тест ошибки при повторном сохранении файла с тем же ID.
+     */
+    @Test
+    void saveFile_failIfFileAlreadyExists() throws IOException {
+        fileStorage.saveFile("file123", "test data".getBytes());
+
+        assertThrows(FileAlreadyExistsException.class, () -> fileStorage.saveFile("file123", "other".getBytes()));
+    }
+
+    /**
+     * Тест удаления файла из сегмента.
+     */
+    @Test
+    void deleteFile_removeFileFromIndex() throws IOException {
+        fileStorage.saveFile("file123", "test data".getBytes());
+
+        assertTrue(fileStorage.deleteFile("file123"));
+        assertFalse(fileStorage.fileExists("file123"));
+        assertThrows(FileNotFoundException.class, () -> fileStorage.openFile("file123"));
+        assertFalse(fileStorage.deleteFile("file123"));
+    }
+
+    /**
+     * Тест групповой фиксации: одновременные загрузки сбрасываются на диск меньшим числом force,
+     * чем файлов, и все файлы читаются после перезапуска.
+     */
+    @Test
+    void saveFile_groupConcurrentCommits() throws Exception {
+        int threads = 32;
+        int filesPerThread = 8;
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> saves = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int thread = t;
+                saves.add(executor.submit(() -> {
+                    start.await();
+                    for (int i = 0; i < filesPerThread; i++) {
+                        int seed = thread * filesPerThread + i;
+                        fileStorage.saveFile("file" + seed, content(100, seed));
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> save : saves) {
+                save.get();
+            }
+        } catch (ExecutionException e) {
+            throw new AssertionError(e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+
+        int files = threads * filesPerThread;
+        long commits = fileStorage.getMetrics().get("segment.commits");
+        assertTrue(commits < files, "Commits: " + commits);
+        fileStorage.close();
+        fileStorage = open();
+        for (int seed = 0; seed < files; seed++) {
+            assertArrayEquals(content(100, seed), fileStorage.getFile("file" + seed));
+        }
+    }
+
+    /**
+     * Тест восстановления индекса по футерам сегментов после перезапуска.
+     */
+    @Test
+    void open_rebuildIndexFromSegments() throws IOException {
+        for (int i = 0; i < 100; i++) {
+            fileStorage.saveFile("file" + i, content(500, i));
+        }
+        fileStorage.deleteFile("file7");
+        fileStorage.close();
+
+        fileStorage = open();
+
+        assertFalse(fileStorage.fileExists("file7"));
+        for (int i = 0; i < 100; i++) {
+            if (i != 7) {
+                assertArrayEquals(content(500, i), fileStorage.getFile("file" + i));
+            }
+        }
+    }
+
+    /**
+     * Тест восстановления после сбоя: недописанный хвост незапечатанного сегмента отбрасывается.
+     */
+    @Test
+    void open_truncateIncompleteTailAfterCrash() throws IOException {
+        fileStorage.saveFile("file1", content(500, 1));
+        fileStorage.saveFile("file2", content(500, 2));
+        // Эмулируем сбой: хранилище не закрыто, в конце сегмента - обрывок записи
+        Path segment;
+        try (Stream<Path> segments = Files.list(tempDir.resolve(".segments"))) {
+            segment = segments.findFirst().orElseThrow();
+        }
+        Files.write(segment, new byte[]{0x44, 0x46, 0x53}, StandardOpenOption.APPEND);
+
+        SegmentFileStorage recovered = new SegmentFileStorage(tempDir, SMALL_FILE_THRESHOLD, MAX_SEGMENT_SIZE);
+        try {
+            assertArrayEquals(content(500, 1), recovered.getFile("file1"));
+            assertArrayEquals(content(500, 2), recovered.getFile("file2"));
+            recovered.saveFile("file3", content(500, 3));
+            assertArrayEquals(content(500, 3), recovered.getFile("file3"));
+        } finally {
+            recovered.close();
+        }
+    }
+
+    /**
+     * Тест компактификации: место удалённых файлов освобождается, живые файлы остаются доступны.
+     */
+    @Test
+    void compact_reclaimSpaceOfDeletedFiles() throws IOException {
+        for (int i = 0; i < 200; i++) {
+            fileStorage.saveFile("file" + i, content(500, i));
+        }
+        long sizeBefore = segmentsSize();
+        for (int i = 0; i < 200; i++) {
+            if (i % 10 != 0) {
+                fileStorage.deleteFile("file" + i);
+            }
+        }
+
+        fileStorage.compact();
+
+        assertTrue(segmentsSize() < sizeBefore / 2);
+        for (int i = 0; i < 200; i++) {
+            if (i % 10 == 0) {
+                assertArrayEquals(content(500, i), fileStorage.getFile("file" + i));
+            } else {
+                assertFalse(fileStorage.fileExists("file" + i));
+            }
+        }
+
+        fileStorage.close();
+        fileStorage = open();
+        for (int i = 0; i < 200; i++) {
+            assertEquals(i % 10 == 0, fileStorage.fileExists("file" + i));
+        }
+    }
+
+    /**
+     * Тест чтения файла, открытого до компактификации его сегмента.
+     */
+    @Test
+    void openFile_readWhileSegmentIsCompacted() throws IOException {
+        for (int i = 0; i < 40; i++) {
+            fileStorage.saveFile("file" + i, content(500, i));
+        }
+        for (int i = 1; i < 40; i++) {
+            fileStorage.deleteFile("file" + i);
+        }
+
+        try (FileHandle file = fileStorage.openFile("file0")) {
+            fileStorage.compact();
+            ByteBuffer buffer = file.read(0, ByteBuffer.allocate(500));
+            byte[] read = new byte[buffer.remaining()];
+            buffer.get(read);
+            assertArrayEquals(content(500, 0), read);
+        }
+        assertArrayEquals(content(500, 0), fileStorage.getFile("file0"));
+    }
+
+    private SegmentFileStorage open() throws IOException {
+        return new SegmentFileStorage(tempDir, SMALL_FILE_THRESHOLD, MAX_SEGMENT_SIZE);
+    }
+
+    private long segmentsSize() throws IOException {
+        try (Stream<Path> segments = Files.list(tempDir.resolve(".segments"))) {
+            return segments.mapToLong(file -> file.toFile().length()).sum();
+        }
+    }
+
+    private static byte[] content(int size, int seed) {
+        byte[] content = new byte[size];
+        for (int i = 0; i < size; i++) {
+            content[i] = (byte) (seed * 31 + i);
+        }
+        return content;
+    }
+}